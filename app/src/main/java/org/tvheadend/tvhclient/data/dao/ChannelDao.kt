@@ -8,50 +8,89 @@ import org.tvheadend.tvhclient.domain.entity.EpgChannel
 @Dao
 interface ChannelDao {
 
-    @get:Query("SELECT COUNT (*) FROM channels AS c " +
+    @Query("SELECT COUNT (*) FROM channels AS c " +
             "WHERE " + CONNECTION_IS_ACTIVE)
-    val itemCount: LiveData<Int>
+    fun getItemCount(connectionId: Int): LiveData<Int>
 
-    @get:Query("SELECT COUNT (*) FROM channels AS c " +
+    @Query("SELECT COUNT (*) FROM channels AS c " +
             "WHERE " + CONNECTION_IS_ACTIVE)
-    val itemCountSync: Int
+    fun getItemCountSync(connectionId: Int): Int
 
     @Query("SELECT c.* FROM channels AS c " +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND c.id = :id")
-    fun loadChannelByIdSync(id: Int): Channel
+    fun loadChannelByIdSync(connectionId: Int, id: Int): Channel
 
     @Transaction
     @Query(CHANNEL_BASE_QUERY +
-            "LEFT JOIN programs AS program ON program.start <= :time AND program.stop > :time AND program.channel_id = c.id " +
-            "LEFT JOIN programs AS next_program ON next_program.start = program.stop AND next_program.channel_id = c.id " +
+            PROGRAM_JOIN +
             "WHERE " + CONNECTION_IS_ACTIVE + " AND c.id = :id")
-    fun loadChannelByIdWithProgramsSync(id: Int, time: Long): Channel
+    fun loadChannelByIdWithProgramsSync(connectionId: Int, id: Int, time: Long): Channel
 
     @Query("SELECT c.* FROM channels AS c " +
             "WHERE " + CONNECTION_IS_ACTIVE +
             "GROUP BY c.id " +
             ORDER_BY)
-    fun loadAllChannelsSync(sortOrder: Int): List<Channel>
+    fun loadAllChannelsSync(connectionId: Int, sortOrder: Int): List<Channel>
+
+    @Query("SELECT c.id FROM channels AS c " +
+            "WHERE " + CONNECTION_IS_ACTIVE +
+            ORDER_BY)
+    fun loadAllChannelIdsSync(connectionId: Int, sortOrder: Int): List<Int>
+
+    @Query("SELECT c.id FROM channels AS c " +
+            "WHERE " + CONNECTION_IS_ACTIVE +
+            " AND c.id IN (SELECT channel_id FROM tags_and_channels WHERE connection_id = :connectionId AND tag_id IN (:tagIds)) " +
+            ORDER_BY)
+    fun loadAllChannelIdsByTagSync(connectionId: Int, sortOrder: Int, tagIds: List<Int>): List<Int>
 
     @Transaction
     @Query(CHANNEL_BASE_QUERY +
-            "LEFT JOIN programs AS program ON program.start <= :time AND program.stop > :time AND program.channel_id = c.id " +
-            "LEFT JOIN programs AS next_program ON next_program.start = program.stop AND next_program.channel_id = c.id " +
+            PROGRAM_JOIN +
             "WHERE " + CONNECTION_IS_ACTIVE +
             "GROUP BY c.id " +
             ORDER_BY)
-    fun loadAllChannelsByTime(time: Long, sortOrder: Int): LiveData<List<Channel>>
+    fun loadAllChannelsByTime(connectionId: Int, time: Long, sortOrder: Int): LiveData<List<Channel>>
 
     @Transaction
     @Query(CHANNEL_BASE_QUERY +
-            "LEFT JOIN programs AS program ON program.start <= :time AND program.stop > :time AND program.channel_id = c.id " +
-            "LEFT JOIN programs AS next_program ON next_program.start = program.stop AND next_program.channel_id = c.id " +
+            PROGRAM_JOIN +
             "WHERE " + CONNECTION_IS_ACTIVE +
-            " AND c.id IN (SELECT channel_id FROM tags_and_channels WHERE tag_id IN (:tagIds)) " +
+            " AND c.id IN (SELECT channel_id FROM tags_and_channels WHERE connection_id = :connectionId AND tag_id IN (:tagIds)) " +
             "GROUP BY c.id " +
             ORDER_BY)
-    fun loadAllChannelsByTimeAndTag(time: Long, sortOrder: Int, tagIds: List<Int>): LiveData<List<Channel>>
+    fun loadAllChannelsByTimeAndTag(connectionId: Int, time: Long, sortOrder: Int, tagIds: List<Int>): LiveData<List<Channel>>
+
+    @Transaction
+    @Query(CHANNEL_NOW_NEXT_QUERY +
+            "WHERE " + CONNECTION_IS_ACTIVE +
+            ORDER_BY)
+    fun loadAllChannelsWithNowAndNext(connectionId: Int, sortOrder: Int): LiveData<List<Channel>>
+
+    @Transaction
+    @Query(CHANNEL_NOW_NEXT_QUERY +
+            "WHERE " + CONNECTION_IS_ACTIVE +
+            " AND c.id IN (SELECT channel_id FROM tags_and_channels WHERE connection_id = :connectionId AND tag_id IN (:tagIds)) " +
+            ORDER_BY)
+    fun loadAllChannelsWithNowAndNextByTag(connectionId: Int, sortOrder: Int, tagIds: List<Int>): LiveData<List<Channel>>
+
+    /**
+     * Returns the earliest time after the given one at which
+     * a current program ends or a program starts
+     */
+    @Query("SELECT MIN(time) FROM (" +
+            "SELECT MIN(program_stop) AS time FROM channel_now_next WHERE program_stop > :time " +
+            "UNION ALL " +
+            "SELECT MIN(start) AS time FROM programs WHERE start > :time)")
+    fun loadNextProgramChangeTimeSync(time: Long): Long?
+
+    /**
+     * Returns the latest start time of the programs
+     * that are current at the given time
+     */
+    @Query("SELECT MAX(program_start) FROM channel_now_next " +
+            "WHERE program_start <= :time AND program_stop > :time")
+    fun loadLastProgramChangeTimeSync(time: Long): Long?
 
     @Transaction
     @Insert(onConflict = OnConflictStrategy.REPLACE)
@@ -69,24 +108,30 @@ interface ChannelDao {
 
     @Query("DELETE FROM channels " +
             "WHERE id = :id " +
-            " AND connection_id IN (SELECT id FROM connections WHERE active = 1)")
-    fun deleteById(id: Int)
+            " AND connection_id = :connectionId")
+    fun deleteById(connectionId: Int, id: Int)
 
     @Query("DELETE FROM channels")
     fun deleteAll()
 
+    @Query("UPDATE channels SET event_sync_time = " +
+            "(SELECT IFNULL(MAX(p.stop), 0) FROM programs AS p " +
+            "  WHERE p.channel_id = channels.id AND p.connection_id = channels.connection_id) " +
+            "WHERE connection_id = :connectionId")
+    fun updateEventSyncTimes(connectionId: Int)
+
     @Transaction
     @Query(EPG_CHANNEL_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             ORDER_BY)
-    fun loadAllEpgChannels(sortOrder: Int): LiveData<List<EpgChannel>>
+    fun loadAllEpgChannels(connectionId: Int, sortOrder: Int): LiveData<List<EpgChannel>>
 
     @Transaction
     @Query(EPG_CHANNEL_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
-            " AND c.id IN (SELECT channel_id FROM tags_and_channels WHERE tag_id IN (:tagIds)) " +
+            " AND c.id IN (SELECT channel_id FROM tags_and_channels WHERE connection_id = :connectionId AND tag_id IN (:tagIds)) " +
             ORDER_BY)
-    fun loadAllEpgChannelsByTag(sortOrder: Int, tagIds: List<Int>): LiveData<List<EpgChannel>>
+    fun loadAllEpgChannelsByTag(connectionId: Int, sortOrder: Int, tagIds: List<Int>): LiveData<List<EpgChannel>>
 
     companion object {
 
@@ -101,6 +146,25 @@ interface ChannelDao {
                 "next_program.title AS next_program_title " +
                 "FROM channels AS c "
 
+        const val CHANNEL_NOW_NEXT_QUERY = "SELECT c.*, " +
+                "n.program_id AS program_id, " +
+                "n.program_title AS program_title, " +
+                "n.program_subtitle AS program_subtitle, " +
+                "n.program_start AS program_start, " +
+                "n.program_stop AS program_stop, " +
+                "n.program_content_type AS program_content_type, " +
+                "n.next_program_id AS next_program_id, " +
+                "n.next_program_title AS next_program_title " +
+                "FROM channels AS c " +
+                "LEFT JOIN channel_now_next AS n ON n.connection_id = c.connection_id AND n.channel_id = c.id "
+
+        // The connection is part of the join so that the index on the
+        // connection, channel, start and stop time of the programs is used
+        const val PROGRAM_JOIN = "LEFT JOIN programs AS program ON program.connection_id = c.connection_id AND program.channel_id = c.id " +
+                " AND program.start <= :time AND program.stop > :time " +
+                "LEFT JOIN programs AS next_program ON next_program.connection_id = c.connection_id AND next_program.channel_id = c.id " +
+                " AND next_program.start = program.stop "
+
         const val EPG_CHANNEL_BASE_QUERY = "SELECT c.id, " +
                 "c.name, " +
                 "c.icon, " +
@@ -119,6 +183,6 @@ interface ChannelDao {
                 "CASE :sortOrder WHEN 6 THEN (c.display_number + 0) END ASC," +
                 "CASE :sortOrder WHEN 7 THEN (c.display_number + 0) END DESC"
 
-        const val CONNECTION_IS_ACTIVE = " c.connection_id IN (SELECT id FROM connections WHERE active = 1) "
+        const val CONNECTION_IS_ACTIVE = " c.connection_id = :connectionId "
     }
 }
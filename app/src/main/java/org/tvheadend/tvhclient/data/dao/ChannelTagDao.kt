@@ -7,24 +7,24 @@ import org.tvheadend.tvhclient.domain.entity.ChannelTag
 @Dao
 interface ChannelTagDao {
 
-    @get:Query("SELECT COUNT (*) FROM channel_tags " +
+    @Query("SELECT COUNT (*) FROM channel_tags " +
             "WHERE " + CONNECTION_IS_ACTIVE)
-    val itemCountSync: Int
+    fun getItemCountSync(connectionId: Int): Int
 
     @Query("SELECT DISTINCT * FROM channel_tags " +
             "WHERE " + CONNECTION_IS_ACTIVE +
             "ORDER BY tag_name")
-    fun loadAllChannelTags(): LiveData<List<ChannelTag>>
+    fun loadAllChannelTags(connectionId: Int): LiveData<List<ChannelTag>>
 
     @Query("SELECT DISTINCT * FROM channel_tags " +
             "WHERE " + CONNECTION_IS_ACTIVE +
             "ORDER BY tag_name")
-    fun loadAllChannelTagsSync(): List<ChannelTag>
+    fun loadAllChannelTagsSync(connectionId: Int): List<ChannelTag>
 
     @Query("SELECT DISTINCT * FROM channel_tags " +
             "WHERE " + CONNECTION_IS_ACTIVE +
             "AND id = :id ")
-    fun loadChannelTagByIdSync(id: Int): ChannelTag
+    fun loadChannelTagByIdSync(connectionId: Int, id: Int): ChannelTag
 
     @Transaction
     @Insert(onConflict = OnConflictStrategy.REPLACE)
@@ -49,16 +49,21 @@ interface ChannelTagDao {
     @Query("DELETE FROM channel_tags " +
             "WHERE " + CONNECTION_IS_ACTIVE +
             "AND id = :id ")
-    fun deleteById(id: Int)
+    fun deleteById(connectionId: Int, id: Int)
 
     @Query("SELECT id FROM channel_tags " +
             "WHERE " + CONNECTION_IS_ACTIVE +
             "AND is_selected = 1 " +
             "ORDER BY tag_name")
-    fun loadAllSelectedItemIds(): LiveData<List<Int>?>
+    fun loadAllSelectedItemIds(connectionId: Int): LiveData<List<Int>?>
+
+    @Query("SELECT id FROM channel_tags " +
+            "WHERE " + CONNECTION_IS_ACTIVE +
+            "AND is_selected = 1")
+    fun loadAllSelectedItemIdsSync(connectionId: Int): List<Int>
 
     companion object {
 
-        const val CONNECTION_IS_ACTIVE = " connection_id IN (SELECT id FROM connections WHERE active = 1) "
+        const val CONNECTION_IS_ACTIVE = " connection_id = :connectionId "
     }
 }
@@ -1,6 +1,7 @@
 package org.tvheadend.tvhclient.data.dao
 
 import androidx.lifecycle.LiveData
+import androidx.paging.DataSource
 import androidx.room.*
 import org.tvheadend.tvhclient.domain.entity.EpgProgram
 import org.tvheadend.tvhclient.domain.entity.Program
@@ -8,32 +9,32 @@ import org.tvheadend.tvhclient.domain.entity.Program
 @Dao
 interface ProgramDao {
 
-    @get:Query("SELECT COUNT (*) FROM programs AS p " +
+    @Query("SELECT COUNT (*) FROM programs AS p " +
             "WHERE " + CONNECTION_IS_ACTIVE)
-    val itemCount: LiveData<Int>
+    fun getItemCount(connectionId: Int): LiveData<Int>
 
-    @get:Query("SELECT COUNT (*) FROM programs AS p " +
+    @Query("SELECT COUNT (*) FROM programs AS p " +
             "WHERE " + CONNECTION_IS_ACTIVE)
-    val itemCountSync: Int
+    fun getItemCountSync(connectionId: Int): Int
 
     @Transaction
-    @Query(PROGRAM_BASE_QUERY +
+    @Query(PAGED_PROGRAM_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND ((p.start >= :time) " +
             "  OR (p.start <= :time AND p.stop >= :time)) " +
             "GROUP BY p.id " +
             "ORDER BY p.start, p.channel_name ASC")
-    fun loadProgramsFromTime(time: Long): LiveData<List<Program>>
+    fun loadProgramsFromTime(connectionId: Int, time: Long): DataSource.Factory<Int, Program>
 
     @Transaction
-    @Query(PROGRAM_BASE_QUERY +
+    @Query(PAGED_PROGRAM_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND p.channel_id = :channelId " +
             " AND ((p.start >= :time) " +
             "  OR (p.start <= :time AND p.stop >= :time)) " +
             "GROUP BY p.id " +
             "ORDER BY p.start ASC")
-    fun loadProgramsFromChannelFromTime(channelId: Int, time: Long): LiveData<List<Program>>
+    fun loadProgramsFromChannelFromTime(connectionId: Int, channelId: Int, time: Long): DataSource.Factory<Int, Program>
 
     @Transaction
     @Query(EPG_PROGRAM_BASE_QUERY +
@@ -48,43 +49,75 @@ interface ProgramDao {
             "  OR (start < :endTime AND stop >= :endTime)) " +
             "GROUP BY p.id " +
             "ORDER BY start ASC")
-    fun loadProgramsFromChannelBetweenTimeSync(channelId: Int, startTime: Long, endTime: Long): List<EpgProgram>
+    fun loadProgramsFromChannelBetweenTimeSync(connectionId: Int, channelId: Int, startTime: Long, endTime: Long): List<EpgProgram>
+
+    @Transaction
+    @Query(EPG_PROGRAM_BASE_QUERY +
+            "LEFT JOIN channels AS c ON c.id = channel_id " +
+            "WHERE " + CONNECTION_IS_ACTIVE +
+            " AND channel_id IN (:channelIds) " +
+            // Program is within time slot
+            " AND ((start >= :startTime AND stop <= :endTime) " +
+            // Program is at the beginning of time slot
+            "  OR (start <= :startTime AND stop > :startTime) " +
+            // Program is at the end of the time slot
+            "  OR (start < :endTime AND stop >= :endTime)) " +
+            "GROUP BY p.id " +
+            "ORDER BY channel_id, start ASC")
+    fun loadProgramsFromChannelsBetweenTimeSync(connectionId: Int, channelIds: List<Int>, startTime: Long, endTime: Long): List<EpgProgram>
 
     @Transaction
     @Query(PROGRAM_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             "GROUP BY p.id " +
             "ORDER BY p.start, p.channel_name ASC")
-    fun loadPrograms(): LiveData<List<Program>>
+    fun loadPrograms(connectionId: Int): LiveData<List<Program>>
 
     @Transaction
     @Query(PROGRAM_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             "GROUP BY p.id " +
             "ORDER BY p.start, p.channel_name ASC")
-    fun loadProgramsSync(): List<Program>
+    fun loadProgramsSync(connectionId: Int): List<Program>
 
     @Transaction
     @Query(PROGRAM_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND p.id = :id")
-    fun loadProgramById(id: Int): LiveData<Program>
+    fun loadProgramById(connectionId: Int, id: Int): LiveData<Program>
 
     @Transaction
     @Query(PROGRAM_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND p.id = :id")
-    fun loadProgramByIdSync(id: Int): Program
+    fun loadProgramByIdSync(connectionId: Int, id: Int): Program
 
     @Query(PROGRAM_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND p.channel_id = :channelId " +
             "ORDER BY start DESC LIMIT 1")
-    fun loadLastProgramFromChannelSync(channelId: Int): Program
+    fun loadLastProgramFromChannelSync(connectionId: Int, channelId: Int): Program
 
-    @Query("DELETE FROM programs " + "WHERE stop < :time")
+    @Query(PROGRAM_BASE_QUERY +
+            "WHERE " + CONNECTION_IS_ACTIVE +
+            " AND p.start = (SELECT MAX(start) FROM programs " +
+            "  WHERE channel_id = p.channel_id AND connection_id = p.connection_id) " +
+            "GROUP BY p.channel_id")
+    fun loadLastProgramOfEachChannelSync(connectionId: Int): List<Program>
+
+    // A program always starts before it ends, the
+    // condition on the start allows using its index
+    @Query("DELETE FROM programs " +
+            "WHERE start < :time AND stop < :time")
     fun deleteProgramsByTime(time: Long)
 
+    @Query("DELETE FROM programs " +
+            "WHERE connection_id = :connectionId " +
+            " AND channel_id = :channelId " +
+            " AND id != :id " +
+            " AND start < :stop AND stop > :start")
+    fun deleteOverlappingPrograms(connectionId: Int, channelId: Int, id: Int, start: Long, stop: Long)
+
     @Transaction
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     fun insert(programs: List<Program>)
@@ -106,13 +139,24 @@ interface ProgramDao {
     fun delete(program: Program)
 
     @Query("DELETE FROM programs " +
-            "WHERE connection_id IN (SELECT id FROM connections WHERE active = 1) " +
+            "WHERE connection_id = :connectionId " +
             " AND id = :id")
-    fun deleteById(id: Int)
+    fun deleteById(connectionId: Int, id: Int)
 
     @Query("DELETE FROM programs")
     fun deleteAll()
 
+    @Query("SELECT id FROM programs " +
+            "WHERE connection_id = :connectionId " +
+            " AND channel_id = :channelId " +
+            " AND start < :endTime AND stop > :startTime")
+    fun loadProgramIdsFromChannelBetweenTimeSync(connectionId: Int, channelId: Int, startTime: Long, endTime: Long): List<Int>
+
+    @Query("DELETE FROM programs " +
+            "WHERE connection_id = :connectionId " +
+            " AND id IN (:ids)")
+    fun deleteByIds(connectionId: Int, ids: List<Int>)
+
     companion object {
 
         const val PROGRAM_BASE_QUERY = "SELECT DISTINCT p.*," +
@@ -121,6 +165,16 @@ interface ProgramDao {
                 "FROM programs AS p " +
                 "LEFT JOIN channels AS c ON c.id = p.channel_id "
 
+        // The paged data sources wrap the query in a sub query, which keeps the name of
+        // the first of two equally named columns and renames the other one. The channel
+        // columns come first so that they are not replaced by the unused program columns.
+        const val PAGED_PROGRAM_BASE_QUERY = "SELECT DISTINCT " +
+                "c.name AS channel_name, " +
+                "c.icon AS channel_icon, " +
+                "p.* " +
+                "FROM programs AS p " +
+                "LEFT JOIN channels AS c ON c.id = p.channel_id "
+
         const val EPG_PROGRAM_BASE_QUERY = "SELECT DISTINCT p.id, " +
                 "p.title, p.subtitle, " +
                 "p.channel_id, " +
@@ -131,6 +185,6 @@ interface ProgramDao {
                 "c.icon AS channel_icon " +
                 "FROM programs AS p "
 
-        const val CONNECTION_IS_ACTIVE = " p.connection_id IN (SELECT id FROM connections WHERE active = 1) "
+        const val CONNECTION_IS_ACTIVE = " p.connection_id = :connectionId "
     }
 }
@@ -7,91 +7,91 @@ import org.tvheadend.tvhclient.domain.entity.Recording
 @Dao
 abstract class RecordingDao {
 
-    @get:Query("SELECT COUNT (*) FROM recordings AS rec " +
+    @Query("SELECT COUNT (*) FROM recordings AS rec " +
             "WHERE (rec.error IS NULL AND rec.state = 'completed') " +
-            "AND rec.connection_id IN (SELECT id FROM connections WHERE active = 1)")
-    abstract val completedRecordingCount: LiveData<Int>
+            "AND rec.connection_id = :connectionId")
+    abstract fun getCompletedRecordingCount(connectionId: Int): LiveData<Int>
 
-    @get:Query("SELECT COUNT (*) FROM recordings AS rec " +
+    @Query("SELECT COUNT (*) FROM recordings AS rec " +
             "WHERE (rec.error IS NULL AND (rec.state = 'recording' OR rec.state = 'scheduled')) " +
-            "AND rec.connection_id IN (SELECT id FROM connections WHERE active = 1)")
-    abstract val scheduledRecordingCount: LiveData<Int>
+            "AND rec.connection_id = :connectionId")
+    abstract fun getScheduledRecordingCount(connectionId: Int): LiveData<Int>
 
-    @get:Query("SELECT COUNT (*) FROM recordings AS rec " +
+    @Query("SELECT COUNT (*) FROM recordings AS rec " +
             "WHERE ((rec.error IS NOT NULL AND (rec.state='missed'  OR rec.state='invalid')) " +
             " OR (rec.error IS NULL  AND rec.state='missed') " +
             " OR (rec.error='Aborted by user' AND rec.state='completed')) " +
-            "AND rec.connection_id IN (SELECT id FROM connections WHERE active = 1)")
-    abstract val failedRecordingCount: LiveData<Int>
+            "AND rec.connection_id = :connectionId")
+    abstract fun getFailedRecordingCount(connectionId: Int): LiveData<Int>
 
-    @get:Query("SELECT COUNT (*) FROM recordings AS rec " +
+    @Query("SELECT COUNT (*) FROM recordings AS rec " +
             "WHERE (rec.error = 'File missing' AND rec.state = 'completed') " +
-            "AND rec.connection_id IN (SELECT id FROM connections WHERE active = 1)")
-    abstract val removedRecordingCount: LiveData<Int>
+            "AND rec.connection_id = :connectionId")
+    abstract fun getRemovedRecordingCount(connectionId: Int): LiveData<Int>
 
-    @get:Query("SELECT COUNT (*) FROM recordings AS rec " +
+    @Query("SELECT COUNT (*) FROM recordings AS rec " +
             "WHERE " + CONNECTION_IS_ACTIVE)
-    abstract val itemCountSync: Int
+    abstract fun getItemCountSync(connectionId: Int): Int
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             "ORDER BY rec.start DESC")
-    abstract fun loadAllRecordings(): LiveData<List<Recording>>
+    abstract fun loadAllRecordings(connectionId: Int): LiveData<List<Recording>>
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND rec.error IS NULL AND rec.state = 'completed'" +
             "ORDER BY rec.start DESC")
-    abstract fun loadAllCompletedRecordings(): LiveData<List<Recording>>
+    abstract fun loadAllCompletedRecordings(connectionId: Int): LiveData<List<Recording>>
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND rec.error IS NULL AND (rec.state = 'recording' OR rec.state = 'scheduled')" +
             "ORDER BY rec.start ASC")
-    abstract fun loadAllScheduledRecordings(): LiveData<List<Recording>>
+    abstract fun loadAllScheduledRecordings(connectionId: Int): LiveData<List<Recording>>
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
-            " AND (rec.error IS NOT NULL AND (rec.state='missed'  OR rec.state='invalid')) " +
+            " AND ((rec.error IS NOT NULL AND (rec.state='missed'  OR rec.state='invalid')) " +
             " OR (rec.error IS NULL  AND rec.state='missed') " +
-            " OR (rec.error='Aborted by user' AND rec.state='completed')" +
+            " OR (rec.error='Aborted by user' AND rec.state='completed')) " +
             "ORDER BY rec.start DESC")
-    abstract fun loadAllFailedRecordings(): LiveData<List<Recording>>
+    abstract fun loadAllFailedRecordings(connectionId: Int): LiveData<List<Recording>>
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND rec.error = 'File missing' AND rec.state = 'completed'" +
             "ORDER BY rec.start DESC")
-    abstract fun loadAllRemovedRecordings(): LiveData<List<Recording>>
+    abstract fun loadAllRemovedRecordings(connectionId: Int): LiveData<List<Recording>>
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND rec.id = :id")
-    abstract fun loadRecordingById(id: Int): LiveData<Recording>
+    abstract fun loadRecordingById(connectionId: Int, id: Int): LiveData<Recording>
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND rec.id = :id")
-    abstract fun loadRecordingByIdSync(id: Int): Recording
+    abstract fun loadRecordingByIdSync(connectionId: Int, id: Int): Recording
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND rec.channel_id = :channelId")
-    abstract fun loadAllRecordingsByChannelId(channelId: Int): LiveData<List<Recording>>
+    abstract fun loadAllRecordingsByChannelId(connectionId: Int, channelId: Int): LiveData<List<Recording>>
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND rec.event_id = :id")
-    abstract fun loadRecordingByEventIdSync(id: Int): Recording
+    abstract fun loadRecordingByEventIdSync(connectionId: Int, id: Int): Recording
 
     @Transaction
     @Insert(onConflict = OnConflictStrategy.REPLACE)
@@ -111,13 +111,33 @@ abstract class RecordingDao {
     abstract fun delete(recordings: List<Recording>)
 
     @Query("DELETE FROM recordings " +
-            "WHERE connection_id IN (SELECT id FROM connections WHERE active = 1) " +
+            "WHERE connection_id = :connectionId " +
             " AND id = :id")
-    abstract fun deleteById(id: Int)
+    abstract fun deleteById(connectionId: Int, id: Int)
 
     @Query("DELETE FROM recordings")
     abstract fun deleteAll()
 
+    @Query("SELECT id FROM recordings " +
+            "WHERE connection_id = :connectionId")
+    abstract fun loadRecordingIdsSync(connectionId: Int): List<Int>
+
+    @Query("DELETE FROM recordings " +
+            "WHERE connection_id = :connectionId " +
+            " AND id IN (:ids)")
+    abstract fun deleteByIds(connectionId: Int, ids: List<Int>)
+
+    /**
+     * Removes all recordings of the active connection whose id is not in the
+     * given set. The ids are deleted in batches to stay below the maximum
+     * number of variables that SQLite allows in one statement.
+     */
+    @Transaction
+    open fun deleteAllExcept(connectionId: Int, ids: Set<Int>) {
+        val removedIds = loadRecordingIdsSync(connectionId).filter { !ids.contains(it) }
+        removedIds.chunked(500).forEach { deleteByIds(connectionId, it) }
+    }
+
     companion object {
         const val RECORDING_BASE_QUERY = "SELECT DISTINCT rec.*, " +
                 "c.name AS channel_name, " +
@@ -125,7 +145,7 @@ abstract class RecordingDao {
                 "FROM recordings AS rec " +
                 "LEFT JOIN channels AS c ON c.id = rec.channel_id "
 
-        const val CONNECTION_IS_ACTIVE = " rec.connection_id IN (SELECT id FROM connections WHERE active = 1) "
+        const val CONNECTION_IS_ACTIVE = " rec.connection_id = :connectionId "
     }
 
 }
@@ -0,0 +1,28 @@
+package org.tvheadend.tvhclient.data.dao
+
+import androidx.paging.DataSource
+import androidx.room.Dao
+import androidx.room.RawQuery
+import androidx.sqlite.db.SupportSQLiteQuery
+import org.tvheadend.tvhclient.domain.entity.Channel
+import org.tvheadend.tvhclient.domain.entity.Program
+
+/**
+ * Runs the full text searches. The queries are created by the search index helper
+ * because the full text tables are not known to Room and can not be verified.
+ */
+@Dao
+interface SearchDao {
+
+    @RawQuery(observedEntities = [Program::class, Channel::class])
+    fun loadPrograms(query: SupportSQLiteQuery): DataSource.Factory<Int, Program>
+
+    @RawQuery
+    fun loadProgramTitlesSync(query: SupportSQLiteQuery): List<String>
+
+    @RawQuery
+    fun loadRecordingIdsSync(query: SupportSQLiteQuery): List<Int>
+
+    @RawQuery
+    fun loadSeriesRecordingIdsSync(query: SupportSQLiteQuery): List<String>
+}
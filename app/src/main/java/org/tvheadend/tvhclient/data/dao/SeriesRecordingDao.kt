@@ -7,26 +7,26 @@ import org.tvheadend.tvhclient.domain.entity.SeriesRecording
 @Dao
 interface SeriesRecordingDao {
 
-    @get:Query("SELECT COUNT (*) FROM series_recordings AS rec " +
+    @Query("SELECT COUNT (*) FROM series_recordings AS rec " +
             "WHERE " + CONNECTION_IS_ACTIVE)
-    val recordingCount: LiveData<Int>
+    fun getRecordingCount(connectionId: Int): LiveData<Int>
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE)
-    fun loadAllRecordings(): LiveData<List<SeriesRecording>>
+    fun loadAllRecordings(connectionId: Int): LiveData<List<SeriesRecording>>
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND rec.id = :id")
-    fun loadRecordingById(id: String): LiveData<SeriesRecording>
+    fun loadRecordingById(connectionId: Int, id: String): LiveData<SeriesRecording>
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND rec.id = :id")
-    fun loadRecordingByIdSync(id: String): SeriesRecording
+    fun loadRecordingByIdSync(connectionId: Int, id: String): SeriesRecording
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     fun insert(recording: SeriesRecording)
@@ -38,13 +38,22 @@ interface SeriesRecordingDao {
     fun delete(recording: SeriesRecording)
 
     @Query("DELETE FROM series_recordings " +
-            "WHERE connection_id IN (SELECT id FROM connections WHERE active = 1)" +
+            "WHERE connection_id = :connectionId" +
             " AND id = :id ")
-    fun deleteById(id: String)
+    fun deleteById(connectionId: Int, id: String)
 
     @Query("DELETE FROM series_recordings")
     fun deleteAll()
 
+    @Query("SELECT id FROM series_recordings " +
+            "WHERE connection_id = :connectionId")
+    fun loadRecordingIdsSync(connectionId: Int): List<String>
+
+    @Query("DELETE FROM series_recordings " +
+            "WHERE connection_id = :connectionId " +
+            " AND id IN (:ids)")
+    fun deleteByIds(connectionId: Int, ids: List<String>)
+
     companion object {
 
         const val RECORDING_BASE_QUERY = "SELECT DISTINCT rec.*, " +
@@ -53,6 +62,6 @@ interface SeriesRecordingDao {
                 "FROM series_recordings AS rec " +
                 "LEFT JOIN channels AS c ON  c.id = rec.channel_id "
 
-        const val CONNECTION_IS_ACTIVE = " rec.connection_id IN (SELECT id FROM connections WHERE active = 1) "
+        const val CONNECTION_IS_ACTIVE = " rec.connection_id = :connectionId "
     }
 }
@@ -12,13 +12,13 @@ interface ServerStatusDao {
 
     @Transaction
     @Query("$SERVER_STATUS_BASE_QUERY WHERE $CONNECTION_IS_ACTIVE")
-    fun loadAllServerStatus(): LiveData<List<ServerStatus>>
+    fun loadAllServerStatus(connectionId: Int): LiveData<List<ServerStatus>>
 
     @Query("$SERVER_STATUS_BASE_QUERY WHERE $CONNECTION_IS_ACTIVE")
-    fun loadActiveServerStatusSync(): ServerStatus
+    fun loadActiveServerStatusSync(connectionId: Int): ServerStatus
 
     @Query("$SERVER_STATUS_BASE_QUERY WHERE $CONNECTION_IS_ACTIVE")
-    fun loadActiveServerStatus(): LiveData<ServerStatus>
+    fun loadActiveServerStatus(connectionId: Int): LiveData<ServerStatus>
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     fun insert(serverStatus: ServerStatus)
@@ -38,9 +38,9 @@ interface ServerStatusDao {
     @Query("$SERVER_STATUS_BASE_QUERY WHERE s.connection_id = :id")
     fun loadServerStatusById(id: Int): LiveData<ServerStatus>
 
-    @get:Query("SELECT COUNT (*) FROM server_status AS s " +
+    @Query("SELECT COUNT (*) FROM server_status AS s " +
             "WHERE " + CONNECTION_IS_ACTIVE)
-    val serverStatusCount: LiveData<Int>
+    fun getServerStatusCount(connectionId: Int): LiveData<Int>
 
     companion object {
 
@@ -49,6 +49,6 @@ interface ServerStatusDao {
                 "FROM server_status AS s " +
                 "LEFT JOIN connections AS c ON c.id = s.connection_id "
 
-        const val CONNECTION_IS_ACTIVE = " s.connection_id IN (SELECT id FROM connections WHERE active = 1) "
+        const val CONNECTION_IS_ACTIVE = " s.connection_id = :connectionId "
     }
 }
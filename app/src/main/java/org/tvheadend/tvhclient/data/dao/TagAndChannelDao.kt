@@ -27,10 +27,15 @@ abstract class TagAndChannelDao {
         insert(newTagAndChannels)
     }
 
+    @Query("SELECT * FROM tags_and_channels " +
+            "WHERE connection_id = :connectionId " +
+            "ORDER BY tag_id, channel_id")
+    abstract fun loadAllTagAndChannelsSync(connectionId: Int): List<TagAndChannel>
+
     @Query("DELETE FROM tags_and_channels " +
-            "WHERE connection_id IN (SELECT id FROM connections WHERE active = 1) " +
+            "WHERE connection_id = :connectionId " +
             " AND tag_id = :id")
-    abstract fun deleteByTagId(id: Int)
+    abstract fun deleteByTagId(connectionId: Int, id: Int)
 
     @Query("DELETE FROM tags_and_channels")
     abstract fun deleteAll()
@@ -7,26 +7,26 @@ import org.tvheadend.tvhclient.domain.entity.TimerRecording
 @Dao
 interface TimerRecordingDao {
 
-    @get:Query("SELECT COUNT (*) FROM timer_recordings AS rec " +
+    @Query("SELECT COUNT (*) FROM timer_recordings AS rec " +
             "WHERE " + CONNECTION_IS_ACTIVE)
-    val recordingCount: LiveData<Int>
+    fun getRecordingCount(connectionId: Int): LiveData<Int>
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE)
-    fun loadAllRecordings(): LiveData<List<TimerRecording>>
+    fun loadAllRecordings(connectionId: Int): LiveData<List<TimerRecording>>
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND rec.id = :id")
-    fun loadRecordingById(id: String): LiveData<TimerRecording>
+    fun loadRecordingById(connectionId: Int, id: String): LiveData<TimerRecording>
 
     @Transaction
     @Query(RECORDING_BASE_QUERY +
             "WHERE " + CONNECTION_IS_ACTIVE +
             " AND rec.id = :id")
-    fun loadRecordingByIdSync(id: String): TimerRecording
+    fun loadRecordingByIdSync(connectionId: Int, id: String): TimerRecording
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     fun insert(recording: TimerRecording)
@@ -38,9 +38,9 @@ interface TimerRecordingDao {
     fun delete(recording: TimerRecording)
 
     @Query("DELETE FROM timer_recordings " +
-            "WHERE connection_id IN (SELECT id FROM connections WHERE active = 1) " +
+            "WHERE connection_id = :connectionId " +
             " AND id = :id")
-    fun deleteById(id: String)
+    fun deleteById(connectionId: Int, id: String)
 
     @Query("DELETE FROM timer_recordings")
     fun deleteAll()
@@ -53,6 +53,6 @@ interface TimerRecordingDao {
                 "FROM timer_recordings AS rec " +
                 "LEFT JOIN channels AS c ON  c.id = rec.channel_id "
 
-        const val CONNECTION_IS_ACTIVE = " rec.connection_id IN (SELECT id FROM connections WHERE active = 1) "
+        const val CONNECTION_IS_ACTIVE = " rec.connection_id = :connectionId "
     }
 }
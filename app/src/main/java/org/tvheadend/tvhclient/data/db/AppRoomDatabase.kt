@@ -19,9 +19,10 @@ import org.tvheadend.tvhclient.domain.entity.*
             TagAndChannel::class,
             Connection::class,
             ServerProfile::class,
-            ServerStatus::class],
+            ServerStatus::class,
+            ChannelNowNext::class],
         exportSchema = false,
-        version = 10)
+        version = 14)
 abstract class AppRoomDatabase : RoomDatabase() {
 
     abstract val timerRecordingDao: TimerRecordingDao
@@ -44,6 +45,8 @@ abstract class AppRoomDatabase : RoomDatabase() {
 
     abstract val serverStatusDao: ServerStatusDao
 
+    abstract val searchDao: SearchDao
+
     companion object {
 
         private var instance: AppRoomDatabase? = null
@@ -61,12 +64,27 @@ abstract class AppRoomDatabase : RoomDatabase() {
                             .addMigrations(MIGRATION_7_8)
                             .addMigrations(MIGRATION_8_9)
                             .addMigrations(MIGRATION_9_10)
+                            .addMigrations(MIGRATION_10_11)
+                            .addMigrations(MIGRATION_11_12)
+                            .addMigrations(MIGRATION_12_13)
+                            .addMigrations(MIGRATION_13_14)
+                            .addCallback(CALLBACK)
                             .build()
                 }
             }
             return instance
         }
 
+        /**
+         * Creates the triggers and the tables that Room can not declare
+         */
+        internal val CALLBACK = object : RoomDatabase.Callback() {
+            override fun onCreate(db: SupportSQLiteDatabase) {
+                ChannelNowNextHelper.createTriggers(db)
+                SearchIndexHelper.createTables(db)
+            }
+        }
+
         private val MIGRATION_1_2 = object : Migration(1, 2) {
             override fun migrate(database: SupportSQLiteDatabase) {
                 database.execSQL("ALTER TABLE connections ADD COLUMN last_update INTEGER NOT NULL DEFAULT 0;")
@@ -136,5 +154,58 @@ abstract class AppRoomDatabase : RoomDatabase() {
                 database.execSQL("ALTER TABLE channels ADD COLUMN server_order INTEGER NOT NULL DEFAULT 0;")
             }
         }
+
+        private val MIGRATION_10_11 = object : Migration(10, 11) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("ALTER TABLE connections ADD COLUMN event_sync_time INTEGER NOT NULL DEFAULT 0;")
+                database.execSQL("ALTER TABLE channels ADD COLUMN event_sync_time INTEGER NOT NULL DEFAULT 0;")
+            }
+        }
+
+        /**
+         * Adds indexes that start with the connection id, because every query only
+         * uses the rows of the active connection. The columns that follow match the
+         * filters and the sort order of the queries in the DAOs.
+         */
+        private val MIGRATION_11_12 = object : Migration(11, 12) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("DROP INDEX IF EXISTS index_programs_channel_id")
+                database.execSQL("CREATE INDEX index_programs_connection_id_start ON programs(connection_id, start)")
+                database.execSQL("CREATE INDEX index_programs_connection_id_channel_id_start_stop ON programs(connection_id, channel_id, start, stop)")
+                database.execSQL("CREATE INDEX index_recordings_connection_id_start ON recordings(connection_id, start)")
+                database.execSQL("CREATE INDEX index_recordings_connection_id_channel_id ON recordings(connection_id, channel_id)")
+                database.execSQL("CREATE INDEX index_recordings_connection_id_event_id ON recordings(connection_id, event_id)")
+                database.execSQL("CREATE INDEX index_tags_and_channels_connection_id_tag_id_channel_id ON tags_and_channels(connection_id, tag_id, channel_id)")
+                database.execSQL("CREATE INDEX index_channel_tags_connection_id_tag_name ON channel_tags(connection_id, tag_name)")
+                database.execSQL("CREATE INDEX index_channels_connection_id ON channels(connection_id)")
+                database.execSQL("CREATE INDEX index_series_recordings_connection_id ON series_recordings(connection_id)")
+                database.execSQL("CREATE INDEX index_timer_recordings_connection_id ON timer_recordings(connection_id)")
+                database.execSQL("CREATE INDEX index_server_status_connection_id ON server_status(connection_id)")
+                database.execSQL("CREATE INDEX index_server_profiles_type ON server_profiles(type)")
+                database.execSQL("CREATE INDEX index_server_profiles_uuid ON server_profiles(uuid)")
+                database.execSQL("CREATE INDEX index_connections_active ON connections(active)")
+                database.execSQL("ANALYZE")
+            }
+        }
+
+        private val MIGRATION_12_13 = object : Migration(12, 13) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("CREATE TABLE IF NOT EXISTS channel_now_next (" +
+                        "connection_id INTEGER NOT NULL, channel_id INTEGER NOT NULL, " +
+                        "program_id INTEGER, program_title TEXT, program_subtitle TEXT, " +
+                        "program_start INTEGER, program_stop INTEGER, program_content_type INTEGER, " +
+                        "next_program_id INTEGER, next_program_title TEXT, " +
+                        "PRIMARY KEY(connection_id, channel_id))")
+                ChannelNowNextHelper.createTriggers(database)
+                ChannelNowNextHelper.update(database, System.currentTimeMillis())
+            }
+        }
+
+        private val MIGRATION_13_14 = object : Migration(13, 14) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                SearchIndexHelper.createTables(database)
+                SearchIndexHelper.rebuild(database)
+            }
+        }
     }
 }
@@ -0,0 +1,84 @@
+package org.tvheadend.tvhclient.data.db
+
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+/**
+ * Maintains the channel_now_next table. Triggers on the programs table update the
+ * row of a channel in the same transaction in which one of its current or next
+ * programs is saved or removed. Because the triggers can only use the time of the
+ * write, the rows whose current program has ended in the meantime are moved
+ * forward by [update].
+ */
+object ChannelNowNextHelper {
+
+    private const val COLUMNS = "connection_id, channel_id, " +
+            "program_id, program_title, program_subtitle, program_start, program_stop, program_content_type, " +
+            "next_program_id, next_program_title"
+
+    // Current time in milliseconds like the start and stop times of the programs
+    private const val NOW = "(CAST(strftime('%s', 'now') AS INTEGER) * 1000)"
+
+    /**
+     * Creates the triggers, must be called when the table is created
+     */
+    fun createTriggers(database: SupportSQLiteDatabase) {
+        // Only programs that are running or start when the current one ends change the row
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS channel_now_next_program_insert AFTER INSERT ON programs " +
+                "WHEN NEW.stop > $NOW " +
+                " AND NEW.start <= IFNULL((SELECT program_stop FROM channel_now_next " +
+                "  WHERE connection_id = NEW.connection_id AND channel_id = NEW.channel_id), $NOW) " +
+                "BEGIN " + replaceRow("NEW.connection_id", "NEW.channel_id") + "; END")
+
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS channel_now_next_program_update AFTER UPDATE ON programs " +
+                "BEGIN " +
+                replaceRow("OLD.connection_id", "OLD.channel_id") + "; " +
+                replaceRow("NEW.connection_id", "NEW.channel_id") + "; END")
+
+        // Removing past or later programs, which is the common case, does not change the row
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS channel_now_next_program_delete AFTER DELETE ON programs " +
+                "WHEN EXISTS (SELECT 1 FROM channel_now_next " +
+                "  WHERE connection_id = OLD.connection_id AND channel_id = OLD.channel_id " +
+                "  AND (program_id = OLD.id OR next_program_id = OLD.id)) " +
+                "BEGIN " + replaceRow("OLD.connection_id", "OLD.channel_id") + "; END")
+
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS channel_now_next_channel_delete AFTER DELETE ON channels " +
+                "BEGIN DELETE FROM channel_now_next WHERE connection_id = OLD.connection_id AND channel_id = OLD.id; END")
+    }
+
+    /**
+     * Sets the current and next program of all channels whose row is missing
+     * or whose current program is not running at the given time anymore.
+     */
+    fun update(database: SupportSQLiteDatabase, time: Long) {
+        database.execSQL("INSERT OR REPLACE INTO channel_now_next ($COLUMNS) " +
+                "SELECT c.connection_id, c.id, " +
+                "program.id, program.title, program.subtitle, program.start, program.stop, program.content_type, " +
+                "next_program.id, next_program.title " +
+                "FROM channels AS c " +
+                "LEFT JOIN programs AS program ON program.connection_id = c.connection_id AND program.channel_id = c.id " +
+                " AND program.start <= ?1 AND program.stop > ?1 " +
+                "LEFT JOIN programs AS next_program ON next_program.connection_id = c.connection_id AND next_program.channel_id = c.id " +
+                " AND next_program.start = program.stop " +
+                "WHERE NOT EXISTS (SELECT 1 FROM channel_now_next AS n " +
+                "  WHERE n.connection_id = c.connection_id AND n.channel_id = c.id " +
+                "  AND n.program_start <= ?1 AND n.program_stop > ?1) " +
+                "GROUP BY c.connection_id, c.id", arrayOf<Any>(time))
+    }
+
+    /**
+     * Returns the statement that replaces the row of the given channel with the
+     * programs that are running at the time of the write
+     */
+    private fun replaceRow(connectionId: String, channelId: String): String {
+        return "INSERT OR REPLACE INTO channel_now_next ($COLUMNS) " +
+                "SELECT $connectionId, $channelId, " +
+                "program.id, program.title, program.subtitle, program.start, program.stop, program.content_type, " +
+                "next_program.id, next_program.title " +
+                "FROM (SELECT NULL) " +
+                "LEFT JOIN programs AS program ON program.connection_id = $connectionId AND program.channel_id = $channelId " +
+                " AND program.start <= $NOW AND program.stop > $NOW " +
+                "LEFT JOIN programs AS next_program ON next_program.connection_id = $connectionId AND next_program.channel_id = $channelId " +
+                " AND next_program.start = program.stop " +
+                "LIMIT 1"
+    }
+}
@@ -0,0 +1,218 @@
+package org.tvheadend.tvhclient.data.db
+
+import android.os.Handler
+import android.os.Looper
+import timber.log.Timber
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs the database operations of the data sources. Reads are executed by a
+ * bounded pool of reader threads, because the database allows concurrent reads.
+ * All writes are executed one after the other by a single writer thread, so they
+ * never wait for each other inside the database and are applied in the order in
+ * which they were requested.
+ *
+ * The time each operation waited in the queue and the time it took to execute
+ * are recorded separately for the reads and the writes.
+ */
+class DatabaseExecutor(readerCount: Int = DEFAULT_READER_COUNT) {
+
+    val readMetrics = Metrics("read")
+    val writeMetrics = Metrics("write")
+
+    private val readers = ThreadPoolExecutor(readerCount, readerCount,
+            30, TimeUnit.SECONDS, LinkedBlockingQueue(), DatabaseThreadFactory(READER_THREAD_NAME))
+    private val writer = ThreadPoolExecutor(1, 1,
+            30, TimeUnit.SECONDS, LinkedBlockingQueue(), DatabaseThreadFactory(WRITER_THREAD_NAME))
+    private val mainThreadHandler = Handler(Looper.getMainLooper())
+
+    init {
+        readers.allowCoreThreadTimeOut(true)
+        writer.allowCoreThreadTimeOut(true)
+    }
+
+    /**
+     * Executes the given read on one of the reader threads
+     */
+    fun <T> read(task: () -> T): Future<T> {
+        return readers.submit(MeasuredTask(readMetrics, task))
+    }
+
+    /**
+     * Executes the given read on one of the reader threads and passes
+     * the result to the callback on the main thread. The callback is
+     * not invoked if the read failed.
+     */
+    fun <T> read(task: () -> T, callback: (T) -> Unit) {
+        val measuredTask = MeasuredTask(readMetrics, task)
+        readers.execute {
+            val result = try {
+                measuredTask.call()
+            } catch (e: Exception) {
+                Timber.d(e, "Database read failed")
+                return@execute
+            }
+            mainThreadHandler.post { callback(result) }
+        }
+    }
+
+    /**
+     * Queues the given write for the writer thread
+     */
+    fun write(task: () -> Unit): Future<Unit> {
+        return writer.submit(MeasuredTask(writeMetrics, task))
+    }
+
+    /**
+     * Queues the given write for the writer thread and passes its
+     * result to the callback on the main thread. The callback is
+     * not invoked if the write failed.
+     */
+    fun <T> write(task: () -> T, callback: (T) -> Unit) {
+        val measuredTask = MeasuredTask(writeMetrics, task)
+        writer.execute {
+            val result = try {
+                measuredTask.call()
+            } catch (e: Exception) {
+                Timber.d(e, "Database write failed")
+                return@execute
+            }
+            mainThreadHandler.post { callback(result) }
+        }
+    }
+
+    /**
+     * Executes the read on a reader thread and waits for the result. The
+     * calling thread is blocked, so this must not be called from the main thread.
+     *
+     * @param name         Describes the read in the log messages if it failed
+     * @param defaultValue The value that is returned if the read failed
+     */
+    fun <T> readSync(name: String, defaultValue: T, task: () -> T): T {
+        // A database thread that waits for another one could block all of them
+        if (isDatabaseThread()) {
+            return task()
+        }
+        try {
+            return read(task).get()
+        } catch (e: InterruptedException) {
+            Timber.d(e, "Loading $name task got interrupted")
+        } catch (e: ExecutionException) {
+            Timber.d(e, "Loading $name task aborted")
+        }
+        return defaultValue
+    }
+
+    /**
+     * Executes the write on the writer thread and waits until it is done.
+     * The calling thread is blocked, so this must not be called from the main thread.
+     *
+     * @param name Describes the write in the log messages if it failed
+     */
+    fun writeSync(name: String, task: () -> Unit) {
+        if (Thread.currentThread().name.startsWith(WRITER_THREAD_NAME)) {
+            task()
+            return
+        }
+        try {
+            write(task).get()
+        } catch (e: InterruptedException) {
+            Timber.d(e, "Saving $name task got interrupted")
+        } catch (e: ExecutionException) {
+            Timber.d(e, "Saving $name task aborted")
+        }
+    }
+
+    fun logMetrics() {
+        Timber.d("$readMetrics, ${readers.queue.size} queued")
+        Timber.d("$writeMetrics, ${writer.queue.size} queued")
+    }
+
+    private fun isDatabaseThread(): Boolean {
+        val name = Thread.currentThread().name
+        return name.startsWith(READER_THREAD_NAME) || name.startsWith(WRITER_THREAD_NAME)
+    }
+
+    /**
+     * Collects the number of operations and the time they spent
+     * waiting in the queue and executing in nanoseconds.
+     */
+    class Metrics internal constructor(private val name: String) {
+
+        private val count = AtomicLong()
+        private val totalWaitTime = AtomicLong()
+        private val maxWaitTime = AtomicLong()
+        private val totalExecutionTime = AtomicLong()
+        private val maxExecutionTime = AtomicLong()
+
+        val taskCount: Long
+            get() = count.get()
+
+        val averageWaitTime: Long
+            get() = average(totalWaitTime.get())
+
+        val averageExecutionTime: Long
+            get() = average(totalExecutionTime.get())
+
+        internal fun add(waitTime: Long, executionTime: Long) {
+            count.incrementAndGet()
+            totalWaitTime.addAndGet(waitTime)
+            totalExecutionTime.addAndGet(executionTime)
+            updateMax(maxWaitTime, waitTime)
+            updateMax(maxExecutionTime, executionTime)
+        }
+
+        private fun average(total: Long): Long {
+            val tasks = count.get()
+            return if (tasks > 0) total / tasks else 0
+        }
+
+        private fun updateMax(max: AtomicLong, value: Long) {
+            var current = max.get()
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get()
+            }
+        }
+
+        override fun toString(): String {
+            return "Database $name tasks: $taskCount, " +
+                    "wait time avg ${TimeUnit.NANOSECONDS.toMicros(averageWaitTime)} µs max ${TimeUnit.NANOSECONDS.toMillis(maxWaitTime.get())} ms, " +
+                    "execution time avg ${TimeUnit.NANOSECONDS.toMicros(averageExecutionTime)} µs max ${TimeUnit.NANOSECONDS.toMillis(maxExecutionTime.get())} ms"
+        }
+    }
+
+    private class MeasuredTask<T>(private val metrics: Metrics, private val task: () -> T) : Callable<T> {
+
+        private val queuedTime = System.nanoTime()
+
+        override fun call(): T {
+            val startTime = System.nanoTime()
+            try {
+                return task()
+            } finally {
+                val endTime = System.nanoTime()
+                metrics.add(startTime - queuedTime, endTime - startTime)
+            }
+        }
+    }
+
+    private class DatabaseThreadFactory(private val name: String) : ThreadFactory {
+
+        private val threadCount = AtomicInteger()
+
+        override fun newThread(runnable: Runnable): Thread {
+            val thread = Thread(runnable, name + "-" + threadCount.incrementAndGet())
+            thread.priority = Thread.NORM_PRIORITY - 1
+            return thread
+        }
+    }
+
+    companion object {
+
+        const val DEFAULT_READER_COUNT = 3
+        private const val READER_THREAD_NAME = "DatabaseReader"
+        private const val WRITER_THREAD_NAME = "DatabaseWriter"
+    }
+}
@@ -0,0 +1,151 @@
+package org.tvheadend.tvhclient.data.db
+
+import androidx.sqlite.db.SimpleSQLiteQuery
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteQuery
+import org.tvheadend.tvhclient.data.dao.ProgramDao
+
+/**
+ * Maintains the full text search tables of the programs, recordings and series recordings
+ * and creates the queries that search them. The FTS4 tables use the tables of the entities
+ * as their external content, so the texts are not stored twice. Triggers update the index
+ * in the same transaction in which a row is saved or removed.
+ *
+ * Room can not declare virtual tables, so the tables are created here and the
+ * searches are run as raw queries of the search dao.
+ */
+object SearchIndexHelper {
+
+    private const val PROGRAMS = "programs"
+    private const val RECORDINGS = "recordings"
+    private const val SERIES_RECORDINGS = "series_recordings"
+
+    private val indexedColumns = mapOf(
+            PROGRAMS to listOf("title", "subtitle", "summary", "description", "credits", "keyword"),
+            RECORDINGS to listOf("title", "subtitle", "summary", "description"),
+            SERIES_RECORDINGS to listOf("title", "name", "directory"))
+
+    // Words in upper case that the full text query would treat as operators
+    private val operators = setOf("AND", "OR", "NOT", "NEAR")
+    private val wordSeparator = Regex("[^\\p{L}\\p{N}]+")
+
+    /**
+     * Creates the tables and the triggers, must be called when the database is created
+     */
+    fun createTables(database: SupportSQLiteDatabase) {
+        for ((table, columns) in indexedColumns) {
+            val index = "${table}_fts"
+            val names = columns.joinToString(", ")
+            val newValues = columns.joinToString(", ") { "NEW.$it" }
+
+            // The default tokenizer only ignores the case of ASCII letters, the
+            // others are not available on all supported versions of Android
+            database.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS $index USING fts4(content=\"$table\", $names)")
+
+            // The entries of a row must be removed while its content still exists. Inserting
+            // a row replaces an existing one without calling the delete trigger.
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS ${index}_before_insert BEFORE INSERT ON $table " +
+                    "BEGIN DELETE FROM $index WHERE docid IN (SELECT rowid FROM $table " +
+                    "  WHERE id = NEW.id AND connection_id = NEW.connection_id); END")
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS ${index}_after_insert AFTER INSERT ON $table " +
+                    "BEGIN INSERT INTO $index (docid, $names) VALUES (NEW.rowid, $newValues); END")
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS ${index}_before_update BEFORE UPDATE ON $table " +
+                    "BEGIN DELETE FROM $index WHERE docid = OLD.rowid; END")
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS ${index}_after_update AFTER UPDATE ON $table " +
+                    "BEGIN INSERT INTO $index (docid, $names) VALUES (NEW.rowid, $newValues); END")
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS ${index}_before_delete BEFORE DELETE ON $table " +
+                    "BEGIN DELETE FROM $index WHERE docid = OLD.rowid; END")
+        }
+    }
+
+    /**
+     * Indexes the rows that existed before the tables were created
+     */
+    fun rebuild(database: SupportSQLiteDatabase) {
+        for (table in indexedColumns.keys) {
+            database.execSQL("INSERT INTO ${table}_fts (${table}_fts) VALUES ('rebuild')")
+        }
+    }
+
+    /**
+     * Converts the text that the user entered into a full text query. Each word
+     * must be the beginning of a word in one of the columns or in the given column.
+     * Returns an empty string if the text contains no words.
+     */
+    fun matchQuery(text: String, column: String? = null): String {
+        val prefix = if (column != null) "$column:" else ""
+        return text.split(wordSeparator)
+                .filter { it.isNotEmpty() }
+                .joinToString(" ") {
+                    val word = if (operators.contains(it)) it.toLowerCase() else it
+                    "$prefix$word*"
+                }
+    }
+
+    /**
+     * Returns the query for the programs from the given time that match the text. The
+     * programs of all channels are loaded if the channel id is 0. When the result is
+     * ranked, the programs whose title matches come first, then those whose subtitle
+     * matches and then the others. Otherwise the programs are sorted by their start time.
+     */
+    fun programQuery(connectionId: Int, channelId: Int, time: Long, text: String, ranked: Boolean): SupportSQLiteQuery {
+        val args = ArrayList<Any>()
+        val sql = StringBuilder(ProgramDao.PAGED_PROGRAM_BASE_QUERY)
+        sql.append("WHERE p.connection_id = ? ")
+        args.add(connectionId)
+        if (channelId > 0) {
+            sql.append("AND p.channel_id = ? ")
+            args.add(channelId)
+        }
+        sql.append("AND ((p.start >= ?) OR (p.start <= ? AND p.stop >= ?)) ")
+        args.addAll(listOf(time, time, time))
+        sql.append("AND p.rowid IN (SELECT docid FROM programs_fts WHERE programs_fts MATCH ?) ")
+        args.add(matchQuery(text))
+        sql.append("GROUP BY p.id ")
+        if (ranked) {
+            sql.append("ORDER BY CASE " +
+                    "WHEN p.rowid IN (SELECT docid FROM programs_fts WHERE programs_fts MATCH ?) THEN 0 " +
+                    "WHEN p.rowid IN (SELECT docid FROM programs_fts WHERE programs_fts MATCH ?) THEN 1 " +
+                    "ELSE 2 END, p.start, channel_name ASC")
+            args.add(matchQuery(text, "title"))
+            args.add(matchQuery(text, "subtitle"))
+        } else {
+            sql.append("ORDER BY p.start ASC")
+        }
+        return SimpleSQLiteQuery(sql.toString(), args.toArray())
+    }
+
+    /**
+     * Returns the query for the distinct titles of the programs from the given time
+     * whose title matches the text, the titles of the earliest programs come first
+     */
+    fun programTitleQuery(connectionId: Int, time: Long, text: String, limit: Int): SupportSQLiteQuery {
+        return SimpleSQLiteQuery("SELECT p.title FROM programs AS p " +
+                "WHERE p.connection_id = ? AND p.stop >= ? " +
+                "AND p.rowid IN (SELECT docid FROM programs_fts WHERE programs_fts MATCH ?) " +
+                "GROUP BY p.title " +
+                "ORDER BY MIN(p.start) " +
+                "LIMIT ?", arrayOf<Any>(connectionId, time, matchQuery(text, "title"), limit))
+    }
+
+    /**
+     * Returns the query for the ids of the recordings that match the text
+     */
+    fun recordingIdQuery(connectionId: Int, text: String): SupportSQLiteQuery {
+        return idQuery(RECORDINGS, connectionId, text)
+    }
+
+    /**
+     * Returns the query for the ids of the series recordings that match the text
+     */
+    fun seriesRecordingIdQuery(connectionId: Int, text: String): SupportSQLiteQuery {
+        return idQuery(SERIES_RECORDINGS, connectionId, text)
+    }
+
+    private fun idQuery(table: String, connectionId: Int, text: String): SupportSQLiteQuery {
+        return SimpleSQLiteQuery("SELECT id FROM $table " +
+                "WHERE connection_id = ? " +
+                "AND rowid IN (SELECT docid FROM ${table}_fts WHERE ${table}_fts MATCH ?)",
+                arrayOf<Any>(connectionId, matchQuery(text)))
+    }
+}
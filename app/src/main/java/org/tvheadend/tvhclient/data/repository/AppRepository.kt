@@ -1,5 +1,6 @@
 package org.tvheadend.tvhclient.data.repository
 
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
 import org.tvheadend.tvhclient.domain.repository.data_source.*
 import org.tvheadend.tvhclient.domain.repository.RepositoryInterface
 import javax.inject.Inject
@@ -15,4 +16,5 @@ constructor(override val channelData: ChannelData,
             override val serverStatusData: ServerStatusData,
             override val serverProfileData: ServerProfileData,
             override val tagAndChannelData: TagAndChannelData,
-            override val miscData: MiscData) : RepositoryInterface
+            override val miscData: MiscData,
+            override val databaseExecutor: DatabaseExecutor) : RepositoryInterface
@@ -0,0 +1,202 @@
+package org.tvheadend.tvhclient.data.service
+
+import android.content.Context
+import android.content.Intent
+import org.tvheadend.tvhclient.R
+import org.tvheadend.tvhclient.data.repository.AppRepository
+import org.tvheadend.tvhclient.data.service.htsp.HtspConnection
+import org.tvheadend.tvhclient.data.service.htsp.HtspMessage
+import org.tvheadend.tvhclient.data.service.htsp.HtspResponseListener
+import org.tvheadend.tvhclient.domain.entity.Channel
+import org.tvheadend.tvhclient.domain.entity.Program
+import org.tvheadend.tvhclient.ui.common.sendSyncStateMessage
+import timber.log.Timber
+import java.util.*
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Loads the events of many channels over one connection. Instead of waiting for the
+ * response of each channel before the next request is sent, up to [windowSize] getEvents
+ * requests are outstanding at the same time. No further requests are sent while the
+ * send queue of the connection is full. The connection matches each response
+ * to its request via the seq field, so the responses may arrive in any order.
+ * All received programs are collected and returned to the caller so that they
+ * can be saved with a single insert.
+ */
+class EventFetcher(private val htspConnection: HtspConnection,
+                   private val connectionId: Int,
+                   private val windowSize: Int = DEFAULT_WINDOW_SIZE,
+                   private val responseTimeout: Long = DEFAULT_RESPONSE_TIMEOUT) {
+
+    interface ProgressListener {
+        /**
+         * Called from the connection thread after the response for a channel was handled
+         *
+         * @param channelsDone Number of channels whose events were received
+         * @param channelCount Number of channels whose events were requested
+         * @param programCount Number of programs that were received so far
+         */
+        fun onProgress(channelsDone: Int, channelCount: Int, programCount: Int)
+    }
+
+    /**
+     * Requests the given number of events for each channel that follow the last
+     * program that is already known. Blocks until all responses have been received
+     * or the server did not respond within the timeout. Responses that arrive
+     * after this method has returned are dropped and not reported to the listener.
+     *
+     * @param channels     The channels whose events shall be loaded
+     * @param lastPrograms The last known program of each channel with the channel id as the key
+     * @param numFollowing The number of events that shall be loaded for each channel
+     * @param listener     Optional listener that is informed about the progress
+     * @param maxTime      If set, only events that start before this time in seconds are loaded
+     * @return The programs that were received
+     */
+    fun fetch(channels: List<Channel>, lastPrograms: Map<Int, Program>, numFollowing: Int, listener: ProgressListener?, maxTime: Long = 0): List<Program> {
+        val programs = ArrayList<Program>()
+        val window = Semaphore(windowSize)
+        val channelsDone = AtomicInteger()
+        // Set when fetch returns, responses that arrive later are ignored
+        var isDone = false
+        val startTime = System.currentTimeMillis()
+
+        for (channel in channels) {
+            try {
+                if (!window.tryAcquire(responseTimeout, TimeUnit.MILLISECONDS)) {
+                    Timber.d("No response from server within $responseTimeout ms, not requesting more events")
+                    break
+                }
+                // Other senders share the queue of the connection, wait until it has caught up
+                if (htspConnection.isSendQueueFull && !htspConnection.awaitSendQueueCapacity(responseTimeout)) {
+                    Timber.d("Send queue still full after $responseTimeout ms, not requesting more events")
+                    window.release()
+                    break
+                }
+            } catch (e: InterruptedException) {
+                Timber.d(e, "Waiting for a free request slot was interrupted")
+                break
+            }
+            if (htspConnection.isNotConnected) {
+                Timber.d("Not connected to server, not requesting more events")
+                window.release()
+                break
+            }
+
+            val request = HtspMessage()
+            request["method"] = "getEvents"
+            request["channelId"] = channel.id
+            if (numFollowing > 0) {
+                request["numFollowing"] = numFollowing
+            }
+            if (maxTime > 0) {
+                request["maxTime"] = maxTime
+            }
+
+            val eventId = getStartEventId(channel, lastPrograms[channel.id])
+            if (eventId > 0) {
+                request["eventId"] = eventId
+            }
+
+            htspConnection.sendMessage(request, object : HtspResponseListener {
+                override fun handleResponse(response: HtspMessage) {
+                    val received = convertResponseToPrograms(response)
+                    val programCount = synchronized(programs) {
+                        if (isDone) {
+                            Timber.d("Ignoring late response for channel ${channel.id}")
+                            return
+                        }
+                        programs.addAll(received)
+                        programs.size
+                    }
+                    window.release()
+                    listener?.onProgress(channelsDone.incrementAndGet(), channels.size, programCount)
+                }
+            })
+        }
+
+        // All responses were received when every request slot is free again
+        try {
+            if (window.tryAcquire(windowSize, responseTimeout, TimeUnit.MILLISECONDS)) {
+                window.release(windowSize)
+            } else {
+                Timber.d("Timeout while waiting for the remaining responses")
+            }
+        } catch (e: InterruptedException) {
+            Timber.d(e, "Waiting for the remaining responses was interrupted")
+        }
+
+        return synchronized(programs) {
+            isDone = true
+            Timber.d("Received ${programs.size} events for ${channelsDone.get()} of ${channels.size} channels in ${System.currentTimeMillis() - startTime} ms")
+            ArrayList(programs)
+        }
+    }
+
+    private fun getStartEventId(channel: Channel, lastProgram: Program?): Int {
+        return when {
+            lastProgram != null -> {
+                Timber.d("Loading more programs for channel ${channel.name} from last program id ${lastProgram.eventId}")
+                lastProgram.nextEventId
+            }
+            channel.nextEventId > 0 -> {
+                Timber.d("Loading more programs for channel ${channel.name} starting from channel next event id ${channel.nextEventId}")
+                channel.nextEventId
+            }
+            else -> {
+                Timber.d("Loading more programs for channel ${channel.name} starting from channel event id ${channel.eventId}")
+                channel.eventId
+            }
+        }
+    }
+
+    private fun convertResponseToPrograms(response: HtspMessage): List<Program> {
+        val programs = ArrayList<Program>()
+        if (response.containsKey("events")) {
+            for (obj in response.getList("events")) {
+                val program = convertMessageToProgramModel(Program(), obj as HtspMessage)
+                program.connectionId = connectionId
+                programs.add(program)
+            }
+        }
+        return programs
+    }
+
+    companion object {
+
+        const val DEFAULT_WINDOW_SIZE = 16
+        const val DEFAULT_RESPONSE_TIMEOUT = 10000L
+    }
+}
+
+/**
+ * Loads the number of events that is given in the intent for all channels and saves
+ * them in one batch. The last program of every channel is resolved with one query
+ * before the requests are sent. The progress is reported via the [SyncStateReceiver].
+ */
+fun loadMoreEvents(context: Context, appRepository: AppRepository, htspConnection: HtspConnection, connectionId: Int, intent: Intent) {
+    val numberOfProgramsToLoad = intent.getIntExtra("numFollowing", 0)
+    val windowSize = intent.getIntExtra("requestWindow", EventFetcher.DEFAULT_WINDOW_SIZE)
+    val channelList = appRepository.channelData.getItems()
+    val lastPrograms = appRepository.programData.getLastItemOfEachChannel()
+
+    Timber.d("Database currently contains ${appRepository.programData.itemCount} events.")
+    Timber.d("Loading $numberOfProgramsToLoad events for each of the ${channelList.size} channels, $windowSize requests at a time")
+
+    val fetcher = EventFetcher(htspConnection, connectionId, windowSize)
+    val programs = fetcher.fetch(channelList, lastPrograms, numberOfProgramsToLoad, object : EventFetcher.ProgressListener {
+        override fun onProgress(channelsDone: Int, channelCount: Int, programCount: Int) {
+            if (channelsDone % 10 == 0 || channelsDone == channelCount) {
+                context.sendSyncStateMessage(SyncStateReceiver.State.SYNC_IN_PROGRESS,
+                        context.getString(R.string.receiving_data),
+                        "Received $programCount events of $channelsDone of $channelCount channels")
+            }
+        }
+    })
+
+    appRepository.programData.addItems(programs)
+    Timber.d("Saved ${programs.size} events for all channels")
+    context.sendSyncStateMessage(SyncStateReceiver.State.SYNC_DONE,
+            context.getString(R.string.loading_more_programs_finished), null)
+}
@@ -12,7 +12,6 @@ import org.tvheadend.tvhclient.R
 import org.tvheadend.tvhclient.data.repository.AppRepository
 import org.tvheadend.tvhclient.data.service.htsp.*
 import org.tvheadend.tvhclient.domain.entity.Connection
-import org.tvheadend.tvhclient.domain.entity.Program
 import org.tvheadend.tvhclient.util.convertUrlToHashString
 import timber.log.Timber
 import java.io.*
@@ -36,7 +35,6 @@ class HtspIntentService : JobIntentService(), HtspConnectionStateListener {
     @Inject
     lateinit var sharedPreferences: SharedPreferences
 
-    private val pendingEventOps = ArrayList<Program>()
     private val authenticationLock = Object()
     private val responseLock = Object()
 
@@ -47,11 +45,13 @@ class HtspIntentService : JobIntentService(), HtspConnectionStateListener {
 
         htspVersion = appRepository.serverStatusData.activeItem.htspVersion
         val connectionTimeout = Integer.valueOf(sharedPreferences.getString("connection_timeout", appContext.resources.getString(R.string.pref_default_connection_timeout))!!) * 1000
+        val receiveBufferLimit = Integer.valueOf(sharedPreferences.getString("receive_buffer_limit", appContext.resources.getString(R.string.pref_default_receive_buffer_limit))!!) * 1024 * 1024
         htspConnection = HtspConnection(
                 connection.username, connection.password,
                 connection.hostname, connection.port,
                 connectionTimeout,
                 this, null)
+        htspConnection.setReceiveBufferLimit(receiveBufferLimit)
 
         // Since this is blocking, spawn to a new thread
         execService.execute {
@@ -106,28 +106,6 @@ class HtspIntentService : JobIntentService(), HtspConnectionStateListener {
         // NOP
     }
 
-    /**
-     * Handles the given server message that contains a list of events.
-     *
-     * @param message The message with the events
-     */
-    private fun onGetEvents(message: HtspMessage, intent: Intent) {
-        val channelName = intent.getStringExtra("channelName")
-
-        if (message.containsKey("events")) {
-            val programs = ArrayList<Program>()
-            for (obj in message.getList("events")) {
-                val msg = obj as HtspMessage
-                val program = convertMessageToProgramModel(Program(), msg)
-                program.connectionId = connection.id
-
-                programs.add(program)
-            }
-            Timber.d("Added ${programs.size} events to the list for channel $channelName")
-            pendingEventOps.addAll(programs)
-        }
-    }
-
     private fun getTicket(intent: Intent) {
         val channelId = intent.getIntExtra("channelId", 0).toLong()
         val dvrId = intent.getIntExtra("dvrId", 0).toLong()
@@ -277,79 +255,14 @@ class HtspIntentService : JobIntentService(), HtspConnectionStateListener {
     /**
      * Loads a defined number of events for all channels.
      * This method is called by a worker after the initial sync is done.
-     * All loaded events are saved in a temporary list and saved in one
-     * batch into the database when all events were loaded for all channels.
+     * The requests for all channels are pipelined over the connection and
+     * all loaded events are saved in one batch into the database when all
+     * events were loaded for all channels.
      *
      * @param intent The intent with the parameters e.g. to define how many events shall be loaded
      */
     private fun getMoreEvents(intent: Intent) {
-
-        val numberOfProgramsToLoad = intent.getIntExtra("numFollowing", 0)
-        val channelList = appRepository.channelData.getItems()
-
-        Timber.d("Database currently contains ${appRepository.programData.itemCount} events.")
-        Timber.d("Loading $numberOfProgramsToLoad events for each of the ${channelList.size} channels")
-
-        var channelCount = 0
-        channelList.forEach {
-            // Determine if events for the last channel in the list are being loaded.
-            // This is required to set and release a lock to get all responses
-            // before saving the event data
-            val isLastChannel = ++channelCount == channelList.size
-
-            val msgIntent = Intent()
-            msgIntent.putExtra("numFollowing", numberOfProgramsToLoad)
-            msgIntent.putExtra("channelId", it.id)
-            msgIntent.putExtra("channelName", it.name)
-
-            val lastProgram = appRepository.programData.getLastItemByChannelId(it.id)
-            when {
-                lastProgram != null -> {
-                    Timber.d("Loading more programs for channel ${it.name} from last program id ${lastProgram.eventId}")
-                    msgIntent.putExtra("eventId", lastProgram.nextEventId)
-                }
-                it.nextEventId > 0 -> {
-                    Timber.d("Loading more programs for channel ${it.name} starting from channel next event id ${it.nextEventId}")
-                    msgIntent.putExtra("eventId", it.nextEventId)
-                }
-                else -> {
-                    Timber.d("Loading more programs for channel ${it.name} starting from channel event id ${it.eventId}")
-                    msgIntent.putExtra("eventId", it.eventId)
-                }
-            }
-
-            val request = convertIntentToEventMessage(msgIntent)
-            htspConnection.sendMessage(request, object : HtspResponseListener {
-                override fun handleResponse(response: HtspMessage) {
-                    onGetEvents(response, msgIntent)
-                    // Release the lock so that all data can be saved
-                    if (isLastChannel) {
-                        synchronized(responseLock) {
-                            Timber.d("Got response for last channel, releasing lock")
-                            responseLock.notify()
-                        }
-                    }
-                }
-            })
-
-            // Wait until the last response from the server was received and the lock released
-            if (isLastChannel) {
-                synchronized(responseLock) {
-                    try {
-                        Timber.d("Loaded more events for last channel, waiting for response")
-                        responseLock.wait(5000)
-                    } catch (e: InterruptedException) {
-                        e.printStackTrace()
-                    }
-
-                }
-            }
-        }
-
-        Timber.d("Done loading more events")
-        appRepository.programData.addItems(pendingEventOps)
-        Timber.d("Saved ${pendingEventOps.size} events for all channels. Database contains ${appRepository.programData.itemCount} events")
-        pendingEventOps.clear()
+        loadMoreEvents(appContext, appRepository, htspConnection, connection.id, intent)
     }
 
     companion object {
@@ -8,6 +8,7 @@ import android.content.SharedPreferences
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import android.os.IBinder
+import android.util.SparseArray
 import androidx.core.app.NotificationManagerCompat
 import androidx.localbroadcastmanager.content.LocalBroadcastManager
 import androidx.work.ExistingWorkPolicy
@@ -22,6 +23,7 @@ import org.tvheadend.tvhclient.data.service.htsp.*
 import org.tvheadend.tvhclient.data.worker.EpgDataUpdateWorker
 import org.tvheadend.tvhclient.domain.entity.*
 import org.tvheadend.tvhclient.ui.common.sendSnackbarMessage
+import org.tvheadend.tvhclient.ui.common.sendSyncStateMessage
 import org.tvheadend.tvhclient.ui.features.notification.addNotification
 import org.tvheadend.tvhclient.ui.features.notification.removeNotificationById
 import org.tvheadend.tvhclient.util.convertUrlToHashString
@@ -31,6 +33,7 @@ import timber.log.Timber
 import java.io.*
 import java.net.URL
 import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
 import java.util.concurrent.Executors
 import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.TimeUnit
@@ -49,18 +52,30 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     private lateinit var connection: Connection
     private var htspConnection: HtspConnection? = null
 
-    private val pendingEventOps = ArrayList<Program>()
     private val pendingChannelOps = ArrayList<Channel>()
-    private val pendingChannelTagOps = ArrayList<ChannelTag>()
-    private val pendingRecordingOps = ArrayList<Recording>()
+    // The received channels with the channel id as the key
+    private val pendingChannelIndex = SparseArray<Channel>()
+    // The last received version of each tag with the tag id as the key
+    private val pendingChannelTagOps = SparseArray<ChannelTag>()
+    // The sorted channel ids of each received tag with the tag id as the key
+    private val pendingTagMembers = SparseArray<IntArray>()
+    // Saves the events and recordings of the initial sync while they are received
+    private var syncSink: SyncSink? = null
 
     private var initialSyncWithServerRunning: Boolean = false
     private var syncEventsRequired: Boolean = false
     private var syncRequired: Boolean = false
+    // Only the events that changed since the last sync are requested
+    private var incrementalEventSyncRunning: Boolean = false
+    private var syncStartTime: Long = 0
+    private var syncStartByteCount: Long = 0
+    private var syncStartMessageCount: Long = 0
+    private var programCountBeforeSync: Int = 0
     private var firstEventReceived = false
     private var htspVersion = 13
     private var serverStatus: ServerStatus? = null
     private var connectionTimeout: Int = 0
+    private var receiveBufferLimit: Int = 0
 
     override fun onCreate() {
         Timber.d("Starting service")
@@ -70,6 +85,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         serverStatus = appRepository.serverStatusData.activeItem
         htspVersion = serverStatus?.htspVersion ?: 13
         connectionTimeout = Integer.valueOf(sharedPreferences.getString("connection_timeout", appContext.resources.getString(R.string.pref_default_connection_timeout))!!) * 1000
+        receiveBufferLimit = Integer.valueOf(sharedPreferences.getString("receive_buffer_limit", appContext.resources.getString(R.string.pref_default_receive_buffer_limit))!!) * 1024 * 1024
     }
 
     override fun onStartCommand(intent: Intent, flags: Int, startId: Int): Int {
@@ -140,6 +156,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
                 connection.hostname, connection.port,
                 connectionTimeout,
                 this, this)
+        htspConnection?.setReceiveBufferLimit(receiveBufferLimit)
         // Since this is blocking, spawn to a new thread
         execService.execute {
             htspConnection?.openConnection()
@@ -149,10 +166,21 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
 
     private fun stopHtspConnection() {
         Timber.d("Stopping connection")
+        syncSink?.abort()
+        syncSink = null
         htspConnection?.closeConnection()
     }
 
     override fun onMessage(response: HtspMessage) {
+        // Changes of events and recordings that are not yet written
+        // are handled by the sink after the sync data was saved
+        if (syncSink?.deferMessage(response) == true) {
+            return
+        }
+        handleMessage(response)
+    }
+
+    private fun handleMessage(response: HtspMessage) {
         when (response.method) {
             "tagAdd" -> onTagAdd(response)
             "tagUpdate" -> onTagUpdate(response)
@@ -214,6 +242,12 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     override fun onConnectionStateChange(state: HtspConnection.ConnectionState) {
         Timber.d("Simple HTSP connection state changed, state is $state")
 
+        if (state != HtspConnection.ConnectionState.CONNECTING
+                && state != HtspConnection.ConnectionState.CONNECTED) {
+            // The sync is repeated after reconnecting, the data that was not yet saved is dropped
+            syncSink?.abort()
+        }
+
         when (state) {
             HtspConnection.ConnectionState.FAILED ->
                 sendSyncStateMessage(SyncStateReceiver.State.FAILED,
@@ -256,9 +290,9 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         Timber.d("Starting async communication with server")
 
         pendingChannelOps.clear()
+        pendingChannelIndex.clear()
         pendingChannelTagOps.clear()
-        pendingRecordingOps.clear()
-        pendingEventOps.clear()
+        pendingTagMembers.clear()
 
         initialSyncWithServerRunning = true
 
@@ -275,13 +309,37 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         syncEventsRequired = syncRequired || lastUpdateTime + epgMaxTime < currentTimeInSeconds
         Timber.d("Sync events from server required: $syncEventsRequired")
 
-        // Send the first sync message to any broadcast listeners
-        if (syncRequired || syncEventsRequired) {
+        // When the events were completely received before, the
+        // server only needs to send the events that changed since then
+        incrementalEventSyncRunning = !syncRequired
+                && connection.eventSyncTime > 0
+                && sharedPreferences.getBoolean("incremental_epg_sync_enabled", appContext.resources.getBoolean(R.bool.pref_default_incremental_epg_sync_enabled))
+        Timber.d("Incremental sync of events since ${connection.eventSyncTime}: $incrementalEventSyncRunning")
+
+        syncStartTime = currentTimeInSeconds
+        syncStartByteCount = htspConnection?.receivedByteCount ?: 0
+        syncStartMessageCount = htspConnection?.receivedMessageCount ?: 0
+        programCountBeforeSync = if (incrementalEventSyncRunning) appRepository.programData.itemCount else 0
+
+        syncSink?.abort()
+        syncSink = SyncSink(appRepository, incrementalEventSyncRunning)
+
+        // Send the first sync message to any broadcast listeners.
+        // An incremental sync is usually short, so don't show it.
+        if (syncRequired || (syncEventsRequired && !incrementalEventSyncRunning)) {
             Timber.d("Sending status that sync has started")
             sendSyncStateMessage(SyncStateReceiver.State.SYNC_STARTED,
                     getString(R.string.loading_data), "")
         }
-        if (syncEventsRequired) {
+        if (incrementalEventSyncRunning) {
+            val lastUpdate = connection.eventSyncTime - INCREMENTAL_SYNC_TIME_MARGIN
+            Timber.d("Enabling requesting of epg data that changed since $lastUpdate, epgMaxTime is ${(epgMaxTime + currentTimeInSeconds)}")
+
+            enableAsyncMetadataRequest["epg"] = 1
+            enableAsyncMetadataRequest["epgMaxTime"] = epgMaxTime + currentTimeInSeconds
+            enableAsyncMetadataRequest["lastUpdate"] = lastUpdate
+
+        } else if (syncEventsRequired) {
             Timber.d("Enabling requesting of epg data")
             Timber.d("Adding field to the enableAsyncMetadata request, epgMaxTime is ${(epgMaxTime + currentTimeInSeconds)}, lastUpdate time is ${(currentTimeInSeconds - 12 * 60 * 60)}")
 
@@ -318,36 +376,164 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
             Timber.d("Sync of initial data is not required")
         }
 
-        // Only save any received events when they shall be loaded
-        if (syncEventsRequired) {
-            Timber.d("Sync of all evens is required, saving events")
-            saveAllReceivedEvents()
+        getAdditionalServerData()
+
+        // The events and recordings were saved while they were received.
+        // The sync sink writes the remaining ones and removes the recordings
+        // that don't exist anymore on the server. Only then the sync is done.
+        val syncDoneMessage = when {
+            syncRequired || (syncEventsRequired && !incrementalEventSyncRunning) -> getString(R.string.loading_data_done)
+            incrementalEventSyncRunning -> getIncrementalSyncSavings()
+            else -> null
+        }
+        val eventsSynced = syncEventsRequired || incrementalEventSyncRunning
+
+        val sink = syncSink
+        val incrementalSync = incrementalEventSyncRunning
+        val syncTime = syncStartTime
+        if (sink != null) {
+            Timber.d("Saving the remaining ${sink.programCount} received events and ${sink.recordingCount} recordings")
+            sink.commit({ onInitialSyncDataSaved(syncDoneMessage, eventsSynced, incrementalSync, syncTime) }, this::handleMessage)
         } else {
-            Timber.d("Sync of all evens is not required")
+            onInitialSyncDataSaved(syncDoneMessage, eventsSynced, incrementalSync, syncTime)
         }
 
-        // Recordings are always saved to keep up to
-        // date with the recording states from the server
-        saveAllReceivedRecordings()
+        syncRequired = false
+        syncEventsRequired = false
+        incrementalEventSyncRunning = false
+        initialSyncWithServerRunning = false
+    }
 
-        getAdditionalServerData()
+    /**
+     * Estimates how many messages and bytes the incremental sync did not need
+     * to receive compared with a full sync. A full sync would have sent all the
+     * events that are already in the database again. Returns the message that
+     * is shown to the user when the sync is done.
+     */
+    private fun getIncrementalSyncSavings(): String {
+        val receivedEvents = syncSink?.programCount ?: 0
+        val receivedMessages = (htspConnection?.receivedMessageCount ?: 0) - syncStartMessageCount
+        val receivedBytes = (htspConnection?.receivedByteCount ?: 0) - syncStartByteCount
+        val avoidedMessages = Math.max(0, programCountBeforeSync - receivedEvents)
+        val averageMessageSize = if (receivedMessages > 0) receivedBytes / receivedMessages else 0
+        Timber.d("Incremental sync received $receivedEvents events in $receivedMessages messages and $receivedBytes bytes, " +
+                "avoided about $avoidedMessages messages and ${avoidedMessages * averageMessageSize} bytes")
+        return getString(R.string.incremental_sync_done, receivedEvents, avoidedMessages, avoidedMessages * averageMessageSize / 1024)
+    }
+
+    /**
+     * The incremental sync only delivers the events that have changed since the last sync.
+     * Unchanged events that were beyond the time span of the last sync are not sent, so
+     * they are requested for each channel whose known events end before the time span.
+     */
+    private fun loadMissingEvents(htspConnection: HtspConnection, syncTime: Long) {
+        val epgMaxTime = java.lang.Long.parseLong(sharedPreferences.getString("epg_max_time", appContext.resources.getString(R.string.pref_default_epg_max_time))!!)
+        val maxTime = syncTime + epgMaxTime
+        val channels = appRepository.channelData.getItems().filter { it.eventSyncTime < maxTime * 1000 }
+        if (channels.isEmpty()) {
+            Timber.d("Events of all channels are known until $maxTime")
+            return
+        }
+
+        Timber.d("Loading missing events until $maxTime for ${channels.size} channels")
+        val lastPrograms = appRepository.programData.getLastItemOfEachChannel()
+        val programs = EventFetcher(htspConnection, connection.id).fetch(channels, lastPrograms, 0, null, maxTime)
+        appRepository.programData.addItemsSync(programs)
+        appRepository.channelData.updateEventSyncTimesSync()
+        Timber.d("Saved ${programs.size} missing events")
+    }
+
+    /**
+     * The incremental sync does not contain the events that were removed on the server
+     * while the client was not connected. An epgQuery without a title returns the ids of
+     * all events of a channel that the server knows. The programs of the channel within
+     * the synced time span that are not among them were removed on the server and are
+     * deleted. Each channel is queried on its own, so that a response stays well below
+     * the receive buffer limit even with a large program guide. Programs that are saved
+     * while a query is running are not affected, because the known ids are read first.
+     */
+    private fun removeDeletedEvents(htspConnection: HtspConnection, syncTime: Long) {
+        val epgMaxTime = java.lang.Long.parseLong(sharedPreferences.getString("epg_max_time", appContext.resources.getString(R.string.pref_default_epg_max_time))!!)
+        val startTime = System.currentTimeMillis()
+        val endTime = (syncTime + epgMaxTime) * 1000
+        var removedCount = 0
+
+        for (channel in appRepository.channelData.getItems()) {
+            val knownIds = appRepository.programData.getIdsByChannelIdAndBetweenTime(channel.id, startTime, endTime)
+            if (knownIds.isEmpty()) {
+                continue
+            }
+            // Without a complete list of ids nothing can be removed
+            val serverIds = loadEventIds(htspConnection, channel.id)
+            if (serverIds == null) {
+                Timber.d("Did not receive the event ids of channel ${channel.id} from the server, not removing any more events")
+                break
+            }
+            val removedIds = knownIds.filter { !serverIds.contains(it) }
+            if (removedIds.isNotEmpty()) {
+                appRepository.programData.removeItemsByIdSync(removedIds)
+                removedCount += removedIds.size
+            }
+        }
+        Timber.d("Removed $removedCount events in the synced time span that the server does not know anymore")
+    }
+
+    /**
+     * Returns the ids of all events of the channel that the server knows
+     * or null if the server did not respond in time or reported an error
+     */
+    private fun loadEventIds(htspConnection: HtspConnection, channelId: Int): Set<Int>? {
+        val request = HtspMessage()
+        request.method = "epgQuery"
+        request["query"] = ""
+        request["channelId"] = channelId
+        request["full"] = 0
+
+        val responses = ArrayBlockingQueue<HtspMessage>(1)
+        htspConnection.sendMessage(request, object : HtspResponseListener {
+            override fun handleResponse(response: HtspMessage) {
+                responses.offer(response)
+            }
+        })
+        val response = try {
+            responses.poll(EventFetcher.DEFAULT_RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS)
+        } catch (e: InterruptedException) {
+            Timber.d(e, "Waiting for the event ids was interrupted")
+            null
+        }
+        if (response == null || response.containsKey("error")) {
+            return null
+        }
+        // The server omits the list if the channel has no events
+        return if (response.containsKey("eventIds")) HashSet(response.getIntegerList("eventIds")) else HashSet()
+    }
 
+    private fun onInitialSyncDataSaved(syncDoneMessage: String?, eventsSynced: Boolean, incrementalSync: Boolean, syncTime: Long) {
         Timber.d("Updating connection status with full sync completed and last update time")
         connection.isSyncRequired = false
         connection.lastUpdate = System.currentTimeMillis() / 1000L
+        // Changes during the sync are also sent by the server, so the
+        // start of the sync is the time until which all data is known
+        if (eventsSynced) {
+            connection.eventSyncTime = syncTime
+        }
         appRepository.connectionData.updateItem(connection)
 
+        if (incrementalSync) {
+            htspConnection?.let {
+                execService.execute {
+                    removeDeletedEvents(it, syncTime)
+                    loadMissingEvents(it, syncTime)
+                }
+            }
+        }
+
         // The initial sync is considered to be done at this point.
         // Send the message to the listeners that the sync is done
-        if (syncRequired || syncEventsRequired) {
-            sendSyncStateMessage(SyncStateReceiver.State.SYNC_DONE,
-                    getString(R.string.loading_data_done), "")
+        if (syncDoneMessage != null) {
+            sendSyncStateMessage(SyncStateReceiver.State.SYNC_DONE, syncDoneMessage, "")
         }
 
-        syncRequired = false
-        syncEventsRequired = false
-        initialSyncWithServerRunning = false
-
         Timber.d("Deleting events in the database that are older than one day from now")
         val pastTime = System.currentTimeMillis() - 24 * 60 * 60 * 1000
         appRepository.programData.removeItemsByTime(pastTime)
@@ -358,6 +544,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
                 .build()
         WorkManager.getInstance().enqueueUniqueWork("UpdateEpg", ExistingWorkPolicy.REPLACE, updateEpgWorker)
 
+        appRepository.databaseExecutor.logMetrics()
         Timber.d("Done receiving initial data from server")
     }
 
@@ -528,11 +715,11 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
 
         // During initial sync no channels are yet saved. So use the temporarily
         // stored channels to calculate the channel count for the channel tag
-        val addedTag = convertMessageToChannelTagModel(ChannelTag(), msg, pendingChannelOps)
+        val addedTag = convertMessageToChannelTagModel(ChannelTag(), msg, pendingChannelIndex)
         addedTag.connectionId = connection.id
 
         Timber.d("Sync is running, adding channel tag")
-        pendingChannelTagOps.add(addedTag)
+        addPendingChannelTag(addedTag)
     }
 
     /**
@@ -546,7 +733,9 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
             return
         }
 
-        var channelTag = appRepository.channelTagData.getItemById(msg.getInteger("tagId"))
+        // The tag was usually already received during this sync
+        var channelTag = pendingChannelTagOps.get(msg.getInteger("tagId"))
+                ?: appRepository.channelTagData.getItemById(msg.getInteger("tagId"))
         if (channelTag == null) {
             Timber.d("Could not find a channel tag with id ${msg.getInteger("tagId")} in the database")
             channelTag = ChannelTag()
@@ -554,17 +743,28 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
 
         // During initial sync no channels are yet saved. So use the temporarily
         // stored channels to calculate the channel count for the channel tag
-        val updatedTag = convertMessageToChannelTagModel(channelTag, msg, pendingChannelOps)
+        val updatedTag = convertMessageToChannelTagModel(channelTag, msg, pendingChannelIndex)
         updatedTag.connectionId = connection.id
         updatedTag.isSelected = channelTag.isSelected
 
         Timber.d("Sync is running, updating channel tag")
-        pendingChannelTagOps.add(updatedTag)
+        addPendingChannelTag(updatedTag)
 
-        if (syncRequired && pendingChannelTagOps.size % 10 == 0) {
+        if (syncRequired && pendingChannelTagOps.size() % 10 == 0) {
             sendSyncStateMessage(SyncStateReceiver.State.SYNC_IN_PROGRESS,
                     getString(R.string.receiving_data),
-                    "Received ${pendingChannelTagOps.size} channel tags")
+                    "Received ${pendingChannelTagOps.size()} channel tags")
+        }
+    }
+
+    /**
+     * Keeps only the last received version of the tag. The members are stored
+     * as a sorted array so that they can be compared with the saved ones.
+     */
+    private fun addPendingChannelTag(tag: ChannelTag) {
+        pendingChannelTagOps.put(tag.tagId, tag)
+        tag.members?.let {
+            pendingTagMembers.put(tag.tagId, toSortedChannelIds(it))
         }
     }
 
@@ -603,6 +803,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         Timber.d("Sync is running, adding channel name '${channel.name}', id '${channel.id}', number '${channel.displayNumber}', server order '${channel.serverOrder}")
 
         pendingChannelOps.add(channel)
+        pendingChannelIndex.put(channel.id, channel)
 
         if (syncRequired && pendingChannelOps.size % 25 == 0) {
             sendSyncStateMessage(SyncStateReceiver.State.SYNC_IN_PROGRESS,
@@ -659,14 +860,15 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         val recording = convertMessageToRecordingModel(Recording(), msg)
         recording.connectionId = connection.id
 
-        if (initialSyncWithServerRunning) {
-            pendingRecordingOps.add(recording)
+        val sink = syncSink
+        if (initialSyncWithServerRunning && sink != null) {
+            sink.addRecording(recording)
 
-            if (syncRequired && pendingRecordingOps.size % 25 == 0) {
-                Timber.d("Sync is running, received ${pendingRecordingOps.size} recordings")
+            if (syncRequired && sink.recordingCount % 25 == 0) {
+                Timber.d("Sync is running, received ${sink.recordingCount} recordings")
                 sendSyncStateMessage(SyncStateReceiver.State.SYNC_IN_PROGRESS,
                         getString(R.string.receiving_data),
-                        "Received ${pendingRecordingOps.size} recordings")
+                        "Received ${sink.recordingCount} recordings")
             }
         } else {
             appRepository.recordingData.addItem(recording)
@@ -719,6 +921,9 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         val seriesRecording = convertMessageToSeriesRecordingModel(SeriesRecording(), msg)
         seriesRecording.connectionId = connection.id
         appRepository.seriesRecordingData.addItem(seriesRecording)
+        if (initialSyncWithServerRunning) {
+            syncSink?.addSeriesRecordingId(seriesRecording.id)
+        }
     }
 
     /**
@@ -815,14 +1020,15 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         val program = convertMessageToProgramModel(Program(), msg)
         program.connectionId = connection.id
 
-        if (initialSyncWithServerRunning) {
-            pendingEventOps.add(program)
+        val sink = syncSink
+        if (initialSyncWithServerRunning && sink != null) {
+            sink.addProgram(program)
 
-            if (syncRequired && pendingEventOps.size % 50 == 0) {
-                Timber.d("Sync is running, received ${pendingEventOps.size} program guide events")
+            if (syncRequired && sink.programCount % 50 == 0) {
+                Timber.d("Sync is running, received ${sink.programCount} program guide events")
                 sendSyncStateMessage(SyncStateReceiver.State.SYNC_IN_PROGRESS,
                         getString(R.string.receiving_data),
-                        "Received ${pendingEventOps.size} program guide events")
+                        "Received ${sink.programCount} program guide events")
             }
         } else {
             Timber.d("Adding event ${program.title}")
@@ -865,8 +1071,6 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
      * @param message The message with the events
      */
     private fun onGetEvents(message: HtspMessage, intent: Intent) {
-
-        val useEventList = intent.getBooleanExtra("useEventList", false)
         val channelName = intent.getStringExtra("channelName")
 
         if (message.containsKey("events")) {
@@ -878,13 +1082,8 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
                 programs.add(program)
             }
 
-            if (useEventList) {
-                Timber.d("Adding ${programs.size} events to the list for channel $channelName")
-                pendingEventOps.addAll(programs)
-            } else {
-                Timber.d("Saving ${programs.size} events for channel $channelName")
-                appRepository.programData.addItems(programs)
-            }
+            Timber.d("Saving ${programs.size} events for channel $channelName")
+            appRepository.programData.addItems(programs)
         }
     }
 
@@ -1049,56 +1248,33 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
      * updated so that the filtering by channel tags works properly
      */
     private fun saveAllReceivedChannelTags() {
-        Timber.d("Saving ${pendingChannelTagOps.size} channel tags")
+        Timber.d("Saving ${pendingChannelTagOps.size()} channel tags")
 
+        if (pendingChannelTagOps.size() == 0) {
+            return
+        }
+        val tags = ArrayList<ChannelTag>(pendingChannelTagOps.size())
+        for (i in 0 until pendingChannelTagOps.size()) {
+            tags.add(pendingChannelTagOps.valueAt(i))
+        }
+        appRepository.channelTagData.addItems(tags)
+
+        // Only save the relations that have changed. The members of the
+        // received and the saved tags are both sorted by the channel id.
         val pendingRemovedTagAndChannelOps = ArrayList<TagAndChannel>()
         val pendingAddedTagAndChannelOps = ArrayList<TagAndChannel>()
+        val savedTagMembers = appRepository.tagAndChannelData.getChannelIdsOfEachTag()
 
-        if (pendingChannelTagOps.isNotEmpty()) {
-            appRepository.channelTagData.addItems(pendingChannelTagOps)
-            for (tag in pendingChannelTagOps) {
-
-                val tac = appRepository.tagAndChannelData.getItemById(tag.tagId)
-                if (tac != null) {
-                    pendingRemovedTagAndChannelOps.add(tac)
-                }
-
-                val channelIds = tag.members
-                if (channelIds != null) {
-                    for (channelId in channelIds) {
-                        val tagAndChannel = TagAndChannel()
-                        tagAndChannel.tagId = tag.tagId
-                        tagAndChannel.channelId = channelId
-                        tagAndChannel.connectionId = connection.id
-                        pendingAddedTagAndChannelOps.add(tagAndChannel)
-                    }
-                }
-            }
-
-            Timber.d("Removing ${pendingRemovedTagAndChannelOps.size} and adding ${pendingAddedTagAndChannelOps.size} tag and channel relations")
-            appRepository.tagAndChannelData.addAndRemoveItems(pendingAddedTagAndChannelOps, pendingRemovedTagAndChannelOps)
+        for (i in 0 until pendingTagMembers.size()) {
+            val tagId = pendingTagMembers.keyAt(i)
+            diffSortedChannelIds(savedTagMembers.get(tagId) ?: IntArray(0), pendingTagMembers.valueAt(i),
+                    { pendingAddedTagAndChannelOps.add(TagAndChannel(tagId, it, connection.id)) },
+                    { pendingRemovedTagAndChannelOps.add(TagAndChannel(tagId, it, connection.id)) })
         }
-    }
 
-    /**
-     * Removes all recordings and saves all received recordings from the initial sync
-     * in the database. The removal is done to prevent being out of sync with the server.
-     * This could be the case when the app was offline for a while and it did not receive
-     * any recording removal information from the server. During the initial sync the
-     * server only provides the list of available recordings.
-     */
-    private fun saveAllReceivedRecordings() {
-        Timber.d("Removing previously existing recordings and saving ${pendingRecordingOps.size} new recordings")
-        appRepository.recordingData.removeItems()
-        if (pendingRecordingOps.isNotEmpty()) {
-            appRepository.recordingData.addItems(pendingRecordingOps)
-        }
-    }
-
-    private fun saveAllReceivedEvents() {
-        Timber.d("Saving ${pendingEventOps.size} new events")
-        if (pendingEventOps.isNotEmpty()) {
-            appRepository.programData.addItems(pendingEventOps)
+        Timber.d("Removing ${pendingRemovedTagAndChannelOps.size} and adding ${pendingAddedTagAndChannelOps.size} tag and channel relations")
+        if (pendingAddedTagAndChannelOps.isNotEmpty() || pendingRemovedTagAndChannelOps.isNotEmpty()) {
+            appRepository.tagAndChannelData.addAndRemoveItems(pendingAddedTagAndChannelOps, pendingRemovedTagAndChannelOps)
         }
     }
 
@@ -1268,48 +1444,19 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     /**
      * Loads a defined number of events for all channels.
      * This method is called by a worker after the initial sync is done.
-     * All loaded events are saved in a temporary list and saved in one
-     * batch into the database when all events were loaded for all channels.
+     * The requests for all channels are pipelined over the connection and
+     * all loaded events are saved in one batch into the database when all
+     * events were loaded for all channels.
      *
      * @param intent The intent with the parameters e.g. to define how many events shall be loaded
      */
     private fun getMoreEvents(intent: Intent) {
-
-        val numberOfProgramsToLoad = intent.getIntExtra("numFollowing", 0)
-        val channelList = appRepository.channelData.getItems()
-
-        Timber.d("Database currently contains ${appRepository.programData.itemCount} events. ")
-        Timber.d("Loading $numberOfProgramsToLoad events for each of the ${channelList.size} channels")
-
-        for (channel in channelList) {
-            val lastProgram = appRepository.programData.getLastItemByChannelId(channel.id)
-
-            val msgIntent = Intent()
-            msgIntent.putExtra("numFollowing", numberOfProgramsToLoad)
-            msgIntent.putExtra("useEventList", true)
-            msgIntent.putExtra("channelId", channel.id)
-            msgIntent.putExtra("channelName", channel.name)
-
-            when {
-                lastProgram != null -> {
-                    Timber.d("Loading more programs for channel ${channel.name} from last program id ${lastProgram.eventId}")
-                    msgIntent.putExtra("eventId", lastProgram.nextEventId)
-                }
-                channel.nextEventId > 0 -> {
-                    Timber.d("Loading more programs for channel ${channel.name} starting from channel next event id ${channel.nextEventId}")
-                    msgIntent.putExtra("eventId", channel.nextEventId)
-                }
-                else -> {
-                    Timber.d("Loading more programs for channel ${channel.name} starting from channel event id ${channel.eventId}")
-                    msgIntent.putExtra("eventId", channel.eventId)
-                }
+        htspConnection?.let {
+            // The fetch waits for the responses, so it must not block the main thread
+            execService.execute {
+                loadMoreEvents(applicationContext, appRepository, it, connection.id, intent)
             }
-            getEvents(msgIntent)
         }
-
-        appRepository.programData.addItems(pendingEventOps)
-        Timber.d("Saved ${pendingEventOps.size} events for all channels. Database contains ${appRepository.programData.itemCount} events")
-        pendingEventOps.clear()
     }
 
     private fun getEpgQuery(intent: Intent) {
@@ -1326,9 +1473,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
                     }
                 } else if (response.containsKey("eventIds")) {
                     // List of eventIds that match the query
-                    for (obj in response.getArrayList("eventIds")) {
-                        eventIdList.add(obj as Int)
-                    }
+                    eventIdList.addAll(response.getIntegerList("eventIds"))
                 }
             }
         })
@@ -1532,15 +1677,10 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         })
     }
 
-    private fun sendSyncStateMessage(state: SyncStateReceiver.State, message: String, details: String?) {
-        val intent = Intent(SyncStateReceiver.ACTION)
-        intent.putExtra(SyncStateReceiver.STATE, state)
-        if (message.isNotEmpty()) {
-            intent.putExtra(SyncStateReceiver.MESSAGE, message)
-        }
-        if (!details.isNullOrEmpty()) {
-            intent.putExtra(SyncStateReceiver.DETAILS, details)
-        }
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent)
+    companion object {
+
+        // Events that changed shortly before the last sync may have been missed
+        // because the times of the client and the server are not exactly the same
+        private const val INCREMENTAL_SYNC_TIME_MARGIN = 5 * 60L
     }
 }
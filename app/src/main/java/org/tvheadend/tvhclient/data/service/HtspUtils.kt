@@ -3,12 +3,19 @@
 package org.tvheadend.tvhclient.data.service
 
 import android.content.Intent
+import android.util.SparseArray
 import org.tvheadend.tvhclient.data.service.htsp.HtspMessage
 import org.tvheadend.tvhclient.domain.entity.*
 import timber.log.Timber
 import java.util.*
 
-fun convertMessageToChannelTagModel(tag: ChannelTag, msg: HtspMessage, channels: List<Channel>): ChannelTag {
+/**
+ * Converts the message into the given channel tag. The channel count
+ * only includes the members that are contained in the given channels.
+ *
+ * @param channels The known channels with the channel id as the key
+ */
+fun convertMessageToChannelTagModel(tag: ChannelTag, msg: HtspMessage, channels: SparseArray<Channel>): ChannelTag {
     if (msg.containsKey("tagId")) {
         tag.tagId = msg.getInteger("tagId")
     }
@@ -36,11 +43,8 @@ fun convertMessageToChannelTagModel(tag: ChannelTag, msg: HtspMessage, channels:
 
         var channelCount = 0
         for (channelId in members) {
-            for ((id) in channels) {
-                if (id == channelId) {
-                    channelCount++
-                    break
-                }
+            if (channels.indexOfKey(channelId) >= 0) {
+                channelCount++
             }
         }
         tag.channelCount = channelCount
@@ -232,149 +236,123 @@ fun convertMessageToRecordingModel(recording: Recording, msg: HtspMessage): Reco
 }
 
 fun convertMessageToProgramModel(program: Program, msg: HtspMessage): Program {
+    // This is called for every received epg event. Use the typed accessors with a
+    // fallback value so that each field is only looked up once and not boxed.
     if (msg.containsKey("eventId")) {
         program.eventId = msg.getInteger("eventId")
     }
     if (msg.containsKey("channelId")) {
         program.channelId = msg.getInteger("channelId")
     }
-    if (msg.containsKey("start")) {
+    val start = msg.getLong("start", -1)
+    if (start >= 0) {
         // The message value is in seconds, convert to milliseconds
-        program.start = msg.getLong("start") * 1000
+        program.start = start * 1000
     }
-    if (msg.containsKey("stop")) {
+    val stop = msg.getLong("stop", -1)
+    if (stop >= 0) {
         // The message value is in seconds, convert to milliseconds
-        program.stop = msg.getLong("stop") * 1000
+        program.stop = stop * 1000
     }
-    if (msg.containsKey("title")) {
-        if (!msg.getString("title").isNullOrEmpty()) {
-            program.title = msg.getString("title")
-        }
+    val title = msg.getString("title", null)
+    if (!title.isNullOrEmpty()) {
+        program.title = title
     }
-    if (msg.containsKey("subtitle")) {
-        if (!msg.getString("subtitle").isNullOrEmpty()) {
-            program.subtitle = msg.getString("subtitle")
-        }
+    val subtitle = msg.getString("subtitle", null)
+    if (!subtitle.isNullOrEmpty()) {
+        program.subtitle = subtitle
     }
-    if (msg.containsKey("summary")) {
-        if (!msg.getString("summary").isNullOrEmpty()) {
-            program.summary = msg.getString("summary")
-        }
+    val summary = msg.getString("summary", null)
+    if (!summary.isNullOrEmpty()) {
+        program.summary = summary
     }
-    if (msg.containsKey("description")) {
-        if (!msg.getString("description").isNullOrEmpty()) {
-            program.description = msg.getString("description")
-        }
+    val description = msg.getString("description", null)
+    if (!description.isNullOrEmpty()) {
+        program.description = description
     }
-    if (msg.containsKey("serieslinkId")) {
-        if (msg.getInteger("serieslinkId") > 0) {
-            program.serieslinkId = msg.getInteger("serieslinkId")
-        }
+    val serieslinkId = msg.getInteger("serieslinkId", 0)
+    if (serieslinkId > 0) {
+        program.serieslinkId = serieslinkId
     }
-    if (msg.containsKey("episodeId")) {
-        if (msg.getInteger("episodeId") > 0) {
-            program.episodeId = msg.getInteger("episodeId")
-        }
+    val episodeId = msg.getInteger("episodeId", 0)
+    if (episodeId > 0) {
+        program.episodeId = episodeId
     }
-    if (msg.containsKey("seasonId")) {
-        if (msg.getInteger("seasonId") > 0) {
-            program.seasonId = msg.getInteger("seasonId")
-        }
+    val seasonId = msg.getInteger("seasonId", 0)
+    if (seasonId > 0) {
+        program.seasonId = seasonId
     }
-    if (msg.containsKey("brandId")) {
-        if (msg.getInteger("brandId") > 0) {
-            program.brandId = msg.getInteger("brandId")
-        }
+    val brandId = msg.getInteger("brandId", 0)
+    if (brandId > 0) {
+        program.brandId = brandId
     }
-    if (msg.containsKey("contentType")) {
-        if (msg.getInteger("contentType") > 0) {
-            program.contentType = msg.getInteger("contentType")
-        }
+    val contentType = msg.getInteger("contentType", 0)
+    if (contentType > 0) {
+        program.contentType = contentType
     }
-    if (msg.containsKey("ageRating")) {
-        if (msg.getInteger("ageRating") > 0) {
-            program.ageRating = msg.getInteger("ageRating")
-        }
+    val ageRating = msg.getInteger("ageRating", 0)
+    if (ageRating > 0) {
+        program.ageRating = ageRating
     }
-    if (msg.containsKey("starRating")) {
-        if (msg.getInteger("starRating") > 0) {
-            program.starRating = msg.getInteger("starRating")
-        }
+    val starRating = msg.getInteger("starRating", 0)
+    if (starRating > 0) {
+        program.starRating = starRating
     }
-    if (msg.containsKey("firstAired")) {
-        if (msg.getInteger("firstAired") > 0) {
-            program.firstAired = msg.getLong("firstAired")
-        }
+    val firstAired = msg.getLong("firstAired", 0)
+    if (firstAired > 0) {
+        program.firstAired = firstAired
     }
-    if (msg.containsKey("seasonNumber")) {
-        if (msg.getInteger("seasonNumber") > 0) {
-            program.seasonNumber = msg.getInteger("seasonNumber")
-        }
+    val seasonNumber = msg.getInteger("seasonNumber", 0)
+    if (seasonNumber > 0) {
+        program.seasonNumber = seasonNumber
     }
-    if (msg.containsKey("seasonCount")) {
-        if (msg.getInteger("seasonCount") > 0) {
-            program.seasonCount = msg.getInteger("seasonCount")
-        }
+    val seasonCount = msg.getInteger("seasonCount", 0)
+    if (seasonCount > 0) {
+        program.seasonCount = seasonCount
     }
-    if (msg.containsKey("episodeNumber")) {
-        if (msg.getInteger("episodeNumber") > 0) {
-            program.episodeNumber = msg.getInteger("episodeNumber")
-        }
+    val episodeNumber = msg.getInteger("episodeNumber", 0)
+    if (episodeNumber > 0) {
+        program.episodeNumber = episodeNumber
     }
-    if (msg.containsKey("episodeCount")) {
-        if (msg.getInteger("episodeCount") > 0) {
-            program.episodeCount = msg.getInteger("episodeCount")
-        }
+    val episodeCount = msg.getInteger("episodeCount", 0)
+    if (episodeCount > 0) {
+        program.episodeCount = episodeCount
     }
-    if (msg.containsKey("partNumber")) {
-        if (msg.getInteger("partNumber") > 0) {
-            program.partNumber = msg.getInteger("partNumber")
-        }
+    val partNumber = msg.getInteger("partNumber", 0)
+    if (partNumber > 0) {
+        program.partNumber = partNumber
     }
-    if (msg.containsKey("partCount")) {
-        if (msg.getInteger("partCount") > 0) {
-            program.partCount = msg.getInteger("partCount")
-        }
+    val partCount = msg.getInteger("partCount", 0)
+    if (partCount > 0) {
+        program.partCount = partCount
     }
-    if (msg.containsKey("episodeOnscreen")) {
-        if (!msg.getString("episodeOnscreen").isNullOrEmpty()) {
-            program.episodeOnscreen = msg.getString("episodeOnscreen")
-        }
-    }
-    if (msg.containsKey("image")) {
-        if (!msg.getString("image").isNullOrEmpty()) {
-            program.image = msg.getString("image")
-        }
+    val episodeOnscreen = msg.getString("episodeOnscreen", null)
+    if (!episodeOnscreen.isNullOrEmpty()) {
+        program.episodeOnscreen = episodeOnscreen
     }
-    if (msg.containsKey("dvrId")) {
-        if (msg.getInteger("dvrId") > 0) {
-            program.dvrId = msg.getInteger("dvrId")
-        }
+    val image = msg.getString("image", null)
+    if (!image.isNullOrEmpty()) {
+        program.image = image
     }
-    if (msg.containsKey("nextEventId")) {
-        if (msg.getInteger("nextEventId") > 0) {
-            program.nextEventId = msg.getInteger("nextEventId")
-        }
+    val dvrId = msg.getInteger("dvrId", 0)
+    if (dvrId > 0) {
+        program.dvrId = dvrId
     }
-    if (msg.containsKey("episodeOnscreen")) {
-        if (!msg.getString("episodeOnscreen").isNullOrEmpty()) {
-            program.episodeOnscreen = msg.getString("episodeOnscreen")
-        }
+    val nextEventId = msg.getInteger("nextEventId", 0)
+    if (nextEventId > 0) {
+        program.nextEventId = nextEventId
     }
-    if (msg.containsKey("serieslinkUri")) {
-        if (!msg.getString("serieslinkUri").isNullOrEmpty()) {
-            program.serieslinkUri = msg.getString("serieslinkUri")
-        }
+    val serieslinkUri = msg.getString("serieslinkUri", null)
+    if (!serieslinkUri.isNullOrEmpty()) {
+        program.serieslinkUri = serieslinkUri
     }
-    if (msg.containsKey("episodeUri")) {
-        if (!msg.getString("episodeUri").isNullOrEmpty()) {
-            program.episodeUri = msg.getString("episodeUri")
-        }
+    val episodeUri = msg.getString("episodeUri", null)
+    if (!episodeUri.isNullOrEmpty()) {
+        program.episodeUri = episodeUri
     }
-    if (msg.containsKey("copyright_year")) {
-        if (msg.getInteger("copyright_year") > 0) {
-            program.copyrightYear = msg.getInteger("copyright_year")
-        }
+    val copyrightYear = msg.getInteger("copyright_year", 0)
+    if (copyrightYear > 0) {
+        program.copyrightYear = copyrightYear
     }
     /*
     if (msg.containsKey("credits")) {
@@ -853,3 +831,48 @@ val daylightSavingOffset: Int
         return 0
     }
 
+
+/**
+ * Returns the given channel ids as a sorted array without duplicates
+ */
+fun toSortedChannelIds(channelIds: List<Int>): IntArray {
+    val ids = channelIds.toIntArray()
+    ids.sort()
+    var count = 0
+    for (i in ids.indices) {
+        if (count == 0 || ids[count - 1] != ids[i]) {
+            ids[count++] = ids[i]
+        }
+    }
+    return if (count == ids.size) ids else ids.copyOf(count)
+}
+
+/**
+ * Compares the two sorted arrays of channel ids in one pass and
+ * reports the ids that are only contained in one of them.
+ *
+ * @param oldIds    The sorted channel ids that are currently saved
+ * @param newIds    The sorted channel ids that shall be saved
+ * @param onAdded   Called for each id that is only in the new ids
+ * @param onRemoved Called for each id that is only in the old ids
+ */
+inline fun diffSortedChannelIds(oldIds: IntArray, newIds: IntArray, onAdded: (Int) -> Unit, onRemoved: (Int) -> Unit) {
+    var i = 0
+    var j = 0
+    while (i < oldIds.size && j < newIds.size) {
+        when {
+            oldIds[i] == newIds[j] -> {
+                i++
+                j++
+            }
+            oldIds[i] < newIds[j] -> onRemoved(oldIds[i++])
+            else -> onAdded(newIds[j++])
+        }
+    }
+    while (i < oldIds.size) {
+        onRemoved(oldIds[i++])
+    }
+    while (j < newIds.size) {
+        onAdded(newIds[j++])
+    }
+}
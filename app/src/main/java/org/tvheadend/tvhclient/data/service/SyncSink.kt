@@ -0,0 +1,269 @@
+package org.tvheadend.tvhclient.data.service
+
+import org.tvheadend.tvhclient.data.repository.AppRepository
+import org.tvheadend.tvhclient.data.service.htsp.HtspMessage
+import org.tvheadend.tvhclient.domain.entity.Program
+import org.tvheadend.tvhclient.domain.entity.Recording
+import timber.log.Timber
+import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Receives the programs and recordings of the initial sync and saves them in the
+ * database while the sync is still running. The items are collected in chunks of
+ * [chunkSize] items. Each full chunk is handed to a dedicated writer thread which
+ * inserts it in its own transaction. At most [maxPendingChunks] chunks wait for the
+ * writer, when the database can't keep up, the connection thread is blocked until a
+ * chunk was written. This limits the number of items that are held on the heap.
+ *
+ * All inserts replace existing rows with the same id, so the chunks of an interrupted
+ * sync leave valid data behind and are simply overwritten when the sync is repeated.
+ * Recordings and series recordings that were not sent by the server are only removed
+ * in [commit], so an interrupted sync never loses any recordings.
+ *
+ * During an incremental sync the server only sends the events that have changed.
+ * Events that were moved or replaced on the server are then detected by their overlap
+ * with the received events of the same channel and removed when a chunk is saved.
+ * Events that were removed on the server are reconciled by their ids after the sync.
+ *
+ * Updates and deletions of events and recordings that the server sends while the sink
+ * is active are kept by [deferMessage] and handed back in the order of their arrival
+ * after all items were written. Otherwise such a change could be applied before the
+ * chunk with the affected item and would then be overwritten by the older copy.
+ * After [commit] was called, new events and recordings are also kept, so that they
+ * are neither removed as not received nor written before the remaining chunks.
+ */
+class SyncSink(private val appRepository: AppRepository,
+               private val removeOverlappingPrograms: Boolean = false,
+               private val chunkSize: Int = DEFAULT_CHUNK_SIZE,
+               maxPendingChunks: Int = DEFAULT_MAX_PENDING_CHUNKS) {
+
+    private val tasks = ArrayBlockingQueue<Runnable>(maxPendingChunks)
+    private val writer = Thread(this::writeTasks, "SyncSinkWriter")
+    // Tells the writer thread that no more tasks will follow
+    private val stopTask = Runnable {}
+
+    private var programChunk = ArrayList<Program>(chunkSize)
+    private var recordingChunk = ArrayList<Recording>(chunkSize)
+    private val receivedRecordingIds = HashSet<Int>()
+    private val receivedSeriesRecordingIds = HashSet<String>()
+    private val deferredMessages = ArrayList<HtspMessage>()
+    // Set when the deferred messages were handed back, guarded by deferredMessages
+    private var isDone = false
+
+    private val programsWritten = AtomicInteger()
+    private val recordingsWritten = AtomicInteger()
+    @Volatile
+    private var isAborted = false
+    @Volatile
+    private var isCommitted = false
+
+    var programCount = 0
+        private set
+    var recordingCount = 0
+        private set
+
+    init {
+        writer.start()
+    }
+
+    fun addProgram(program: Program) {
+        if (isAborted) {
+            return
+        }
+        programChunk.add(program)
+        programCount++
+        if (programChunk.size >= chunkSize) {
+            flushPrograms()
+        }
+    }
+
+    fun addRecording(recording: Recording) {
+        if (isAborted) {
+            return
+        }
+        recordingChunk.add(recording)
+        receivedRecordingIds.add(recording.id)
+        recordingCount++
+        if (recordingChunk.size >= chunkSize) {
+            flushRecordings()
+        }
+    }
+
+    /**
+     * Remembers that the series recording was sent by the server. The
+     * series recordings themselves are saved when they are received.
+     */
+    fun addSeriesRecordingId(id: String) {
+        if (!isAborted) {
+            receivedSeriesRecordingIds.add(id)
+        }
+    }
+
+    /**
+     * Keeps the message if it changes events or recordings that may not have been
+     * written yet. Can be called from any thread.
+     *
+     * @return False if the message was not kept and must be handled by the caller
+     */
+    fun deferMessage(message: HtspMessage): Boolean {
+        val method = message.method
+        if (!deferredMethods.contains(method) || (!isCommitted && addMethods.contains(method))) {
+            return false
+        }
+        synchronized(deferredMessages) {
+            if (isDone || isAborted) {
+                return false
+            }
+            deferredMessages.add(message)
+            return true
+        }
+    }
+
+    /**
+     * Writes the remaining items and removes the recordings that the server did not
+     * send during the sync. The callback is invoked from the writer thread after
+     * all items were saved. Afterwards the deferred messages are passed to the
+     * message handler on the same thread, including those that arrive meanwhile.
+     * The sink can't be used afterwards.
+     */
+    fun commit(callback: (() -> Unit)?, messageHandler: (HtspMessage) -> Unit) {
+        if (isCommitted || isAborted) {
+            return
+        }
+        isCommitted = true
+        flushPrograms()
+        flushRecordings()
+
+        val recordingIds = HashSet(receivedRecordingIds)
+        val seriesRecordingIds = HashSet(receivedSeriesRecordingIds)
+        enqueue(Runnable {
+            Timber.d("Removing recordings that were not received from the server, keeping ${recordingIds.size} recordings")
+            appRepository.recordingData.removeItemsExceptSync(recordingIds)
+            Timber.d("Removing series recordings that were not received from the server, keeping ${seriesRecordingIds.size} series recordings")
+            appRepository.seriesRecordingData.removeItemsExceptSync(seriesRecordingIds)
+            appRepository.channelData.updateEventSyncTimesSync()
+            Timber.d("Sync data committed, saved ${programsWritten.get()} programs and ${recordingsWritten.get()} recordings")
+            callback?.invoke()
+            handleDeferredMessages(messageHandler)
+        })
+        enqueue(stopTask)
+    }
+
+    private fun handleDeferredMessages(messageHandler: (HtspMessage) -> Unit) {
+        while (true) {
+            val messages = synchronized(deferredMessages) {
+                if (deferredMessages.isEmpty()) {
+                    // The caller handles any further messages itself
+                    isDone = true
+                    return
+                }
+                val pending = ArrayList(deferredMessages)
+                deferredMessages.clear()
+                pending
+            }
+            Timber.d("Handling ${messages.size} messages that were received during the sync")
+            for (message in messages) {
+                try {
+                    messageHandler(message)
+                } catch (e: Exception) {
+                    Timber.e(e, "Could not handle message ${message.method}")
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards the items that were not yet written and stops the writer thread.
+     * Chunks that were already written remain in the database.
+     * Can be called from any thread.
+     */
+    fun abort() {
+        // A committed sync is finished by the writer even if the connection is closed
+        if (isCommitted || isAborted) {
+            return
+        }
+        Timber.d("Aborting sync, ${programsWritten.get()} programs and ${recordingsWritten.get()} recordings were saved")
+        isAborted = true
+        tasks.clear()
+        synchronized(deferredMessages) {
+            deferredMessages.clear()
+        }
+        writer.interrupt()
+    }
+
+    private fun flushPrograms() {
+        if (programChunk.isEmpty()) {
+            return
+        }
+        val chunk = programChunk
+        programChunk = ArrayList(chunkSize)
+        enqueue(Runnable {
+            if (removeOverlappingPrograms) {
+                appRepository.programData.addItemsAndRemoveOverlappingSync(chunk)
+            } else {
+                appRepository.programData.addItemsSync(chunk)
+            }
+            programsWritten.addAndGet(chunk.size)
+        })
+    }
+
+    private fun flushRecordings() {
+        if (recordingChunk.isEmpty()) {
+            return
+        }
+        val chunk = recordingChunk
+        recordingChunk = ArrayList(chunkSize)
+        enqueue(Runnable {
+            appRepository.recordingData.addItemsSync(chunk)
+            recordingsWritten.addAndGet(chunk.size)
+        })
+    }
+
+    private fun enqueue(task: Runnable) {
+        try {
+            // Blocks the caller while the writer is behind, but
+            // don't wait for a writer that was already stopped
+            while (!isAborted && !tasks.offer(task, 100, TimeUnit.MILLISECONDS)) {
+                continue
+            }
+        } catch (e: InterruptedException) {
+            Timber.d(e, "Waiting for the sync writer was interrupted")
+            Thread.currentThread().interrupt()
+        }
+    }
+
+    private fun writeTasks() {
+        try {
+            while (!isAborted) {
+                val task = tasks.take()
+                if (task === stopTask) {
+                    break
+                }
+                try {
+                    task.run()
+                } catch (e: Exception) {
+                    // Keep writing the next chunks, otherwise the connection thread would wait forever
+                    Timber.e(e, "Could not save sync data")
+                }
+            }
+        } catch (e: InterruptedException) {
+            Timber.d("Sync writer was interrupted")
+        }
+        Timber.d("Sync writer stopped")
+    }
+
+    companion object {
+
+        const val DEFAULT_CHUNK_SIZE = 500
+        const val DEFAULT_MAX_PENDING_CHUNKS = 4
+
+        private val addMethods = setOf("eventAdd", "dvrEntryAdd", "autorecEntryAdd")
+        private val deferredMethods = addMethods + setOf(
+                "eventUpdate", "eventDelete",
+                "dvrEntryUpdate", "dvrEntryDelete",
+                "autorecEntryUpdate", "autorecEntryDelete")
+    }
+}
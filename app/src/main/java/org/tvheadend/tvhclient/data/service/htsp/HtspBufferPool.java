@@ -0,0 +1,77 @@
+package org.tvheadend.tvhclient.data.service.htsp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Pool of direct buffers that is shared by all HTSP connections. The service,
+ * the intent service and the player can each hold a connection, a buffer that
+ * was used by a closed connection is handed to the next one instead of being
+ * allocated again. Only a limited amount of memory is kept in the pool, the
+ * remaining buffers are left to the garbage collector.
+ */
+final class HtspBufferPool {
+
+    static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BYTES = 4 * 1024 * 1024;
+
+    private static final ArrayList<ByteBuffer> freeBuffers = new ArrayList<>();
+    private static int pooledBytes = 0;
+
+    private HtspBufferPool() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Returns a cleared buffer with at least the given capacity. The capacity
+     * is rounded up to the next power of two to allow reusing the buffers.
+     */
+    static synchronized ByteBuffer acquire(int minCapacity) {
+        ByteBuffer bestMatch = null;
+        for (ByteBuffer buffer : freeBuffers) {
+            if (buffer.capacity() >= minCapacity
+                    && (bestMatch == null || buffer.capacity() < bestMatch.capacity())) {
+                bestMatch = buffer;
+            }
+        }
+        if (bestMatch != null) {
+            Iterator<ByteBuffer> it = freeBuffers.iterator();
+            while (it.hasNext()) {
+                if (it.next() == bestMatch) {
+                    it.remove();
+                    break;
+                }
+            }
+            pooledBytes -= bestMatch.capacity();
+            bestMatch.clear();
+            return bestMatch;
+        }
+
+        int capacity = MIN_BUFFER_SIZE;
+        while (capacity < minCapacity && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return ByteBuffer.allocateDirect(Math.max(capacity, minCapacity));
+    }
+
+    /**
+     * Hands the buffer back to the pool. The buffer must not be used by the caller afterwards.
+     */
+    static synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || pooledBytes + buffer.capacity() > MAX_POOLED_BYTES) {
+            return;
+        }
+        for (ByteBuffer freeBuffer : freeBuffers) {
+            if (freeBuffer == buffer) {
+                return;
+            }
+        }
+        freeBuffers.add(buffer);
+        pooledBytes += buffer.capacity();
+    }
+
+    static synchronized int getPooledBytes() {
+        return pooledBytes;
+    }
+}
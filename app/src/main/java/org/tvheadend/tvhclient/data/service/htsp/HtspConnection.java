@@ -1,14 +1,11 @@
 package org.tvheadend.tvhclient.data.service.htsp;
 
-import android.util.SparseArray;
-
 import androidx.annotation.NonNull;
 
 import org.tvheadend.tvhclient.BuildConfig;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
@@ -21,10 +18,12 @@ import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -36,6 +35,14 @@ import timber.log.Timber;
 
 public class HtspConnection extends Thread {
 
+    // Frames up to this size are received in one piece, larger frames
+    // are decoded field by field while they are read from the socket
+    private static final int DEFAULT_RECEIVE_BUFFER_LIMIT = 4 * 1024 * 1024;
+    // Callers that check for back-pressure wait when this many messages
+    // are queued until the queue has been drained down to the lower mark
+    private static final int SEND_QUEUE_HIGH_WATER_MARK = 256;
+    private static final int SEND_QUEUE_LOW_WATER_MARK = 128;
+
     private final String username;
     private final String password;
     private final String hostname;
@@ -44,13 +51,17 @@ public class HtspConnection extends Thread {
     private volatile boolean isRunning;
     private final Lock lock;
     private SocketChannel socketChannel;
-    private final ByteBuffer inputByteBuffer;
-    private int seq;
+    private final HtspFrameReader frameReader;
+    private final HtspFrameWriter frameWriter;
+    private final AtomicInteger seq = new AtomicInteger();
+    // Set when a producer has woken up the selector, avoids a wakeup for each message of a burst
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
 
     private final HtspConnectionStateListener connectionListener;
-    private final Set<HtspMessageListener> messageListeners = new HashSet<>();
-    private final SparseArray<HtspResponseListener> responseHandlers;
-    private final LinkedList<HtspMessage> messageQueue;
+    // Listeners are added and removed from other threads while the
+    // connection thread iterates over them to dispatch the messages
+    private final Set<HtspMessageListener> messageListeners = new CopyOnWriteArraySet<>();
+    private final ConcurrentHashMap<Integer, HtspResponseListener> responseHandlers;
     private boolean isAuthenticated = false;
     private Selector selector;
     private final int connectionTimeout;
@@ -99,10 +110,9 @@ public class HtspConnection extends Thread {
 
         this.isRunning = false;
         this.lock = new ReentrantLock();
-        this.inputByteBuffer = ByteBuffer.allocateDirect(2048 * 2048);
-        this.inputByteBuffer.limit(4);
-        this.responseHandlers = new SparseArray<>();
-        this.messageQueue = new LinkedList<>();
+        this.frameReader = new HtspFrameReader(DEFAULT_RECEIVE_BUFFER_LIMIT);
+        this.frameWriter = new HtspFrameWriter(SEND_QUEUE_HIGH_WATER_MARK, SEND_QUEUE_LOW_WATER_MARK);
+        this.responseHandlers = new ConcurrentHashMap<>();
         this.connectionListener = connectionListener;
 
         if (messageListener != null) {
@@ -181,6 +191,65 @@ public class HtspConnection extends Thread {
                 || !isRunning;
     }
 
+    /**
+     * Sets the size up to which the receive buffer may grow. The buffer starts
+     * small and only grows when a larger message arrives. Must be called before
+     * the connection is opened.
+     */
+    public void setReceiveBufferLimit(int limit) {
+        frameReader.setMaxCapacity(limit);
+    }
+
+    /**
+     * Returns the average number of messages that were decoded
+     * each time the selector reported that data can be read.
+     */
+    public float getAverageMessagesPerWakeup() {
+        long wakeups = frameReader.getWakeupCount();
+        return wakeups > 0 ? (float) frameReader.getMessageCount() / wakeups : 0;
+    }
+
+    public int getMaxMessagesPerWakeup() {
+        return frameReader.getMaxMessagesPerWakeup();
+    }
+
+    /**
+     * Returns the number of bytes that were received since the connection was opened.
+     * The value is updated by the connection thread and may lag behind slightly.
+     */
+    public long getReceivedByteCount() {
+        return frameReader.getByteCount();
+    }
+
+    public long getReceivedMessageCount() {
+        return frameReader.getMessageCount();
+    }
+
+    /**
+     * Returns the number of messages that were passed to {@link #sendMessage}
+     * but have not yet been handed to the socket.
+     */
+    public int getPendingMessageCount() {
+        return frameWriter.getPendingCount();
+    }
+
+    /**
+     * Returns true if so many messages are queued that the caller should
+     * stop sending further requests until {@link #awaitSendQueueCapacity} returns.
+     */
+    public boolean isSendQueueFull() {
+        return frameWriter.isFull();
+    }
+
+    /**
+     * Blocks until the send queue has been drained to its low water mark.
+     *
+     * @return False if the queue has not drained that far after the timeout
+     */
+    public boolean awaitSendQueueCapacity(long timeoutMillis) throws InterruptedException {
+        return frameWriter.awaitCapacity(timeoutMillis);
+    }
+
     public boolean isAuthenticated() {
         return isAuthenticated;
     }
@@ -263,19 +332,21 @@ public class HtspConnection extends Thread {
             Timber.d("Not sending message, not connected to server");
             return;
         }
-        lock.lock();
-        try {
-            seq++;
-            message.put("seq", seq);
-            responseHandlers.put(seq, listener);
-            socketChannel.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ | SelectionKey.OP_CONNECT);
-            messageQueue.add(message);
-            selector.wakeup();
-
-        } catch (Exception e) {
-            Timber.d(e, "Could not send message.");
-        } finally {
-            lock.unlock();
+        int messageSeq = seq.incrementAndGet();
+        message.put("seq", messageSeq);
+        if (listener != null) {
+            responseHandlers.put(messageSeq, listener);
+        }
+        frameWriter.offer(message);
+
+        // The connection thread writes all queued messages after it woke up,
+        // so only the first message of a burst needs to interrupt the select
+        if (wakeupPending.compareAndSet(false, true)) {
+            try {
+                selector.wakeup();
+            } catch (Exception e) {
+                Timber.d(e, "Could not wake up the connection thread.");
+            }
         }
     }
 
@@ -284,7 +355,7 @@ public class HtspConnection extends Thread {
         lock.lock();
         try {
             responseHandlers.clear();
-            messageQueue.clear();
+            frameWriter.clear();
             isAuthenticated = false;
             isRunning = false;
 
@@ -327,6 +398,9 @@ public class HtspConnection extends Thread {
                 isRunning = false;
             }
 
+            // Messages that are queued from now on need another wakeup
+            wakeupPending.set(false);
+
             lock.lock();
             try {
                 Iterator<SelectionKey> it = selector.selectedKeys().iterator();
@@ -335,8 +409,13 @@ public class HtspConnection extends Thread {
                     it.remove();
                     processTcpSelectionKey(selKey);
                 }
+                // Write the queued messages right away, the selector is
+                // only asked to wait when the socket can not take them all
+                if (socketChannel.isConnected() && frameWriter.hasPendingData()) {
+                    writeMessages(socketChannel);
+                }
                 int ops = SelectionKey.OP_READ;
-                if (!messageQueue.isEmpty()) {
+                if (frameWriter.hasPendingData()) {
                     ops |= SelectionKey.OP_WRITE;
                 }
                 if (socketChannel.isOpen()) {
@@ -370,6 +449,15 @@ public class HtspConnection extends Thread {
         }
 
         closeConnection();
+        Timber.d("Decoded " + frameReader.getMessageCount() + " messages in " + frameReader.getWakeupCount()
+                + " reads, at most " + frameReader.getMaxMessagesPerWakeup() + " messages per read");
+        Timber.d("Receive buffer grew to " + frameReader.getCapacity() + " bytes, largest message had "
+                + frameReader.getLargestFrame() + " bytes");
+        Timber.d("Sent " + frameWriter.getMessageCount() + " messages with " + frameWriter.getWriteCount()
+                + " writes, at most " + frameWriter.getMaxMessagesPerWrite() + " messages per write");
+        // Only this thread uses the receive and send buffers, so they can be handed back to the pool now
+        frameReader.release();
+        frameWriter.release();
         Timber.d("HTSP connection thread stopped");
     }
 
@@ -387,32 +475,34 @@ public class HtspConnection extends Thread {
         }
         if (selKey.isReadable() && selKey.isValid()) {
             SocketChannel sChannel = (SocketChannel) selKey.channel();
-            int len = sChannel.read(inputByteBuffer);
-            if (len < 0) {
+            try {
+                // Handle all messages that have arrived before returning to the selector
+                frameReader.read(sChannel, this::handleMessage);
+            } catch (IOException e) {
                 connectionListener.onConnectionStateChange(ConnectionState.FAILED);
-                Timber.e("Could not read data from server");
-                throw new IOException();
-            }
-
-            HtspMessage msg = HtspMessage.parse(inputByteBuffer);
-            if (msg != null) {
-                handleMessage(msg);
+                Timber.e(e, "Could not read data from server");
+                throw e;
             }
         }
         if (selKey.isWritable() && selKey.isValid()) {
-            SocketChannel sChannel = (SocketChannel) selKey.channel();
-            HtspMessage msg = messageQueue.poll();
-            if (msg != null) {
-                msg.transmit(sChannel);
-            }
+            writeMessages((SocketChannel) selKey.channel());
+        }
+    }
+
+    private void writeMessages(SocketChannel sChannel) throws IOException {
+        try {
+            frameWriter.write(sChannel);
+        } catch (IOException e) {
+            connectionListener.onConnectionStateChange(ConnectionState.FAILED);
+            Timber.e(e, "Could not send data to server");
+            throw e;
         }
     }
 
     private void handleMessage(HtspMessage msg) {
         if (msg.containsKey("seq")) {
             int respSeq = msg.getInteger("seq");
-            HtspResponseListener handler = responseHandlers.get(respSeq);
-            responseHandlers.remove(respSeq);
+            HtspResponseListener handler = responseHandlers.remove(respSeq);
 
             if (handler != null) {
                 synchronized (handler) {
@@ -0,0 +1,282 @@
+package org.tvheadend.tvhclient.data.service.htsp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Reads the length prefixed HTSP frames from the socket channel. Each call to
+ * {@link #read(SocketChannel, HtspMessageListener)} reads everything the socket
+ * currently offers and passes every complete message to the listener before
+ * it returns. A partial frame at the end of the buffer is moved to the front
+ * and completed by one of the next reads.
+ * <p>
+ * The receive buffer is taken from the {@link HtspBufferPool}. It starts small
+ * and grows up to the maximum capacity when a larger frame arrives. A frame that
+ * exceeds the maximum capacity is decoded field by field. The data of its binary
+ * fields, like the content of a fileRead response, is read from the socket
+ * directly into the byte array that is passed on with the message.
+ * <p>
+ * An instance is not thread safe and must only be used by the connection thread.
+ */
+class HtspFrameReader {
+
+    private static final int FRAME_HEADER_LENGTH = 4;
+
+    private final HtspMessageCodec codec;
+    private int maxCapacity;
+    private ByteBuffer buffer;
+
+    // State of a frame that does not fit into the buffer
+    private HtspMessage largeMessage;
+    private long largeFrameRemaining;
+    private int largeFrameFieldIndex;
+    private String binName;
+    private byte[] binData;
+    private int binFilled;
+
+    private long wakeupCount;
+    private long byteCount;
+    private long messageCount;
+    private int lastMessagesPerWakeup;
+    private int maxMessagesPerWakeup;
+    private int largestFrame;
+
+    HtspFrameReader(int maxCapacity) {
+        this.codec = new HtspMessageCodec();
+        this.maxCapacity = maxCapacity;
+    }
+
+    void setMaxCapacity(int maxCapacity) {
+        this.maxCapacity = Math.max(maxCapacity, HtspBufferPool.MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * Reads the available data from the channel and decodes all complete messages.
+     *
+     * @return The number of messages that were passed to the listener
+     * @throws IOException If the server closed the connection or a frame could not be decoded
+     */
+    int read(SocketChannel channel, HtspMessageListener listener) throws IOException {
+        if (buffer == null) {
+            buffer = HtspBufferPool.acquire(HtspBufferPool.MIN_BUFFER_SIZE);
+        }
+
+        int messages = 0;
+        while (true) {
+            int requested;
+            int len;
+            if (binData != null && buffer.position() == 0) {
+                // Everything in the buffer belongs to the binary field, so
+                // read the remaining payload straight into its byte array
+                requested = binData.length - binFilled;
+                len = channel.read(ByteBuffer.wrap(binData, binFilled, requested));
+                if (len > 0) {
+                    binFilled += len;
+                    largeFrameRemaining -= len;
+                }
+            } else {
+                requested = buffer.remaining();
+                len = channel.read(buffer);
+            }
+            if (len < 0) {
+                throw new IOException("Server closed the connection");
+            }
+            byteCount += len;
+            messages += decodeFrames(listener);
+
+            // The socket is drained when it could not
+            // fill the requested space during the last read
+            if (len < requested || len == 0) {
+                break;
+            }
+        }
+
+        wakeupCount++;
+        messageCount += messages;
+        lastMessagesPerWakeup = messages;
+        if (messages > maxMessagesPerWakeup) {
+            maxMessagesPerWakeup = messages;
+        }
+        return messages;
+    }
+
+    private int decodeFrames(HtspMessageListener listener) throws IOException {
+        int end = buffer.position();
+        int pos = 0;
+        int messages = 0;
+
+        while (true) {
+            if (largeMessage != null) {
+                pos = decodeLargeFrame(pos, end);
+                if (largeFrameRemaining > 0) {
+                    break;
+                }
+                HtspMessage msg = largeMessage;
+                largeMessage = null;
+                messages++;
+                listener.onMessage(msg);
+                continue;
+            }
+
+            if (end - pos < FRAME_HEADER_LENGTH) {
+                break;
+            }
+            long len = HtspMessageCodec.readUInt32(buffer, pos);
+            if (len > largestFrame) {
+                largestFrame = (int) Math.min(len, Integer.MAX_VALUE);
+            }
+
+            if (len + FRAME_HEADER_LENGTH > buffer.capacity()) {
+                if (len + FRAME_HEADER_LENGTH <= maxCapacity) {
+                    // The frame fits once the buffer has grown, the remaining data will follow
+                    grow((int) len + FRAME_HEADER_LENGTH, pos, end);
+                    pos = 0;
+                    break;
+                }
+                largeMessage = new HtspMessage();
+                largeFrameRemaining = len;
+                largeFrameFieldIndex = 0;
+                pos += FRAME_HEADER_LENGTH;
+                continue;
+            }
+            if (end - pos - FRAME_HEADER_LENGTH < len) {
+                // Message not yet fully read
+                break;
+            }
+
+            int start = pos + FRAME_HEADER_LENGTH;
+            HtspMessage msg = codec.decode(buffer, start, start + (int) len);
+            pos = start + (int) len;
+            messages++;
+            listener.onMessage(msg);
+        }
+
+        // Move the remaining bytes of an incomplete frame to
+        // the beginning so the next read can append to them
+        if (pos > 0) {
+            buffer.limit(end);
+            buffer.position(pos);
+            buffer.compact();
+        }
+        return messages;
+    }
+
+    /**
+     * Decodes as many fields of the large frame as are available in the buffer.
+     *
+     * @return The position after the last consumed byte
+     */
+    private int decodeLargeFrame(int pos, int end) throws IOException {
+        while (largeFrameRemaining > 0) {
+            if (binData != null) {
+                int length = Math.min(end - pos, binData.length - binFilled);
+                if (length > 0) {
+                    ByteBuffer view = buffer.duplicate();
+                    view.limit(pos + length);
+                    view.position(pos);
+                    view.get(binData, binFilled, length);
+                    pos += length;
+                    binFilled += length;
+                    largeFrameRemaining -= length;
+                }
+                if (binFilled < binData.length) {
+                    return pos;
+                }
+                largeMessage.put(binName, binData);
+                binName = null;
+                binData = null;
+                continue;
+            }
+
+            if (end - pos < HtspMessageCodec.FIELD_HEADER_LENGTH) {
+                return pos;
+            }
+            byte type = buffer.get(pos);
+            int nameLength = buffer.get(pos + 1) & 0xFF;
+            long dataLength = HtspMessageCodec.readUInt32(buffer, pos + 2);
+            long fieldLength = HtspMessageCodec.FIELD_HEADER_LENGTH + nameLength + dataLength;
+
+            if (fieldLength > largeFrameRemaining) {
+                throw new IOException("Field exceeds the frame, field length " + fieldLength + ", remaining " + largeFrameRemaining);
+            }
+
+            if (fieldLength > buffer.capacity()) {
+                if (type != HtspMessageCodec.HMF_BIN || dataLength > Integer.MAX_VALUE) {
+                    throw new IOException("Message field is to long, length " + fieldLength + ", capacity " + buffer.capacity());
+                }
+                if (end - pos < HtspMessageCodec.FIELD_HEADER_LENGTH + nameLength) {
+                    return pos;
+                }
+                binName = codec.readFieldName(buffer, pos + HtspMessageCodec.FIELD_HEADER_LENGTH, nameLength, largeFrameFieldIndex++);
+                binData = new byte[(int) dataLength];
+                binFilled = 0;
+                pos += HtspMessageCodec.FIELD_HEADER_LENGTH + nameLength;
+                largeFrameRemaining -= HtspMessageCodec.FIELD_HEADER_LENGTH + nameLength;
+                continue;
+            }
+
+            if (end - pos < fieldLength) {
+                return pos;
+            }
+            pos = codec.decodeField(largeMessage, buffer, pos, end, largeFrameFieldIndex++);
+            largeFrameRemaining -= fieldLength;
+        }
+        return pos;
+    }
+
+    /**
+     * Replaces the buffer with a larger one from the pool and moves
+     * the bytes between the given positions to its beginning.
+     */
+    private void grow(int minCapacity, int pos, int end) {
+        ByteBuffer larger = HtspBufferPool.acquire(minCapacity);
+        ByteBuffer remaining = buffer.duplicate();
+        remaining.limit(end);
+        remaining.position(pos);
+        larger.put(remaining);
+
+        HtspBufferPool.release(buffer);
+        buffer = larger;
+    }
+
+    /**
+     * Hands the buffer back to the pool. Must be called by the
+     * connection thread after it has stopped reading.
+     */
+    void release() {
+        HtspBufferPool.release(buffer);
+        buffer = null;
+        largeMessage = null;
+        binName = null;
+        binData = null;
+    }
+
+    int getCapacity() {
+        return buffer != null ? buffer.capacity() : 0;
+    }
+
+    int getLargestFrame() {
+        return largestFrame;
+    }
+
+    long getByteCount() {
+        return byteCount;
+    }
+
+    long getWakeupCount() {
+        return wakeupCount;
+    }
+
+    long getMessageCount() {
+        return messageCount;
+    }
+
+    int getLastMessagesPerWakeup() {
+        return lastMessagesPerWakeup;
+    }
+
+    int getMaxMessagesPerWakeup() {
+        return maxMessagesPerWakeup;
+    }
+}
@@ -0,0 +1,202 @@
+package org.tvheadend.tvhclient.data.service.htsp;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queues the outgoing HTSP messages and writes them to the socket channel.
+ * Any thread can add messages without taking a lock, only the connection thread
+ * calls {@link #write(SocketChannel)}. Each write encodes as many pending
+ * messages as fit into the output buffer and passes them to the channel at once,
+ * so a burst of requests leaves with a few system calls instead of one per message.
+ * <p>
+ * The number of queued messages is tracked so that producers that send many
+ * requests can wait until the connection thread has caught up. A producer that
+ * found the queue at the high water mark is woken once the queue has drained to
+ * the low water mark, so it does not resume for every single message.
+ */
+class HtspFrameWriter {
+
+    // Requests that are larger than this can not be sent
+    private static final int MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    private final ConcurrentLinkedQueue<HtspMessage> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final Object capacitySignal = new Object();
+    private final int highWaterMark;
+    private final int lowWaterMark;
+    private ByteBuffer buffer;
+
+    private long writeCount;
+    private long messageCount;
+    private int maxMessagesPerWrite;
+
+    HtspFrameWriter(int highWaterMark, int lowWaterMark) {
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = lowWaterMark;
+    }
+
+    /**
+     * Adds the message to the end of the queue. Can be called from any thread.
+     *
+     * @return True if the queue has reached the high water mark
+     */
+    boolean offer(HtspMessage msg) {
+        queue.offer(msg);
+        return pendingCount.incrementAndGet() >= highWaterMark;
+    }
+
+    /**
+     * Encodes the queued messages into the output buffer and writes as much
+     * of it as the channel accepts. Bytes that could not be written remain in
+     * the buffer and are written first during the next call.
+     *
+     * @return True if all queued messages have been written
+     * @throws IOException If the server closed the connection or a message could not be encoded
+     */
+    boolean write(SocketChannel channel) throws IOException {
+        if (buffer == null) {
+            buffer = HtspBufferPool.acquire(HtspBufferPool.MIN_BUFFER_SIZE);
+        }
+
+        int messages = 0;
+        while (true) {
+            messages += fill();
+            if (buffer.position() == 0) {
+                break;
+            }
+            buffer.flip();
+            int len = channel.write(buffer);
+            buffer.compact();
+            if (len < 0) {
+                throw new IOException("Server went down");
+            }
+            writeCount++;
+            // Stop when the socket send buffer is full, the
+            // selector reports when more data can be written
+            if (buffer.position() > 0) {
+                break;
+            }
+        }
+
+        messageCount += messages;
+        if (messages > maxMessagesPerWrite) {
+            maxMessagesPerWrite = messages;
+        }
+        return !hasPendingData();
+    }
+
+    /**
+     * Moves the queued messages into the output buffer until it is full.
+     *
+     * @return The number of messages that were encoded
+     */
+    private int fill() throws IOException {
+        int messages = 0;
+        HtspMessage msg;
+        while ((msg = queue.peek()) != null) {
+            int start = buffer.position();
+            try {
+                HtspMessageCodec.encode(msg, buffer);
+            } catch (BufferOverflowException e) {
+                buffer.position(start);
+                if (start > 0) {
+                    // Write what is already there, the message will be encoded afterwards
+                    break;
+                }
+                if (buffer.capacity() >= MAX_BUFFER_SIZE) {
+                    throw new IOException("Message " + msg.getMethod() + " is too large to be sent");
+                }
+                HtspBufferPool.release(buffer);
+                buffer = HtspBufferPool.acquire(buffer.capacity() * 2);
+                continue;
+            }
+            if (queue.poll() == null) {
+                // The queue was cleared while the message was encoded
+                break;
+            }
+            messages++;
+            if (pendingCount.decrementAndGet() == lowWaterMark) {
+                synchronized (capacitySignal) {
+                    capacitySignal.notifyAll();
+                }
+            }
+        }
+        return messages;
+    }
+
+    boolean hasPendingData() {
+        return (buffer != null && buffer.position() > 0) || !queue.isEmpty();
+    }
+
+    int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    boolean isFull() {
+        return pendingCount.get() >= highWaterMark;
+    }
+
+    /**
+     * Blocks the calling thread until the number of queued messages
+     * has dropped to the low water mark or the timeout has elapsed.
+     *
+     * @return True if the queue has drained to the low water mark
+     */
+    boolean awaitCapacity(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (capacitySignal) {
+            // The count is checked and the signal is sent while holding
+            // the lock, so the notification can not be missed
+            while (pendingCount.get() > lowWaterMark) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                capacitySignal.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops all queued messages and releases the waiting producers.
+     */
+    void clear() {
+        // Only the removed messages are subtracted, the connection
+        // thread may be counting down the encoded ones at the same time
+        int drained = 0;
+        while (queue.poll() != null) {
+            drained++;
+        }
+        pendingCount.addAndGet(-drained);
+        synchronized (capacitySignal) {
+            capacitySignal.notifyAll();
+        }
+    }
+
+    /**
+     * Hands the buffer back to the pool. Must be called by the
+     * connection thread after it has stopped writing.
+     */
+    void release() {
+        HtspBufferPool.release(buffer);
+        buffer = null;
+    }
+
+    long getWriteCount() {
+        return writeCount;
+    }
+
+    long getMessageCount() {
+        return messageCount;
+    }
+
+    int getMaxMessagesPerWrite() {
+        return maxMessagesPerWrite;
+    }
+}
@@ -1,26 +1,28 @@
 package org.tvheadend.tvhclient.data.service.htsp;
 
-import java.io.IOException;
-import java.math.BigInteger;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class HtspMessage extends HashMap<String, Object> {
 
     private static final long serialVersionUID = 1L;
 
     static final long HTSP_VERSION = 32;
-    private static final byte HMF_MAP = 1;
-    private static final byte HMF_S64 = 2;
-    private static final byte HMF_STR = 3;
-    private static final byte HMF_BIN = 4;
-    private static final byte HMF_LIST = 5;
-    private ByteBuffer buf;
+
+    // The S64 fields of a received message are kept in these arrays instead of
+    // the map so that the values don't need to be boxed when they are decoded.
+    // The field names are interned by the codec, so the lookup is usually an
+    // identity comparison against the string literals used by the callers.
+    // A key is either in the arrays or in the map, never in both. The methods
+    // that operate on the whole map move the fields into the map first.
+    private String[] longFieldNames;
+    private long[] longFieldValues;
+    private int longFieldCount;
 
     public void setMethod(String name) {
         put("method", name);
@@ -30,6 +32,163 @@ public class HtspMessage extends HashMap<String, Object> {
         return getString("method", "");
     }
 
+    void putLongField(String key, long value) {
+        if (longFieldNames == null) {
+            longFieldNames = new String[8];
+            longFieldValues = new long[8];
+        } else if (longFieldCount == longFieldNames.length) {
+            longFieldNames = Arrays.copyOf(longFieldNames, longFieldCount * 2);
+            longFieldValues = Arrays.copyOf(longFieldValues, longFieldCount * 2);
+        }
+        longFieldNames[longFieldCount] = key;
+        longFieldValues[longFieldCount] = value;
+        longFieldCount++;
+    }
+
+    private int indexOfLongField(Object key) {
+        for (int i = 0; i < longFieldCount; i++) {
+            String name = longFieldNames[i];
+            if (name == key || name.equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Long removeLongField(int index) {
+        long value = longFieldValues[index];
+        longFieldCount--;
+        System.arraycopy(longFieldNames, index + 1, longFieldNames, index, longFieldCount - index);
+        System.arraycopy(longFieldValues, index + 1, longFieldValues, index, longFieldCount - index);
+        longFieldNames[longFieldCount] = null;
+        return value;
+    }
+
+    /**
+     * Moves the S64 fields into the map, so that the views and the
+     * methods of the map that are not overridden see all fields
+     */
+    private void moveLongFieldsToMap() {
+        for (int i = 0; i < longFieldCount; i++) {
+            super.put(longFieldNames[i], longFieldValues[i]);
+            longFieldNames[i] = null;
+        }
+        longFieldCount = 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOfLongField(key) >= 0 || super.containsKey(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int index = indexOfLongField(key);
+        if (index >= 0) {
+            Object previous = removeLongField(index);
+            super.put(key, value);
+            return previous;
+        }
+        return super.put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ?> map) {
+        for (Map.Entry<? extends String, ?> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int index = indexOfLongField(key);
+        if (index >= 0) {
+            return removeLongField(index);
+        }
+        return super.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < longFieldCount; i++) {
+            longFieldNames[i] = null;
+        }
+        longFieldCount = 0;
+        super.clear();
+    }
+
+    @Override
+    public int size() {
+        return super.size() + longFieldCount;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        moveLongFieldsToMap();
+        return super.containsValue(value);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        moveLongFieldsToMap();
+        return super.keySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        moveLongFieldsToMap();
+        return super.values();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        moveLongFieldsToMap();
+        return super.entrySet();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        moveLongFieldsToMap();
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        moveLongFieldsToMap();
+        return super.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        moveLongFieldsToMap();
+        return super.toString();
+    }
+
+    @Override
+    public Object clone() {
+        // The copy must not share the arrays
+        moveLongFieldsToMap();
+        return super.clone();
+    }
+
+    /**
+     * Returns the value of the given field. Received S64 values are
+     * boxed on demand, use {@link #getLong(String)} to avoid this.
+     */
+    @Override
+    public Object get(Object key) {
+        int index = indexOfLongField(key);
+        if (index >= 0) {
+            return longFieldValues[index];
+        }
+        return super.get(key);
+    }
+
     public String getString(String key, String fallback) {
         if (!containsKey(key)) {
             return fallback;
@@ -47,7 +206,11 @@ public class HtspMessage extends HashMap<String, Object> {
     }
 
     public int getInteger(String key, int fallback) {
-        if (!containsKey(key)) {
+        int index = indexOfLongField(key);
+        if (index >= 0) {
+            return (int) longFieldValues[index];
+        }
+        if (!super.containsKey(key)) {
             return fallback;
         }
 
@@ -55,19 +218,27 @@ public class HtspMessage extends HashMap<String, Object> {
     }
 
     public int getInteger(String key) {
-        Object obj = get(key);
+        int index = indexOfLongField(key);
+        if (index >= 0) {
+            return (int) longFieldValues[index];
+        }
+        Object obj = super.get(key);
         if (obj == null) {
             throw new RuntimeException("Attempted to getInteger(" + key + ") on non-existent key");
         }
-        if (obj instanceof BigInteger) {
-            return ((BigInteger) obj).intValue();
+        if (obj instanceof Number) {
+            return ((Number) obj).intValue();
         }
 
         return (int) obj;
     }
 
     public long getLong(String key, long fallback) {
-        if (!containsKey(key)) {
+        int index = indexOfLongField(key);
+        if (index >= 0) {
+            return longFieldValues[index];
+        }
+        if (!super.containsKey(key)) {
             return fallback;
         }
 
@@ -75,13 +246,17 @@ public class HtspMessage extends HashMap<String, Object> {
     }
 
     public long getLong(String key) {
-        Object obj = get(key);
+        int index = indexOfLongField(key);
+        if (index >= 0) {
+            return longFieldValues[index];
+        }
+        Object obj = super.get(key);
         if (obj == null) {
             throw new RuntimeException("Attempted to getLong(" + key + ") on non-existent key");
         }
 
-        if (obj instanceof BigInteger) {
-            return ((BigInteger) obj).longValue();
+        if (obj instanceof Number) {
+            return ((Number) obj).longValue();
         }
 
         return (long) obj;
@@ -109,8 +284,8 @@ public class HtspMessage extends HashMap<String, Object> {
             return list;
         }
         for (Object obj : getList(name)) {
-            if (obj instanceof BigInteger) {
-                list.add(((BigInteger) obj).intValue());
+            if (obj instanceof Number) {
+                list.add(((Number) obj).intValue());
             }
         }
         return list;
@@ -128,243 +303,23 @@ public class HtspMessage extends HashMap<String, Object> {
         return (byte[]) value;
     }
 
-    void transmit(SocketChannel ch) throws IOException {
-        if (buf == null) {
-            byte[] data = serializeBinary(this);
-            int len = data.length;
-            buf = ByteBuffer.allocateDirect(len + 4);
-
-            buf.put((byte) ((len >> 24) & 0xFF));
-            buf.put((byte) ((len >> 16) & 0xFF));
-            buf.put((byte) ((len >> 8) & 0xFF));
-            buf.put((byte) ((len) & 0xFF));
-            buf.put(data);
-            buf.flip();
-        }
-
-        if (ch.write(buf) < 0) {
-            throw new IOException("Server went down");
-        }
-
-        if (!buf.hasRemaining()) {
-            buf.flip();
-        }
+    /**
+     * Returns the fields that are not S64 fields of a received message
+     * without moving the S64 fields into the map
+     */
+    Set<Map.Entry<String, Object>> getMapEntries() {
+        return super.entrySet();
     }
 
-    private static byte[] toByteArray(BigInteger big) {
-        byte[] b = big.toByteArray();
-        byte b1[] = new byte[b.length];
-
-        for (int i = 0; i < b.length; i++) {
-            b1[i] = b[b.length - 1 - i];
-        }
-
-        return b1;
+    int getLongFieldCount() {
+        return longFieldCount;
     }
 
-    private static BigInteger toBigInteger(byte b[]) {
-        byte b1[] = new byte[b.length + 1];
-
-        for (int i = 0; i < b.length; i++) {
-            b1[i + 1] = b[b.length - 1 - i];
-        }
-
-        return new BigInteger(b1);
+    String getLongFieldName(int index) {
+        return longFieldNames[index];
     }
 
-    private static long uIntToLong(byte b1, byte b2, byte b3, byte b4) {
-        long i = 0;
-        i <<= 8;
-        i ^= b1 & 0xFF;
-        i <<= 8;
-        i ^= b2 & 0xFF;
-        i <<= 8;
-        i ^= b3 & 0xFF;
-        i <<= 8;
-        i ^= b4 & 0xFF;
-        return i;
-    }
-
-    public static HtspMessage parse(ByteBuffer buf) throws IOException {
-        long len;
-
-        if (buf.position() < 4) {
-            return null;
-        }
-
-        len = uIntToLong(buf.get(0), buf.get(1), buf.get(2), buf.get(3));
-
-        if (len + 4 > buf.capacity()) {
-            throw new IOException("Message is to long, length " + len + ", capacity " + buf.capacity());
-        }
-
-        if (buf.limit() == 4) {
-            buf.limit((int) (4 + len));
-        }
-
-        // Message not yet fully read
-        if (buf.position() < len + 4) {
-            return null;
-        }
-
-        buf.flip();
-        buf.getInt(); // drops 4 bytes
-        HtspMessage msg = deserializeBinary(buf);
-
-        buf.limit(4);
-        buf.position(0);
-        return msg;
-    }
-
-    @SuppressWarnings("unchecked")
-    private static byte[] serializeBinary(String name, Object value) throws IOException {
-        byte[] bName = name.getBytes();
-        byte[] bData;
-        byte type;
-
-        if (value instanceof String) {
-            type = HtspMessage.HMF_STR;
-            bData = ((String) value).getBytes();
-        } else if (value instanceof BigInteger) {
-            type = HtspMessage.HMF_S64;
-            bData = toByteArray((BigInteger) value);
-        } else if (value instanceof Integer) {
-            type = HtspMessage.HMF_S64;
-            bData = toByteArray(BigInteger.valueOf((Integer) value));
-        } else if (value instanceof Long) {
-            type = HtspMessage.HMF_S64;
-            bData = toByteArray(BigInteger.valueOf((Long) value));
-        } else if (value instanceof byte[]) {
-            type = HtspMessage.HMF_BIN;
-            bData = (byte[]) value;
-        } else if (value instanceof Map) {
-            type = HtspMessage.HMF_MAP;
-
-            bData = serializeBinary((Map<String, Object>) value);
-        } else if (value instanceof Collection) {
-            type = HtspMessage.HMF_LIST;
-            bData = serializeBinary((Collection<?>) value);
-        } else if (value == null) {
-            throw new IOException("HTSP doesn't support null values");
-        } else {
-            throw new IOException("Unhandled class for " + name + ": " + value
-                    + " (" + value.getClass().getSimpleName() + ")");
-        }
-
-        byte[] buf = new byte[1 + 1 + 4 + bName.length + bData.length];
-        buf[0] = type;
-        buf[1] = (byte) (bName.length & 0xFF);
-        buf[2] = (byte) ((bData.length >> 24) & 0xFF);
-        buf[3] = (byte) ((bData.length >> 16) & 0xFF);
-        buf[4] = (byte) ((bData.length >> 8) & 0xFF);
-        buf[5] = (byte) ((bData.length) & 0xFF);
-
-        System.arraycopy(bName, 0, buf, 6, bName.length);
-        System.arraycopy(bData, 0, buf, 6 + bName.length, bData.length);
-
-        return buf;
-    }
-
-    private static byte[] serializeBinary(Collection<?> list) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(Short.MAX_VALUE);
-
-        for (Object value : list) {
-            byte[] sub = serializeBinary("", value);
-            buf.put(sub);
-        }
-
-        byte[] bBuf = new byte[buf.position()];
-        buf.flip();
-        buf.get(bBuf);
-
-        return bBuf;
-    }
-
-    private static byte[] serializeBinary(Map<String, Object> map) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(Short.MAX_VALUE);
-
-        for (Object key : map.keySet()) {
-            //noinspection SuspiciousMethodCalls
-            Object value = map.get(key);
-            byte[] sub = serializeBinary(key.toString(), value);
-            buf.put(sub);
-        }
-
-        byte[] bBuf = new byte[buf.position()];
-        buf.flip();
-        buf.get(bBuf);
-
-        return bBuf;
-    }
-
-    private static HtspMessage deserializeBinary(ByteBuffer buf) throws IOException {
-        byte type, namelen;
-        long datalen;
-
-        HtspMessage msg = new HtspMessage();
-        int cnt = 0;
-
-        while (buf.hasRemaining()) {
-            type = buf.get();
-            namelen = buf.get();
-            datalen = uIntToLong(buf.get(), buf.get(), buf.get(), buf.get());
-
-            if (datalen > Integer.MAX_VALUE) {
-                throw new IOException("Would get precision losses, datalen " + datalen + ", max int " + Integer.MAX_VALUE);
-            }
-            if (buf.limit() < namelen + datalen) {
-                throw new IOException("Buffer limit exceeded, limit " + buf.limit() + ", namelen " + namelen + ", datalen " + datalen);
-            }
-
-            // Get the key for the map (the name)
-            String name;
-            if (namelen == 0) {
-                name = Integer.toString(cnt++);
-            } else if (namelen > 0) {
-                byte[] bName = new byte[namelen];
-                buf.get(bName);
-                name = new String(bName);
-            } else {
-                throw new IOException("Buffer position is negative, namelen " + namelen);
-            }
-
-            // Get the actual content
-            Object obj;
-            byte[] bData = new byte[(int) datalen]; // Should be long?
-            buf.get(bData);
-
-            switch (type) {
-                case HtspMessage.HMF_STR: {
-                    obj = new String(bData);
-                    break;
-                }
-                case HMF_BIN: {
-                    obj = bData;
-                    break;
-                }
-                case HMF_S64: {
-                    obj = toBigInteger(bData);
-                    break;
-                }
-                case HMF_MAP: {
-                    ByteBuffer sub = ByteBuffer.allocateDirect((int) datalen);
-                    sub.put(bData);
-                    sub.flip();
-                    obj = deserializeBinary(sub);
-                    break;
-                }
-                case HMF_LIST: {
-                    ByteBuffer sub = ByteBuffer.allocateDirect((int) datalen);
-                    sub.put(bData);
-                    sub.flip();
-                    obj = new ArrayList<>(deserializeBinary(sub).values());
-                    break;
-                }
-                default:
-                    throw new IOException("Unknown data type " + type);
-            }
-            msg.put(name, obj);
-        }
-        return msg;
+    long getLongFieldValue(int index) {
+        return longFieldValues[index];
     }
 }
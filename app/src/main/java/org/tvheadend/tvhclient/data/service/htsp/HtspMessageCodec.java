@@ -0,0 +1,387 @@
+package org.tvheadend.tvhclient.data.service.htsp;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Encodes and decodes binary HTSP messages without intermediate copies. Nested maps and lists
+ * are read directly from their byte range within the parent buffer, S64 values
+ * are decoded into primitive longs and field names are resolved through a small
+ * cache so that the same names are not allocated again for every message.
+ * <p>
+ * An instance is not thread safe. Each connection owns its own codec and only
+ * uses it from its connection thread.
+ */
+class HtspMessageCodec {
+
+    private static final byte HMF_MAP = 1;
+    private static final byte HMF_S64 = 2;
+    private static final byte HMF_STR = 3;
+    static final byte HMF_BIN = 4;
+    private static final byte HMF_LIST = 5;
+
+    static final int FIELD_HEADER_LENGTH = 6;
+    // UTF-8 is the default on Android, but do not rely on it when decoding
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final FieldNameCache fieldNames = new FieldNameCache();
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Decodes the message body that is stored in the given buffer between the
+     * absolute start (inclusive) and end (exclusive) positions. The position and
+     * limit of the buffer are not modified.
+     */
+    HtspMessage decode(ByteBuffer buf, int start, int end) throws IOException {
+        HtspMessage msg = new HtspMessage();
+        int index = 0;
+        int pos = start;
+
+        while (pos < end) {
+            pos = decodeField(msg, buf, pos, end, index++);
+        }
+        return msg;
+    }
+
+    /**
+     * Decodes the single field that starts at the given position and adds it to
+     * the message. Fields without a name are stored under their index.
+     *
+     * @return The position of the next field
+     */
+    int decodeField(HtspMessage msg, ByteBuffer buf, int pos, int end, int index) throws IOException {
+        if (end - pos < FIELD_HEADER_LENGTH) {
+            throw new IOException("Truncated field header, position " + pos + ", end " + end);
+        }
+        byte type = buf.get(pos);
+        int nameLength = buf.get(pos + 1) & 0xFF;
+        long dataLength = readUInt32(buf, pos + 2);
+        pos += FIELD_HEADER_LENGTH;
+
+        if (pos + nameLength + dataLength > end) {
+            throw new IOException("Buffer limit exceeded, end " + end + ", namelen " + nameLength + ", datalen " + dataLength);
+        }
+
+        String name = readFieldName(buf, pos, nameLength, index);
+        pos += nameLength;
+
+        int dataEnd = pos + (int) dataLength;
+        switch (type) {
+            case HMF_S64:
+                msg.putLongField(name, readS64(buf, pos, (int) dataLength));
+                break;
+            case HMF_STR:
+                // The method names are a small set of values, share them like the field names
+                if ("method".equals(name) && dataLength > 0 && dataLength <= FieldNameCache.MAX_LENGTH) {
+                    msg.put(name, fieldNames.get(buf, pos, (int) dataLength));
+                } else {
+                    msg.put(name, readString(buf, pos, (int) dataLength));
+                }
+                break;
+            case HMF_BIN:
+                msg.put(name, readBytes(buf, pos, (int) dataLength));
+                break;
+            case HMF_MAP:
+                msg.put(name, decode(buf, pos, dataEnd));
+                break;
+            case HMF_LIST:
+                msg.put(name, decodeList(buf, pos, dataEnd));
+                break;
+            default:
+                throw new IOException("Unknown data type " + type);
+        }
+        return dataEnd;
+    }
+
+    String readFieldName(ByteBuffer buf, int pos, int nameLength, int index) {
+        if (nameLength == 0) {
+            return Integer.toString(index);
+        }
+        return fieldNames.get(buf, pos, nameLength);
+    }
+
+    private ArrayList<Object> decodeList(ByteBuffer buf, int start, int end) throws IOException {
+        ArrayList<Object> list = new ArrayList<>();
+        int pos = start;
+
+        while (pos < end) {
+            if (end - pos < FIELD_HEADER_LENGTH) {
+                throw new IOException("Truncated list entry header, position " + pos + ", end " + end);
+            }
+            byte type = buf.get(pos);
+            int nameLength = buf.get(pos + 1) & 0xFF;
+            long dataLength = readUInt32(buf, pos + 2);
+            // List entries have no name, skip it in case the server sent one anyway
+            pos += FIELD_HEADER_LENGTH + nameLength;
+
+            if (pos + dataLength > end) {
+                throw new IOException("Buffer limit exceeded, end " + end + ", datalen " + dataLength);
+            }
+
+            int dataEnd = pos + (int) dataLength;
+            switch (type) {
+                case HMF_S64:
+                    list.add(readS64(buf, pos, (int) dataLength));
+                    break;
+                case HMF_STR:
+                    list.add(readString(buf, pos, (int) dataLength));
+                    break;
+                case HMF_BIN:
+                    list.add(readBytes(buf, pos, (int) dataLength));
+                    break;
+                case HMF_MAP:
+                    list.add(decode(buf, pos, dataEnd));
+                    break;
+                case HMF_LIST:
+                    list.add(decodeList(buf, pos, dataEnd));
+                    break;
+                default:
+                    throw new IOException("Unknown data type " + type);
+            }
+            pos = dataEnd;
+        }
+        return list;
+    }
+
+    /**
+     * Writes the message including the length prefix at the current position of
+     * the buffer. If the message does not fit, a {@link BufferOverflowException}
+     * is thrown and the caller must reset the position of the buffer.
+     */
+    static void encode(HtspMessage msg, ByteBuffer out) throws IOException {
+        int start = out.position();
+        out.putInt(0);
+        encodeMap(msg, out);
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    private static void encodeMap(Map<?, ?> map, ByteBuffer out) throws IOException {
+        if (!(map instanceof HtspMessage)) {
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                encodeField(entry.getKey().toString(), entry.getValue(), out);
+            }
+        } else {
+            // The S64 fields of a received message are not part of its map entries
+            HtspMessage msg = (HtspMessage) map;
+            for (Map.Entry<String, Object> entry : msg.getMapEntries()) {
+                encodeField(entry.getKey(), entry.getValue(), out);
+            }
+            for (int i = 0; i < msg.getLongFieldCount(); i++) {
+                int lengthPosition = encodeFieldHeader(HMF_S64, msg.getLongFieldName(i), out);
+                int dataStart = out.position();
+                encodeS64(msg.getLongFieldValue(i), out);
+                out.putInt(lengthPosition, out.position() - dataStart);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void encodeField(String name, Object value, ByteBuffer out) throws IOException {
+        byte type;
+        if (value instanceof String) {
+            type = HMF_STR;
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof BigInteger || value instanceof Boolean) {
+            type = HMF_S64;
+        } else if (value instanceof byte[]) {
+            type = HMF_BIN;
+        } else if (value instanceof Map) {
+            type = HMF_MAP;
+        } else if (value instanceof Collection) {
+            type = HMF_LIST;
+        } else if (value == null) {
+            throw new IOException("HTSP doesn't support null values");
+        } else {
+            throw new IOException("Unhandled class for " + name + ": " + value
+                    + " (" + value.getClass().getSimpleName() + ")");
+        }
+
+        int lengthPosition = encodeFieldHeader(type, name, out);
+        int dataStart = out.position();
+        switch (type) {
+            case HMF_STR:
+                out.put(((String) value).getBytes(UTF_8));
+                break;
+            case HMF_S64:
+                if (value instanceof Boolean) {
+                    encodeS64((Boolean) value ? 1 : 0, out);
+                } else {
+                    encodeS64(((Number) value).longValue(), out);
+                }
+                break;
+            case HMF_BIN:
+                out.put((byte[]) value);
+                break;
+            case HMF_MAP:
+                encodeMap((Map<String, Object>) value, out);
+                break;
+            default:
+                for (Object item : (Collection<?>) value) {
+                    encodeField("", item, out);
+                }
+                break;
+        }
+        out.putInt(lengthPosition, out.position() - dataStart);
+    }
+
+    /**
+     * Writes the type, a placeholder for the data length and the name of the field.
+     *
+     * @return The position of the data length that must be filled in after the data was written
+     */
+    private static int encodeFieldHeader(byte type, String name, ByteBuffer out) {
+        byte[] bName = name.getBytes(UTF_8);
+        out.put(type);
+        out.put((byte) (bName.length & 0xFF));
+        int lengthPosition = out.position();
+        out.putInt(0);
+        out.put(bName);
+        return lengthPosition;
+    }
+
+    /**
+     * Writes the value with the least significant byte first and without the
+     * leading zero bytes. Negative values need all eight bytes to keep the sign.
+     */
+    private static void encodeS64(long value, ByteBuffer out) {
+        int length = 8;
+        if (value >= 0) {
+            length = 0;
+            for (long v = value; v != 0; v >>>= 8) {
+                length++;
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            out.put((byte) (value >>> (8 * i)));
+        }
+    }
+
+    /**
+     * The server stores signed 64 bit values with the least significant byte first
+     * and omits the leading zero bytes. Negative values always use all eight bytes.
+     */
+    private static long readS64(ByteBuffer buf, int pos, int length) throws IOException {
+        if (length > 8) {
+            throw new IOException("S64 value is too long, length " + length);
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value |= (buf.get(pos + i) & 0xFFL) << (8 * i);
+        }
+        return value;
+    }
+
+    static long readUInt32(ByteBuffer buf, int pos) {
+        return ((buf.get(pos) & 0xFFL) << 24)
+                | ((buf.get(pos + 1) & 0xFFL) << 16)
+                | ((buf.get(pos + 2) & 0xFFL) << 8)
+                | (buf.get(pos + 3) & 0xFFL);
+    }
+
+    private String readString(ByteBuffer buf, int pos, int length) {
+        if (length == 0) {
+            return "";
+        }
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + pos, length, UTF_8);
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buf.get(pos + i);
+        }
+        return new String(scratch, 0, length, UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer buf, int pos, int length) {
+        byte[] data = new byte[length];
+        ByteBuffer view = buf.duplicate();
+        view.limit(pos + length);
+        view.position(pos);
+        view.get(data);
+        return data;
+    }
+
+    /**
+     * Small open addressing cache that maps the raw bytes of a field name to its
+     * interned string. Interning the names keeps the lookups in the message cheap
+     * because the callers use string literals as keys.
+     */
+    private static class FieldNameCache {
+
+        static final int MAX_LENGTH = 64;
+        private static final int SIZE = 512;
+        private static final int MASK = SIZE - 1;
+        private static final int MAX_PROBES = 4;
+
+        private final byte[][] keys = new byte[SIZE][];
+        private final String[] values = new String[SIZE];
+
+        String get(ByteBuffer buf, int pos, int length) {
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + buf.get(pos + i);
+            }
+            hash ^= (hash >>> 16);
+
+            if (length <= MAX_LENGTH) {
+                for (int probe = 0; probe < MAX_PROBES; probe++) {
+                    int slot = (hash + probe) & MASK;
+                    byte[] key = keys[slot];
+                    if (key == null) {
+                        return add(slot, buf, pos, length);
+                    }
+                    if (matches(key, buf, pos, length)) {
+                        return values[slot];
+                    }
+                }
+            }
+
+            // The slots are taken by other names or the name is too
+            // long to be cached, replace the entry in the first slot
+            byte[] bytes = copy(buf, pos, length);
+            String name = new String(bytes, UTF_8).intern();
+            if (length <= MAX_LENGTH) {
+                int slot = hash & MASK;
+                keys[slot] = bytes;
+                values[slot] = name;
+            }
+            return name;
+        }
+
+        private String add(int slot, ByteBuffer buf, int pos, int length) {
+            byte[] bytes = copy(buf, pos, length);
+            String name = new String(bytes, UTF_8).intern();
+            keys[slot] = bytes;
+            values[slot] = name;
+            return name;
+        }
+
+        private static boolean matches(byte[] key, ByteBuffer buf, int pos, int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key[i] != buf.get(pos + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static byte[] copy(ByteBuffer buf, int pos, int length) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buf.get(pos + i);
+            }
+            return bytes;
+        }
+    }
+}
@@ -3,7 +3,9 @@ package org.tvheadend.tvhclient.di.modules;
 import android.content.Context;
 
 import org.tvheadend.tvhclient.data.db.AppRoomDatabase;
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor;
 import org.tvheadend.tvhclient.data.repository.AppRepository;
+import org.tvheadend.tvhclient.domain.repository.data_source.ActiveConnection;
 import org.tvheadend.tvhclient.domain.repository.data_source.ChannelData;
 import org.tvheadend.tvhclient.domain.repository.data_source.ChannelTagData;
 import org.tvheadend.tvhclient.domain.repository.data_source.ConnectionData;
@@ -41,18 +43,34 @@ public class RepositoryModule {
     @Singleton
     @NonNull
     @Provides
-    AppRepository providesAppRepository(AppRoomDatabase db, Context context) {
+    DatabaseExecutor providesDatabaseExecutor() {
+        return new DatabaseExecutor(DatabaseExecutor.DEFAULT_READER_COUNT);
+    }
+
+    @Singleton
+    @NonNull
+    @Provides
+    ActiveConnection providesActiveConnection(AppRoomDatabase db, DatabaseExecutor executor) {
+        return new ActiveConnection(db, executor);
+    }
+
+    @Singleton
+    @NonNull
+    @Provides
+    AppRepository providesAppRepository(AppRoomDatabase db, DatabaseExecutor executor, ActiveConnection activeConnection, Context context) {
+        ChannelData channelData = new ChannelData(db, executor, activeConnection);
         return new AppRepository(
-                new ChannelData(db),
-                new ProgramData(db),
-                new RecordingData(db),
-                new SeriesRecordingData(db),
-                new TimerRecordingData(db),
-                new ConnectionData(db),
-                new ChannelTagData(db),
-                new ServerStatusData(db),
-                new ServerProfileData(db),
-                new TagAndChannelData(db),
-                new MiscData(db));
+                channelData,
+                new ProgramData(db, executor, activeConnection, channelData),
+                new RecordingData(db, executor, activeConnection),
+                new SeriesRecordingData(db, executor, activeConnection),
+                new TimerRecordingData(db, executor, activeConnection),
+                new ConnectionData(db, executor, activeConnection),
+                new ChannelTagData(db, executor, activeConnection),
+                new ServerStatusData(db, executor, activeConnection),
+                new ServerProfileData(db, executor),
+                new TagAndChannelData(db, executor, activeConnection),
+                new MiscData(db, executor, activeConnection),
+                executor);
     }
 }
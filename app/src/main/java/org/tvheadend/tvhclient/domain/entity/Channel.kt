@@ -3,9 +3,10 @@ package org.tvheadend.tvhclient.domain.entity
 import androidx.room.ColumnInfo
 import androidx.room.Entity
 import androidx.room.Ignore
+import androidx.room.Index
 import java.util.*
 
-@Entity(tableName = "channels", primaryKeys = ["id", "connection_id"])
+@Entity(tableName = "channels", primaryKeys = ["id", "connection_id"], indices = [Index(value = ["connection_id"])])
 data class Channel(
 
         @ColumnInfo(name = "id")
@@ -47,6 +48,9 @@ data class Channel(
         var displayNumber: String? = null,
         @ColumnInfo(name = "server_order")
         var serverOrder: Int = 0,
+        // Stop time in milliseconds of the last event of this channel in the database
+        @ColumnInfo(name = "event_sync_time")
+        var eventSyncTime: Long = 0,
 
         @Ignore
         var tags: List<Int>? = null,
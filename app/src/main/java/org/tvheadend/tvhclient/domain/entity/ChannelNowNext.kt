@@ -0,0 +1,35 @@
+package org.tvheadend.tvhclient.domain.entity
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+
+/**
+ * The current and the next program of a channel. The rows are maintained by
+ * database triggers when programs are saved or removed and are moved forward
+ * when the current program has ended. The program columns are null when the
+ * channel has no current program.
+ */
+@Entity(tableName = "channel_now_next", primaryKeys = ["connection_id", "channel_id"])
+data class ChannelNowNext(
+
+        @ColumnInfo(name = "connection_id")
+        var connectionId: Int = 0,
+        @ColumnInfo(name = "channel_id")
+        var channelId: Int = 0,
+        @ColumnInfo(name = "program_id")
+        var programId: Int? = null,
+        @ColumnInfo(name = "program_title")
+        var programTitle: String? = null,
+        @ColumnInfo(name = "program_subtitle")
+        var programSubtitle: String? = null,
+        @ColumnInfo(name = "program_start")
+        var programStart: Long? = null,
+        @ColumnInfo(name = "program_stop")
+        var programStop: Long? = null,
+        @ColumnInfo(name = "program_content_type")
+        var programContentType: Int? = null,
+        @ColumnInfo(name = "next_program_id")
+        var nextProgramId: Int? = null,
+        @ColumnInfo(name = "next_program_title")
+        var nextProgramTitle: String? = null
+)
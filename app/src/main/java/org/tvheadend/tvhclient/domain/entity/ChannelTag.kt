@@ -3,8 +3,9 @@ package org.tvheadend.tvhclient.domain.entity
 import androidx.room.ColumnInfo
 import androidx.room.Entity
 import androidx.room.Ignore
+import androidx.room.Index
 
-@Entity(tableName = "channel_tags", primaryKeys = ["id", "connection_id"])
+@Entity(tableName = "channel_tags", primaryKeys = ["id", "connection_id"], indices = [Index(value = ["connection_id", "tag_name"])])
 data class ChannelTag(
 
         @ColumnInfo(name = "id")
@@ -7,7 +7,7 @@ import androidx.room.Index
 import androidx.room.PrimaryKey
 import java.util.regex.Pattern
 
-@Entity(tableName = "connections", indices = [Index(value = ["id"], unique = true)])
+@Entity(tableName = "connections", indices = [Index(value = ["id"], unique = true), Index(value = ["active"])])
 data class Connection(
 
         @PrimaryKey(autoGenerate = true)
@@ -32,7 +32,10 @@ data class Connection(
         @ColumnInfo(name = "last_update")
         var lastUpdate: Long = 0,
         @ColumnInfo(name = "sync_required")
-        var isSyncRequired: Boolean = true
+        var isSyncRequired: Boolean = true,
+        // Time in seconds at which the events have been completely received from the server
+        @ColumnInfo(name = "event_sync_time")
+        var eventSyncTime: Long = 0
 ) {
 
     fun isWolMacAddressValid(macAddress: String): Boolean {
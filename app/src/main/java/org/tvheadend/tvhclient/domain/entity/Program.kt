@@ -6,7 +6,7 @@ import androidx.room.Ignore
 import androidx.room.Index
 import java.util.*
 
-@Entity(tableName = "programs", primaryKeys = ["id", "connection_id"], indices = [Index(value = ["start"]), Index(value = ["channel_id"])])
+@Entity(tableName = "programs", primaryKeys = ["id", "connection_id"], indices = [Index(value = ["start"]), Index(value = ["connection_id", "start"]), Index(value = ["connection_id", "channel_id", "start", "stop"])])
 data class Program(
 
         @ColumnInfo(name = "id")
@@ -3,10 +3,11 @@ package org.tvheadend.tvhclient.domain.entity
 import androidx.room.ColumnInfo
 import androidx.room.Entity
 import androidx.room.Ignore
+import androidx.room.Index
 import org.tvheadend.tvhclient.util.isEqualTo
 import java.util.*
 
-@Entity(tableName = "recordings", primaryKeys = ["id", "connection_id"])
+@Entity(tableName = "recordings", primaryKeys = ["id", "connection_id"], indices = [Index(value = ["connection_id", "start"]), Index(value = ["connection_id", "channel_id"]), Index(value = ["connection_id", "event_id"])])
 data class Recording(
 
         @Ignore
@@ -2,9 +2,10 @@ package org.tvheadend.tvhclient.domain.entity
 
 import androidx.room.ColumnInfo
 import androidx.room.Entity
+import androidx.room.Index
 import java.util.*
 
-@Entity(tableName = "series_recordings", primaryKeys = ["id", "connection_id"])
+@Entity(tableName = "series_recordings", primaryKeys = ["id", "connection_id"], indices = [Index(value = ["connection_id"])])
 data class SeriesRecording(
 
         var id: String = "",                    // str   required   ID (string!) of dvrAutorecEntry.
@@ -5,7 +5,7 @@ import androidx.room.Entity
 import androidx.room.Index
 import androidx.room.PrimaryKey
 
-@Entity(tableName = "server_profiles", indices = [Index(value = ["id"], unique = true)])
+@Entity(tableName = "server_profiles", indices = [Index(value = ["id"], unique = true), Index(value = ["type"]), Index(value = ["uuid"])])
 data class ServerProfile(
 
         @PrimaryKey(autoGenerate = true)
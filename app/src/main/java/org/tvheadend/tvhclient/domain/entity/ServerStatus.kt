@@ -5,7 +5,7 @@ import androidx.room.Entity
 import androidx.room.Index
 import androidx.room.PrimaryKey
 
-@Entity(tableName = "server_status", indices = [Index(value = ["id", "connection_id"], unique = true)])
+@Entity(tableName = "server_status", indices = [Index(value = ["id", "connection_id"], unique = true), Index(value = ["connection_id"])])
 data class ServerStatus(
 
         @PrimaryKey(autoGenerate = true)
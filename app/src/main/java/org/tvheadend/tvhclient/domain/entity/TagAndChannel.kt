@@ -2,8 +2,9 @@ package org.tvheadend.tvhclient.domain.entity
 
 import androidx.room.ColumnInfo
 import androidx.room.Entity
+import androidx.room.Index
 
-@Entity(tableName = "tags_and_channels", primaryKeys = ["tag_id", "channel_id", "connection_id"])
+@Entity(tableName = "tags_and_channels", primaryKeys = ["tag_id", "channel_id", "connection_id"], indices = [Index(value = ["connection_id", "tag_id", "channel_id"])])
 data class TagAndChannel(
 
         @ColumnInfo(name = "tag_id")
@@ -1,5 +1,6 @@
 package org.tvheadend.tvhclient.domain.repository
 
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
 import org.tvheadend.tvhclient.domain.repository.data_source.*
 
 interface RepositoryInterface {
@@ -25,4 +26,9 @@ interface RepositoryInterface {
     val tagAndChannelData: TagAndChannelData
 
     val miscData: MiscData
+
+    /**
+     * Runs reads that combine several data sources without blocking the caller
+     */
+    val databaseExecutor: DatabaseExecutor
 }
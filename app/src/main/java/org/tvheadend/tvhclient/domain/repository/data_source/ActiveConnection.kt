@@ -0,0 +1,68 @@
+package org.tvheadend.tvhclient.domain.repository.data_source
+
+import androidx.lifecycle.LiveData
+import androidx.lifecycle.MutableLiveData
+import org.tvheadend.tvhclient.data.db.AppRoomDatabase
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
+import org.tvheadend.tvhclient.domain.entity.Connection
+
+/**
+ * Keeps the active connection in memory. The data sources pass its id to the
+ * queries, so that the database does not need to look up the active connection
+ * for every statement and callers get the connection without a database read.
+ *
+ * The connection is loaded when it is used for the first time and loaded again
+ * only when the connection data source changed the active connection.
+ */
+class ActiveConnection(private val db: AppRoomDatabase, private val executor: DatabaseExecutor) {
+
+    @Volatile
+    private var connection: Connection? = null
+    private val liveDataConnection = MutableLiveData<Connection>()
+
+    /**
+     * The active connection, which is published again whenever it changes
+     */
+    val liveData: LiveData<Connection>
+        get() {
+            if (connection == null) {
+                executor.read { item }
+            }
+            return liveDataConnection
+        }
+
+    /**
+     * Returns a copy of the active connection or a connection with the id -1 if no
+     * connection is active. The first call must not be made from the main thread.
+     */
+    val item: Connection
+        get() = (connection ?: load()).copy()
+
+    /**
+     * The id of the active connection or -1 if no connection is active
+     */
+    val id: Int
+        get() = (connection ?: load()).id
+
+    /**
+     * Loads the active connection again. Must be called from the database
+     * writer thread after the active connection has been changed.
+     */
+    @Synchronized
+    fun reload() {
+        connection = null
+        load()
+    }
+
+    @Synchronized
+    private fun load(): Connection {
+        connection?.let { return it }
+        // Query on the calling thread, the reader threads also use the id and
+        // would wait for this lock while it waits for one of them to be free
+        val activeConnection: Connection? = db.connectionDao.loadActiveConnectionSync()
+        val loadedConnection = activeConnection ?: Connection().also { it.id = -1 }
+        connection = loadedConnection
+        liveDataConnection.postValue(loadedConnection)
+        return loadedConnection
+    }
+}
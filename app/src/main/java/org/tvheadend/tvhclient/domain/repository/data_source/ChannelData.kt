@@ -1,52 +1,58 @@
 package org.tvheadend.tvhclient.domain.repository.data_source
 
-import android.os.AsyncTask
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import org.tvheadend.tvhclient.data.db.AppRoomDatabase
+import org.tvheadend.tvhclient.data.db.ChannelNowNextHelper
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
 import org.tvheadend.tvhclient.domain.entity.Channel
 import org.tvheadend.tvhclient.domain.entity.EpgChannel
 import timber.log.Timber
 import java.util.*
-import java.util.concurrent.ExecutionException
+import java.util.concurrent.Callable
+import java.util.concurrent.Future
 
-class ChannelData(private val db: AppRoomDatabase) : DataSourceInterface<Channel> {
+class ChannelData(private val db: AppRoomDatabase, private val executor: DatabaseExecutor, private val activeConnection: ActiveConnection) : DataSourceInterface<Channel> {
 
-    val itemCount: Int
-        get() {
-            try {
-                return ChannelCountTask(db).execute().get()
-            } catch (e: InterruptedException) {
-                Timber.d(e, "Loading channel count task got interrupted")
-            } catch (e: ExecutionException) {
-                Timber.d(e, "Loading channel count task aborted")
-            }
+    // The time range for which the channel_now_next table was last updated,
+    // null if it is unknown or programs have changed since the update
+    @Volatile
+    private var nowAndNextWindow: NowAndNextWindow? = null
 
-            return 0
-        }
+    val itemCount: Int
+        get() = executor.readSync("channel count", 0) { db.channelDao.getItemCountSync(activeConnection.id) }
 
     override fun addItem(item: Channel) {
-        AsyncTask.execute { db.channelDao.insert(item) }
+        executor.write { db.channelDao.insert(item) }
     }
 
     fun addItems(items: List<Channel>) {
-        AsyncTask.execute { db.channelDao.insert(ArrayList(items)) }
+        val channels = ArrayList(items)
+        executor.write { db.channelDao.insert(channels) }
+    }
+
+    /**
+     * Stores the stop time of the last event of each channel as its
+     * event sync time. Must not be called from the main thread.
+     */
+    fun updateEventSyncTimesSync() {
+        executor.writeSync("channel event sync times") { db.channelDao.updateEventSyncTimes(activeConnection.id) }
     }
 
     override fun updateItem(item: Channel) {
-        AsyncTask.execute { db.channelDao.update(item) }
+        executor.write { db.channelDao.update(item) }
     }
 
     override fun removeItem(item: Channel) {
-        AsyncTask.execute { db.channelDao.delete(item) }
+        executor.write { db.channelDao.delete(item) }
     }
 
     fun removeItemById(id: Int) {
-        AsyncTask.execute { db.channelDao.deleteById(id) }
+        executor.write { db.channelDao.deleteById(activeConnection.id, id) }
     }
 
     override fun getLiveDataItemCount(): LiveData<Int> {
-        return db.channelDao.itemCount
+        return db.channelDao.getItemCount(activeConnection.id)
     }
 
     override fun getLiveDataItems(): LiveData<List<Channel>> {
@@ -58,101 +64,104 @@ class ChannelData(private val db: AppRoomDatabase) : DataSourceInterface<Channel
     }
 
     override fun getItemById(id: Any): Channel? {
-        try {
-            return ChannelByIdTask(db, id as Int).execute().get()
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading channel by id task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading channel by id task aborted")
-        }
+        return executor.readSync("channel by id", null) { db.channelDao.loadChannelByIdSync(activeConnection.id, id as Int) }
+    }
 
-        return null
+    override fun getItemByIdAsync(id: Any): Future<Channel?> {
+        return executor.read<Channel?> { db.channelDao.loadChannelByIdSync(activeConnection.id, id as Int) }
     }
 
     fun getChannels(sortOrder: Int = 0): List<Channel> {
-        val channels = ArrayList<Channel>()
-        try {
-            channels.addAll(ChannelListTask(db, sortOrder).execute().get())
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading all channels task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading all channels task aborted")
-        }
-
-        return channels
+        return executor.readSync("all channels", ArrayList()) { db.channelDao.loadAllChannelsSync(activeConnection.id, sortOrder) }
     }
 
     override fun getItems(): List<Channel> {
         return getChannels()
     }
 
-    fun getItemByIdWithPrograms(id: Int, selectedTime: Long): Channel? {
-        try {
-            return ChannelByIdTask(db, id, selectedTime).execute().get()
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading channel by id task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading channel by id task aborted")
+    override fun getItemsAsync(): Future<List<Channel>> {
+        return executor.read { db.channelDao.loadAllChannelsSync(activeConnection.id, 0) }
+    }
+
+    /**
+     * Returns the ids of the channels in the given sort order. If tag ids are
+     * given only the ids of the channels that belong to one of the tags are returned.
+     */
+    fun getChannelIds(sortOrder: Int, tagIds: List<Int>): List<Int> {
+        return executor.readSync("channel ids", ArrayList()) {
+            if (tagIds.isEmpty()) {
+                db.channelDao.loadAllChannelIdsSync(activeConnection.id, sortOrder)
+            } else {
+                db.channelDao.loadAllChannelIdsByTagSync(activeConnection.id, sortOrder, tagIds)
+            }
         }
+    }
 
-        return null
+    fun getItemByIdWithPrograms(id: Int, selectedTime: Long): Channel? {
+        return executor.readSync("channel by id with programs", null) { db.channelDao.loadChannelByIdWithProgramsSync(activeConnection.id, id, selectedTime) }
     }
 
     fun getAllEpgChannels(channelSortOrder: Int, tagIds: List<Int>): LiveData<List<EpgChannel>> {
         Timber.d("Loading epg channels with sort order $channelSortOrder and ${tagIds.size} tags")
         return if (tagIds.isEmpty()) {
-            db.channelDao.loadAllEpgChannels(channelSortOrder)
+            db.channelDao.loadAllEpgChannels(activeConnection.id, channelSortOrder)
         } else {
-            db.channelDao.loadAllEpgChannelsByTag(channelSortOrder, tagIds)
+            db.channelDao.loadAllEpgChannelsByTag(activeConnection.id, channelSortOrder, tagIds)
         }
     }
 
+    /**
+     * Moves the current and next program of the channels forward to the given time and
+     * passes the time of the next program change or 0 to the callback on the main thread
+     */
+    fun updateNowAndNext(time: Long, callback: (Long) -> Unit) {
+        executor.write({
+            db.runInTransaction(Callable<Long> {
+                ChannelNowNextHelper.update(db.openHelper.writableDatabase, time)
+
+                // No program starts or ends between these times, so the
+                // table contains the programs of any time in between
+                val nextChangeTime = db.channelDao.loadNextProgramChangeTimeSync(time) ?: 0
+                val startTime = db.channelDao.loadLastProgramChangeTimeSync(time) ?: time
+                val stopTime = if (nextChangeTime > time) nextChangeTime else Long.MAX_VALUE
+                nowAndNextWindow = NowAndNextWindow(startTime, stopTime)
+                nextChangeTime
+            })
+        }, callback)
+    }
+
+    /**
+     * Forgets the time range of the last update of the channel_now_next table.
+     * Must be called on the writer thread after programs were saved or removed,
+     * because the triggers update the table for the time of the write and the
+     * programs can start or end anywhere in the range.
+     */
+    fun invalidateNowAndNext() {
+        nowAndNextWindow = null
+    }
+
+    /**
+     * Returns the channels with the programs that run at the selected time. The
+     * programs are read from the channel_now_next table if the selected time lies
+     * between the program changes around its last update. Any other time, including
+     * one in the past, needs to search the programs of each channel.
+     */
     fun getAllChannelsByTime(selectedTime: Long, channelSortOrder: Int, tagIds: List<Int>): LiveData<List<Channel>> {
         Timber.d("Loading channels from time $selectedTime with sort order $channelSortOrder and ${tagIds.size} tags")
-        return if (tagIds.isEmpty()) {
-            db.channelDao.loadAllChannelsByTime(selectedTime, channelSortOrder)
-        } else {
-            db.channelDao.loadAllChannelsByTimeAndTag(selectedTime, channelSortOrder, tagIds)
-        }
-    }
-
-    private class ChannelByIdTask : AsyncTask<Void, Void, Channel> {
-        private val db: AppRoomDatabase
-        private val id: Int
-        private val selectedTime: Long
-
-        internal constructor(db: AppRoomDatabase, id: Int) {
-            this.db = db
-            this.id = id
-            this.selectedTime = 0
-        }
-
-        internal constructor(db: AppRoomDatabase, id: Int, selectedTime: Long) {
-            this.db = db
-            this.id = id
-            this.selectedTime = selectedTime
-        }
-
-        override fun doInBackground(vararg voids: Void): Channel {
-            return if (selectedTime > 0) {
-                db.channelDao.loadChannelByIdWithProgramsSync(id, selectedTime)
+        val window = nowAndNextWindow
+        if (window != null && selectedTime >= window.startTime && selectedTime < window.stopTime) {
+            return if (tagIds.isEmpty()) {
+                db.channelDao.loadAllChannelsWithNowAndNext(activeConnection.id, channelSortOrder)
             } else {
-                db.channelDao.loadChannelByIdSync(id)
+                db.channelDao.loadAllChannelsWithNowAndNextByTag(activeConnection.id, channelSortOrder, tagIds)
             }
         }
-    }
-
-    private class ChannelListTask internal constructor(private val db: AppRoomDatabase, private val sortOrder: Int) : AsyncTask<Void, Void, List<Channel>>() {
-
-        override fun doInBackground(vararg voids: Void): List<Channel> {
-            return db.channelDao.loadAllChannelsSync(sortOrder)
+        return if (tagIds.isEmpty()) {
+            db.channelDao.loadAllChannelsByTime(activeConnection.id, selectedTime, channelSortOrder)
+        } else {
+            db.channelDao.loadAllChannelsByTimeAndTag(activeConnection.id, selectedTime, channelSortOrder, tagIds)
         }
     }
 
-    private class ChannelCountTask internal constructor(private val db: AppRoomDatabase) : AsyncTask<Void, Void, Int>() {
-
-        override fun doInBackground(vararg voids: Void): Int {
-            return db.channelDao.itemCountSync
-        }
-    }
+    private class NowAndNextWindow(val startTime: Long, val stopTime: Long)
 }
@@ -1,51 +1,44 @@
 package org.tvheadend.tvhclient.domain.repository.data_source
 
-import android.os.AsyncTask
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import org.tvheadend.tvhclient.data.db.AppRoomDatabase
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
 import org.tvheadend.tvhclient.domain.entity.ChannelTag
-import timber.log.Timber
 import java.util.*
-import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 
-class ChannelTagData(private val db: AppRoomDatabase) : DataSourceInterface<ChannelTag> {
+class ChannelTagData(private val db: AppRoomDatabase, private val executor: DatabaseExecutor, private val activeConnection: ActiveConnection) : DataSourceInterface<ChannelTag> {
 
     val liveDataSelectedItemIds: LiveData<List<Int>?>
-        get() = db.channelTagDao.loadAllSelectedItemIds()
+        get() = db.channelTagDao.loadAllSelectedItemIds(activeConnection.id)
 
-    val itemCount: Int
-        get() {
-            try {
-                return ChannelTagCountTask(db).execute().get()
-            } catch (e: InterruptedException) {
-                Timber.d(e, "Loading channel tag count task got interrupted")
-            } catch (e: ExecutionException) {
-                Timber.d(e, "Loading channel tag count task aborted")
-            }
+    val selectedItemIds: List<Int>
+        get() = executor.readSync("selected channel tag ids", ArrayList()) { db.channelTagDao.loadAllSelectedItemIdsSync(activeConnection.id) }
 
-            return 0
-        }
+    val itemCount: Int
+        get() = executor.readSync("channel tag count", 0) { db.channelTagDao.getItemCountSync(activeConnection.id) }
 
     override fun addItem(item: ChannelTag) {
-        AsyncTask.execute { db.channelTagDao.insert(item) }
+        executor.write { db.channelTagDao.insert(item) }
     }
 
     fun addItems(items: List<ChannelTag>) {
-        AsyncTask.execute { db.channelTagDao.insert(ArrayList(items)) }
+        val channelTags = ArrayList(items)
+        executor.write { db.channelTagDao.insert(channelTags) }
     }
 
     override fun updateItem(item: ChannelTag) {
-        AsyncTask.execute { db.channelTagDao.update(item) }
+        executor.write { db.channelTagDao.update(item) }
     }
 
     override fun removeItem(item: ChannelTag) {
-        AsyncTask.execute { db.channelTagDao.delete(item) }
+        executor.write { db.channelTagDao.delete(item) }
     }
 
     fun updateSelectedChannelTags(ids: Set<Int>) {
-        AsyncTask.execute {
-            val channelTags = db.channelTagDao.loadAllChannelTagsSync()
+        executor.write {
+            val channelTags = db.channelTagDao.loadAllChannelTagsSync(activeConnection.id)
             for (channelTag in channelTags) {
                 channelTag.isSelected = false
                 if (ids.contains(channelTag.tagId)) {
@@ -62,7 +55,7 @@ class ChannelTagData(private val db: AppRoomDatabase) : DataSourceInterface<Chan
     }
 
     override fun getLiveDataItems(): LiveData<List<ChannelTag>> {
-        return db.channelTagDao.loadAllChannelTags()
+        return db.channelTagDao.loadAllChannelTags(activeConnection.id)
     }
 
     override fun getLiveDataItemById(id: Any): LiveData<ChannelTag> {
@@ -70,48 +63,18 @@ class ChannelTagData(private val db: AppRoomDatabase) : DataSourceInterface<Chan
     }
 
     override fun getItemById(id: Any): ChannelTag? {
-        try {
-            return ChannelTagByIdTask(db, id as Int).execute().get()
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading channel tag by id task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading channel tag by id task aborted")
-        }
-
-        return null
-    }
-
-    override fun getItems(): List<ChannelTag> {
-        var channelTags: List<ChannelTag> = ArrayList()
-        try {
-            channelTags = ChannelTagListTask(db).execute().get()
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading all channel tags task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading all channel tags task aborted")
-        }
-
-        return channelTags
+        return executor.readSync("channel tag by id", null) { db.channelTagDao.loadChannelTagByIdSync(activeConnection.id, id as Int) }
     }
 
-    private class ChannelTagListTask internal constructor(private val db: AppRoomDatabase) : AsyncTask<Void, Void, List<ChannelTag>>() {
-
-        override fun doInBackground(vararg voids: Void): List<ChannelTag> {
-            return db.channelTagDao.loadAllChannelTagsSync()
-        }
+    override fun getItemByIdAsync(id: Any): Future<ChannelTag?> {
+        return executor.read<ChannelTag?> { db.channelTagDao.loadChannelTagByIdSync(activeConnection.id, id as Int) }
     }
 
-    private class ChannelTagCountTask internal constructor(private val db: AppRoomDatabase) : AsyncTask<Void, Void, Int>() {
-
-        override fun doInBackground(vararg voids: Void): Int? {
-            return db.channelTagDao.itemCountSync
-        }
+    override fun getItems(): List<ChannelTag> {
+        return executor.readSync("all channel tags", ArrayList()) { db.channelTagDao.loadAllChannelTagsSync(activeConnection.id) }
     }
 
-    private class ChannelTagByIdTask internal constructor(private val db: AppRoomDatabase, private val id: Int) : AsyncTask<Void, Void, ChannelTag>() {
-
-        override fun doInBackground(vararg voids: Void): ChannelTag {
-            return db.channelTagDao.loadChannelTagByIdSync(id)
-        }
+    override fun getItemsAsync(): Future<List<ChannelTag>> {
+        return executor.read { db.channelTagDao.loadAllChannelTagsSync(activeConnection.id) }
     }
 }
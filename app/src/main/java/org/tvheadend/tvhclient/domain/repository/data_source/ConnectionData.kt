@@ -1,36 +1,26 @@
 package org.tvheadend.tvhclient.domain.repository.data_source
 
-import android.os.AsyncTask
 import androidx.lifecycle.LiveData
 import org.tvheadend.tvhclient.data.db.AppRoomDatabase
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
 import org.tvheadend.tvhclient.domain.entity.Connection
 import org.tvheadend.tvhclient.domain.entity.ServerStatus
-import timber.log.Timber
 import java.util.*
-import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 
-class ConnectionData(private val db: AppRoomDatabase) : DataSourceInterface<Connection> {
+class ConnectionData(private val db: AppRoomDatabase, private val executor: DatabaseExecutor, private val activeConnection: ActiveConnection) : DataSourceInterface<Connection> {
 
     val activeItem: Connection
-        get() {
-            try {
-                return ConnectionByIdTask(db).execute().get() ?: Connection().also { it.id = -1 }
-            } catch (e: InterruptedException) {
-                Timber.d(e, "Loading active connection task got interrupted")
-            } catch (e: ExecutionException) {
-                Timber.d(e, "Loading active connection task aborted")
-            }
-            return Connection().also { it.id = -1 }
-        }
+        get() = activeConnection.item
 
     val activeItemId: Int
-        get() {
-            val connection = activeItem
-            return connection.id
-        }
+        get() = activeConnection.id
+
+    val liveDataActiveItem: LiveData<Connection>
+        get() = activeConnection.liveData
 
     override fun addItem(item: Connection) {
-        AsyncTask.execute {
+        executor.write {
             if (item.isActive) {
                 db.connectionDao.disableActiveConnection()
             }
@@ -40,22 +30,32 @@ class ConnectionData(private val db: AppRoomDatabase) : DataSourceInterface<Conn
             val serverStatus = ServerStatus()
             serverStatus.connectionId = newId.toInt()
             db.serverStatusDao.insert(serverStatus)
+            if (item.isActive) {
+                activeConnection.reload()
+            }
         }
     }
 
     override fun updateItem(item: Connection) {
-        AsyncTask.execute {
+        executor.write {
             if (item.isActive) {
                 db.connectionDao.disableActiveConnection()
             }
             db.connectionDao.update(item)
+            // Only a change of the active flag or of the active connection itself requires loading it again
+            if (item.isActive || item.id == activeConnection.id) {
+                activeConnection.reload()
+            }
         }
     }
 
     override fun removeItem(item: Connection) {
-        AsyncTask.execute {
+        executor.write {
             db.connectionDao.delete(item)
             db.serverStatusDao.deleteByConnectionId(item.id)
+            if (item.id == activeConnection.id) {
+                activeConnection.reload()
+            }
         }
     }
 
@@ -72,57 +72,18 @@ class ConnectionData(private val db: AppRoomDatabase) : DataSourceInterface<Conn
     }
 
     override fun getItemById(id: Any): Connection? {
-        try {
-            return ConnectionByIdTask(db, id as Int).execute().get()
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading connection by id task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading connection by id task aborted")
-        }
-
-        return null
+        return executor.readSync("connection by id", null) { db.connectionDao.loadConnectionByIdSync(id as Int) }
     }
 
-    override fun getItems(): List<Connection> {
-        val connections = ArrayList<Connection>()
-        try {
-            connections.addAll(ConnectionListTask(db).execute().get())
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading all connections task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading all connections task aborted")
-        }
-
-        return connections
+    override fun getItemByIdAsync(id: Any): Future<Connection?> {
+        return executor.read<Connection?> { db.connectionDao.loadConnectionByIdSync(id as Int) }
     }
 
-    internal class ConnectionByIdTask : AsyncTask<Void, Void, Connection?> {
-        private val db: AppRoomDatabase
-        private val id: Int
-
-        constructor(db: AppRoomDatabase, id: Int) {
-            this.db = db
-            this.id = id
-        }
-
-        constructor(db: AppRoomDatabase) {
-            this.db = db
-            this.id = -1
-        }
-
-        override fun doInBackground(vararg voids: Void): Connection {
-            return if (id < 0) {
-                db.connectionDao.loadActiveConnectionSync()
-            } else {
-                db.connectionDao.loadConnectionByIdSync(id)
-            }
-        }
+    override fun getItems(): List<Connection> {
+        return executor.readSync("all connections", ArrayList()) { db.connectionDao.loadAllConnectionsSync() }
     }
 
-    private class ConnectionListTask internal constructor(private val db: AppRoomDatabase) : AsyncTask<Void, Void, List<Connection>>() {
-
-        override fun doInBackground(vararg voids: Void): List<Connection> {
-            return db.connectionDao.loadAllConnectionsSync()
-        }
+    override fun getItemsAsync(): Future<List<Connection>> {
+        return executor.read { db.connectionDao.loadAllConnectionsSync() }
     }
 }
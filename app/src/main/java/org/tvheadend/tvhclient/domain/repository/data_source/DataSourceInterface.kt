@@ -1,6 +1,7 @@
 package org.tvheadend.tvhclient.domain.repository.data_source
 
 import androidx.lifecycle.LiveData
+import java.util.concurrent.Future
 
 interface DataSourceInterface<T> {
 
@@ -14,6 +15,16 @@ interface DataSourceInterface<T> {
 
     fun getItemById(id: Any): T?
 
+    /**
+     * Loads the items on a reader thread without blocking the caller
+     */
+    fun getItemsAsync(): Future<List<T>>
+
+    /**
+     * Loads the item on a reader thread without blocking the caller
+     */
+    fun getItemByIdAsync(id: Any): Future<T?>
+
     fun addItem(item: T)
 
     fun updateItem(item: T)
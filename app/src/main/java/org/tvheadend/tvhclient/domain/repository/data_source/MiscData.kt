@@ -5,18 +5,19 @@ import android.content.Context
 import android.os.AsyncTask
 import org.tvheadend.tvhclient.R
 import org.tvheadend.tvhclient.data.db.AppRoomDatabase
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
 import org.tvheadend.tvhclient.ui.features.settings.DatabaseClearedCallback
 import timber.log.Timber
 import java.lang.ref.WeakReference
 
-class MiscData(private val db: AppRoomDatabase) {
+class MiscData(private val db: AppRoomDatabase, private val executor: DatabaseExecutor, private val activeConnection: ActiveConnection) {
 
     fun clearDatabase(context: Context, callback: DatabaseClearedCallback) {
         MiscData.callback = WeakReference(callback)
-        ClearDatabaseTask(context, db).execute()
+        ClearDatabaseTask(context, db, executor, activeConnection).execute()
     }
 
-    private class ClearDatabaseTask internal constructor(context: Context, private val db: AppRoomDatabase) : AsyncTask<Void, Void, Void>() {
+    private class ClearDatabaseTask internal constructor(context: Context, private val db: AppRoomDatabase, private val executor: DatabaseExecutor, private val activeConnection: ActiveConnection) : AsyncTask<Void, Void, Void>() {
         private val dialog: ProgressDialog = ProgressDialog(context)
         private val msg: String = context.getString(R.string.deleting_database_contents)
 
@@ -29,27 +30,31 @@ class MiscData(private val db: AppRoomDatabase) {
         override fun doInBackground(vararg voids: Void): Void? {
             Timber.d("Deleting database contents...")
 
-            db.channelDao.deleteAll()
-            db.channelTagDao.deleteAll()
-            db.tagAndChannelDao.deleteAll()
-            db.programDao.deleteAll()
-            db.recordingDao.deleteAll()
-            db.seriesRecordingDao.deleteAll()
-            db.timerRecordingDao.deleteAll()
-            db.serverProfileDao.deleteAll()
+            // Run on the writer so that no other writes are interleaved
+            executor.writeSync("cleared database") {
+                db.channelDao.deleteAll()
+                db.channelTagDao.deleteAll()
+                db.tagAndChannelDao.deleteAll()
+                db.programDao.deleteAll()
+                db.recordingDao.deleteAll()
+                db.seriesRecordingDao.deleteAll()
+                db.timerRecordingDao.deleteAll()
+                db.serverProfileDao.deleteAll()
 
-            // Clear all assigned profiles
-            for (connection in db.connectionDao.loadAllConnectionsSync()) {
-                connection.lastUpdate = 0
-                connection.isSyncRequired = true
-                db.connectionDao.update(connection)
+                // Clear all assigned profiles
+                for (connection in db.connectionDao.loadAllConnectionsSync()) {
+                    connection.lastUpdate = 0
+                    connection.isSyncRequired = true
+                    db.connectionDao.update(connection)
 
-                val serverStatus = db.serverStatusDao.loadServerStatusByIdSync(connection.id)
-                serverStatus.htspPlaybackServerProfileId = 0
-                serverStatus.httpPlaybackServerProfileId = 0
-                serverStatus.castingServerProfileId = 0
-                serverStatus.recordingServerProfileId = 0
-                db.serverStatusDao.update(serverStatus)
+                    val serverStatus = db.serverStatusDao.loadServerStatusByIdSync(connection.id)
+                    serverStatus.htspPlaybackServerProfileId = 0
+                    serverStatus.httpPlaybackServerProfileId = 0
+                    serverStatus.castingServerProfileId = 0
+                    serverStatus.recordingServerProfileId = 0
+                    db.serverStatusDao.update(serverStatus)
+                }
+                activeConnection.reload()
             }
             return null
         }
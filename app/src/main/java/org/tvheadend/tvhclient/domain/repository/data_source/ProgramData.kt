@@ -1,158 +1,216 @@
 package org.tvheadend.tvhclient.domain.repository.data_source
 
-import android.os.AsyncTask
 import androidx.lifecycle.LiveData
+import androidx.paging.DataSource
 import org.tvheadend.tvhclient.data.db.AppRoomDatabase
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
+import org.tvheadend.tvhclient.data.db.SearchIndexHelper
 import org.tvheadend.tvhclient.domain.entity.EpgProgram
 import org.tvheadend.tvhclient.domain.entity.Program
-import timber.log.Timber
 import java.util.*
-import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 
-class ProgramData(private val db: AppRoomDatabase) : DataSourceInterface<Program> {
+/**
+ * Every write of programs invalidates the now and next time range of
+ * the channel data, because the programs of that range may have changed.
+ */
+class ProgramData(private val db: AppRoomDatabase, private val executor: DatabaseExecutor, private val activeConnection: ActiveConnection, private val channelData: ChannelData) : DataSourceInterface<Program> {
 
     val itemCount: Int
-        get() {
-            try {
-                return ProgramCountTask(db).execute().get()
-            } catch (e: InterruptedException) {
-                Timber.d(e, "Loading program count task got interrupted")
-            } catch (e: ExecutionException) {
-                Timber.d(e, "Loading program count task aborted")
-            }
-
-            return 0
-        }
+        get() = executor.readSync("program count", 0) { db.programDao.getItemCountSync(activeConnection.id) }
 
     override fun addItem(item: Program) {
-        AsyncTask.execute { db.programDao.insert(item) }
+        executor.write {
+            db.programDao.insert(item)
+            channelData.invalidateNowAndNext()
+        }
     }
 
     fun addItems(items: List<Program>) {
-        AsyncTask.execute { db.programDao.insert(ArrayList(items)) }
+        val programs = ArrayList(items)
+        executor.write {
+            db.programDao.insert(programs)
+            channelData.invalidateNowAndNext()
+        }
+    }
+
+    /**
+     * Saves the programs and waits until they are saved. Must not be called from the main thread.
+     */
+    fun addItemsSync(items: List<Program>) {
+        executor.writeSync("programs") {
+            db.programDao.insert(items)
+            channelData.invalidateNowAndNext()
+        }
+    }
+
+    /**
+     * Saves the programs and removes the programs of the same channel that
+     * overlap with them, because they were replaced or moved on the server.
+     * Waits until the programs are saved. Must not be called from the main thread.
+     */
+    fun addItemsAndRemoveOverlappingSync(items: List<Program>) {
+        executor.writeSync("programs and overlapping programs") {
+            db.runInTransaction(Runnable {
+                for (program in items) {
+                    db.programDao.deleteOverlappingPrograms(program.connectionId, program.channelId, program.eventId, program.start, program.stop)
+                }
+                db.programDao.insert(items)
+            })
+            channelData.invalidateNowAndNext()
+        }
     }
 
     override fun updateItem(item: Program) {
-        AsyncTask.execute { db.programDao.update(item) }
+        executor.write {
+            db.programDao.update(item)
+            channelData.invalidateNowAndNext()
+        }
     }
 
     override fun removeItem(item: Program) {
-        AsyncTask.execute { db.programDao.delete(item) }
+        executor.write {
+            db.programDao.delete(item)
+            channelData.invalidateNowAndNext()
+        }
     }
 
     fun removeItemsByTime(time: Long) {
-        AsyncTask.execute { db.programDao.deleteProgramsByTime(time) }
+        executor.write {
+            db.programDao.deleteProgramsByTime(time)
+            channelData.invalidateNowAndNext()
+        }
     }
 
     fun removeItemById(id: Int) {
-        AsyncTask.execute { db.programDao.deleteById(id) }
+        executor.write {
+            db.programDao.deleteById(activeConnection.id, id)
+            channelData.invalidateNowAndNext()
+        }
+    }
+
+    /**
+     * Removes the programs with the given ids. The ids are deleted in batches to stay
+     * below the maximum number of variables that SQLite allows in one statement.
+     * Waits until the programs are removed. Must not be called from the main thread.
+     */
+    fun removeItemsByIdSync(ids: List<Int>) {
+        executor.writeSync("removed programs") {
+            db.runInTransaction(Runnable {
+                ids.chunked(500).forEach { db.programDao.deleteByIds(activeConnection.id, it) }
+            })
+            channelData.invalidateNowAndNext()
+        }
+    }
+
+    /**
+     * Returns the ids of the programs of the channel that are running between the given times
+     */
+    fun getIdsByChannelIdAndBetweenTime(channelId: Int, startTime: Long, endTime: Long): List<Int> {
+        return executor.readSync("program ids between time", ArrayList()) { db.programDao.loadProgramIdsFromChannelBetweenTimeSync(activeConnection.id, channelId, startTime, endTime) }
     }
 
     override fun getLiveDataItemCount(): LiveData<Int> {
-        return db.programDao.itemCount
+        return db.programDao.getItemCount(activeConnection.id)
     }
 
     override fun getLiveDataItems(): LiveData<List<Program>> {
-        return db.programDao.loadPrograms()
+        return db.programDao.loadPrograms(activeConnection.id)
     }
 
     override fun getLiveDataItemById(id: Any): LiveData<Program> {
-        return db.programDao.loadProgramById(id as Int)
+        return db.programDao.loadProgramById(activeConnection.id, id as Int)
     }
 
     override fun getItemById(id: Any): Program? {
-        try {
-            return ProgramByIdTask(db, id as Int, LOAD_BY_ID).execute().get()
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading program by id task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading program by id task aborted")
-        }
-
-        return null
+        return executor.readSync("program by id", null) { db.programDao.loadProgramByIdSync(activeConnection.id, id as Int) }
     }
 
-    override fun getItems(): List<Program> {
-        val programs = ArrayList<Program>()
-        try {
-            programs.addAll(ProgramListTask(db).execute().get())
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading all programs task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading all programs task aborted")
-        }
-
-        return programs
+    override fun getItemByIdAsync(id: Any): Future<Program?> {
+        return executor.read<Program?> { db.programDao.loadProgramByIdSync(activeConnection.id, id as Int) }
     }
 
-    fun getLiveDataItemsFromTime(time: Long): LiveData<List<Program>> {
-        return db.programDao.loadProgramsFromTime(time)
+    override fun getItems(): List<Program> {
+        return executor.readSync("all programs", ArrayList()) { db.programDao.loadProgramsSync(activeConnection.id) }
     }
 
-    fun getLiveDataItemByChannelIdAndTime(channelId: Int, time: Long): LiveData<List<Program>> {
-        return db.programDao.loadProgramsFromChannelFromTime(channelId, time)
+    override fun getItemsAsync(): Future<List<Program>> {
+        return executor.read { db.programDao.loadProgramsSync(activeConnection.id) }
     }
 
-    fun getItemByChannelIdAndBetweenTime(channelId: Int, startTime: Long, endTime: Long): List<EpgProgram> {
-        val programs = ArrayList<EpgProgram>()
-        try {
-            programs.addAll(EpgProgramByChannelAndTimeTask(db, channelId, startTime, endTime).execute().get())
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading programs by channel and time task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading programs by channel and time task aborted")
+    /**
+     * Returns a factory for the data sources that load the programs from the given time
+     * page by page. If a query is given, only the programs that match it in the full text
+     * index are loaded, ranked by the column in which they match.
+     */
+    fun getPagedItemsFromTime(time: Long, query: String): DataSource.Factory<Int, Program> {
+        return if (SearchIndexHelper.matchQuery(query).isEmpty()) {
+            db.programDao.loadProgramsFromTime(activeConnection.id, time)
+        } else {
+            db.searchDao.loadPrograms(SearchIndexHelper.programQuery(activeConnection.id, 0, time, query, true))
         }
-
-        return programs
     }
 
-    fun getLastItemByChannelId(channelId: Int): Program? {
-        try {
-            return ProgramByIdTask(db, channelId, LOAD_LAST_IN_CHANNEL).execute().get()
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading last programs in channel task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading last program in channel task aborted")
+    /**
+     * Returns a factory for the data sources that load the programs of the channel from
+     * the given time page by page. If a query is given, only the programs that match it
+     * in the full text index are loaded. The programs are always sorted by their start time.
+     */
+    fun getPagedItemsByChannelIdAndTime(channelId: Int, time: Long, query: String): DataSource.Factory<Int, Program> {
+        return if (SearchIndexHelper.matchQuery(query).isEmpty()) {
+            db.programDao.loadProgramsFromChannelFromTime(activeConnection.id, channelId, time)
+        } else {
+            db.searchDao.loadPrograms(SearchIndexHelper.programQuery(activeConnection.id, channelId, time, query, false))
         }
-
-        return null
     }
 
-    private class ProgramByIdTask internal constructor(private val db: AppRoomDatabase, private val id: Int, private val type: Int) : AsyncTask<Void, Void, Program>() {
-
-        override fun doInBackground(vararg voids: Void): Program? {
-            when (type) {
-                LOAD_LAST_IN_CHANNEL -> return db.programDao.loadLastProgramFromChannelSync(id)
-                LOAD_BY_ID -> return db.programDao.loadProgramByIdSync(id)
-            }
-            return null
+    /**
+     * Returns the distinct titles of the current and upcoming programs whose title
+     * matches the query. Must not be called from the main thread.
+     */
+    fun getTitlesBySearchQuery(query: String, limit: Int): List<String> {
+        if (SearchIndexHelper.matchQuery(query).isEmpty()) {
+            return ArrayList()
         }
-    }
-
-    private class EpgProgramByChannelAndTimeTask internal constructor(private val db: AppRoomDatabase, private val channelId: Int, private val startTime: Long, private val endTime: Long) : AsyncTask<Void, Void, List<EpgProgram>>() {
-
-        override fun doInBackground(vararg voids: Void): List<EpgProgram> {
-            return db.programDao.loadProgramsFromChannelBetweenTimeSync(channelId, startTime, endTime)
+        return executor.readSync("program titles by search query", ArrayList()) {
+            db.searchDao.loadProgramTitlesSync(SearchIndexHelper.programTitleQuery(activeConnection.id, System.currentTimeMillis(), query, limit))
         }
     }
 
-    private class ProgramListTask internal constructor(private val db: AppRoomDatabase) : AsyncTask<Void, Void, List<Program>>() {
-
-        override fun doInBackground(vararg voids: Void): List<Program> {
-            return db.programDao.loadProgramsSync()
+    fun getItemByChannelIdAndBetweenTime(channelId: Int, startTime: Long, endTime: Long): List<EpgProgram> {
+        return executor.readSync("programs by channel and time", ArrayList()) {
+            db.programDao.loadProgramsFromChannelBetweenTimeSync(activeConnection.id, channelId, startTime, endTime)
         }
     }
 
-    private class ProgramCountTask internal constructor(private val db: AppRoomDatabase) : AsyncTask<Void, Void, Int>() {
-
-        override fun doInBackground(vararg voids: Void): Int? {
-            return db.programDao.itemCountSync
-        }
+    /**
+     * Loads the programs of all given channels between the given times with one query
+     * per chunk of channels on a reader thread. The programs are sorted by the channel
+     * id and the start time and passed to the callback on the main thread.
+     */
+    fun getItemsByChannelIdsAndBetweenTime(channelIds: List<Int>, startTime: Long, endTime: Long, callback: (List<EpgProgram>) -> Unit) {
+        val ids = ArrayList(channelIds)
+        executor.read({
+            // Stay below the maximum number of query parameters
+            val programs = ArrayList<EpgProgram>()
+            ids.chunked(500).forEach { programs.addAll(db.programDao.loadProgramsFromChannelsBetweenTimeSync(activeConnection.id, it, startTime, endTime)) }
+            programs
+        }, callback)
     }
 
-    companion object {
+    fun getLastItemByChannelId(channelId: Int): Program? {
+        return executor.readSync("last program in channel", null) { db.programDao.loadLastProgramFromChannelSync(activeConnection.id, channelId) }
+    }
 
-        private const val LOAD_LAST_IN_CHANNEL = 1
-        private const val LOAD_BY_ID = 2
+    /**
+     * Returns the last program of each channel with the channel id as the key.
+     * All channels are resolved with one query instead of one query per channel.
+     */
+    fun getLastItemOfEachChannel(): Map<Int, Program> {
+        val programs = HashMap<Int, Program>()
+        executor.readSync("last program of each channel", ArrayList()) { db.programDao.loadLastProgramOfEachChannelSync(activeConnection.id) }.forEach {
+            programs[it.channelId] = it
+        }
+        return programs
     }
 }
@@ -1,47 +1,53 @@
 package org.tvheadend.tvhclient.domain.repository.data_source
 
-import android.os.AsyncTask
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import org.tvheadend.tvhclient.data.db.AppRoomDatabase
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
+import org.tvheadend.tvhclient.data.db.SearchIndexHelper
 import org.tvheadend.tvhclient.domain.entity.Recording
-import timber.log.Timber
 import java.util.*
-import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 
-class RecordingData(private val db: AppRoomDatabase) : DataSourceInterface<Recording> {
+class RecordingData(private val db: AppRoomDatabase, private val executor: DatabaseExecutor, private val activeConnection: ActiveConnection) : DataSourceInterface<Recording> {
 
     val itemCount: Int
-        get() {
-            try {
-                return RecordingCountTask(db).execute().get()
-            } catch (e: InterruptedException) {
-                Timber.d(e, "Loading recording count task got interrupted")
-            } catch (e: ExecutionException) {
-                Timber.d(e, "Loading recording count task aborted")
-            }
-
-            return 0
-        }
+        get() = executor.readSync("recording count", 0) { db.recordingDao.getItemCountSync(activeConnection.id) }
 
     override fun addItem(item: Recording) {
-        AsyncTask.execute { db.recordingDao.insert(item) }
+        executor.write { db.recordingDao.insert(item) }
     }
 
     fun addItems(items: List<Recording>) {
-        AsyncTask.execute { db.recordingDao.insert(ArrayList(items)) }
+        val recordings = ArrayList(items)
+        executor.write { db.recordingDao.insert(recordings) }
+    }
+
+    /**
+     * Saves the recordings and waits until they are saved. Must not be called from the main thread.
+     */
+    fun addItemsSync(items: List<Recording>) {
+        executor.writeSync("recordings") { db.recordingDao.insert(items) }
     }
 
     override fun updateItem(item: Recording) {
-        AsyncTask.execute { db.recordingDao.update(item) }
+        executor.write { db.recordingDao.update(item) }
     }
 
     override fun removeItem(item: Recording) {
-        AsyncTask.execute { db.recordingDao.delete(item) }
+        executor.write { db.recordingDao.delete(item) }
     }
 
     fun removeItems() {
-        AsyncTask.execute { db.recordingDao.deleteAll() }
+        executor.write { db.recordingDao.deleteAll() }
+    }
+
+    /**
+     * Removes the recordings whose id is not in the given set and waits
+     * until they are removed. Must not be called from the main thread.
+     */
+    fun removeItemsExceptSync(ids: Set<Int>) {
+        executor.writeSync("removed recordings") { db.recordingDao.deleteAllExcept(activeConnection.id, ids) }
     }
 
     override fun getLiveDataItemCount(): LiveData<Int> {
@@ -49,88 +55,71 @@ class RecordingData(private val db: AppRoomDatabase) : DataSourceInterface<Recor
     }
 
     override fun getLiveDataItems(): LiveData<List<Recording>> {
-        return db.recordingDao.loadAllRecordings()
+        return db.recordingDao.loadAllRecordings(activeConnection.id)
     }
 
     override fun getLiveDataItemById(id: Any): LiveData<Recording> {
-        return db.recordingDao.loadRecordingById(id as Int)
+        return db.recordingDao.loadRecordingById(activeConnection.id, id as Int)
     }
 
     fun getLiveDataItemsByChannelId(channelId: Int): LiveData<List<Recording>> {
-        return db.recordingDao.loadAllRecordingsByChannelId(channelId)
+        return db.recordingDao.loadAllRecordingsByChannelId(activeConnection.id, channelId)
     }
 
     fun getLiveDataItemsByType(type: String): LiveData<List<Recording>> {
         return when (type) {
-            "completed" -> db.recordingDao.loadAllCompletedRecordings()
-            "scheduled" -> db.recordingDao.loadAllScheduledRecordings()
-            "failed" -> db.recordingDao.loadAllFailedRecordings()
-            "removed" -> db.recordingDao.loadAllRemovedRecordings()
+            "completed" -> db.recordingDao.loadAllCompletedRecordings(activeConnection.id)
+            "scheduled" -> db.recordingDao.loadAllScheduledRecordings(activeConnection.id)
+            "failed" -> db.recordingDao.loadAllFailedRecordings(activeConnection.id)
+            "removed" -> db.recordingDao.loadAllRemovedRecordings(activeConnection.id)
             else -> MutableLiveData()
         }
     }
 
     fun getLiveDataCountByType(type: String): LiveData<Int> {
         return when (type) {
-            "completed" -> db.recordingDao.completedRecordingCount
-            "scheduled" -> db.recordingDao.scheduledRecordingCount
-            "failed" -> db.recordingDao.failedRecordingCount
-            "removed" -> db.recordingDao.removedRecordingCount
+            "completed" -> db.recordingDao.getCompletedRecordingCount(activeConnection.id)
+            "scheduled" -> db.recordingDao.getScheduledRecordingCount(activeConnection.id)
+            "failed" -> db.recordingDao.getFailedRecordingCount(activeConnection.id)
+            "removed" -> db.recordingDao.getRemovedRecordingCount(activeConnection.id)
             else -> MutableLiveData()
         }
     }
 
     override fun getItemById(id: Any): Recording {
         if ((id as Int) > 0) {
-            try {
-                val recording = RecordingByIdTask(db, id, LOAD_BY_ID).execute().get()
-                return recording ?: Recording()
-            } catch (e: InterruptedException) {
-                Timber.d(e, "Loading recording by id task got interrupted")
-            } catch (e: ExecutionException) {
-                Timber.d(e, "Loading recording by id task aborted")
-            }
+            val recording: Recording? = executor.readSync("recording by id", null) { db.recordingDao.loadRecordingByIdSync(activeConnection.id, id) }
+            return recording ?: Recording()
         }
         return Recording()
     }
 
+    override fun getItemByIdAsync(id: Any): Future<Recording?> {
+        return executor.read<Recording?> { db.recordingDao.loadRecordingByIdSync(activeConnection.id, id as Int) }
+    }
+
     override fun getItems(): List<Recording> {
         return ArrayList()
     }
 
-    fun getItemByEventId(id: Int): Recording? {
-        try {
-            return RecordingByIdTask(db, id, LOAD_BY_EVENT_ID).execute().get()
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading recording by event id task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading recording by event id task aborted")
-        }
-
-        return null
+    override fun getItemsAsync(): Future<List<Recording>> {
+        return executor.read<List<Recording>> { ArrayList() }
     }
 
-    private class RecordingByIdTask internal constructor(private val db: AppRoomDatabase, private val id: Int, private val type: Int) : AsyncTask<Void, Void, Recording>() {
-
-        override fun doInBackground(vararg voids: Void): Recording? {
-            return when (type) {
-                LOAD_BY_ID -> db.recordingDao.loadRecordingByIdSync(id)
-                LOAD_BY_EVENT_ID -> db.recordingDao.loadRecordingByEventIdSync(id)
-                else -> null
-            }
-        }
+    fun getItemByEventId(id: Int): Recording? {
+        return executor.readSync("recording by event id", null) { db.recordingDao.loadRecordingByEventIdSync(activeConnection.id, id) }
     }
 
-    private class RecordingCountTask internal constructor(private val db: AppRoomDatabase) : AsyncTask<Void, Void, Int>() {
-
-        override fun doInBackground(vararg voids: Void): Int? {
-            return db.recordingDao.itemCountSync
+    /**
+     * Returns the ids of the recordings that match the query in the
+     * full text index. Must not be called from the main thread.
+     */
+    fun getIdsBySearchQuery(query: String): Set<Int> {
+        if (SearchIndexHelper.matchQuery(query).isEmpty()) {
+            return HashSet()
         }
-    }
-
-    companion object {
-
-        private const val LOAD_BY_ID = 1
-        private const val LOAD_BY_EVENT_ID = 2
+        return executor.readSync("recording ids by search query", ArrayList()) {
+            db.searchDao.loadRecordingIdsSync(SearchIndexHelper.recordingIdQuery(activeConnection.id, query))
+        }.toHashSet()
     }
 }
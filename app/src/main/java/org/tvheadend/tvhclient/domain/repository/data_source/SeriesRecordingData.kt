@@ -1,61 +1,82 @@
 package org.tvheadend.tvhclient.domain.repository.data_source
 
-import android.os.AsyncTask
 import androidx.lifecycle.LiveData
 import org.tvheadend.tvhclient.data.db.AppRoomDatabase
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
+import org.tvheadend.tvhclient.data.db.SearchIndexHelper
 import org.tvheadend.tvhclient.domain.entity.SeriesRecording
-import timber.log.Timber
 import java.util.*
-import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 
-class SeriesRecordingData(private val db: AppRoomDatabase) : DataSourceInterface<SeriesRecording> {
+class SeriesRecordingData(private val db: AppRoomDatabase, private val executor: DatabaseExecutor, private val activeConnection: ActiveConnection) : DataSourceInterface<SeriesRecording> {
 
     override fun addItem(item: SeriesRecording) {
-        AsyncTask.execute { db.seriesRecordingDao.insert(item) }
+        executor.write { db.seriesRecordingDao.insert(item) }
     }
 
     override fun updateItem(item: SeriesRecording) {
-        AsyncTask.execute { db.seriesRecordingDao.update(item) }
+        executor.write { db.seriesRecordingDao.update(item) }
     }
 
     override fun removeItem(item: SeriesRecording) {
-        AsyncTask.execute { db.seriesRecordingDao.delete(item) }
+        executor.write { db.seriesRecordingDao.delete(item) }
+    }
+
+    /**
+     * Removes the series recordings whose id is not in the given set and
+     * waits until they are removed. Must not be called from the main thread.
+     */
+    fun removeItemsExceptSync(ids: Set<String>) {
+        executor.writeSync("removed series recordings") {
+            db.runInTransaction(Runnable {
+                val removedIds = db.seriesRecordingDao.loadRecordingIdsSync(activeConnection.id).filter { !ids.contains(it) }
+                removedIds.chunked(500).forEach { db.seriesRecordingDao.deleteByIds(activeConnection.id, it) }
+            })
+        }
     }
 
     override fun getLiveDataItemCount(): LiveData<Int> {
-        return db.seriesRecordingDao.recordingCount
+        return db.seriesRecordingDao.getRecordingCount(activeConnection.id)
     }
 
     override fun getLiveDataItems(): LiveData<List<SeriesRecording>> {
-        return db.seriesRecordingDao.loadAllRecordings()
+        return db.seriesRecordingDao.loadAllRecordings(activeConnection.id)
     }
 
     override fun getLiveDataItemById(id: Any): LiveData<SeriesRecording> {
-        return db.seriesRecordingDao.loadRecordingById(id as String)
+        return db.seriesRecordingDao.loadRecordingById(activeConnection.id, id as String)
     }
 
     override fun getItemById(id: Any): SeriesRecording {
         if ((id as String).isNotEmpty()) {
-            try {
-                val recording = SeriesRecordingByIdTask(db, id).execute().get()
-                return recording ?: SeriesRecording()
-            } catch (e: InterruptedException) {
-                Timber.d(e, "Loading series recording by id task got interrupted")
-            } catch (e: ExecutionException) {
-                Timber.d(e, "Loading series recording by id task aborted")
-            }
+            val recording: SeriesRecording? = executor.readSync("series recording by id", null) { db.seriesRecordingDao.loadRecordingByIdSync(activeConnection.id, id) }
+            return recording ?: SeriesRecording()
         }
         return SeriesRecording()
     }
 
+    override fun getItemByIdAsync(id: Any): Future<SeriesRecording?> {
+        return executor.read<SeriesRecording?> { db.seriesRecordingDao.loadRecordingByIdSync(activeConnection.id, id as String) }
+    }
+
     override fun getItems(): List<SeriesRecording> {
         return ArrayList()
     }
 
-    private class SeriesRecordingByIdTask internal constructor(private val db: AppRoomDatabase, private val id: String) : AsyncTask<Void, Void, SeriesRecording>() {
+    override fun getItemsAsync(): Future<List<SeriesRecording>> {
+        return executor.read<List<SeriesRecording>> { ArrayList() }
+    }
 
-        override fun doInBackground(vararg voids: Void): SeriesRecording {
-            return db.seriesRecordingDao.loadRecordingByIdSync(id)
+    /**
+     * Returns the ids of the series recordings that match the query in
+     * the full text index. Must not be called from the main thread.
+     */
+    fun getIdsBySearchQuery(query: String): Set<String> {
+        if (SearchIndexHelper.matchQuery(query).isEmpty()) {
+            return HashSet()
         }
+        return executor.readSync("series recording ids by search query", ArrayList()) {
+            db.searchDao.loadSeriesRecordingIdsSync(SearchIndexHelper.seriesRecordingIdQuery(activeConnection.id, query))
+        }.toHashSet()
     }
 }
@@ -1,15 +1,14 @@
 package org.tvheadend.tvhclient.domain.repository.data_source
 
-import android.os.AsyncTask
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import org.tvheadend.tvhclient.data.db.AppRoomDatabase
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
 import org.tvheadend.tvhclient.domain.entity.ServerProfile
-import timber.log.Timber
 import java.util.*
-import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 
-class ServerProfileData(private val db: AppRoomDatabase) : DataSourceInterface<ServerProfile> {
+class ServerProfileData(private val db: AppRoomDatabase, private val executor: DatabaseExecutor) : DataSourceInterface<ServerProfile> {
 
     val recordingProfileNames: Array<String>
         get() = getProfileNames(recordingProfiles)
@@ -21,61 +20,28 @@ class ServerProfileData(private val db: AppRoomDatabase) : DataSourceInterface<S
         get() = getProfileNames(httpPlaybackProfiles)
 
     val recordingProfiles: List<ServerProfile>
-        get() {
-            val serverProfiles = ArrayList<ServerProfile>()
-            try {
-                serverProfiles.addAll(ServerProfileTask(db, RECORDINGS).execute().get())
-            } catch (e: InterruptedException) {
-                Timber.d(e, "Loading recording server profile task got interrupted")
-            } catch (e: ExecutionException) {
-                Timber.d(e, "Loading recording server profile task aborted")
-            }
-
-            return serverProfiles
-        }
+        get() = executor.readSync("recording server profile", ArrayList()) { db.serverProfileDao.loadAllRecordingProfilesSync() }
 
     val htspPlaybackProfiles: List<ServerProfile>
-        get() {
-            val serverProfiles = ArrayList<ServerProfile>()
-            try {
-                serverProfiles.addAll(ServerProfileTask(db, HTSP_PLAYBACK).execute().get())
-            } catch (e: InterruptedException) {
-                Timber.d(e, "Loading htsp playback server profile task got interrupted")
-            } catch (e: ExecutionException) {
-                Timber.d(e, "Loading htsp playback server profile task aborted")
-            }
-
-            return serverProfiles
-        }
+        get() = executor.readSync("htsp playback server profile", ArrayList()) { db.serverProfileDao.loadHtspPlaybackProfilesSync() }
 
     val httpPlaybackProfiles: List<ServerProfile>
-        get() {
-            val serverProfiles = ArrayList<ServerProfile>()
-            try {
-                serverProfiles.addAll(ServerProfileTask(db, HTTP_PLAYBACK).execute().get())
-            } catch (e: InterruptedException) {
-                Timber.d(e, "Loading http playback server profile task got interrupted")
-            } catch (e: ExecutionException) {
-                Timber.d(e, "Loading http playback server profile task aborted")
-            }
-
-            return serverProfiles
-        }
+        get() = executor.readSync("http playback server profile", ArrayList()) { db.serverProfileDao.loadHttpPlaybackProfilesSync() }
 
     override fun addItem(item: ServerProfile) {
-        AsyncTask.execute { db.serverProfileDao.insert(item) }
+        executor.write { db.serverProfileDao.insert(item) }
     }
 
     override fun updateItem(item: ServerProfile) {
-        AsyncTask.execute { db.serverProfileDao.update(item) }
+        executor.write { db.serverProfileDao.update(item) }
     }
 
     override fun removeItem(item: ServerProfile) {
-        AsyncTask.execute { db.serverProfileDao.delete(item) }
+        executor.write { db.serverProfileDao.delete(item) }
     }
 
     fun removeAll() {
-        AsyncTask.execute { db.serverProfileDao.deleteAll() }
+        executor.write { db.serverProfileDao.deleteAll() }
     }
 
     override fun getLiveDataItemCount(): LiveData<Int> {
@@ -91,21 +57,21 @@ class ServerProfileData(private val db: AppRoomDatabase) : DataSourceInterface<S
     }
 
     override fun getItemById(id: Any): ServerProfile? {
-        try {
-            return ServerProfileByIdTask(db, id).execute().get()
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading server profile by id task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading server profile by id task aborted")
-        }
+        return executor.readSync("server profile by id", null) { loadProfileById(id) }
+    }
 
-        return null
+    override fun getItemByIdAsync(id: Any): Future<ServerProfile?> {
+        return executor.read { loadProfileById(id) }
     }
 
     override fun getItems(): List<ServerProfile> {
         return ArrayList()
     }
 
+    override fun getItemsAsync(): Future<List<ServerProfile>> {
+        return executor.read<List<ServerProfile>> { ArrayList() }
+    }
+
     private fun getProfileNames(serverProfiles: List<ServerProfile>): Array<String> {
         if (serverProfiles.isNotEmpty()) {
             return Array(serverProfiles.size) { i -> serverProfiles[i].name ?: "" }
@@ -113,34 +79,11 @@ class ServerProfileData(private val db: AppRoomDatabase) : DataSourceInterface<S
         return Array(0) { "" }
     }
 
-    private class ServerProfileByIdTask internal constructor(private val db: AppRoomDatabase, private val id: Any) : AsyncTask<Void, Void, ServerProfile>() {
-
-        override fun doInBackground(vararg voids: Void): ServerProfile? {
-            if (id is Int) {
-                return db.serverProfileDao.loadProfileByIdSync(id)
-            } else if (id is String) {
-                return db.serverProfileDao.loadProfileByUuidSync(id)
-            }
-            return null
+    private fun loadProfileById(id: Any): ServerProfile? {
+        return when (id) {
+            is Int -> db.serverProfileDao.loadProfileByIdSync(id)
+            is String -> db.serverProfileDao.loadProfileByUuidSync(id)
+            else -> null
         }
     }
-
-    private class ServerProfileTask internal constructor(private val db: AppRoomDatabase, private val type: Int) : AsyncTask<Void, Void, List<ServerProfile>>() {
-
-        override fun doInBackground(vararg voids: Void): List<ServerProfile>? {
-            return when (type) {
-                HTSP_PLAYBACK -> db.serverProfileDao.loadHtspPlaybackProfilesSync()
-                HTTP_PLAYBACK -> db.serverProfileDao.loadHttpPlaybackProfilesSync()
-                RECORDINGS -> db.serverProfileDao.loadAllRecordingProfilesSync()
-                else -> null
-            }
-        }
-    }
-
-    companion object {
-
-        private const val RECORDINGS = 1
-        private const val HTSP_PLAYBACK = 2
-        private const val HTTP_PLAYBACK = 3
-    }
 }
@@ -1,52 +1,48 @@
 package org.tvheadend.tvhclient.domain.repository.data_source
 
-import android.os.AsyncTask
 import androidx.lifecycle.LiveData
 import org.tvheadend.tvhclient.data.db.AppRoomDatabase
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
 import org.tvheadend.tvhclient.domain.entity.ServerStatus
-import timber.log.Timber
 import java.util.*
-import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 
-class ServerStatusData(private val db: AppRoomDatabase) : DataSourceInterface<ServerStatus> {
+class ServerStatusData(private val db: AppRoomDatabase, private val executor: DatabaseExecutor, private val activeConnection: ActiveConnection) : DataSourceInterface<ServerStatus> {
 
     val liveDataActiveItem: LiveData<ServerStatus>
-        get() = db.serverStatusDao.loadActiveServerStatus()
+        get() = db.serverStatusDao.loadActiveServerStatus(activeConnection.id)
 
     val activeItem: ServerStatus
         get() {
-            try {
-                return ActiveServerStatusTask(db).execute().get()
-            } catch (e: InterruptedException) {
-                Timber.d(e, "Loading active server status task got interrupted")
-            } catch (e: ExecutionException) {
-                Timber.d(e, "Loading active server status task aborted")
+            val activeServerStatus: ServerStatus? = executor.readSync("active server status", null) { db.serverStatusDao.loadActiveServerStatusSync(activeConnection.id) }
+            if (activeServerStatus != null) {
+                return activeServerStatus
             }
             // Create a new server status object with the connection id
             val serverStatus = ServerStatus()
-            serverStatus.connectionId = db.connectionDao.loadActiveConnectionSync().id
+            serverStatus.connectionId = activeConnection.id
             addItem(serverStatus)
             return serverStatus
         }
 
     override fun addItem(item: ServerStatus) {
-        AsyncTask.execute { db.serverStatusDao.insert(item) }
+        executor.write { db.serverStatusDao.insert(item) }
     }
 
     override fun updateItem(item: ServerStatus) {
-        AsyncTask.execute { db.serverStatusDao.update(item) }
+        executor.write { db.serverStatusDao.update(item) }
     }
 
     override fun removeItem(item: ServerStatus) {
-        AsyncTask.execute { db.serverStatusDao.delete(item) }
+        executor.write { db.serverStatusDao.delete(item) }
     }
 
     override fun getLiveDataItemCount(): LiveData<Int> {
-        return db.serverStatusDao.serverStatusCount
+        return db.serverStatusDao.getServerStatusCount(activeConnection.id)
     }
 
     override fun getLiveDataItems(): LiveData<List<ServerStatus>> {
-        return db.serverStatusDao.loadAllServerStatus()
+        return db.serverStatusDao.loadAllServerStatus(activeConnection.id)
     }
 
     override fun getLiveDataItemById(id: Any): LiveData<ServerStatus> {
@@ -54,31 +50,18 @@ class ServerStatusData(private val db: AppRoomDatabase) : DataSourceInterface<Se
     }
 
     override fun getItemById(id: Any): ServerStatus? {
-        try {
-            return ServerStatusByIdTask(db, id as Int).execute().get()
-        } catch (e: InterruptedException) {
-            Timber.d(e, "Loading server status by id task got interrupted")
-        } catch (e: ExecutionException) {
-            Timber.d(e, "Loading server status by id task aborted")
-        }
-        return null
+        return executor.readSync("server status by id", null) { db.serverStatusDao.loadServerStatusByIdSync(id as Int) }
     }
 
-    override fun getItems(): List<ServerStatus> {
-        return ArrayList()
+    override fun getItemByIdAsync(id: Any): Future<ServerStatus?> {
+        return executor.read<ServerStatus?> { db.serverStatusDao.loadServerStatusByIdSync(id as Int) }
     }
 
-    private class ServerStatusByIdTask internal constructor(private val db: AppRoomDatabase, private val id: Int) : AsyncTask<Void, Void, ServerStatus>() {
-
-        override fun doInBackground(vararg voids: Void): ServerStatus {
-            return db.serverStatusDao.loadServerStatusByIdSync(id)
-        }
+    override fun getItems(): List<ServerStatus> {
+        return ArrayList()
     }
 
-    private class ActiveServerStatusTask internal constructor(private val db: AppRoomDatabase) : AsyncTask<Void, Void, ServerStatus>() {
-
-        override fun doInBackground(vararg voids: Void): ServerStatus {
-            return db.serverStatusDao.loadActiveServerStatusSync()
-        }
+    override fun getItemsAsync(): Future<List<ServerStatus>> {
+        return executor.read<List<ServerStatus>> { ArrayList() }
     }
 }
@@ -1,32 +1,32 @@
 package org.tvheadend.tvhclient.domain.repository.data_source
 
-import android.os.AsyncTask
+import android.util.SparseArray
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import org.tvheadend.tvhclient.data.db.AppRoomDatabase
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
 import org.tvheadend.tvhclient.domain.entity.TagAndChannel
 import java.util.*
+import java.util.concurrent.Future
 
-class TagAndChannelData(private val db: AppRoomDatabase) : DataSourceInterface<TagAndChannel> {
+class TagAndChannelData(private val db: AppRoomDatabase, private val executor: DatabaseExecutor, private val activeConnection: ActiveConnection) : DataSourceInterface<TagAndChannel> {
 
     override fun addItem(item: TagAndChannel) {
-        AsyncTask.execute { db.tagAndChannelDao.insert(item) }
+        executor.write { db.tagAndChannelDao.insert(item) }
     }
 
     override fun updateItem(item: TagAndChannel) {
-        AsyncTask.execute { db.tagAndChannelDao.update(item) }
+        executor.write { db.tagAndChannelDao.update(item) }
     }
 
     override fun removeItem(item: TagAndChannel) {
-        AsyncTask.execute { db.tagAndChannelDao.delete(item) }
+        executor.write { db.tagAndChannelDao.delete(item) }
     }
 
     fun addAndRemoveItems(newItems: List<TagAndChannel>, oldItems: List<TagAndChannel>) {
-        AsyncTask.execute {
-            db.tagAndChannelDao.insertAndDelete(
-                    ArrayList(newItems),
-                    ArrayList(oldItems))
-        }
+        val addedItems = ArrayList(newItems)
+        val removedItems = ArrayList(oldItems)
+        executor.write { db.tagAndChannelDao.insertAndDelete(addedItems, removedItems) }
     }
 
     override fun getLiveDataItemCount(): LiveData<Int> {
@@ -49,7 +49,37 @@ class TagAndChannelData(private val db: AppRoomDatabase) : DataSourceInterface<T
         return ArrayList()
     }
 
+    override fun getItemByIdAsync(id: Any): Future<TagAndChannel?> {
+        return executor.read<TagAndChannel?> { null }
+    }
+
+    override fun getItemsAsync(): Future<List<TagAndChannel>> {
+        return executor.read<List<TagAndChannel>> { ArrayList() }
+    }
+
     fun removeItemByTagId(id: Int) {
-        AsyncTask.execute { db.tagAndChannelDao.deleteByTagId(id) }
+        executor.write { db.tagAndChannelDao.deleteByTagId(activeConnection.id, id) }
+    }
+
+    /**
+     * Returns the ids of the channels that belong to each tag with the tag id as the key.
+     * The channel ids of each tag are sorted in ascending order.
+     */
+    fun getChannelIdsOfEachTag(): SparseArray<IntArray> {
+        val channelIdsOfEachTag = SparseArray<IntArray>()
+        val tagAndChannels = executor.readSync("all tag and channel relations", ArrayList()) { db.tagAndChannelDao.loadAllTagAndChannelsSync(activeConnection.id) }
+        // The relations are sorted by the tag and channel id, so the
+        // channel ids of each tag are a consecutive range in the list
+        var start = 0
+        while (start < tagAndChannels.size) {
+            val tagId = tagAndChannels[start].tagId
+            var end = start
+            while (end < tagAndChannels.size && tagAndChannels[end].tagId == tagId) {
+                end++
+            }
+            channelIdsOfEachTag.put(tagId, IntArray(end - start) { tagAndChannels[start + it].channelId })
+            start = end
+        }
+        return channelIdsOfEachTag
     }
 }
@@ -1,61 +1,55 @@
 package org.tvheadend.tvhclient.domain.repository.data_source
 
-import android.os.AsyncTask
 import androidx.lifecycle.LiveData
 import org.tvheadend.tvhclient.data.db.AppRoomDatabase
+import org.tvheadend.tvhclient.data.db.DatabaseExecutor
 import org.tvheadend.tvhclient.domain.entity.TimerRecording
-import timber.log.Timber
 import java.util.*
-import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 
-class TimerRecordingData(private val db: AppRoomDatabase) : DataSourceInterface<TimerRecording> {
+class TimerRecordingData(private val db: AppRoomDatabase, private val executor: DatabaseExecutor, private val activeConnection: ActiveConnection) : DataSourceInterface<TimerRecording> {
 
     override fun addItem(item: TimerRecording) {
-        AsyncTask.execute { db.timerRecordingDao.insert(item) }
+        executor.write { db.timerRecordingDao.insert(item) }
     }
 
     override fun updateItem(item: TimerRecording) {
-        AsyncTask.execute { db.timerRecordingDao.update(item) }
+        executor.write { db.timerRecordingDao.update(item) }
     }
 
     override fun removeItem(item: TimerRecording) {
-        AsyncTask.execute { db.timerRecordingDao.delete(item) }
+        executor.write { db.timerRecordingDao.delete(item) }
     }
 
     override fun getLiveDataItemCount(): LiveData<Int> {
-        return db.timerRecordingDao.recordingCount
+        return db.timerRecordingDao.getRecordingCount(activeConnection.id)
     }
 
     override fun getLiveDataItems(): LiveData<List<TimerRecording>> {
-        return db.timerRecordingDao.loadAllRecordings()
+        return db.timerRecordingDao.loadAllRecordings(activeConnection.id)
     }
 
     override fun getLiveDataItemById(id: Any): LiveData<TimerRecording> {
-        return db.timerRecordingDao.loadRecordingById(id as String)
+        return db.timerRecordingDao.loadRecordingById(activeConnection.id, id as String)
     }
 
     override fun getItemById(id: Any): TimerRecording {
         if ((id as String).isNotEmpty()) {
-            try {
-                val recording = TimerRecordingByIdTask(db, id).execute().get()
-                return recording ?: TimerRecording()
-            } catch (e: InterruptedException) {
-                Timber.d(e, "Loading timer recording by id task got interrupted")
-            } catch (e: ExecutionException) {
-                Timber.d(e, "Loading timer recording by id task aborted")
-            }
+            val recording: TimerRecording? = executor.readSync("timer recording by id", null) { db.timerRecordingDao.loadRecordingByIdSync(activeConnection.id, id) }
+            return recording ?: TimerRecording()
         }
         return TimerRecording()
     }
 
+    override fun getItemByIdAsync(id: Any): Future<TimerRecording?> {
+        return executor.read<TimerRecording?> { db.timerRecordingDao.loadRecordingByIdSync(activeConnection.id, id as String) }
+    }
+
     override fun getItems(): List<TimerRecording> {
         return ArrayList()
     }
 
-    private class TimerRecordingByIdTask internal constructor(private val db: AppRoomDatabase, private val id: String) : AsyncTask<Void, Void, TimerRecording>() {
-
-        override fun doInBackground(vararg voids: Void): TimerRecording {
-            return db.timerRecordingDao.loadRecordingByIdSync(id)
-        }
+    override fun getItemsAsync(): Future<List<TimerRecording>> {
+        return executor.read<List<TimerRecording>> { ArrayList() }
     }
 }
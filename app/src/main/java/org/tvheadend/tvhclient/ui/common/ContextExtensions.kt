@@ -3,6 +3,7 @@ package org.tvheadend.tvhclient.ui.common
 import android.content.Context
 import android.content.Intent
 import androidx.localbroadcastmanager.content.LocalBroadcastManager
+import org.tvheadend.tvhclient.data.service.SyncStateReceiver
 import timber.log.Timber
 
 fun Context.sendSnackbarMessage(resId: Int) {
@@ -14,4 +15,16 @@ fun Context.sendSnackbarMessage(msg: String) {
     val intent = Intent(SnackbarMessageReceiver.ACTION)
     intent.putExtra(SnackbarMessageReceiver.CONTENT, msg)
     LocalBroadcastManager.getInstance(this).sendBroadcast(intent)
-}
\ No newline at end of file
+}
+
+fun Context.sendSyncStateMessage(state: SyncStateReceiver.State, message: String, details: String?) {
+    val intent = Intent(SyncStateReceiver.ACTION)
+    intent.putExtra(SyncStateReceiver.STATE, state)
+    if (message.isNotEmpty()) {
+        intent.putExtra(SyncStateReceiver.MESSAGE, message)
+    }
+    if (!details.isNullOrEmpty()) {
+        intent.putExtra(SyncStateReceiver.DETAILS, details)
+    }
+    LocalBroadcastManager.getInstance(this).sendBroadcast(intent)
+}
@@ -1,6 +1,7 @@
 package org.tvheadend.tvhclient.ui.features.channels
 
 import android.app.Application
+import android.os.Handler
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MediatorLiveData
 import androidx.lifecycle.Transformations
@@ -12,7 +13,11 @@ class ChannelViewModel(application: Application) : BaseChannelViewModel(applicat
     val channels: LiveData<List<Channel>>
     val numberOfChannels: LiveData<Int> = appRepository.channelData.getLiveDataItemCount()
 
+    private val nowAndNextUpdateHandler = Handler()
+    private val nowAndNextUpdateTask = Runnable { updateNowAndNext() }
+
     init {
+        updateNowAndNext()
 
         val trigger = ChannelLiveData(selectedTime, channelSortOrder, selectedChannelTagIds)
         channels = Transformations.switchMap(trigger) { value ->
@@ -39,6 +44,29 @@ class ChannelViewModel(application: Application) : BaseChannelViewModel(applicat
         }
     }
 
+    override fun onCleared() {
+        nowAndNextUpdateHandler.removeCallbacks(nowAndNextUpdateTask)
+        super.onCleared()
+    }
+
+    /**
+     * Moves the current and next programs of the channels forward and repeats this
+     * when the next program starts or ends. Programs that are added in the meantime
+     * can start earlier, so the delay is limited.
+     */
+    private fun updateNowAndNext() {
+        val time = System.currentTimeMillis()
+        appRepository.channelData.updateNowAndNext(time) { nextChangeTime ->
+            var delay = MAX_NOW_AND_NEXT_UPDATE_DELAY
+            if (nextChangeTime > time) {
+                delay = Math.max(1000L, Math.min(delay, nextChangeTime - System.currentTimeMillis()))
+            }
+            Timber.d("Updating the current and next programs again in $delay ms")
+            nowAndNextUpdateHandler.removeCallbacks(nowAndNextUpdateTask)
+            nowAndNextUpdateHandler.postDelayed(nowAndNextUpdateTask, delay)
+        }
+    }
+
     internal inner class ChannelLiveData(selectedTime: LiveData<Long>,
                                          selectedChannelSortOrder: LiveData<Int>,
                                          selectedChannelTagIds: LiveData<List<Int>?>) : MediatorLiveData<Triple<Long?, Int?, List<Int>?>>() {
@@ -54,4 +82,8 @@ class ChannelViewModel(application: Application) : BaseChannelViewModel(applicat
             }
         }
     }
+
+    companion object {
+        private const val MAX_NOW_AND_NEXT_UPDATE_DELAY: Long = 5 * 60 * 1000
+    }
 }
@@ -44,7 +44,7 @@ abstract class RecordingListFragment : BaseFragment(), RecyclerViewClickCallback
             searchQuery = arguments?.getString(SearchManager.QUERY) ?: ""
         }
 
-        recyclerViewAdapter = RecordingRecyclerViewAdapter(isDualPane, this, htspVersion)
+        recyclerViewAdapter = RecordingRecyclerViewAdapter(isDualPane, this, htspVersion) { appRepository.recordingData.getIdsBySearchQuery(it) }
         recycler_view.layoutManager = LinearLayoutManager(applicationContext)
         recycler_view.addItemDecoration(DividerItemDecoration(applicationContext, LinearLayoutManager.VERTICAL))
         recycler_view.itemAnimator = DefaultItemAnimator()
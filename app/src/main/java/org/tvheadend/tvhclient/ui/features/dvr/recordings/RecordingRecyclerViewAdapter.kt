@@ -15,7 +15,7 @@ import timber.log.Timber
 import java.util.*
 import java.util.concurrent.CopyOnWriteArrayList
 
-class RecordingRecyclerViewAdapter internal constructor(private val isDualPane: Boolean, private val clickCallback: RecyclerViewClickCallback, private val htspVersion: Int) : RecyclerView.Adapter<RecordingRecyclerViewAdapter.RecordingViewHolder>(), Filterable {
+class RecordingRecyclerViewAdapter internal constructor(private val isDualPane: Boolean, private val clickCallback: RecyclerViewClickCallback, private val htspVersion: Int, private val searchRecordingIds: (String) -> Set<Int>) : RecyclerView.Adapter<RecordingRecyclerViewAdapter.RecordingViewHolder>(), Filterable {
 
     private val recordingList = ArrayList<Recording>()
     private var recordingListFiltered: MutableList<Recording> = ArrayList()
@@ -96,16 +96,12 @@ class RecordingRecyclerViewAdapter internal constructor(private val isDualPane:
                     recordingListFiltered = recordingList
                 } else {
                     val filteredList = ArrayList<Recording>()
-                    // Iterate over the available channels. Use a copy on write
-                    // array in case the channel list changes during filtering.
+                    // The filter runs on a background thread, so the full text index
+                    // can be searched here. Use a copy on write array in case the
+                    // recording list changes during filtering.
+                    val ids = searchRecordingIds(charString)
                     for (recording in CopyOnWriteArrayList(recordingList)) {
-                        // name match condition. this might differ depending on your requirement
-                        // here we are looking for a channel name match
-                        val title = recording.title ?: ""
-                        val subtitle = recording.subtitle ?: ""
-                        if (title.toLowerCase().contains(charString.toLowerCase())) {
-                            filteredList.add(recording)
-                        } else if (subtitle.toLowerCase().contains(charString.toLowerCase())) {
+                        if (ids.contains(recording.id)) {
                             filteredList.add(recording)
                         }
                     }
@@ -50,7 +50,7 @@ class SeriesRecordingListFragment : BaseFragment(), RecyclerViewClickCallback, S
         else
             getString(R.string.search_results))
 
-        recyclerViewAdapter = SeriesRecordingRecyclerViewAdapter(isDualPane, this, htspVersion)
+        recyclerViewAdapter = SeriesRecordingRecyclerViewAdapter(isDualPane, this, htspVersion) { appRepository.seriesRecordingData.getIdsBySearchQuery(it) }
         recycler_view.layoutManager = LinearLayoutManager(applicationContext)
         recycler_view.addItemDecoration(DividerItemDecoration(applicationContext, LinearLayoutManager.VERTICAL))
         recycler_view.itemAnimator = DefaultItemAnimator()
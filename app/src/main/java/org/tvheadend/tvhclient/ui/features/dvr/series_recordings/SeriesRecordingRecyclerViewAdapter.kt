@@ -12,7 +12,7 @@ import org.tvheadend.tvhclient.ui.common.callbacks.RecyclerViewClickCallback
 import java.util.*
 import java.util.concurrent.CopyOnWriteArrayList
 
-class SeriesRecordingRecyclerViewAdapter internal constructor(private val isDualPane: Boolean, private val clickCallback: RecyclerViewClickCallback, private val htspVersion: Int) : RecyclerView.Adapter<SeriesRecordingRecyclerViewAdapter.SeriesRecordingViewHolder>(), Filterable {
+class SeriesRecordingRecyclerViewAdapter internal constructor(private val isDualPane: Boolean, private val clickCallback: RecyclerViewClickCallback, private val htspVersion: Int, private val searchRecordingIds: (String) -> Set<String>) : RecyclerView.Adapter<SeriesRecordingRecyclerViewAdapter.SeriesRecordingViewHolder>(), Filterable {
 
     private val recordingList = ArrayList<SeriesRecording>()
     private var recordingListFiltered: MutableList<SeriesRecording> = ArrayList()
@@ -80,16 +80,13 @@ class SeriesRecordingRecyclerViewAdapter internal constructor(private val isDual
                     recordingListFiltered = recordingList
                 } else {
                     val filteredList = ArrayList<SeriesRecording>()
-                    // Iterate over the available channels. Use a copy on write
-                    // array in case the channel list changes during filtering.
+                    // The filter runs on a background thread, so the full text index
+                    // can be searched here. Use a copy on write array in case the
+                    // recording list changes during filtering.
+                    val ids = searchRecordingIds(charString)
                     for (recording in CopyOnWriteArrayList(recordingList)) {
-                        // name match condition. this might differ depending on your requirement
-                        // here we are looking for a channel name match
-                        val title = recording.title ?: ""
-                        val name = recording.name ?: ""
-                        when {
-                            title.toLowerCase().contains(charString.toLowerCase()) -> filteredList.add(recording)
-                            name.toLowerCase().contains(charString.toLowerCase()) -> filteredList.add(recording)
+                        if (ids.contains(recording.id)) {
+                            filteredList.add(recording)
                         }
                     }
                     recordingListFiltered = filteredList
@@ -0,0 +1,159 @@
+package org.tvheadend.tvhclient.ui.features.epg
+
+import android.util.SparseArray
+import android.util.SparseBooleanArray
+import org.tvheadend.tvhclient.domain.entity.EpgChannel
+import org.tvheadend.tvhclient.domain.entity.EpgProgram
+import org.tvheadend.tvhclient.domain.repository.data_source.ProgramData
+import timber.log.Timber
+import java.util.*
+
+/**
+ * Provides the programs of the rows in the program guide. Each view pager fragment
+ * shows one time window. Instead of querying the programs of a single channel
+ * whenever a row is bound, the programs of a block of [BLOCK_SIZE] channels are
+ * loaded with one query and kept in memory per time window and channel. When a
+ * block is loaded the same block of the adjacent time windows and the next block
+ * of channels are loaded as well, so that swiping and scrolling usually find the
+ * programs already in memory.
+ *
+ * The queries run on the reader threads of the database executor. All methods
+ * must be called from the main thread, the callbacks are invoked on the main thread.
+ */
+class EpgGridDataProvider(private val programData: ProgramData,
+                          private val startTimes: List<Long>,
+                          private val endTimes: List<Long>) {
+
+    private val windows = SparseArray<Window>()
+
+    /**
+     * The programs and the pending requests of one time window. A load keeps
+     * a reference to its window, so the requests are answered even if the
+     * window was invalidated in the meantime.
+     */
+    private class Window {
+        val loadTime = System.currentTimeMillis()
+        // The programs of each loaded channel with the channel id as the key
+        val programs = SparseArray<List<EpgProgram>>()
+        val loadingChannelIds = SparseBooleanArray()
+        val pendingCallbacks = SparseArray<MutableList<(List<EpgProgram>) -> Unit>>()
+    }
+
+    /**
+     * Passes the programs of the channel at the given position to the callback. If the
+     * programs are already in memory the callback is invoked before this method returns.
+     *
+     * @param windowIndex The index of the time window, which is the view pager position
+     * @param channels    The channels that are shown in the program guide
+     * @param position    The position of the channel whose programs are requested
+     */
+    fun getPrograms(windowIndex: Int, channels: List<EpgChannel>, position: Int, callback: (List<EpgProgram>) -> Unit) {
+        val window = getWindow(windowIndex)
+        val channelId = channels[position].id
+        val programs = window.programs.get(channelId)
+        if (programs != null) {
+            callback(programs)
+            return
+        }
+
+        var callbacks = window.pendingCallbacks.get(channelId)
+        if (callbacks == null) {
+            callbacks = ArrayList()
+            window.pendingCallbacks.put(channelId, callbacks)
+        }
+        callbacks.add(callback)
+
+        val blockStart = position / BLOCK_SIZE * BLOCK_SIZE
+        loadBlock(windowIndex, channels, blockStart)
+        // Prefetch the neighbours of the requested block
+        loadBlock(windowIndex - 1, channels, blockStart)
+        loadBlock(windowIndex + 1, channels, blockStart)
+        loadBlock(windowIndex, channels, blockStart + BLOCK_SIZE)
+    }
+
+    /**
+     * Discards all programs in memory, for example because the programs in the
+     * database have changed. Requests that are still loading are answered.
+     */
+    fun invalidate() {
+        Timber.d("Invalidating programs of ${windows.size()} time windows")
+        windows.clear()
+    }
+
+    private fun getWindow(windowIndex: Int): Window {
+        var window = windows.get(windowIndex)
+        if (window == null || System.currentTimeMillis() - window.loadTime > MAX_WINDOW_AGE) {
+            window = Window()
+            windows.put(windowIndex, window)
+            removeDistantWindows(windowIndex)
+        }
+        return window
+    }
+
+    /**
+     * Only the time windows near the shown one are kept in memory
+     */
+    private fun removeDistantWindows(windowIndex: Int) {
+        for (i in windows.size() - 1 downTo 0) {
+            if (Math.abs(windows.keyAt(i) - windowIndex) > MAX_WINDOW_DISTANCE) {
+                windows.removeAt(i)
+            }
+        }
+    }
+
+    private fun loadBlock(windowIndex: Int, channels: List<EpgChannel>, blockStart: Int) {
+        if (windowIndex < 0 || windowIndex >= startTimes.size || blockStart >= channels.size) {
+            return
+        }
+        val window = getWindow(windowIndex)
+        val channelIds = ArrayList<Int>(BLOCK_SIZE)
+        for (i in blockStart until Math.min(blockStart + BLOCK_SIZE, channels.size)) {
+            val id = channels[i].id
+            if (window.programs.get(id) == null && !window.loadingChannelIds.get(id)) {
+                window.loadingChannelIds.put(id, true)
+                channelIds.add(id)
+            }
+        }
+        if (channelIds.isEmpty()) {
+            return
+        }
+
+        programData.getItemsByChannelIdsAndBetweenTime(channelIds, startTimes[windowIndex], endTimes[windowIndex]) { programs ->
+            Timber.d("Loaded ${programs.size} programs of ${channelIds.size} channels for time window $windowIndex")
+            onBlockLoaded(window, channelIds, programs)
+        }
+    }
+
+    private fun onBlockLoaded(window: Window, channelIds: List<Int>, programs: List<EpgProgram>) {
+        // The programs of each channel are in one consecutive range sorted by their start time
+        val programsOfChannels = SparseArray<MutableList<EpgProgram>>(channelIds.size)
+        for (program in programs) {
+            var channelPrograms = programsOfChannels.get(program.channelId)
+            if (channelPrograms == null) {
+                channelPrograms = ArrayList()
+                programsOfChannels.put(program.channelId, channelPrograms)
+            }
+            channelPrograms.add(program)
+        }
+
+        for (channelId in channelIds) {
+            val channelPrograms: List<EpgProgram> = programsOfChannels.get(channelId) ?: emptyList()
+            window.programs.put(channelId, channelPrograms)
+            window.loadingChannelIds.delete(channelId)
+
+            val callbacks = window.pendingCallbacks.get(channelId) ?: continue
+            window.pendingCallbacks.remove(channelId)
+            for (callback in callbacks) {
+                callback(channelPrograms)
+            }
+        }
+    }
+
+    companion object {
+
+        private const val BLOCK_SIZE = 25
+        private const val MAX_WINDOW_DISTANCE = 2
+        // Programs that were loaded before are reloaded in case they have changed
+        private const val MAX_WINDOW_AGE = 2 * 60 * 1000L
+    }
+}
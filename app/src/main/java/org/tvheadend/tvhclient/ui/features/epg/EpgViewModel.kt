@@ -8,7 +8,6 @@ import androidx.lifecycle.MediatorLiveData
 import androidx.lifecycle.Transformations
 import org.tvheadend.tvhclient.R
 import org.tvheadend.tvhclient.domain.entity.EpgChannel
-import org.tvheadend.tvhclient.domain.entity.EpgProgram
 import org.tvheadend.tvhclient.domain.entity.Recording
 import org.tvheadend.tvhclient.ui.features.channels.BaseChannelViewModel
 import timber.log.Timber
@@ -28,6 +27,7 @@ class EpgViewModel(application: Application) : BaseChannelViewModel(application)
     val fragmentCount: Int
     val startTimes = ArrayList<Long>()
     val endTimes = ArrayList<Long>()
+    val gridDataProvider: EpgGridDataProvider
 
     init {
         val trigger = EpgChannelLiveData(channelSortOrder, selectedChannelTagIds)
@@ -59,16 +59,13 @@ class EpgViewModel(application: Application) : BaseChannelViewModel(application)
         // shall be shown of the program guide and how many hours shall be visible per fragment.
         fragmentCount = daysToShow * (24 / hoursToShow)
         calculateViewPagerFragmentStartAndEndTimes()
+        gridDataProvider = EpgGridDataProvider(appRepository.programData, startTimes, endTimes)
     }
 
     fun getRecordingsByChannel(channelId: Int): LiveData<List<Recording>> {
         return appRepository.recordingData.getLiveDataItemsByChannelId(channelId)
     }
 
-    fun getProgramsByChannelAndBetweenTimeSync(channelId: Int, startTime: Long, endTime: Long): List<EpgProgram> {
-        return appRepository.programData.getItemByChannelIdAndBetweenTime(channelId, startTime, endTime)
-    }
-
     internal inner class EpgChannelLiveData(selectedChannelSortOrder: LiveData<Int>,
                                             selectedChannelTagIds: LiveData<List<Int>?>) : MediatorLiveData<Pair<Int, List<Int>?>>() {
 
@@ -95,7 +95,7 @@ class EpgViewPagerFragment : Fragment(), EpgScrollInterface {
 
         pixelsPerMinute = (displayWidth - 221).toFloat() / (60.0f * viewModel.hoursToShow.toFloat())
 
-        recyclerViewAdapter = EpgViewPagerRecyclerViewAdapter(requireActivity(), pixelsPerMinute, viewModel.startTimes[fragmentId], viewModel.endTimes[fragmentId])
+        recyclerViewAdapter = EpgViewPagerRecyclerViewAdapter(requireActivity(), pixelsPerMinute, fragmentId, viewModel.startTimes[fragmentId], viewModel.endTimes[fragmentId])
         recyclerViewLinearLayoutManager = LinearLayoutManager(appContext, RecyclerView.VERTICAL, false)
         recyclerView.addItemDecoration(DividerItemDecoration(appContext, LinearLayoutManager.VERTICAL))
         recyclerView.layoutManager = recyclerViewLinearLayoutManager
@@ -13,14 +13,12 @@ import kotlinx.android.synthetic.main.epg_program_list_adapter.*
 import org.tvheadend.tvhclient.domain.entity.EpgChannel
 import org.tvheadend.tvhclient.ui.common.gone
 import org.tvheadend.tvhclient.ui.common.visible
-import timber.log.Timber
-import java.util.concurrent.Executors
 
-class EpgViewPagerViewHolder(override val containerView: View, private val activity: FragmentActivity, pixelsPerMinute: Float, private val startTime: Long, private val endTime: Long, viewPool: RecyclerView.RecycledViewPool) : RecyclerView.ViewHolder(containerView), LayoutContainer {
+class EpgViewPagerViewHolder(override val containerView: View, private val activity: FragmentActivity, pixelsPerMinute: Float, private val fragmentId: Int, startTime: Long, endTime: Long, viewPool: RecyclerView.RecycledViewPool) : RecyclerView.ViewHolder(containerView), LayoutContainer {
 
     private val recyclerViewAdapter: EpgProgramListRecyclerViewAdapter
     private val viewModel: EpgViewModel
-    private val execService = Executors.newScheduledThreadPool(10)
+    private var boundChannelId = 0
 
     init {
         program_list_recycler_view.layoutManager = CustomHorizontalLayoutManager(containerView.context)
@@ -33,29 +31,28 @@ class EpgViewPagerViewHolder(override val containerView: View, private val activ
         viewModel = ViewModelProviders.of(activity).get(EpgViewModel::class.java)
     }
 
-    fun bindData(epgChannel: EpgChannel) {
+    fun bindData(channels: List<EpgChannel>, position: Int) {
+        val epgChannel = channels[position]
 
         program_list_recycler_view.gone()
         progress_bar.visible()
         no_programs.gone()
 
-        execService.execute {
-            val programs = viewModel.getProgramsByChannelAndBetweenTimeSync(epgChannel.id, startTime, endTime)
+        boundChannelId = epgChannel.id
+        viewModel.gridDataProvider.getPrograms(fragmentId, channels, position) { programs ->
+            // The view holder might have been bound to another channel in the meantime
+            if (boundChannelId != epgChannel.id) {
+                return@getPrograms
+            }
             if (programs.isNotEmpty()) {
-                Timber.d("Loaded ${programs.size} programs for channel ${epgChannel.name}")
-                activity.runOnUiThread {
-                    recyclerViewAdapter.addItems(programs.toMutableList())
-                    program_list_recycler_view.visible()
-                    progress_bar.gone()
-                    no_programs.gone()
-                }
+                recyclerViewAdapter.addItems(programs.toMutableList())
+                program_list_recycler_view.visible()
+                progress_bar.gone()
+                no_programs.gone()
             } else {
-                Timber.d("Loaded no programs for channel ${epgChannel.name}")
-                activity.runOnUiThread {
-                    program_list_recycler_view.gone()
-                    progress_bar.gone()
-                    no_programs.visible()
-                }
+                program_list_recycler_view.gone()
+                progress_bar.gone()
+                no_programs.visible()
             }
         }
 
@@ -109,6 +109,8 @@ class ProgramGuideFragment : BaseFragment(), EpgScrollInterface, RecyclerViewCli
 
             if (channels != null) {
                 Timber.d("View model returned ${channels.size} epg channels")
+                // The shown programs need to be loaded again for the changed channels
+                viewModel.gridDataProvider.invalidate()
                 channelListRecyclerViewAdapter.addItems(channels)
             }
             // Show either all channels or the name of the selected
@@ -56,6 +56,7 @@ class ExternalPlayerViewModel(application: Application) : AndroidViewModel(appli
 
         Timber.d("Starting connection")
         val connectionTimeout = Integer.valueOf(sharedPreferences.getString("connection_timeout", application.resources.getString(R.string.pref_default_connection_timeout))!!) * 1000
+        val receiveBufferLimit = Integer.valueOf(sharedPreferences.getString("receive_buffer_limit", application.resources.getString(R.string.pref_default_receive_buffer_limit))!!) * 1024 * 1024
         htspConnection = HtspConnection(
                 connection.username ?: "",
                 connection.password ?: "",
@@ -63,6 +64,7 @@ class ExternalPlayerViewModel(application: Application) : AndroidViewModel(appli
                 connection.port,
                 connectionTimeout,
                 this, null)
+        htspConnection.setReceiveBufferLimit(receiveBufferLimit)
 
         execService.execute {
             htspConnection.openConnection()
@@ -0,0 +1,26 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal
+
+/**
+ * Counters of a data source that can be shown while playing
+ *
+ * @param underrunCount           Number of times the data stopped arriving for more than half a second
+ * @param totalWaitTime           Time in milliseconds the extractor waited for data in total
+ * @param maxWaitTime             Longest time in milliseconds the extractor waited for data
+ * @param droppedPacketCount      Number of packets that did not fit into the buffer
+ * @param queuedPacketCount       Number of packets that wait for the extractor
+ * @param queuedBytes             Size of the payloads of the packets that wait for the extractor
+ * @param jitter                  Variation of the packet arrival times in milliseconds
+ * @param serverQueueDelay        Delay in milliseconds of the packets queued on the server
+ * @param serverDroppedFrameCount Number of frames the server dropped because its queue was full
+ * @param signalErrorCount        Number of uncorrected blocks of the tuner
+ */
+data class DataSourceStatistics(val underrunCount: Long,
+                                val totalWaitTime: Long,
+                                val maxWaitTime: Long,
+                                val droppedPacketCount: Int,
+                                val queuedPacketCount: Int,
+                                val queuedBytes: Int,
+                                val jitter: Long,
+                                val serverQueueDelay: Long,
+                                val serverDroppedFrameCount: Long,
+                                val signalErrorCount: Long)
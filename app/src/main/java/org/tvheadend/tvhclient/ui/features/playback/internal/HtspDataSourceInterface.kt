@@ -8,6 +8,16 @@ interface HtspDataSourceInterface {
 
     val timeshiftStartPts: Long
 
+    /**
+     * The buffer counters or null if the data source does not provide any
+     */
+    val statistics: DataSourceStatistics?
+
+    /**
+     * The counters of the packets of each stream or null if the data source does not provide any
+     */
+    val instrumentation: PlaybackInstrumentation?
+
     fun setSpeed(tvhSpeed: Int)
 
     fun resume()
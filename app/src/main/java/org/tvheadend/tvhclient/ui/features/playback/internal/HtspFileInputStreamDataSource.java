@@ -3,18 +3,22 @@ package org.tvheadend.tvhclient.ui.features.playback.internal;
 import android.content.Context;
 import android.net.Uri;
 
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.tvheadend.tvhclient.MainApplication;
 import org.tvheadend.tvhclient.data.service.htsp.HtspConnection;
 import org.tvheadend.tvhclient.data.service.htsp.HtspMessage;
 import org.tvheadend.tvhclient.data.service.htsp.HtspMessageListener;
-import org.tvheadend.tvhclient.data.service.htsp.HtspResponseListener;
 
 import java.io.Closeable;
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import timber.log.Timber;
@@ -29,12 +33,14 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
     private DataSpec dataSpec;
     private final int dataSourceNumber;
 
-    private ByteBuffer byteBuffer;
-
     private String fileName;
-    private int fileId = -1;
-    private long fileSize = -1;
-    private long filePosition = 0;
+    private volatile int fileId = -1;
+    private volatile long fileSize = -1;
+    private HtspFileReadAhead readAhead;
+    // Number of bytes that are left to read in the current data spec or C.LENGTH_UNSET
+    private long bytesRemaining = C.LENGTH_UNSET;
+    // Set by the first release, the factory and the finalizer may both release
+    private final AtomicBoolean isReleased = new AtomicBoolean(false);
 
     public static class Factory implements DataSource.Factory {
 
@@ -50,13 +56,16 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
 
         @Override
         public DataSource createDataSource() {
+            // The player only uses the most recently created data source
+            if (dataSource != null) {
+                dataSource.release();
+            }
             Timber.d("Created new data source from factory");
             dataSource = new HtspFileInputStreamDataSource(context, htspConnection);
             return dataSource;
         }
 
         HtspFileInputStreamDataSource getCurrentDataSource() {
-            Timber.d("Returning data source");
             return dataSource;
         }
 
@@ -64,6 +73,7 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
             Timber.d("Releasing data source");
             if (dataSource != null) {
                 dataSource.release();
+                dataSource = null;
             }
         }
     }
@@ -96,6 +106,18 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
         return Long.MIN_VALUE;
     }
 
+    @Nullable
+    @Override
+    public DataSourceStatistics getStatistics() {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public PlaybackInstrumentation getInstrumentation() {
+        return null;
+    }
+
     @Override
     public void resume() {
         // No action needed
@@ -114,32 +136,34 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
     }
 
     @Override
-    public long open(DataSpec dataSpec) {
+    public long open(DataSpec dataSpec) throws IOException {
         Timber.d("Opening file input data source " + dataSourceNumber + ")");
         this.dataSpec = dataSpec;
 
-        fileName = "dvrfile" + dataSpec.uri.getPath();
-
-        HtspMessage fileReadRequest = new HtspMessage();
-        fileReadRequest.put("method", "fileRead");
-        fileReadRequest.put("size", 1024000);
+        // The file stays open when the player seeks, only the reads start at another position
+        if (fileId == -1) {
+            openFile("dvrfile" + dataSpec.uri.getPath());
+        }
+        if (readAhead == null) {
+            readAhead = new HtspFileReadAhead(htspConnection, fileId, fileSize);
+        }
+        readAhead.start(dataSpec.position);
+
+        if (dataSpec.length != C.LENGTH_UNSET) {
+            bytesRemaining = dataSpec.length;
+        } else if (fileSize != -1) {
+            bytesRemaining = fileSize - dataSpec.position;
+        } else {
+            bytesRemaining = C.LENGTH_UNSET;
+        }
 
-        final HtspResponseListener fileReadHandler = response -> {
-            if (response.containsKey("error")) {
-                String error = response.getString("error");
-                Timber.d("Error reading file at offset 0: " + error);
+        Timber.d("Opened file " + fileName + ", id " + fileId + " with size " + fileSize + " at position " + dataSpec.position);
+        return bytesRemaining;
+    }
 
-            } else {
-                final byte[] data = response.getByteArray("data");
-                Timber.d("Fetched " + data.length + " bytes of file at offset 0");
-                filePosition += data.length;
-                byteBuffer = ByteBuffer.wrap(data);
-            }
-            synchronized (fileReadRequest) {
-                Timber.d("Notifying fileReadRequest");
-                fileReadRequest.notify();
-            }
-        };
+    private void openFile(String name) throws IOException {
+        fileName = name;
+        final CountDownLatch fileOpened = new CountDownLatch(1);
 
         HtspMessage fileOpenRequest = new HtspMessage();
         fileOpenRequest.put("method", "fileOpen");
@@ -151,56 +175,50 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
 
             } else {
                 Timber.d("Opening file: " + fileName);
-                fileId = response.getInteger("id");
                 if (response.containsKey("size")) {
                     fileSize = response.getLong("size");
                     Timber.v("Opened file " + fileName + " of size " + fileSize + " successfully");
                 } else {
                     Timber.v("Opened file " + fileName + " successfully");
                 }
-                Timber.d("Sending file read request for file id " + fileId);
-                fileReadRequest.put("id", fileId);
-                htspConnection.sendMessage(fileReadRequest, fileReadHandler);
+                fileId = response.getInteger("id");
             }
+            fileOpened.countDown();
         });
 
-        Timber.d("Waiting for fileReadRequest");
-        synchronized (fileReadRequest) {
-            try {
-                fileReadRequest.wait(5000);
-            } catch (InterruptedException e) {
-                Timber.d(e, "Waiting for fileReadRequest message was interrupted");
+        Timber.d("Waiting for fileOpen response");
+        try {
+            if (!fileOpened.await(5000, TimeUnit.MILLISECONDS)) {
+                throw new IOException("No response when opening file " + fileName);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Waiting for the fileOpen response was interrupted", e);
+        }
+        if (fileId == -1) {
+            throw new IOException("Could not open file " + fileName);
         }
-
-        Timber.d("Opened file " + fileName + ", id " + fileId + " with size " + fileSize);
-        return fileSize;
     }
 
     @Override
-    public int read(byte[] bytes, int offset, int readLength) {
-
-        // If we've reached the end of the file, we're done :)
-        if (fileSize == filePosition && !byteBuffer.hasRemaining()) {
-            return -1;
+    public int read(byte[] bytes, int offset, int readLength) throws IOException {
+        if (readLength == 0) {
+            return 0;
         }
-
-        sendFileRead(filePosition);
-
-        if (!byteBuffer.hasRemaining() && fileSize == -1) {
-            // If we still don't have any data, and we
-            // don't have a known size, then we're done.
-            return -1;
-
-        } else if (!byteBuffer.hasRemaining()) {
-            // If we don't have data here, something went wrong
-            Timber.d("Failed to read data for " + fileName);
+        if (bytesRemaining == 0) {
+            return C.RESULT_END_OF_INPUT;
         }
 
-        int startPos = byteBuffer.position();
+        int length = readLength;
+        if (bytesRemaining != C.LENGTH_UNSET) {
+            length = (int) Math.min(length, bytesRemaining);
+        }
 
-        byteBuffer.get(bytes, offset, Math.min(readLength, byteBuffer.remaining()));
-        return byteBuffer.position() - startPos;
+        int bytesRead = readAhead.read(bytes, offset, length);
+        if (bytesRead > 0 && bytesRemaining != C.LENGTH_UNSET) {
+            bytesRemaining -= bytesRead;
+        }
+        return bytesRead;
     }
 
     @Override
@@ -215,6 +233,9 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
     @Override
     public void close() {
         Timber.d("Closing file input data source " + dataSourceNumber + ")");
+        if (readAhead != null) {
+            readAhead.stop();
+        }
     }
 
     @Override
@@ -224,63 +245,23 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
 
     // HtspDataSource Methods
     private void release() {
+        if (!isReleased.compareAndSet(false, true)) {
+            return;
+        }
         Timber.d("Releasing file input data source " + dataSourceNumber + ")");
 
-        HtspMessage request = new HtspMessage();
-        request.put("method", "fileClose");
-        request.put("id", fileId);
-        htspConnection.sendMessage(request, null);
+        if (readAhead != null) {
+            readAhead.stop();
+        }
+        if (fileId != -1) {
+            HtspMessage request = new HtspMessage();
+            request.put("method", "fileClose");
+            request.put("id", fileId);
+            htspConnection.sendMessage(request, null);
+        }
         htspConnection.removeMessageListener(this);
 
         // Watch for memory leaks
         MainApplication.getRefWatcher(context).watch(this);
     }
-
-    private void sendFileRead(long offset) {
-        Timber.d("Sending message to read file from offset " + offset);
-        if (byteBuffer != null && byteBuffer.hasRemaining()) {
-            Timber.d("Buffer is not null and has elements remaining");
-            return;
-        }
-
-        long size = 1024000;
-        if (fileSize != -1) {
-            // Make sure we don't overrun the file
-            if (offset + size > fileSize) {
-                size = fileSize - offset;
-            }
-        }
-
-        HtspMessage request = new HtspMessage();
-        request.put("method", "fileRead");
-        request.put("id", fileId);
-        request.put("size", size);
-        request.put("offset", offset);
-
-        Timber.d("Fetching " + size + " bytes of file at offset " + offset);
-        htspConnection.sendMessage(request, response -> {
-            if (response.containsKey("error")) {
-                String error = response.getString("error");
-                Timber.d("Error reading file at " + offset + ": " + error);
-
-            } else {
-                final byte[] data = response.getByteArray("data");
-                Timber.d("Fetched " + data.length + " bytes of file at offset " + offset);
-                filePosition += data.length;
-                byteBuffer = ByteBuffer.wrap(data);
-            }
-            synchronized (request) {
-                request.notify();
-            }
-        });
-
-        Timber.d("Waiting for file read request");
-        synchronized (request) {
-            try {
-                request.wait(5000);
-            } catch (InterruptedException e) {
-                Timber.d(e, "Waiting for fileReadRequest message was interrupted.");
-            }
-        }
-    }
 }
@@ -0,0 +1,263 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.exoplayer2.C;
+
+import org.tvheadend.tvhclient.data.service.htsp.HtspConnection;
+import org.tvheadend.tvhclient.data.service.htsp.HtspMessage;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import timber.log.Timber;
+
+/**
+ * Reads a file from the server with several fileRead requests in flight. The requests
+ * are sent for consecutive chunks of the file and the responses are passed to the
+ * reader in the order of their offsets, regardless of the order in which they arrive.
+ * Whenever a chunk was read completely the request for the next chunk is sent.
+ *
+ * The size of the chunks follows the measured throughput, so that each request
+ * transfers about {@link #TARGET_CHUNK_DURATION_MS} worth of data. When the reader
+ * seeks, the outstanding requests are abandoned and new ones are sent right away.
+ * The server can't cancel a fileRead, so the responses of abandoned requests are
+ * received but ignored.
+ */
+class HtspFileReadAhead {
+
+    private static final int DEFAULT_READ_AHEAD_COUNT = 4;
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int INITIAL_CHUNK_SIZE = 1024 * 1024;
+    private static final long TARGET_CHUNK_DURATION_MS = 500;
+    private static final long READ_TIMEOUT_MS = 5000;
+
+    /**
+     * A fileRead request and its response
+     */
+    private static class Chunk {
+        final int generation;
+        final long offset;
+        final int size;
+        final long requestTime = System.nanoTime();
+        byte[] data;
+        int position;
+        String error;
+        boolean isDone;
+
+        Chunk(int generation, long offset, int size) {
+            this.generation = generation;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private final HtspConnection htspConnection;
+    private final int fileId;
+    private final long fileSize;
+    private final int readAheadCount;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition chunkReceived = lock.newCondition();
+    // The requested chunks in the order of their offsets
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    // Responses of requests from before the last seek are ignored
+    private int generation = 0;
+    private long nextRequestOffset = 0;
+    private boolean isEndOfFile = false;
+    // Bytes per millisecond, averaged over the received chunks
+    private double throughput = 0;
+    private long lastResponseTime = 0;
+
+    HtspFileReadAhead(HtspConnection htspConnection, int fileId, long fileSize) {
+        this(htspConnection, fileId, fileSize, DEFAULT_READ_AHEAD_COUNT);
+    }
+
+    /**
+     * @param fileSize       The size of the file or -1 if it is unknown
+     * @param readAheadCount The maximum number of requests in flight
+     */
+    HtspFileReadAhead(HtspConnection htspConnection, int fileId, long fileSize, int readAheadCount) {
+        this.htspConnection = htspConnection;
+        this.fileId = fileId;
+        this.fileSize = fileSize;
+        this.readAheadCount = readAheadCount;
+    }
+
+    /**
+     * Abandons all outstanding requests and starts reading at the given position
+     */
+    void start(long position) {
+        lock.lock();
+        try {
+            Timber.d("Starting to read file " + fileId + " at offset " + position + ", abandoning " + chunks.size() + " requests");
+            generation++;
+            chunks.clear();
+            nextRequestOffset = position;
+            isEndOfFile = false;
+            sendRequests();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Abandons all outstanding requests
+     */
+    void stop() {
+        lock.lock();
+        try {
+            generation++;
+            chunks.clear();
+            chunkReceived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the next bytes of the file into the buffer. Waits until the
+     * response for the next chunk has arrived if necessary.
+     *
+     * @return The number of bytes that were read or {@link C#RESULT_END_OF_INPUT}
+     * @throws IOException If the server returned an error or did not respond in time
+     */
+    int read(byte[] buffer, int offset, int readLength) throws IOException {
+        lock.lock();
+        try {
+            Chunk chunk = chunks.peekFirst();
+            if (chunk == null) {
+                return C.RESULT_END_OF_INPUT;
+            }
+
+            long timeout = TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_MS);
+            while (!chunk.isDone) {
+                if (timeout <= 0) {
+                    throw new IOException("No response for the read of file " + fileId + " at offset " + chunk.offset);
+                }
+                try {
+                    timeout = chunkReceived.awaitNanos(timeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Waiting for the read of file " + fileId + " was interrupted", e);
+                }
+                if (chunks.peekFirst() != chunk) {
+                    throw new IOException("Read of file " + fileId + " was stopped");
+                }
+            }
+
+            if (chunk.error != null) {
+                throw new IOException("Error reading file " + fileId + " at offset " + chunk.offset + ": " + chunk.error);
+            }
+            if (chunk.data.length == 0) {
+                // The server returns no data at the end of a file whose size is unknown
+                chunks.clear();
+                isEndOfFile = true;
+                return C.RESULT_END_OF_INPUT;
+            }
+
+            final int length = Math.min(readLength, chunk.data.length - chunk.position);
+            System.arraycopy(chunk.data, chunk.position, buffer, offset, length);
+            chunk.position += length;
+
+            if (chunk.position == chunk.data.length) {
+                chunks.removeFirst();
+                if (chunk.data.length < chunk.size) {
+                    // A short read means that the end of the file was reached
+                    chunks.clear();
+                    isEndOfFile = true;
+                } else {
+                    sendRequests();
+                }
+            }
+            return length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends requests for the following chunks until the read ahead limit is reached
+     * or the send queue of the connection is full.
+     * Must be called with the lock held.
+     */
+    private void sendRequests() {
+        while (chunks.size() < readAheadCount && !isEndOfFile) {
+            if (!chunks.isEmpty() && htspConnection.isSendQueueFull()) {
+                // The remaining requests are sent after the next chunk has been read
+                return;
+            }
+            int size = getChunkSize();
+            if (fileSize != -1) {
+                if (nextRequestOffset >= fileSize) {
+                    return;
+                }
+                // Make sure we don't overrun the file
+                size = (int) Math.min(size, fileSize - nextRequestOffset);
+            }
+
+            final Chunk chunk = new Chunk(generation, nextRequestOffset, size);
+            chunks.addLast(chunk);
+            nextRequestOffset += size;
+
+            HtspMessage request = new HtspMessage();
+            request.put("method", "fileRead");
+            request.put("id", fileId);
+            request.put("size", size);
+            request.put("offset", chunk.offset);
+
+            Timber.d("Fetching " + size + " bytes of file at offset " + chunk.offset);
+            htspConnection.sendMessage(request, response -> onResponse(chunk, response));
+        }
+    }
+
+    private void onResponse(@NonNull Chunk chunk, @NonNull HtspMessage response) {
+        lock.lock();
+        try {
+            if (chunk.generation != generation) {
+                Timber.d("Ignoring response for abandoned read at offset " + chunk.offset);
+                return;
+            }
+            if (response.containsKey("error")) {
+                chunk.error = response.getString("error");
+                Timber.d("Error reading file at " + chunk.offset + ": " + chunk.error);
+            } else {
+                chunk.data = response.getByteArray("data");
+                if (chunk.data == null) {
+                    chunk.data = new byte[0];
+                }
+                updateThroughput(chunk);
+            }
+            chunk.isDone = true;
+            chunkReceived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must be called with the lock held
+     */
+    private void updateThroughput(@NonNull Chunk chunk) {
+        // The requests are in flight at the same time and their responses arrive one
+        // after the other, so a response took the time since the previous one arrived
+        final long now = System.nanoTime();
+        final long startTime = Math.max(chunk.requestTime, lastResponseTime);
+        lastResponseTime = now;
+        final long duration = Math.max(1, TimeUnit.NANOSECONDS.toMillis(now - startTime));
+        final double chunkThroughput = (double) chunk.data.length / duration;
+        throughput = throughput == 0 ? chunkThroughput : 0.8 * throughput + 0.2 * chunkThroughput;
+    }
+
+    private int getChunkSize() {
+        if (throughput == 0) {
+            return INITIAL_CHUNK_SIZE;
+        }
+        final long size = (long) (throughput * TARGET_CHUNK_DURATION_MS);
+        return (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, size));
+    }
+}
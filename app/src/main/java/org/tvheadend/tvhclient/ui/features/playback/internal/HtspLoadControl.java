@@ -0,0 +1,76 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+
+import timber.log.Timber;
+
+/**
+ * Load control whose buffer duration before the playback starts can be changed while
+ * playing. The {@link LiveLatencyController} grows the duration when the stream arrives
+ * irregularly and shrinks it again when it arrives steadily, so that live streams don't
+ * stall on a bad connection and don't lag further behind live than necessary on a good one.
+ *
+ * After a rebuffer twice the duration is required, like {@link DefaultLoadControl} does with
+ * its default values. The limits for continuing to load are the ones of the default load control.
+ */
+public class HtspLoadControl extends DefaultLoadControl {
+
+    static final long MIN_BUFFER_FOR_PLAYBACK_MS = 250;
+    static final long MAX_BUFFER_FOR_PLAYBACK_MS = 10000;
+
+    private volatile long bufferForPlaybackUs;
+    // Only accessed from the playback thread
+    private boolean isRebuffering = false;
+    private volatile int rebufferCount = 0;
+
+    HtspLoadControl(long bufferForPlaybackMs) {
+        super(new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE),
+                DEFAULT_MIN_BUFFER_MS,
+                DEFAULT_MAX_BUFFER_MS,
+                (int) MIN_BUFFER_FOR_PLAYBACK_MS,
+                (int) MIN_BUFFER_FOR_PLAYBACK_MS,
+                C.DEFAULT_BUFFER_SEGMENT_SIZE,
+                true);
+        setBufferForPlaybackMs(bufferForPlaybackMs);
+    }
+
+    /**
+     * Sets the duration of the media that must be buffered before the playback starts.
+     * Can be called from any thread, the value is limited to a sensible range.
+     */
+    void setBufferForPlaybackMs(long bufferForPlaybackMs) {
+        final long ms = Math.max(MIN_BUFFER_FOR_PLAYBACK_MS, Math.min(MAX_BUFFER_FOR_PLAYBACK_MS, bufferForPlaybackMs));
+        bufferForPlaybackUs = C.msToUs(ms);
+    }
+
+    long getBufferForPlaybackMs() {
+        return C.usToMs(bufferForPlaybackUs);
+    }
+
+    /**
+     * Returns how often the playback had to stop because the buffer ran empty
+     */
+    int getRebufferCount() {
+        return rebufferCount;
+    }
+
+    @Override
+    public boolean shouldStartPlayback(long bufferedDurationUs, float playbackSpeed, boolean rebuffering) {
+        if (rebuffering && !isRebuffering) {
+            isRebuffering = true;
+            rebufferCount++;
+            Timber.d("Buffer ran empty, rebuffering for the " + rebufferCount + ". time");
+        }
+
+        // The buffered media lasts shorter when it is played faster
+        final long playoutDurationUs = playbackSpeed == 1f ? bufferedDurationUs : (long) (bufferedDurationUs / (double) playbackSpeed);
+        final long minBufferUs = rebuffering ? 2 * bufferForPlaybackUs : bufferForPlaybackUs;
+        final boolean shouldStartPlayback = playoutDurationUs >= minBufferUs;
+        if (shouldStartPlayback) {
+            isRebuffering = false;
+        }
+        return shouldStartPlayback;
+    }
+}
@@ -0,0 +1,105 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import org.tvheadend.tvhclient.data.service.htsp.HtspMessage;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A frame of one stream of a subscription as it was received in a muxpkt message.
+ * Packets are passed from the data source to the extractor via the
+ * {@link HtspPacketQueue} and are reused once the extractor has consumed them,
+ * so the stream readers must not keep a reference to a packet. The payload is
+ * the byte array of the message, a new one is allocated for every message.
+ */
+public class HtspPacket {
+
+    static final int TYPE_MUXPKT = 0;
+    static final int TYPE_SUBSCRIPTION_START = 1;
+
+    int type;
+    HtspMessage subscriptionStart;
+    int streamIndex;
+    int frameType;
+    long pts;
+    long dts;
+    long duration;
+    byte[] payload;
+    int payloadLength;
+    // The value of System.nanoTime() when the packet was added to the queue
+    long arrivalTime;
+
+    HtspPacket() {
+    }
+
+    /**
+     * Takes the values of the muxpkt message. The payload is taken over
+     * without copying it, so it must not be modified afterwards.
+     */
+    void setMuxpkt(@NonNull HtspMessage message) {
+//        frametype          u32   required   Type of frame as ASCII value: 'I', 'P', 'B'
+//        stream             u32   required   Stream index. Corresponds to the streams reported in the subscriptionStart message.
+//        dts                s64   optional   Decode Time Stamp in µs.
+//        pts                s64   optional   Presentation Time Stamp in µs.
+//        duration           u32   required   Duration of frame in µs.
+//        payload            bin   required   Actual frame data.
+        type = TYPE_MUXPKT;
+        subscriptionStart = null;
+        streamIndex = message.getInteger("stream");
+        frameType = message.getInteger("frametype", -1);
+        pts = message.getLong("pts", 0);
+        dts = message.getLong("dts", pts);
+        duration = message.getInteger("duration", 0);
+        payload = message.getByteArray("payload");
+        payloadLength = payload != null ? payload.length : 0;
+        arrivalTime = System.nanoTime();
+    }
+
+    void setSubscriptionStart(@NonNull HtspMessage message) {
+        type = TYPE_SUBSCRIPTION_START;
+        subscriptionStart = message;
+        streamIndex = -1;
+        payload = null;
+        payloadLength = 0;
+    }
+
+    void clear() {
+        subscriptionStart = null;
+        payload = null;
+        payloadLength = 0;
+    }
+
+    public int getStreamIndex() {
+        return streamIndex;
+    }
+
+    /**
+     * Returns the type of the frame as ASCII value 'I', 'P' or 'B'
+     * or -1 if the server did not provide it.
+     */
+    public int getFrameType() {
+        return frameType;
+    }
+
+    public long getPts() {
+        return pts;
+    }
+
+    public long getDts() {
+        return dts;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * The frame data is stored in the first {@link #getPayloadLength()} bytes of the array
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+}
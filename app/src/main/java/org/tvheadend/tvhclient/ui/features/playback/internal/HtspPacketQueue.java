@@ -0,0 +1,385 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import android.util.SparseArray;
+
+import com.google.android.exoplayer2.extractor.SeekMap;
+
+import org.tvheadend.tvhclient.data.service.htsp.HtspMessage;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import timber.log.Timber;
+
+/**
+ * Bounded queue that passes the packets of a subscription from the HTSP connection
+ * thread, which is the only producer, to the loader thread of the extractor, which
+ * is the only consumer. The packets are kept as parsed objects, so nothing needs
+ * to be serialized in between. Consumed packets are handed back to the producer
+ * via a second queue and are reused for the next messages.
+ *
+ * The queue is limited by the number of packets and by the size of their payloads.
+ * Packets that don't fit are dropped like the data that didn't fit into the buffer
+ * of the data source before.
+ *
+ * The consumer is woken up as soon as a packet was added. The time it waited for
+ * packets is measured. The consumer finds the queue empty between most packets,
+ * so only a wait of more than {@link #UNDERRUN_THRESHOLD_MS} after packets had
+ * been arriving is counted as an underrun that can be shown while playing.
+ *
+ * The extractor can't be given a reference to the queue directly, it only gets
+ * the bytes that the data source returns. Therefore each queue is registered
+ * with an id that the data source passes to the extractor in its stream. The
+ * seek map of the data source and the instrumentation counters that both of
+ * them update are passed to the extractor the same way.
+ */
+final class HtspPacketQueue {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+    private static final int MAX_POOLED_PACKETS = DEFAULT_CAPACITY;
+    private static final long UNDERRUN_THRESHOLD_MS = 500;
+
+    private static final AtomicInteger queueCount = new AtomicInteger();
+    private static final SparseArray<HtspPacketQueue> queues = new SparseArray<>();
+    // The packets of unregistered queues are reused by the next queues, so that
+    // switching channels does not allocate all packets again
+    private static final ArrayDeque<HtspPacket> packetPool = new ArrayDeque<>();
+
+    private final int id;
+    private final SeekMap seekMap;
+    private final PlaybackInstrumentation instrumentation = new PlaybackInstrumentation();
+    private final int maxBytes;
+    private final PacketRing packets;
+    private final PacketRing freePackets;
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    private volatile Thread waitingConsumer;
+    private volatile boolean endOfInput = false;
+
+    // Only written by the producer
+    private volatile int droppedPacketCount = 0;
+    // Only written by the consumer
+    private volatile long underrunCount = 0;
+    private volatile long totalWaitTime = 0;
+    private volatile long maxWaitTime = 0;
+    // State of the current wait for packets, only used by the consumer
+    private boolean isReceiving = false;
+    private long stallStartTime = 0;
+    private boolean isStallCounted = false;
+
+    HtspPacketQueue(@NonNull SeekMap seekMap) {
+        this(seekMap, DEFAULT_CAPACITY, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param seekMap  The seek map of the data source that offers the packets
+     * @param capacity The maximum number of packets, must be a power of two
+     * @param maxBytes The maximum size of the payloads of all queued packets
+     */
+    HtspPacketQueue(@NonNull SeekMap seekMap, int capacity, int maxBytes) {
+        this.seekMap = seekMap;
+        this.maxBytes = maxBytes;
+        this.packets = new PacketRing(capacity);
+        this.freePackets = new PacketRing(capacity);
+        this.id = queueCount.incrementAndGet();
+        synchronized (queues) {
+            queues.put(id, this);
+        }
+        synchronized (packetPool) {
+            while (!packetPool.isEmpty() && freePackets.offer(packetPool.peekFirst())) {
+                packetPool.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Returns the registered queue with the given id or null if it was already unregistered
+     */
+    @Nullable
+    static HtspPacketQueue find(int id) {
+        synchronized (queues) {
+            return queues.get(id);
+        }
+    }
+
+    int getId() {
+        return id;
+    }
+
+    @NonNull
+    SeekMap getSeekMap() {
+        return seekMap;
+    }
+
+    @NonNull
+    PlaybackInstrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    /**
+     * Removes the queue from the registry, wakes up a waiting consumer and returns the free
+     * packets to the pool. Must be called from the producer thread or when the producer
+     * won't offer any more packets. Packets that the consumer recycles afterwards are
+     * left to the garbage collector.
+     */
+    void unregister() {
+        synchronized (queues) {
+            queues.remove(id);
+        }
+        setEndOfInput(true);
+
+        int count = 0;
+        synchronized (packetPool) {
+            HtspPacket packet;
+            while (packetPool.size() < MAX_POOLED_PACKETS && (packet = freePackets.poll()) != null) {
+                packetPool.add(packet);
+                count++;
+            }
+        }
+        Timber.d("Returned " + count + " packets of queue " + id + " to the pool");
+    }
+
+    // Producer methods
+
+    void offerMuxpkt(@NonNull HtspMessage message) {
+        HtspPacket packet = obtain();
+        packet.setMuxpkt(message);
+        offer(packet);
+    }
+
+    void offerSubscriptionStart(@NonNull HtspMessage message) {
+        HtspPacket packet = obtain();
+        packet.setSubscriptionStart(message);
+        offer(packet);
+    }
+
+    private HtspPacket obtain() {
+        HtspPacket packet = freePackets.poll();
+        return packet != null ? packet : new HtspPacket();
+    }
+
+    private void offer(@NonNull HtspPacket packet) {
+        if (queuedBytes.get() + packet.payloadLength > maxBytes || !packets.offer(packet)) {
+            droppedPacketCount++;
+            if (droppedPacketCount % 100 == 1) {
+                Timber.w("Queue " + id + " is full, dropped " + droppedPacketCount + " packets so far");
+            }
+            packet.clear();
+            return;
+        }
+        queuedBytes.addAndGet(packet.payloadLength);
+        wakeUpConsumer();
+    }
+
+    /**
+     * Tells the consumer if more packets will follow. Can be called from any thread.
+     */
+    void setEndOfInput(boolean endOfInput) {
+        this.endOfInput = endOfInput;
+        if (endOfInput) {
+            wakeUpConsumer();
+        }
+    }
+
+    private void wakeUpConsumer() {
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    // Consumer methods
+
+    /**
+     * Returns the next packet. If the queue is empty the calling thread waits until a packet
+     * was added, the end of the input was reached or the timeout has expired.
+     *
+     * @return The next packet or null if no packet arrived in time
+     * @throws InterruptedException If the waiting thread was interrupted
+     */
+    @Nullable
+    HtspPacket poll(long timeoutMs) throws InterruptedException {
+        HtspPacket packet = take();
+        if (packet != null || endOfInput || timeoutMs <= 0) {
+            return packet;
+        }
+
+        final long startTime = System.nanoTime();
+        if (isReceiving && stallStartTime == 0) {
+            stallStartTime = startTime;
+        }
+        final long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        waitingConsumer = Thread.currentThread();
+        try {
+            // Check again after announcing the wait, the producer
+            // might have added a packet in between
+            while ((packet = take()) == null && !endOfInput) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waitingConsumer = null;
+            final long endTime = System.nanoTime();
+            final long waitTime = endTime - startTime;
+            totalWaitTime += waitTime;
+            if (waitTime > maxWaitTime) {
+                maxWaitTime = waitTime;
+            }
+            countUnderrun(endTime);
+        }
+        return packet;
+    }
+
+    /**
+     * Counts the current wait as an underrun once it lasted longer than the threshold.
+     * The wait may span several calls of {@link #poll(long)}, it is counted only once.
+     */
+    private void countUnderrun(long time) {
+        if (stallStartTime != 0 && !isStallCounted
+                && time - stallStartTime > TimeUnit.MILLISECONDS.toNanos(UNDERRUN_THRESHOLD_MS)) {
+            underrunCount++;
+            isStallCounted = true;
+        }
+    }
+
+    private HtspPacket take() {
+        HtspPacket packet = packets.poll();
+        if (packet != null) {
+            queuedBytes.addAndGet(-packet.payloadLength);
+            if (stallStartTime != 0) {
+                countUnderrun(System.nanoTime());
+                stallStartTime = 0;
+                isStallCounted = false;
+            }
+            isReceiving = true;
+        }
+        return packet;
+    }
+
+    /**
+     * Hands a consumed packet back so that it can be reused for the next message
+     */
+    void recycle(@NonNull HtspPacket packet) {
+        packet.clear();
+        freePackets.offer(packet);
+    }
+
+    /**
+     * Discards all queued packets, must be called from the consumer thread.
+     * Waiting for the packets that follow is not counted as an underrun.
+     */
+    void clear() {
+        HtspPacket packet;
+        int count = 0;
+        while ((packet = take()) != null) {
+            recycle(packet);
+            count++;
+        }
+        isReceiving = false;
+        stallStartTime = 0;
+        isStallCounted = false;
+        Timber.d("Discarded " + count + " packets from queue " + id);
+    }
+
+    boolean isEmpty() {
+        return packets.isEmpty();
+    }
+
+    boolean isEndOfInput() {
+        return endOfInput && packets.isEmpty();
+    }
+
+    // The counters can be read from any thread
+
+    long getUnderrunCount() {
+        return underrunCount;
+    }
+
+    /**
+     * Returns the time in milliseconds the consumer waited for packets in total
+     */
+    long getTotalWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitTime);
+    }
+
+    /**
+     * Returns the longest time in milliseconds the consumer waited for packets
+     */
+    long getMaxWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitTime);
+    }
+
+    int getDroppedPacketCount() {
+        return droppedPacketCount;
+    }
+
+    int getQueuedPacketCount() {
+        return packets.size();
+    }
+
+    int getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Ring buffer with a single producer and a single consumer thread
+     */
+    private static final class PacketRing {
+
+        private final HtspPacket[] items;
+        private final int mask;
+        // Index of the next item that is polled, only written by the consumer
+        private final AtomicLong head = new AtomicLong();
+        // Index of the next item that is offered, only written by the producer
+        private final AtomicLong tail = new AtomicLong();
+
+        PacketRing(int capacity) {
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("Capacity must be a power of two");
+            }
+            items = new HtspPacket[capacity];
+            mask = capacity - 1;
+        }
+
+        boolean offer(HtspPacket packet) {
+            final long currentTail = tail.get();
+            if (currentTail - head.get() == items.length) {
+                return false;
+            }
+            items[(int) (currentTail & mask)] = packet;
+            tail.set(currentTail + 1);
+            return true;
+        }
+
+        HtspPacket poll() {
+            final long currentHead = head.get();
+            if (currentHead == tail.get()) {
+                return null;
+            }
+            final int index = (int) (currentHead & mask);
+            HtspPacket packet = items[index];
+            items[index] = null;
+            head.set(currentHead + 1);
+            return packet;
+        }
+
+        boolean isEmpty() {
+            return head.get() == tail.get();
+        }
+
+        int size() {
+            return (int) (tail.get() - head.get());
+        }
+    }
+}
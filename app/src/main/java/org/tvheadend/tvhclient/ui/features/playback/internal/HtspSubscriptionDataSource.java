@@ -20,31 +20,38 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
-
-import androidx.annotation.NonNull;
+import android.util.SparseBooleanArray;
 
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
 
+import androidx.annotation.NonNull;
+
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.tvheadend.tvhclient.MainApplication;
 import org.tvheadend.tvhclient.R;
 import org.tvheadend.tvhclient.data.service.HtspService;
 import org.tvheadend.tvhclient.data.service.htsp.HtspConnection;
 import org.tvheadend.tvhclient.data.service.htsp.HtspMessage;
 import org.tvheadend.tvhclient.data.service.htsp.HtspMessageListener;
+import org.tvheadend.tvhclient.ui.features.playback.internal.reader.StreamReadersFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
 
 import timber.log.Timber;
 
@@ -52,9 +59,30 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
 
     private static final AtomicInteger dataSourceCount = new AtomicInteger();
     private static final AtomicInteger subscriptionCount = new AtomicInteger();
+    // Number of data sources that are subscribed and of those that were
+    // still subscribed without being released when their player was torn down
+    private static final AtomicInteger activeDataSourceCount = new AtomicInteger();
+    private static final AtomicInteger leakedDataSourceCount = new AtomicInteger();
+    // The data sources that are still subscribed. The connection keeps them
+    // as message listeners anyway, so this does not prolong their life.
+    private static final Set<HtspSubscriptionDataSource> subscribedDataSources = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    // Maximum time the player may keep a released data source open before it is unsubscribed anyway
+    private static final long RELEASE_TIMEOUT_MS = 5000;
+    private static final Handler releaseHandler = new Handler(Looper.getMainLooper());
+    // Maximum time a read waits before it checks again if the data source was closed
+    private static final long READ_WAIT_TIMEOUT_MS = 1000;
+    // Pre-subscriptions give way to all other subscriptions, the weight of a
+    // subscription without an explicit weight is used when it gets played
+    private static final int PRE_SUBSCRIPTION_WEIGHT = 10;
+    private static final int DEFAULT_SUBSCRIPTION_WEIGHT = 150;
+    // Maximum size of the payloads a pre-subscription keeps while waiting for a keyframe
+    private static final int MAX_STANDBY_BYTES = 4 * 1024 * 1024;
+    // Maximum size of the payloads of the recent packets that are kept for local seeks
+    private static final int MAX_HISTORY_BYTES = 8 * 1024 * 1024;
 
-    private static final int BUFFER_SIZE = 10 * 1024 * 1024;
     static final byte[] HEADER = new byte[]{0, 1, 0, 1, 0, 1, 0, 1};
+    // The header is followed by the id of the packet queue
+    static final int PREAMBLE_LENGTH = HEADER.length + 4;
 
     private final Context context;
     private final HtspConnection htspConnection;
@@ -62,11 +90,58 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
     private DataSpec dataSpec;
     private final int dataSourceNumber;
     private final int subscriptionId;
-    private ByteBuffer byteBuffer;
+    private final HtspPacketQueue packetQueue;
+    private final ByteBuffer preamble;
+    private final HtspTimeshiftSeekMap seekMap = new HtspTimeshiftSeekMap();
     private int timeshiftPeriod = 0;
-    private final ReentrantLock lock = new ReentrantLock();
-    private boolean subscriptionStarted = false;
+    // The values of the latest timeshiftStatus message
+    private volatile long timeshiftOffsetPts = Long.MIN_VALUE;
+    private volatile long timeshiftStartTime = Long.MIN_VALUE;
+    private volatile long timeshiftStartPts = Long.MIN_VALUE;
+    // The values of the latest queueStatus and signalStatus messages
+    private volatile long serverQueueDelay = 0;
+    private volatile long serverDroppedFrameCount = 0;
+    private volatile long signalErrorCount = 0;
+    // Estimate of the variation of the packet arrival times in µs like in RFC 3550,
+    // based on the decode time stamps of the packets of one stream
+    private volatile long jitter = 0;
+    private int jitterStreamIndex = -1;
+    private long lastTransitTime = C.TIME_UNSET;
+    private volatile boolean subscriptionStarted = false;
+    private final Object subscriptionStateLock = new Object();
     private boolean isSubscribed = false;
+    private volatile boolean isSubscriptionStopped = false;
+
+    // The owner of the data source, which is either the factory or the zapping subscriptions,
+    // holds one reference and the player holds another one while the data source is open. The
+    // subscription is stopped as soon as both have let go of the data source.
+    private final AtomicInteger referenceCount = new AtomicInteger(1);
+    private final AtomicBoolean isReleased = new AtomicBoolean(false);
+    private final AtomicBoolean isOpen = new AtomicBoolean(false);
+    // Only written with the packet lock held
+    private volatile boolean isUnsubscribed = false;
+    private final Runnable unsubscribeRunnable = () -> {
+        Timber.w("Data source " + dataSourceNumber + " is still open " + RELEASE_TIMEOUT_MS + " ms after it was released");
+        stopSubscription();
+        unsubscribe();
+    };
+
+    // Guards the packets that are kept and the packets that are offered to the queue
+    private final Object packetLock = new Object();
+    // A pre-subscribed data source keeps the packets from the last video keyframe
+    // on in standby until it is opened by the player and passes them to the queue
+    private boolean isStandby = false;
+    private HtspMessage standbySubscriptionStart;
+    private final ArrayList<HtspMessage> standbyPackets = new ArrayList<>();
+    private int standbyBytes = 0;
+    private final SparseBooleanArray videoStreamIndexes = new SparseBooleanArray();
+    // With timeshift enabled the recent packets from a video keyframe on are kept,
+    // so that seeks into them are served without asking the server to skip
+    private final ArrayDeque<HtspMessage> history = new ArrayDeque<>();
+    private int historyBytes = 0;
+    // Packets that arrive after a subscriptionSkip request was sent and
+    // before the server has confirmed it are from the old position
+    private boolean isSkipping = false;
 
     public static class Factory implements DataSource.Factory {
 
@@ -74,23 +149,43 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
         private final HtspConnection htspConnection;
         private final String streamProfile;
         private HtspSubscriptionDataSource dataSource;
+        private HtspSubscriptionDataSource preSubscribedDataSource;
 
         Factory(Context context, HtspConnection htspConnection, String streamProfile) {
+            this(context, htspConnection, streamProfile, null);
+        }
+
+        /**
+         * @param preSubscribedDataSource A data source that is already subscribed to the channel
+         *                                that shall be played. It is returned by the first call
+         *                                to {@link #createDataSource()} instead of a new one.
+         */
+        Factory(Context context, HtspConnection htspConnection, String streamProfile, @Nullable HtspSubscriptionDataSource preSubscribedDataSource) {
             Timber.d("Initializing subscription data source factory");
             this.context = context;
             this.htspConnection = htspConnection;
             this.streamProfile = streamProfile;
+            this.preSubscribedDataSource = preSubscribedDataSource;
         }
 
         @Override
         public DataSource createDataSource() {
+            // The player only uses the most recently created data source
+            if (dataSource != null) {
+                dataSource.release();
+            }
+            if (preSubscribedDataSource != null) {
+                Timber.d("Using pre-subscribed data source " + preSubscribedDataSource.dataSourceNumber);
+                dataSource = preSubscribedDataSource;
+                preSubscribedDataSource = null;
+                return dataSource;
+            }
             Timber.d("Created new data source from factory");
             dataSource = new HtspSubscriptionDataSource(context, htspConnection, streamProfile);
             return dataSource;
         }
 
         HtspDataSourceInterface getCurrentDataSource() {
-            Timber.d("Returning data source");
             return dataSource;
         }
 
@@ -98,6 +193,11 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
             Timber.d("Releasing data source");
             if (dataSource != null) {
                 dataSource.release();
+                dataSource = null;
+            }
+            if (preSubscribedDataSource != null) {
+                preSubscribedDataSource.release();
+                preSubscribedDataSource = null;
             }
         }
     }
@@ -112,90 +212,317 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
         SharedPreferences mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         boolean timeshiftEnabled = mSharedPreferences.getBoolean("timeshift_enabled", context.getResources().getBoolean(R.bool.pref_default_timeshift_enabled));
         if (timeshiftEnabled) {
-            // TODO: Eventually, this should be a preference.
-            timeshiftPeriod = 3600;
+            timeshiftPeriod = Integer.parseInt(mSharedPreferences.getString("timeshift_period", context.getResources().getString(R.string.pref_default_timeshift_period)));
         }
 
         dataSourceNumber = dataSourceCount.incrementAndGet();
         subscriptionId = subscriptionCount.incrementAndGet();
+        activeDataSourceCount.incrementAndGet();
+        subscribedDataSources.add(this);
 
         Timber.d("New subscription data source instantiated (" + dataSourceNumber + ")");
 
-        try {
-            // Create the buffer, and place the HtspSubscriptionDataSource header in place.
-            byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-            byteBuffer.limit(HEADER.length);
-            byteBuffer.put(HEADER);
-            byteBuffer.position(0);
+        // The received packets are passed to the extractor via the queue. The only
+        // bytes that are read from this data source are the header that is required
+        // to select the extractor and the id that the extractor uses to find the queue.
+        packetQueue = new HtspPacketQueue(seekMap);
+        preamble = ByteBuffer.allocate(PREAMBLE_LENGTH);
+        preamble.put(HEADER);
+        preamble.putInt(packetQueue.getId());
+        preamble.flip();
+    }
 
-        } catch (OutOfMemoryError e) {
-            // Since we're allocating a large buffer here, it's fairly safe to assume we'll have
-            // enough memory to catch and throw this exception. We do this, as each OOM exception
-            // message is unique (lots of #'s of bytes available/used/etc) and means crash reporting
-            // doesn't group things nicely.
-            throw new RuntimeException("OutOfMemoryError when allocating subscription data source buffer (" + dataSourceNumber + ")", e);
+    /**
+     * Creates a data source that subscribes to the channel right away with a low weight.
+     * The packets are kept in standby until the data source is opened by the player,
+     * so that playback can start at the most recent keyframe.
+     */
+    static HtspSubscriptionDataSource preSubscribe(Context context, HtspConnection htspConnection, String streamProfile, int channelId) {
+        HtspSubscriptionDataSource dataSource = new HtspSubscriptionDataSource(context, htspConnection, streamProfile);
+        synchronized (dataSource.packetLock) {
+            dataSource.isStandby = true;
         }
+        dataSource.subscribe(channelId, PRE_SUBSCRIPTION_WEIGHT);
+        return dataSource;
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        Timber.d("Finalizing subscription data source");
-        release();
-        super.finalize();
+    /**
+     * Returns true if the server has stopped the subscription, for example
+     * because the tuner was required for a subscription with a higher weight
+     */
+    boolean isSubscriptionStopped() {
+        return isSubscriptionStopped;
+    }
+
+    /**
+     * Returns the number of data sources that are currently subscribed
+     */
+    static int getActiveCount() {
+        return activeDataSourceCount.get();
+    }
+
+    /**
+     * Returns the number of data sources that were not released
+     * by their owner before their player was torn down
+     */
+    static int getLeakedCount() {
+        return leakedDataSourceCount.get();
+    }
+
+    /**
+     * Must be called after the player that uses the connection was torn down and the owners
+     * released their data sources. The data sources of the connection that were not released
+     * are counted as leaked and their subscriptions are stopped. Released data sources that
+     * the player still keeps open are stopped by their release timeout as usual.
+     *
+     * @return The number of data sources that were not released
+     */
+    static int releaseLeaked(@NonNull HtspConnection htspConnection) {
+        int count = 0;
+        for (HtspSubscriptionDataSource dataSource : subscribedDataSources) {
+            if (dataSource.htspConnection == htspConnection && !dataSource.isReleased.get()) {
+                count++;
+                leakedDataSourceCount.incrementAndGet();
+                Timber.w("Subscription data source " + dataSource.dataSourceNumber + " was not released, "
+                        + leakedDataSourceCount.get() + " data sources leaked so far");
+                dataSource.unsubscribe();
+            }
+        }
+        return count;
     }
 
     @Override
-    public long open(DataSpec dataSpec) {
+    public long open(DataSpec dataSpec) throws IOException {
         Timber.d("Opening subscription data source " + dataSourceNumber + ")");
         this.dataSpec = dataSpec;
 
+        if (isUnsubscribed) {
+            throw new IOException("Subscription data source " + dataSourceNumber + " was already released");
+        }
+        if (isOpen.compareAndSet(false, true)) {
+            referenceCount.incrementAndGet();
+        }
+
         if (!isSubscribed) {
             String path = dataSpec.uri.getPath();
             Timber.d("We are not yet subscribed to path " + path);
             if (path != null && path.length() > 0 ) {
+                subscribe(Integer.parseInt(path.substring(1)), 0);
+            }
+        } else {
+            leaveStandby();
+        }
+
+        Timber.d("Getting seek position");
+        // The positions of the seek map are the time stamps to skip to
+        long seekPosition = this.dataSpec.position;
+        if (seekPosition > 0) {
+            seek(seekPosition);
+        }
 
-                int channelId = Integer.parseInt(path.substring(1));
-                Timber.d("Sending subscription start to service with id " + subscriptionId + " for channel id " + channelId);
+        subscriptionStarted = true;
+        packetQueue.setEndOfInput(false);
 
-                HtspMessage request = new HtspMessage();
-                request.setMethod("subscribe");
-                request.put("subscriptionId", subscriptionId);
-                request.put("channelId", channelId);
-                request.put("timeshiftPeriod", timeshiftPeriod);
+        return C.LENGTH_UNSET;
+    }
 
-                if (!TextUtils.isEmpty(streamProfile)) {
-                    request.put("profile", streamProfile);
+    /**
+     * @param weight The weight of the subscription or 0 to use the default weight of the server
+     */
+    private void subscribe(int channelId, int weight) {
+        Timber.d("Sending subscription start to service with id " + subscriptionId + " for channel id " + channelId);
+
+        HtspMessage request = new HtspMessage();
+        request.setMethod("subscribe");
+        request.put("subscriptionId", subscriptionId);
+        request.put("channelId", channelId);
+        request.put("timeshiftPeriod", timeshiftPeriod);
+        if (weight > 0) {
+            request.put("weight", weight);
+        }
+
+        if (!TextUtils.isEmpty(streamProfile)) {
+            request.put("profile", streamProfile);
+        }
+
+        htspConnection.sendMessage(request, response -> {
+            Timber.d("Received subscribe response");
+            // The server may grant a shorter period than the requested one or none at all
+            int availableTimeshiftPeriod = response.getInteger("timeshiftPeriod", 0);
+            Timber.d("Available timeshift period in seconds: " + availableTimeshiftPeriod);
+            seekMap.setTimeshiftPeriod(availableTimeshiftPeriod * 1000000L);
+        });
+        isSubscribed = true;
+    }
+
+    /**
+     * Continues the stream at the given time stamp. If the kept packets contain the time
+     * stamp, they are passed to the extractor again from the preceding keyframe on.
+     * Otherwise the server is asked to skip to it. Must be called from the loader thread
+     * because the packet queue is cleared.
+     */
+    private void seek(long pts) {
+        synchronized (packetLock) {
+            final long keyframe = seekMap.getLocalKeyframe(pts);
+            if (keyframe != C.TIME_UNSET && replayHistory(keyframe)) {
+                Timber.d("Seeking locally to keyframe at " + keyframe + " for time PTS: " + pts);
+                return;
+            }
+            if (timeshiftPeriod == 0) {
+                Timber.d("Timeshift is disabled, not seeking to time PTS: " + pts);
+                return;
+            }
+            isSkipping = true;
+            lastTransitTime = C.TIME_UNSET;
+            clearHistory();
+            packetQueue.clear();
+        }
+
+        Timber.d("Sending subscription skip to server with id " + subscriptionId + " with time PTS: " + pts);
+
+        HtspMessage request = new HtspMessage();
+        request.put("method", "subscriptionSkip");
+        request.put("subscriptionId", subscriptionId);
+        request.put("time", pts);
+        request.put("absolute", 1);
+
+        htspConnection.sendMessage(request, response -> {
+            if (response.containsKey("error")) {
+                Timber.d("Subscription skip failed: " + response.getString("error"));
+                synchronized (packetLock) {
+                    isSkipping = false;
                 }
+            }
+        });
+    }
 
-                htspConnection.sendMessage(request, response -> {
-                    Timber.d("Received subscribe response");
-                    int availableTimeshiftPeriod = response.getInteger("timeshiftPeriod", 0);
-                    Timber.d("Available timeshift period in seconds: " + availableTimeshiftPeriod);
-                });
-                isSubscribed = true;
+    /**
+     * Passes the kept packets from the given keyframe on to the extractor again.
+     * Must be called with the packet lock held.
+     *
+     * @return False if the keyframe is not among the kept packets
+     */
+    private boolean replayHistory(long keyframe) {
+        packetQueue.clear();
+        boolean isReplaying = false;
+        int count = 0;
+        for (HtspMessage message : history) {
+            if (!isReplaying) {
+                isReplaying = isVideoKeyFrame(message) && message.getLong("pts", 0) == keyframe;
+            }
+            if (isReplaying) {
+                packetQueue.offerMuxpkt(message);
+                count++;
             }
         }
+        Timber.d("Passed " + count + " of " + history.size() + " kept packets to the extractor again");
+        return isReplaying;
+    }
 
-        Timber.d("Getting seek position");
-        long seekPosition = this.dataSpec.position;
-        if (seekPosition > 0 && timeshiftPeriod > 0) {
-            Timber.d("Sending subscription skip to server with id " + subscriptionId + " with time PTS: " + seekPosition);
+    /**
+     * Keeps the packet for local seeks. The oldest packets up to the next keyframe are
+     * removed when the limit is reached, so that the kept packets start with a keyframe.
+     * Must be called with the packet lock held.
+     */
+    private void keepInHistory(@NonNull HtspMessage message) {
+        final boolean isVideoKeyFrame = isVideoKeyFrame(message);
+        if (timeshiftPeriod == 0 || (history.isEmpty() && !isVideoKeyFrame)) {
+            return;
+        }
+        final long pts = message.getLong("pts", 0);
+        history.addLast(message);
+        historyBytes += getPayloadLength(message);
+        if (isVideoKeyFrame) {
+            seekMap.addKeyframe(pts);
+        }
+        seekMap.setLocalEndPts(pts);
+
+        if (historyBytes > MAX_HISTORY_BYTES) {
+            do {
+                historyBytes -= getPayloadLength(history.removeFirst());
+            } while (!history.isEmpty() && !isVideoKeyFrame(history.peekFirst()));
+
+            if (history.isEmpty()) {
+                clearHistory();
+            } else {
+                seekMap.removeKeyframesBefore(history.peekFirst().getLong("pts", 0));
+            }
+        }
+    }
+
+    private void clearHistory() {
+        history.clear();
+        historyBytes = 0;
+        seekMap.clearLocalWindow();
+    }
 
-            HtspMessage request = new HtspMessage();
-            request.put("method", "subscriptionSkip");
-            request.put("subscriptionId", subscriptionId);
-            request.put("time", seekPosition);
-            request.put("absolute", 1);
+    private boolean isVideoKeyFrame(@NonNull HtspMessage message) {
+        return videoStreamIndexes.get(message.getInteger("stream", -1))
+                && message.getInteger("frametype", -1) == 'I';
+    }
 
-            htspConnection.sendMessage(request, null);
+    private static int getPayloadLength(@NonNull HtspMessage message) {
+        final byte[] payload = message.getByteArray("payload");
+        return payload != null ? payload.length : 0;
+    }
 
-            byteBuffer.clear();
-            byteBuffer.limit(0);
+    /**
+     * Passes the packets that were kept in standby to the extractor and
+     * raises the weight of the subscription to the one of a regular subscription
+     */
+    private void leaveStandby() {
+        synchronized (packetLock) {
+            if (!isStandby) {
+                return;
+            }
+            Timber.d("Leaving standby with " + standbyPackets.size() + " packets (" + dataSourceNumber + ")");
+            isStandby = false;
+            if (standbySubscriptionStart != null) {
+                packetQueue.offerSubscriptionStart(standbySubscriptionStart);
+            }
+            for (HtspMessage message : standbyPackets) {
+                packetQueue.offerMuxpkt(message);
+            }
+            standbySubscriptionStart = null;
+            standbyPackets.clear();
+            standbyBytes = 0;
         }
 
-        subscriptionStarted = true;
+        HtspMessage request = new HtspMessage();
+        request.put("method", "subscriptionChangeWeight");
+        request.put("subscriptionId", subscriptionId);
+        request.put("weight", DEFAULT_SUBSCRIPTION_WEIGHT);
+        htspConnection.sendMessage(request, null);
+    }
 
-        return C.LENGTH_UNSET;
+    /**
+     * Keeps the packet while in standby. The packets before the latest video keyframe
+     * are discarded because the playback can't start with them.
+     *
+     * @return False if the data source is not in standby and the packet was not kept
+     */
+    private boolean keepInStandby(@NonNull HtspMessage message) {
+        if (!isStandby) {
+            return false;
+        }
+        if (message.getMethod().equals("subscriptionStart")) {
+            standbySubscriptionStart = message;
+            return true;
+        }
+
+        final boolean isVideoKeyFrame = isVideoKeyFrame(message);
+        final int payloadLength = getPayloadLength(message);
+        if (isVideoKeyFrame || standbyBytes + payloadLength > MAX_STANDBY_BYTES) {
+            standbyPackets.clear();
+            standbyBytes = 0;
+        }
+        // Without a keyframe the video can't be decoded, audio and subtitles are
+        // only kept if the channel has no video stream at all
+        if (isVideoKeyFrame || !standbyPackets.isEmpty() || videoStreamIndexes.size() == 0) {
+            standbyPackets.add(message);
+            standbyBytes += payloadLength;
+        }
+        return true;
     }
 
     @Override
@@ -204,37 +531,29 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
             return 0;
         }
 
-        // If the buffer is empty, block until we have at least 1 byte
-        while (subscriptionStarted && byteBuffer.remaining() == 0) {
-            try {
-                Timber.v("Blocking for more data (" + dataSourceNumber + ")");
-                Thread.sleep(250);
-            } catch (InterruptedException e) {
-                // Ignore.
-                Timber.w("Caught InterruptedException (" + dataSourceNumber + ")");
-                return 0;
+        // All data after the preamble is passed via the packet queue, so
+        // there is nothing left to read until the data source is closed
+        if (preamble.remaining() == 0) {
+            synchronized (subscriptionStateLock) {
+                while (subscriptionStarted) {
+                    try {
+                        subscriptionStateLock.wait(READ_WAIT_TIMEOUT_MS);
+                    } catch (InterruptedException e) {
+                        Timber.w("Caught InterruptedException (" + dataSourceNumber + ")");
+                        Thread.currentThread().interrupt();
+                        return 0;
+                    }
+                }
             }
         }
 
-        if (!subscriptionStarted && byteBuffer.remaining() == 0) {
+        if (!subscriptionStarted && preamble.remaining() == 0) {
             Timber.d("End of input buffer");
             return C.RESULT_END_OF_INPUT;
         }
 
-        int length;
-
-        lock.lock();
-        try {
-            int remaining = byteBuffer.remaining();
-            length = remaining >= readLength ? readLength : remaining;
-
-            byteBuffer.get(buffer, offset, length);
-            byteBuffer.compact();
-            byteBuffer.flip();
-        } finally {
-            lock.unlock();
-        }
-
+        int length = Math.min(preamble.remaining(), readLength);
+        preamble.get(buffer, offset, length);
         return length;
     }
 
@@ -250,28 +569,74 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
     @Override
     public void close() {
         Timber.d("Closing subscription data source " + dataSourceNumber + ")");
-        subscriptionStarted = false;
+        stopSubscription();
+        if (isOpen.compareAndSet(true, false)) {
+            releaseReference();
+        }
     }
 
     @Override
     public void onMessage(@NotNull HtspMessage message) {
+        // Other data sources might be subscribed via the same connection
+        if (!message.containsKey("subscriptionId") || message.getInteger("subscriptionId") != subscriptionId) {
+            return;
+        }
+
         String method = message.getMethod();
         switch (method) {
             case "subscriptionStart":
+                synchronized (packetLock) {
+                    // The packets of the queue were returned to the pool
+                    if (isUnsubscribed) {
+                        break;
+                    }
+                    updateVideoStreamIndexes(message);
+                    jitterStreamIndex = -1;
+                    lastTransitTime = C.TIME_UNSET;
+                    if (!keepInStandby(message)) {
+                        packetQueue.offerSubscriptionStart(message);
+                    }
+                }
+                break;
+
             case "muxpkt":
-                serializeMessageToBuffer(message);
+                packetQueue.getInstrumentation().onPacketReceived(message.getInteger("stream", -1), getPayloadLength(message));
+                synchronized (packetLock) {
+                    updateJitter(message);
+                    if (!isUnsubscribed && !isSkipping && !keepInStandby(message)) {
+                        keepInHistory(message);
+                        packetQueue.offerMuxpkt(message);
+                    }
+                }
+                break;
+
+            case "subscriptionSkip":
+                Timber.d("Server has skipped to time PTS: " + message.getLong("time", 0));
+                synchronized (packetLock) {
+                    isSkipping = false;
+                }
+                break;
+
+            case "timeshiftStatus":
+                onTimeshiftStatus(message);
                 break;
 
             case "subscriptionStop":
-                subscriptionStarted = false;
+                isSubscriptionStopped = true;
+                stopSubscription();
                 break;
 
-            case "subscriptionStatus":
-            case "subscriptionSkip":
-            case "subscriptionSpeed":
             case "queueStatus":
+                onQueueStatus(message);
+                break;
+
             case "signalStatus":
-            case "timeshiftStatus":
+                // Uncorrected blocks of the tuner, the stream might have been corrupted
+                signalErrorCount = message.getLong("feUNC", 0);
+                break;
+
+            case "subscriptionStatus":
+            case "subscriptionSpeed":
                 break;
 
             default:
@@ -279,14 +644,129 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
         }
     }
 
-    private void release() {
+    /**
+     * Must be called with the packet lock held
+     */
+    private void updateVideoStreamIndexes(@NonNull HtspMessage message) {
+        videoStreamIndexes.clear();
+        for (Object obj : message.getList("streams")) {
+            HtspMessage stream = (HtspMessage) obj;
+            if (StreamReadersFactory.isVideoStreamType(stream.getString("type", ""))) {
+                videoStreamIndexes.put(stream.getInteger("index"), true);
+            }
+        }
+    }
+
+    /**
+     * Must be called with the packet lock held
+     */
+    private void updateJitter(@NonNull HtspMessage message) {
+        final int streamIndex = message.getInteger("stream", -1);
+        if (jitterStreamIndex == -1) {
+            jitterStreamIndex = streamIndex;
+        }
+        if (streamIndex != jitterStreamIndex || !message.containsKey("dts")) {
+            return;
+        }
+        final long transitTime = System.nanoTime() / 1000 - message.getLong("dts");
+        if (lastTransitTime != C.TIME_UNSET) {
+            final long difference = Math.abs(transitTime - lastTransitTime);
+            jitter += (difference - jitter) / 16;
+        }
+        lastTransitTime = transitTime;
+    }
+
+    private void onQueueStatus(@NonNull HtspMessage message) {
+//        packets            u32   required   Number of data packets in queue.
+//        bytes              u32   required   Number of bytes in queue.
+//        delay              u32   optional   Estimated delay of queue (in µs)
+//        Bdrops             u32   required   Number of B-frames dropped
+//        Pdrops             u32   required   Number of P-frames dropped
+//        Idrops             u32   required   Number of I-frames dropped
+        serverQueueDelay = message.getLong("delay", 0);
+        serverDroppedFrameCount = message.getLong("Bdrops", 0)
+                + message.getLong("Pdrops", 0)
+                + message.getLong("Idrops", 0);
+    }
+
+    private void onTimeshiftStatus(@NonNull HtspMessage message) {
+//        full               u32   required   Indicates whether the buffer is full
+//        shift              s64   required   Current position relative to live
+//        start              s64   optional   PTS of the first frame in the buffer
+//        end                s64   optional   PTS of the last frame in the buffer
+        final long shift = Math.abs(message.getLong("shift", 0));
+        final long startPts = message.getLong("start", C.TIME_UNSET);
+        final long endPts = message.getLong("end", C.TIME_UNSET);
+        seekMap.setTimeshiftWindow(startPts, endPts);
+
+        timeshiftOffsetPts = -shift;
+        timeshiftStartPts = startPts != C.TIME_UNSET ? startPts : Long.MIN_VALUE;
+        // The end of the buffer is the live position, so the buffer
+        // started as long ago as the buffer is long
+        timeshiftStartTime = startPts != C.TIME_UNSET && endPts != C.TIME_UNSET
+                ? System.currentTimeMillis() * 1000 - (endPts - startPts) : Long.MIN_VALUE;
+    }
+
+    /**
+     * Wakes up the waiting reads and tells the extractor that no more packets will follow
+     */
+    private void stopSubscription() {
+        synchronized (subscriptionStateLock) {
+            subscriptionStarted = false;
+            subscriptionStateLock.notifyAll();
+        }
+        packetQueue.setEndOfInput(true);
+    }
+
+    /**
+     * Lets go of the reference of the owner. The subscription is stopped right away if the
+     * player has closed the data source, otherwise when the player closes it but at the latest
+     * after {@link #RELEASE_TIMEOUT_MS}. Can be called more than once from any thread.
+     */
+    void release() {
+        if (!isReleased.compareAndSet(false, true)) {
+            return;
+        }
         Timber.d("Releasing subscription data source " + dataSourceNumber + ")");
+        if (!releaseReference()) {
+            releaseHandler.postDelayed(unsubscribeRunnable, RELEASE_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * @return True if this was the last reference and the subscription was stopped
+     */
+    private boolean releaseReference() {
+        if (referenceCount.decrementAndGet() > 0) {
+            return false;
+        }
+        unsubscribe();
+        return true;
+    }
+
+    /**
+     * Stops the subscription on the server and returns the packets to the shared pool
+     */
+    private void unsubscribe() {
+        synchronized (packetLock) {
+            if (isUnsubscribed) {
+                return;
+            }
+            isUnsubscribed = true;
+            htspConnection.removeMessageListener(this);
+            clearHistory();
+            standbyPackets.clear();
+            packetQueue.unregister();
+        }
+        releaseHandler.removeCallbacks(unsubscribeRunnable);
+        activeDataSourceCount.decrementAndGet();
+        subscribedDataSources.remove(this);
+        Timber.d("Unsubscribing subscription data source " + dataSourceNumber + ")");
 
         HtspMessage request = new HtspMessage();
         request.put("method", "unsubscribe");
         request.put("subscriptionId", subscriptionId);
         htspConnection.sendMessage(request, null);
-        htspConnection.removeMessageListener(this);
 
         // Watch for memory leaks
         MainApplication.getRefWatcher(context).watch(this);
@@ -304,7 +784,7 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
 
     @Override
     public long getTimeshiftOffsetPts() {
-        return 0;
+        return timeshiftOffsetPts;
     }
 
     @Override
@@ -318,12 +798,34 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
 
     @Override
     public long getTimeshiftStartTime() {
-        return 0;
+        return timeshiftStartTime;
     }
 
     @Override
     public long getTimeshiftStartPts() {
-        return 0;
+        return timeshiftStartPts;
+    }
+
+    @Nullable
+    @Override
+    public PlaybackInstrumentation getInstrumentation() {
+        return packetQueue.getInstrumentation();
+    }
+
+    @Nullable
+    @Override
+    public DataSourceStatistics getStatistics() {
+        return new DataSourceStatistics(
+                packetQueue.getUnderrunCount(),
+                packetQueue.getTotalWaitTime(),
+                packetQueue.getMaxWaitTime(),
+                packetQueue.getDroppedPacketCount(),
+                packetQueue.getQueuedPacketCount(),
+                packetQueue.getQueuedBytes(),
+                jitter / 1000,
+                serverQueueDelay / 1000,
+                serverDroppedFrameCount,
+                signalErrorCount);
     }
 
     public void resume() {
@@ -334,30 +836,4 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
         intent.putExtra("speed", 100);
         context.startService(intent);
     }
-
-    // Misc Internal Methods
-    private void serializeMessageToBuffer(@NonNull HtspMessage message) {
-        lock.lock();
-        try {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ObjectOutputStream objectOutput = new ObjectOutputStream(outputStream);
-            objectOutput.writeUnshared(message);
-            objectOutput.flush();
-
-            byteBuffer.position(byteBuffer.limit());
-            byteBuffer.limit(byteBuffer.capacity());
-
-            byteBuffer.put(outputStream.toByteArray());
-
-            byteBuffer.flip();
-        } catch (IOException e) {
-            // Ignore?
-            Timber.w(e, "Caught IOException, ignoring (" + dataSourceNumber + ")");
-        } catch (BufferOverflowException e) {
-            Timber.w(e, "Caught BufferOverflowException, ignoring (" + dataSourceNumber + ")");
-        } finally {
-            lock.unlock();
-            // Ignore
-        }
-    }
 }
@@ -19,21 +19,17 @@ package org.tvheadend.tvhclient.ui.features.playback.internal;
 import android.content.Context;
 import android.util.SparseArray;
 
-import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.extractor.Extractor;
 import com.google.android.exoplayer2.extractor.ExtractorInput;
 import com.google.android.exoplayer2.extractor.ExtractorOutput;
 import com.google.android.exoplayer2.extractor.PositionHolder;
-import com.google.android.exoplayer2.extractor.SeekMap;
 import com.google.android.exoplayer2.util.ParsableByteArray;
 
 import org.tvheadend.tvhclient.data.service.htsp.HtspMessage;
 import org.tvheadend.tvhclient.ui.features.playback.internal.reader.StreamReader;
 import org.tvheadend.tvhclient.ui.features.playback.internal.reader.StreamReadersFactory;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.Arrays;
 
 import androidx.annotation.NonNull;
@@ -41,29 +37,16 @@ import timber.log.Timber;
 
 class HtspSubscriptionExtractor implements Extractor {
 
-    private class HtspSeekMap implements SeekMap {
-        @Override
-        public boolean isSeekable() {
-            return true;
-        }
-
-        @Override
-        public long getDurationUs() {
-            return C.TIME_UNSET;
-        }
-
-        @Override
-        public SeekPoints getSeekPoints(long timeUs) {
-            return null;
-        }
-
-    }
+    // Maximum time a read waits for the next packet, so that a canceled load is noticed
+    private static final long READ_TIMEOUT_MS = 100;
+    // Maximum number of packets that are handled in one read
+    private static final int MAX_PACKETS_PER_READ = 32;
 
     private final Context mContext;
     private ExtractorOutput mOutput;
     private final SparseArray<StreamReader> mStreamReaders = new SparseArray<>();
 
-    private final byte[] mRawBytes = new byte[1024 * 1024];
+    private HtspPacketQueue mPacketQueue;
 
     public HtspSubscriptionExtractor(Context context) {
         mContext = context;
@@ -86,41 +69,46 @@ class HtspSubscriptionExtractor implements Extractor {
     public void init(ExtractorOutput output) {
         Timber.i( "Initializing HTSP Extractor");
         mOutput = output;
-        mOutput.seekMap(new HtspSeekMap());
     }
 
     @Override
     public int read(ExtractorInput input, PositionHolder seekPosition) throws IOException, InterruptedException {
-        int bytesRead = input.read(mRawBytes, 0, mRawBytes.length);
-
-        Timber.v( "Read " + bytesRead + " bytes");
-
-        ObjectInputStream objectInput = null;
-
-        try (
-                // N.B. Don't add the objectInput to this bit, it breaks stuff
-                ByteArrayInputStream inputStream = new ByteArrayInputStream(mRawBytes, 0, bytesRead)
-        ) {
-            while (inputStream.available() > 0) {
-                objectInput = new ObjectInputStream(inputStream);
-                handleMessage((HtspMessage) objectInput.readUnshared());
+        if (mPacketQueue == null) {
+            // The data source passes the id of its packet queue after the header
+            ParsableByteArray preamble = new ParsableByteArray(HtspSubscriptionDataSource.PREAMBLE_LENGTH);
+            input.readFully(preamble.data, 0, HtspSubscriptionDataSource.PREAMBLE_LENGTH);
+            preamble.skipBytes(HtspSubscriptionDataSource.HEADER.length);
+
+            final int queueId = preamble.readInt();
+            mPacketQueue = HtspPacketQueue.find(queueId);
+            if (mPacketQueue == null) {
+                Timber.w("Packet queue " + queueId + " is not available anymore");
+                return RESULT_END_OF_INPUT;
             }
-        } catch (IOException e) {
-            // TODO: This is a problem, and returning RESULT_CONTINUE is a hack... I think?
-            Timber.w( "Caught IOException, returning RESULT_CONTINUE");
-            return RESULT_CONTINUE;
-        } catch (ClassNotFoundException e) {
-            Timber.w( "Class Not Found");
-        } finally {
+            Timber.d("Reading packets from queue " + queueId);
+            // The seek map belongs to the data source, it knows which
+            // parts of the stream are available locally or on the server
+            mOutput.seekMap(mPacketQueue.getSeekMap());
+        }
+
+        HtspPacket packet = mPacketQueue.poll(READ_TIMEOUT_MS);
+        int packetCount = 0;
+        while (packet != null) {
             try {
-                if (objectInput != null) {
-                    objectInput.close();
-                }
-            } catch (IOException ex) {
-                // Ignore
+                handlePacket(packet);
+            } finally {
+                mPacketQueue.recycle(packet);
             }
+            if (++packetCount >= MAX_PACKETS_PER_READ) {
+                break;
+            }
+            packet = mPacketQueue.poll(0);
         }
 
+        if (packetCount == 0 && mPacketQueue.isEndOfInput()) {
+            Timber.d("End of input of packet queue " + mPacketQueue.getId());
+            return RESULT_END_OF_INPUT;
+        }
         return RESULT_CONTINUE;
     }
 
@@ -133,16 +121,19 @@ class HtspSubscriptionExtractor implements Extractor {
     public void release() {
         Timber.i( "Releasing HTSP Extractor");
         mStreamReaders.clear();
+        if (mPacketQueue != null) {
+            // Hand the remaining packets back so that they can be pooled
+            mPacketQueue.clear();
+            mPacketQueue = null;
+        }
     }
 
     // Internal Methods
-    private void handleMessage(@NonNull final HtspMessage message) {
-        final String method = message.getString("method");
-
-        if (method.equals("subscriptionStart")) {
-            handleSubscriptionStart(message);
-        } else if (method.equals("muxpkt")) {
-            handleMuxpkt(message);
+    private void handlePacket(@NonNull final HtspPacket packet) {
+        if (packet.type == HtspPacket.TYPE_SUBSCRIPTION_START) {
+            handleSubscriptionStart(packet.subscriptionStart);
+        } else {
+            handleMuxpkt(packet);
         }
     }
 
@@ -170,23 +161,15 @@ class HtspSubscriptionExtractor implements Extractor {
         mOutput.endTracks();
     }
 
-    private void handleMuxpkt(@NonNull final HtspMessage message) {
-//        subscriptionId     u32   required   Subscription ID.
-//        frametype          u32   required   Type of frame as ASCII value: 'I', 'P', 'B'
-//        stream             u32   required   Stream index. Corresponds to the streams reported in the subscriptionStart message.
-//        dts                s64   optional   Decode Time Stamp in µs.
-//        pts                s64   optional   Presentation Time Stamp in µs.
-//        duration           u32   required   Duration of frame in µs.
-//        payload            bin   required   Actual frame data.
-
-        final int streamIndex = message.getInteger("stream");
-
-        final StreamReader streamReader = mStreamReaders.get(streamIndex);
+    private void handleMuxpkt(@NonNull final HtspPacket packet) {
+        final StreamReader streamReader = mStreamReaders.get(packet.getStreamIndex());
         if (streamReader == null) {
             // Not a stream we care about, move on.
             return;
         }
 
-        streamReader.consume(message);
+        streamReader.consume(packet.pts, packet.dts, packet.duration, packet.frameType,
+                packet.payload, packet.payloadLength);
+        mPacketQueue.getInstrumentation().onSampleWritten(packet.arrivalTime);
     }
-}
+}
\ No newline at end of file
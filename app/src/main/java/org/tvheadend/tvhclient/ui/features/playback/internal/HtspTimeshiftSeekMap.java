@@ -0,0 +1,146 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.SeekPoint;
+
+/**
+ * Seek map of a subscription. The position of a seek point is the presentation
+ * time stamp in µs that the data source passes to the server in a subscriptionSkip
+ * message, position 0 continues the stream without skipping.
+ *
+ * The data source keeps the most recent packets and records the time stamps of the
+ * video keyframes among them. Seeks into this local window start at the preceding
+ * keyframe, so that the data source can serve them from the kept packets. All other
+ * seeks are limited to the timeshift buffer that the server reports in its
+ * timeshiftStatus messages and to the timeshift period that it granted in the
+ * response to the subscription. Without a period only the local window is seekable.
+ *
+ * The data source updates the map from the connection thread, the player
+ * queries it from its own threads, so all methods are synchronized.
+ */
+class HtspTimeshiftSeekMap implements SeekMap {
+
+    private static final int MAX_KEYFRAMES = 1024;
+
+    // Time stamps of the local keyframes in ascending order in a ring
+    private final long[] keyframes = new long[MAX_KEYFRAMES];
+    private int firstKeyframe = 0;
+    private int keyframeCount = 0;
+    // Time stamp of the latest packet that was kept locally
+    private long localEndPts = C.TIME_UNSET;
+
+    private long timeshiftStartPts = C.TIME_UNSET;
+    private long timeshiftEndPts = C.TIME_UNSET;
+    // Length of the timeshift buffer in µs that the server granted
+    private long timeshiftPeriodUs = C.TIME_UNSET;
+
+    synchronized void addKeyframe(long pts) {
+        if (keyframeCount == MAX_KEYFRAMES) {
+            firstKeyframe = (firstKeyframe + 1) % MAX_KEYFRAMES;
+            keyframeCount--;
+        }
+        keyframes[(firstKeyframe + keyframeCount) % MAX_KEYFRAMES] = pts;
+        keyframeCount++;
+    }
+
+    /**
+     * Forgets the keyframes before the given time stamp, because
+     * the packets of these keyframes are not kept anymore
+     */
+    synchronized void removeKeyframesBefore(long pts) {
+        while (keyframeCount > 0 && keyframes[firstKeyframe] < pts) {
+            firstKeyframe = (firstKeyframe + 1) % MAX_KEYFRAMES;
+            keyframeCount--;
+        }
+    }
+
+    synchronized void setLocalEndPts(long pts) {
+        localEndPts = pts;
+    }
+
+    synchronized void clearLocalWindow() {
+        firstKeyframe = 0;
+        keyframeCount = 0;
+        localEndPts = C.TIME_UNSET;
+    }
+
+    /**
+     * Returns the time stamp of the latest local keyframe at or before the given
+     * time or {@link C#TIME_UNSET} if the time is outside of the local window
+     */
+    synchronized long getLocalKeyframe(long pts) {
+        if (keyframeCount == 0 || pts < keyframes[firstKeyframe] || pts > localEndPts) {
+            return C.TIME_UNSET;
+        }
+        for (int i = keyframeCount - 1; i >= 0; i--) {
+            final long keyframe = keyframes[(firstKeyframe + i) % MAX_KEYFRAMES];
+            if (keyframe <= pts) {
+                return keyframe;
+            }
+        }
+        return C.TIME_UNSET;
+    }
+
+    /**
+     * @param startPts The time stamp of the oldest data in the timeshift buffer of the server
+     * @param endPts   The time stamp of the newest data in the timeshift buffer of the server
+     */
+    synchronized void setTimeshiftWindow(long startPts, long endPts) {
+        timeshiftStartPts = startPts;
+        timeshiftEndPts = endPts;
+    }
+
+    /**
+     * @param periodUs The length of the timeshift buffer of the server in µs, 0 if it has none
+     */
+    synchronized void setTimeshiftPeriod(long periodUs) {
+        timeshiftPeriodUs = periodUs;
+    }
+
+    /**
+     * Returns the earliest time stamp that can be sought to or {@link C#TIME_UNSET}
+     * if it is not known yet. This is the start of the timeshift buffer of the server
+     * but not more than the granted period before the latest known data.
+     */
+    private long getEarliestSeekTime() {
+        final long latestPts = Math.max(timeshiftEndPts, localEndPts);
+        if (timeshiftPeriodUs == 0) {
+            return keyframeCount > 0 ? keyframes[firstKeyframe] : latestPts;
+        }
+        long earliestPts = timeshiftStartPts;
+        if (timeshiftPeriodUs != C.TIME_UNSET && latestPts != C.TIME_UNSET) {
+            earliestPts = Math.max(earliestPts, latestPts - timeshiftPeriodUs);
+        }
+        return earliestPts;
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return true;
+    }
+
+    @Override
+    public long getDurationUs() {
+        return C.TIME_UNSET;
+    }
+
+    @Override
+    public synchronized SeekPoints getSeekPoints(long timeUs) {
+        long time = timeUs;
+        final long earliestPts = getEarliestSeekTime();
+        if (earliestPts != C.TIME_UNSET && time < earliestPts) {
+            time = earliestPts;
+        }
+        if (timeshiftEndPts != C.TIME_UNSET && time > timeshiftEndPts) {
+            time = timeshiftEndPts;
+        }
+        final long keyframe = getLocalKeyframe(time);
+        if (keyframe != C.TIME_UNSET) {
+            time = keyframe;
+        }
+        // The player always starts loading at position 0, so a seek
+        // to this time stamp needs a position that differs from it
+        return new SeekPoints(new SeekPoint(time, Math.max(1, time)));
+    }
+}
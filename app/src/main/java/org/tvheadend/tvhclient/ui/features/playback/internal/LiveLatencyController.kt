@@ -0,0 +1,112 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal
+
+import timber.log.Timber
+
+/**
+ * Adapts the playback of a live stream to the connection. It is updated about once a
+ * second with the counters of the data source and the duration the player has buffered.
+ *
+ * The buffer duration before the playback starts follows the jitter of the packet arrival
+ * times. It is raised whenever the playback stalled or the server had to drop frames and
+ * slowly lowered again afterwards.
+ *
+ * The latency to live at the start of the playback and after each seek or pause is the one
+ * that shall be kept. When the playback falls further behind, for example after stalls, the
+ * server is asked to send the stream faster and the player plays it faster until the latency
+ * is back at its target. This is only possible while the server plays from its timeshift
+ * buffer, a stream that is at live can't be sent faster.
+ *
+ * The methods must be called from the main thread.
+ */
+class LiveLatencyController(private val loadControl: HtspLoadControl, private val baseBufferMs: Long) {
+
+    private var bufferBoostMs: Long = 0
+    private var lastRebufferCount = 0
+    private var lastServerDroppedFrameCount: Long = 0
+    private var targetLatencyMs: Long = TARGET_LATENCY_UNSET
+    private var bufferedMs: Long = 0
+    private var liveLatencyMs: Long = 0
+
+    /**
+     * The speed in percent at which the stream shall be sent and played
+     */
+    var speed = NORMAL_SPEED
+        private set
+
+    val statistics: LiveLatencyStatistics
+        get() = LiveLatencyStatistics(loadControl.bufferForPlaybackMs, bufferedMs, liveLatencyMs,
+                if (targetLatencyMs != TARGET_LATENCY_UNSET) targetLatencyMs else 0,
+                speed, loadControl.rebufferCount)
+
+    /**
+     * Starts over with the initial buffer duration for a new stream
+     */
+    fun reset() {
+        bufferBoostMs = 0
+        lastRebufferCount = loadControl.rebufferCount
+        lastServerDroppedFrameCount = 0
+        loadControl.setBufferForPlaybackMs(baseBufferMs)
+        resetTargetLatency()
+    }
+
+    /**
+     * Keeps the latency that results from a seek or pause as the new target
+     */
+    fun resetTargetLatency() {
+        targetLatencyMs = TARGET_LATENCY_UNSET
+        speed = NORMAL_SPEED
+    }
+
+    /**
+     * @param bufferedMs        The duration the player has buffered
+     * @param timeshiftOffsetMs The time the server is behind live, 0 if it is at live
+     * @return The speed in percent at which the stream shall be sent and played
+     */
+    fun update(statistics: DataSourceStatistics, bufferedMs: Long, timeshiftOffsetMs: Long): Int {
+        this.bufferedMs = bufferedMs
+
+        val rebufferCount = loadControl.rebufferCount
+        val hasStalled = rebufferCount > lastRebufferCount
+                || statistics.serverDroppedFrameCount > lastServerDroppedFrameCount
+        lastRebufferCount = rebufferCount
+        lastServerDroppedFrameCount = statistics.serverDroppedFrameCount
+
+        bufferBoostMs = if (hasStalled) {
+            Math.min(bufferBoostMs + BUFFER_BOOST_STEP_MS, HtspLoadControl.MAX_BUFFER_FOR_PLAYBACK_MS)
+        } else {
+            bufferBoostMs * BUFFER_BOOST_DECAY_PERCENT / 100
+        }
+        loadControl.setBufferForPlaybackMs(baseBufferMs + JITTER_FACTOR * statistics.jitter + bufferBoostMs)
+
+        liveLatencyMs = timeshiftOffsetMs + statistics.serverQueueDelay + bufferedMs
+        if (targetLatencyMs == TARGET_LATENCY_UNSET) {
+            targetLatencyMs = liveLatencyMs
+            Timber.d("Keeping a live latency of $targetLatencyMs ms")
+        }
+
+        val canCatchUp = timeshiftOffsetMs > 0 && bufferedMs > loadControl.bufferForPlaybackMs
+        val newSpeed = when {
+            !canCatchUp -> NORMAL_SPEED
+            liveLatencyMs > targetLatencyMs + LATENCY_TOLERANCE_MS -> CATCH_UP_SPEED
+            // Keep catching up until the target is reached
+            speed == CATCH_UP_SPEED && liveLatencyMs > targetLatencyMs -> CATCH_UP_SPEED
+            else -> NORMAL_SPEED
+        }
+        if (newSpeed != speed) {
+            Timber.d("Changing speed from $speed to $newSpeed, live latency is $liveLatencyMs ms, target is $targetLatencyMs ms")
+            speed = newSpeed
+        }
+        return speed
+    }
+
+    companion object {
+        const val NORMAL_SPEED = 100
+        private const val CATCH_UP_SPEED = 105
+        private const val TARGET_LATENCY_UNSET = -1L
+        private const val LATENCY_TOLERANCE_MS = 2000L
+        private const val BUFFER_BOOST_STEP_MS = 500L
+        private const val BUFFER_BOOST_DECAY_PERCENT = 95
+        // Packets that arrive up to this many times the jitter late don't stall the playback
+        private const val JITTER_FACTOR = 4
+    }
+}
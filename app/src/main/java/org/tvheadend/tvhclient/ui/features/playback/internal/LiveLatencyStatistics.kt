@@ -0,0 +1,18 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal
+
+/**
+ * Values of the live latency controller that can be shown while playing
+ *
+ * @param bufferForPlaybackMs Duration in milliseconds that is buffered before the playback starts
+ * @param bufferedMs          Duration in milliseconds that the player has buffered
+ * @param liveLatencyMs       Time in milliseconds that the playback is behind live
+ * @param targetLatencyMs     Time in milliseconds that the playback shall be behind live
+ * @param speed               Speed of the playback in percent
+ * @param rebufferCount       Number of times the playback stopped because the buffer ran empty
+ */
+data class LiveLatencyStatistics(val bufferForPlaybackMs: Long,
+                                 val bufferedMs: Long,
+                                 val liveLatencyMs: Long,
+                                 val targetLatencyMs: Long,
+                                 val speed: Int,
+                                 val rebufferCount: Int)
@@ -13,10 +13,13 @@ import android.hardware.SensorEventListener
 import android.hardware.SensorManager
 import android.os.Build
 import android.os.Bundle
+import android.view.KeyEvent
 import android.view.Surface
 import android.view.View
+import android.widget.Toast
 import androidx.appcompat.app.AppCompatActivity
 import androidx.appcompat.widget.PopupMenu
+import androidx.core.content.FileProvider
 import androidx.lifecycle.Observer
 import androidx.lifecycle.ViewModelProviders
 import com.afollestad.materialdialogs.MaterialDialog
@@ -28,6 +31,7 @@ import com.squareup.picasso.Picasso
 import kotlinx.android.synthetic.main.exo_player_control_view.*
 import kotlinx.android.synthetic.main.exo_player_view.*
 import kotlinx.android.synthetic.main.player_overlay_view.*
+import org.tvheadend.tvhclient.BuildConfig
 import org.tvheadend.tvhclient.MainApplication
 import org.tvheadend.tvhclient.R
 import org.tvheadend.tvhclient.data.repository.AppRepository
@@ -228,6 +232,48 @@ class PlaybackActivity : AppCompatActivity(), PlayerControlView.VisibilityListen
             Timber.d("Received remaining time $remainingTime")
             remaining_time?.text = remainingTime
         })
+        viewModel.dataSourceStatistics.observe(this, Observer { statistics ->
+            // Only shown once the player had to wait for data
+            if (statistics != null && statistics.underrunCount > 0) {
+                buffer_statistics?.text = getString(R.string.player_buffer_statistics,
+                        statistics.underrunCount, statistics.totalWaitTime,
+                        statistics.maxWaitTime, statistics.droppedPacketCount)
+                buffer_statistics?.visible()
+            } else {
+                buffer_statistics?.gone()
+            }
+        })
+        viewModel.isPlaybackStatisticsVisible.observe(this, Observer { isVisible ->
+            playback_statistics?.visibleOrGone(isVisible == true)
+        })
+        viewModel.playbackStatistics.observe(this, Observer { statistics ->
+            if (statistics != null && viewModel.isPlaybackStatisticsVisible.value == true) {
+                val text = StringBuilder(getString(R.string.player_playback_statistics,
+                        statistics.queuedPacketCount, statistics.queuedBytes / 1024,
+                        statistics.bufferedMs, statistics.meanSampleLatencyUs, statistics.maxSampleLatencyUs,
+                        statistics.droppedVideoFrames, statistics.underrunCount))
+                for (stream in statistics.streams) {
+                    text.append(getString(R.string.player_stream_statistics,
+                            stream.streamIndex, stream.bytesPerSecond * 8 / 1000, stream.packetsPerSecond))
+                }
+                if (BuildConfig.DEBUG) {
+                    text.append(getString(R.string.player_subscription_statistics,
+                            HtspSubscriptionDataSource.getActiveCount(), HtspSubscriptionDataSource.getLeakedCount()))
+                }
+                playback_statistics?.text = text
+            }
+        })
+        viewModel.liveLatencyStatistics.observe(this, Observer { statistics ->
+            // Only shown once the playback stalled or has to catch up
+            if (statistics != null && (statistics.rebufferCount > 0 || statistics.speed != LiveLatencyController.NORMAL_SPEED)) {
+                live_latency_statistics?.text = getString(R.string.player_live_latency_statistics,
+                        statistics.rebufferCount, statistics.bufferedMs, statistics.bufferForPlaybackMs,
+                        statistics.liveLatencyMs, statistics.targetLatencyMs, statistics.speed)
+                live_latency_statistics?.visible()
+            } else {
+                live_latency_statistics?.gone()
+            }
+        })
     }
 
     override fun attachBaseContext(context: Context) {
@@ -242,6 +288,20 @@ class PlaybackActivity : AppCompatActivity(), PlayerControlView.VisibilityListen
         viewModel.loadMediaSource(intent.extras)
     }
 
+    override fun onKeyDown(keyCode: Int, event: KeyEvent?): Boolean {
+        when (keyCode) {
+            KeyEvent.KEYCODE_CHANNEL_UP -> {
+                viewModel.switchChannel(1)
+                return true
+            }
+            KeyEvent.KEYCODE_CHANNEL_DOWN -> {
+                viewModel.switchChannel(-1)
+                return true
+            }
+        }
+        return super.onKeyDown(keyCode, event)
+    }
+
     override fun onPause() {
         Timber.d("Pausing")
         viewModel.pause()
@@ -371,6 +431,14 @@ class PlaybackActivity : AppCompatActivity(), PlayerControlView.VisibilityListen
                         trackSelectionHelper.showSelectionDialog(this, "Subtitles", mappedTrackInfo, C.TRACK_TYPE_TEXT)
                         return@setOnMenuItemClickListener true
                     }
+                    R.id.menu_playback_statistics -> {
+                        viewModel.togglePlaybackStatistics()
+                        return@setOnMenuItemClickListener true
+                    }
+                    R.id.menu_export_playback_statistics -> {
+                        sharePlaybackStatistics()
+                        return@setOnMenuItemClickListener true
+                    }
                     else -> {
                         return@setOnMenuItemClickListener false
                     }
@@ -380,6 +448,25 @@ class PlaybackActivity : AppCompatActivity(), PlayerControlView.VisibilityListen
         }
     }
 
+    private fun sharePlaybackStatistics() {
+        val file = viewModel.exportPlaybackStatistics()
+        val fileUri = try {
+            if (file != null) FileProvider.getUriForFile(this, "org.tvheadend.tvhclient.fileprovider", file) else null
+        } catch (e: IllegalArgumentException) {
+            null
+        }
+        if (fileUri == null) {
+            Toast.makeText(this, R.string.playback_statistics_export_failed, Toast.LENGTH_SHORT).show()
+            return
+        }
+        val intent = Intent(Intent.ACTION_SEND)
+        intent.putExtra(Intent.EXTRA_SUBJECT, "TVHClient playback statistics")
+        intent.putExtra(Intent.EXTRA_STREAM, fileUri)
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION)
+        intent.type = "text/csv"
+        startActivity(Intent.createChooser(intent, getString(R.string.export_playback_statistics)))
+    }
+
     private fun onChangeAspectRatioSelected() {
         Timber.d("Change aspect ratio button selected")
         MaterialDialog.Builder(this)
@@ -0,0 +1,83 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the packets of a subscription on their way from the connection to the
+ * track outputs of the extractor. The data source counts the received packets and
+ * bytes of each stream, the extractor measures how long it took from the arrival
+ * of a packet until its sample was passed to the track output.
+ *
+ * Each counter has a single writer thread, so the counters are updated without
+ * locks. The counters are cumulative, the reader calculates the rates from the
+ * difference between two readings.
+ */
+public class PlaybackInstrumentation {
+
+    // Stream indexes above this limit are not counted
+    static final int MAX_STREAMS = 16;
+
+    // Only written by the connection thread
+    private final AtomicLongArray streamBytes = new AtomicLongArray(MAX_STREAMS);
+    private final AtomicLongArray streamPackets = new AtomicLongArray(MAX_STREAMS);
+
+    // Only written by the loader thread, except for the maximum which the reader resets
+    private volatile long sampleCount = 0;
+    private volatile long totalSampleLatency = 0;
+    private final AtomicLong maxSampleLatency = new AtomicLong();
+
+    /**
+     * Counts a muxpkt message, called from the connection thread
+     */
+    void onPacketReceived(int streamIndex, int payloadLength) {
+        if (streamIndex < 0 || streamIndex >= MAX_STREAMS) {
+            return;
+        }
+        streamBytes.lazySet(streamIndex, streamBytes.get(streamIndex) + payloadLength);
+        streamPackets.lazySet(streamIndex, streamPackets.get(streamIndex) + 1);
+    }
+
+    /**
+     * Records the time since the packet arrived, called from the loader
+     * thread after the sample of the packet was written to the track output
+     *
+     * @param arrivalTime The value of {@link System#nanoTime()} when the packet arrived
+     */
+    void onSampleWritten(long arrivalTime) {
+        final long latency = System.nanoTime() - arrivalTime;
+        totalSampleLatency += latency;
+        sampleCount++;
+        long max = maxSampleLatency.get();
+        while (latency > max && !maxSampleLatency.compareAndSet(max, latency)) {
+            max = maxSampleLatency.get();
+        }
+    }
+
+    long getStreamBytes(int streamIndex) {
+        return streamBytes.get(streamIndex);
+    }
+
+    long getStreamPackets(int streamIndex) {
+        return streamPackets.get(streamIndex);
+    }
+
+    long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the sum of the latencies of all samples in µs
+     */
+    long getTotalSampleLatency() {
+        return TimeUnit.NANOSECONDS.toMicros(totalSampleLatency);
+    }
+
+    /**
+     * Returns the highest latency in µs since the last call
+     */
+    long takeMaxSampleLatency() {
+        return TimeUnit.NANOSECONDS.toMicros(maxSampleLatency.getAndSet(0));
+    }
+}
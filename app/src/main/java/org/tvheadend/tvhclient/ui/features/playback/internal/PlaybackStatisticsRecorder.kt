@@ -0,0 +1,143 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal
+
+import java.io.File
+import java.io.IOException
+import java.io.PrintWriter
+import java.util.*
+
+/**
+ * Rates of one stream of a subscription
+ */
+data class StreamStatistics(val streamIndex: Int,
+                            val bytesPerSecond: Long,
+                            val packetsPerSecond: Long)
+
+/**
+ * Values of the playback pipeline at one point in time
+ *
+ * @param time                  Wall clock time in milliseconds
+ * @param streams               The rates of the streams that received packets
+ * @param queuedPacketCount     Number of packets that wait for the extractor
+ * @param queuedBytes           Size of the payloads of the packets that wait for the extractor
+ * @param bufferedMs            Duration in milliseconds that the player has buffered
+ * @param meanSampleLatencyUs   Mean time in µs from the arrival of a packet until its sample was written
+ * @param maxSampleLatencyUs    Longest time in µs from the arrival of a packet until its sample was written
+ * @param droppedVideoFrames    Number of video frames the renderer dropped
+ * @param underrunCount         Number of times the data stopped arriving for more than half a second
+ */
+data class PlaybackStatistics(val time: Long,
+                              val streams: List<StreamStatistics>,
+                              val queuedPacketCount: Int,
+                              val queuedBytes: Int,
+                              val bufferedMs: Long,
+                              val meanSampleLatencyUs: Long,
+                              val maxSampleLatencyUs: Long,
+                              val droppedVideoFrames: Int,
+                              val underrunCount: Long)
+
+/**
+ * Takes a reading of the counters of the playback pipeline about once a second and keeps
+ * the most recent readings, so that they can be exported as CSV. The methods must be
+ * called from the same thread.
+ */
+class PlaybackStatisticsRecorder {
+
+    private val readings = ArrayDeque<PlaybackStatistics>()
+    private var lastTime: Long = 0
+    private val lastStreamBytes = LongArray(PlaybackInstrumentation.MAX_STREAMS)
+    private val lastStreamPackets = LongArray(PlaybackInstrumentation.MAX_STREAMS)
+    private var lastSampleCount: Long = 0
+    private var lastTotalSampleLatency: Long = 0
+    private var instrumentation: PlaybackInstrumentation? = null
+
+    /**
+     * Calculates the rates since the previous reading and keeps the result
+     */
+    fun record(instrumentation: PlaybackInstrumentation?, statistics: DataSourceStatistics?,
+               bufferedMs: Long, droppedVideoFrames: Int): PlaybackStatistics {
+
+        // The counters start at zero again when the data source changes
+        if (instrumentation !== this.instrumentation) {
+            this.instrumentation = instrumentation
+            lastTime = 0
+            Arrays.fill(lastStreamBytes, 0)
+            Arrays.fill(lastStreamPackets, 0)
+            lastSampleCount = 0
+            lastTotalSampleLatency = 0
+        }
+
+        val now = System.currentTimeMillis()
+        val elapsedMs = if (lastTime > 0) Math.max(1, now - lastTime) else 0
+        lastTime = now
+
+        val streams = ArrayList<StreamStatistics>()
+        var meanSampleLatencyUs: Long = 0
+        var maxSampleLatencyUs: Long = 0
+        if (instrumentation != null) {
+            for (i in 0 until PlaybackInstrumentation.MAX_STREAMS) {
+                val bytes = instrumentation.getStreamBytes(i)
+                val packets = instrumentation.getStreamPackets(i)
+                if (packets > 0 && elapsedMs > 0) {
+                    streams.add(StreamStatistics(i,
+                            (bytes - lastStreamBytes[i]) * 1000 / elapsedMs,
+                            (packets - lastStreamPackets[i]) * 1000 / elapsedMs))
+                }
+                lastStreamBytes[i] = bytes
+                lastStreamPackets[i] = packets
+            }
+
+            val sampleCount = instrumentation.sampleCount
+            val totalSampleLatency = instrumentation.totalSampleLatency
+            if (sampleCount > lastSampleCount) {
+                meanSampleLatencyUs = (totalSampleLatency - lastTotalSampleLatency) / (sampleCount - lastSampleCount)
+            }
+            lastSampleCount = sampleCount
+            lastTotalSampleLatency = totalSampleLatency
+            maxSampleLatencyUs = instrumentation.takeMaxSampleLatency()
+        }
+
+        val reading = PlaybackStatistics(now, streams,
+                statistics?.queuedPacketCount ?: 0,
+                statistics?.queuedBytes ?: 0,
+                bufferedMs,
+                meanSampleLatencyUs,
+                maxSampleLatencyUs,
+                droppedVideoFrames,
+                statistics?.underrunCount ?: 0)
+
+        readings.addLast(reading)
+        if (readings.size > MAX_READINGS) {
+            readings.removeFirst()
+        }
+        return reading
+    }
+
+    /**
+     * Writes the kept readings to the file, one line for each stream of each reading
+     */
+    @Throws(IOException::class)
+    fun writeCsv(file: File) {
+        PrintWriter(file).use { writer ->
+            writer.println("time,stream,bytes_per_second,packets_per_second,queued_packets,queued_bytes,buffered_ms,sample_latency_mean_us,sample_latency_max_us,dropped_video_frames,underruns")
+            for (reading in readings) {
+                val values = "${reading.queuedPacketCount},${reading.queuedBytes},${reading.bufferedMs}," +
+                        "${reading.meanSampleLatencyUs},${reading.maxSampleLatencyUs}," +
+                        "${reading.droppedVideoFrames},${reading.underrunCount}"
+                if (reading.streams.isEmpty()) {
+                    writer.println("${reading.time},,,,$values")
+                }
+                for (stream in reading.streams) {
+                    writer.println("${reading.time},${stream.streamIndex},${stream.bytesPerSecond},${stream.packetsPerSecond},$values")
+                }
+            }
+            if (writer.checkError()) {
+                throw IOException("Could not write the playback statistics to $file")
+            }
+        }
+    }
+
+    companion object {
+        // One hour of readings
+        private const val MAX_READINGS = 3600
+    }
+}
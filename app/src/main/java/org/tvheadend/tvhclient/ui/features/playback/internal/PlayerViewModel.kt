@@ -14,8 +14,9 @@ import com.google.android.exoplayer2.source.TrackGroupArray
 import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection
 import com.google.android.exoplayer2.trackselection.DefaultTrackSelector
 import com.google.android.exoplayer2.trackselection.TrackSelectionArray
-import com.google.android.exoplayer2.upstream.DefaultAllocator
+import com.google.android.exoplayer2.upstream.DataSpec
 import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter
+import com.google.android.exoplayer2.upstream.cache.Cache
 import com.google.android.exoplayer2.video.VideoListener
 import org.tvheadend.tvhclient.MainApplication
 import org.tvheadend.tvhclient.R
@@ -24,9 +25,13 @@ import org.tvheadend.tvhclient.data.service.htsp.HtspConnection
 import org.tvheadend.tvhclient.data.service.htsp.HtspConnectionStateListener
 import org.tvheadend.tvhclient.ui.features.playback.internal.utils.Rational
 import timber.log.Timber
+import java.io.File
+import java.io.IOException
+import java.text.SimpleDateFormat
 import java.util.*
 import java.util.concurrent.Executors
 import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.inject.Inject
 
 class PlayerViewModel(application: Application) : AndroidViewModel(application), HtspConnectionStateListener, VideoListener, Player.EventListener {
@@ -43,11 +48,22 @@ class PlayerViewModel(application: Application) : AndroidViewModel(application),
     private val htspConnection: HtspConnection
     private var htspSubscriptionDataSourceFactory: HtspSubscriptionDataSource.Factory? = null
     private var htspFileInputStreamDataSourceFactory: HtspFileInputStreamDataSource.Factory? = null
-    private var dataSource: HtspDataSourceInterface? = null
+    private var prefetchCanceled: AtomicBoolean? = null
+    // The factories create their data source when the player starts loading
+    private val dataSource: HtspDataSourceInterface?
+        get() = htspSubscriptionDataSourceFactory?.currentDataSource ?: htspFileInputStreamDataSourceFactory?.currentDataSource
+    private var zappingSubscriptions: ZappingSubscriptions? = null
+
+    // The ids of the channels in the current sort order and tag that are switched through
+    @Volatile
+    private var channelIds: List<Int> = ArrayList()
+    private var playingChannelId = 0
 
     // Player and helpers
     val player: SimpleExoPlayer
     val trackSelector: DefaultTrackSelector
+    private val loadControl: HtspLoadControl
+    private val liveLatencyController: LiveLatencyController
     val adaptiveTrackSelectionFactory = AdaptiveTrackSelection.Factory(DefaultBandwidthMeter())
 
     // Video dimension and aspect ratio related properties
@@ -64,6 +80,11 @@ class PlayerViewModel(application: Application) : AndroidViewModel(application),
     var nextTitle: MutableLiveData<String> = MutableLiveData()
     var elapsedTime: MutableLiveData<String> = MutableLiveData()
     var remainingTime: MutableLiveData<String> = MutableLiveData()
+    var dataSourceStatistics: MutableLiveData<DataSourceStatistics> = MutableLiveData()
+    var liveLatencyStatistics: MutableLiveData<LiveLatencyStatistics> = MutableLiveData()
+    var playbackStatistics: MutableLiveData<PlaybackStatistics> = MutableLiveData()
+    var isPlaybackStatisticsVisible: MutableLiveData<Boolean> = MutableLiveData()
+    private val playbackStatisticsRecorder = PlaybackStatisticsRecorder()
 
     // Contains the information like icon, title, subtitle, start
     // and stop times either for a channel or a recording
@@ -84,6 +105,7 @@ class PlayerViewModel(application: Application) : AndroidViewModel(application),
         Timber.d("Starting connection")
         val connection = appRepository.connectionData.activeItem
         val connectionTimeout = Integer.valueOf(sharedPreferences.getString("connection_timeout", application.resources.getString(R.string.pref_default_connection_timeout))!!) * 1000
+        val receiveBufferLimit = Integer.valueOf(sharedPreferences.getString("receive_buffer_limit", application.resources.getString(R.string.pref_default_receive_buffer_limit))!!) * 1024 * 1024
         htspConnection = HtspConnection(
                 connection.username ?: "",
                 connection.password ?: "",
@@ -91,6 +113,7 @@ class PlayerViewModel(application: Application) : AndroidViewModel(application),
                 connection.port,
                 connectionTimeout,
                 this, null)
+        htspConnection.setReceiveBufferLimit(receiveBufferLimit)
 
         execService.execute {
             htspConnection.openConnection()
@@ -104,15 +127,9 @@ class PlayerViewModel(application: Application) : AndroidViewModel(application),
 
         Timber.d("Creating load control")
         val bufferTimeText = sharedPreferences.getString("buffer_playback_ms", context.resources.getString(R.string.pref_default_buffer_playback_ms))
-        val bufferTime = bufferTimeText!!.toInt()
-        val loadControl = DefaultLoadControl(
-                DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE),
-                DefaultLoadControl.DEFAULT_MIN_BUFFER_MS,
-                DefaultLoadControl.DEFAULT_MAX_BUFFER_MS,
-                bufferTime,
-                DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS,
-                C.DEFAULT_BUFFER_SEGMENT_SIZE,
-                true)
+        val bufferTime = bufferTimeText!!.toLong()
+        loadControl = HtspLoadControl(bufferTime)
+        liveLatencyController = LiveLatencyController(loadControl, bufferTime)
 
         Timber.d("Creating player instance")
         player = ExoPlayerFactory.newSimpleInstance(TvheadendRenderersFactory(context), trackSelector, loadControl)
@@ -123,6 +140,12 @@ class PlayerViewModel(application: Application) : AndroidViewModel(application),
             Timber.d("Updating elapsed and remaining times")
             remainingTime.postValue(playbackInformation.remainingTime)
             elapsedTime.postValue(playbackInformation.elapsedTime)
+            val statistics = dataSource?.statistics
+            dataSourceStatistics.postValue(statistics)
+            if (statistics != null) {
+                updateLiveLatency(statistics)
+            }
+            recordPlaybackStatistics(statistics)
             timeUpdateHandler.postDelayed(timeUpdateRunnable, 1000)
         }
     }
@@ -151,17 +174,66 @@ class PlayerViewModel(application: Application) : AndroidViewModel(application),
             Timber.d("Creating data source")
             val serverStatus = appRepository.serverStatusData.activeItem
             val serverProfile = appRepository.serverProfileData.getItemById(serverStatus.htspPlaybackServerProfileId)
-            htspSubscriptionDataSourceFactory = HtspSubscriptionDataSource.Factory(context, htspConnection, serverProfile?.name)
-            dataSource = htspSubscriptionDataSourceFactory?.currentDataSource
+            val preSubscribedDataSource = getZappingSubscriptions(serverProfile?.name)?.take(channelId)
+            htspSubscriptionDataSourceFactory = HtspSubscriptionDataSource.Factory(context, htspConnection, serverProfile?.name, preSubscribedDataSource)
 
             Timber.d("Preparing player with media source")
             player.prepare(ExtractorMediaSource.Factory(htspSubscriptionDataSourceFactory)
                     .setExtractorsFactory(TvheadendExtractorsFactory(context))
                     .createMediaSource(Uri.parse("htsp://channel/$channelId")))
             player.playWhenReady = true
+
+            playingChannelId = channelId
+            loadChannelIds(channelId)
+        }
+    }
+
+    /**
+     * Returns the pre-subscriptions of the neighbouring channels
+     * or null if fast channel switching is disabled
+     */
+    private fun getZappingSubscriptions(streamProfile: String?): ZappingSubscriptions? {
+        if (zappingSubscriptions == null && sharedPreferences.getBoolean("zapping_enabled", context.resources.getBoolean(R.bool.pref_default_zapping_enabled))) {
+            val defaultChannelCount = context.resources.getString(R.string.pref_default_zapping_channel_count)
+            val channelCount = Integer.valueOf(sharedPreferences.getString("zapping_channel_count", defaultChannelCount) ?: defaultChannelCount)
+            Timber.d("Fast channel switching is enabled for $channelCount neighbouring channels")
+            zappingSubscriptions = ZappingSubscriptions(context, htspConnection, streamProfile, channelCount)
+        }
+        return zappingSubscriptions
+    }
+
+    /**
+     * Loads the channels in the sort order and the tags that are shown in the
+     * channel list and updates the pre-subscriptions around the playing channel
+     */
+    private fun loadChannelIds(playingChannelId: Int) {
+        val subscriptions = zappingSubscriptions
+        execService.execute {
+            val defaultChannelSortOrder = context.resources.getString(R.string.pref_default_channel_sort_order)
+            val channelSortOrder = Integer.valueOf(sharedPreferences.getString("channel_sort_order", defaultChannelSortOrder) ?: defaultChannelSortOrder)
+            channelIds = appRepository.channelData.getChannelIds(channelSortOrder, appRepository.channelTagData.selectedItemIds)
+            subscriptions?.update(channelIds, playingChannelId)
         }
     }
 
+    /**
+     * Plays the channel that is the given number of channels
+     * before or after the playing channel in the channel list
+     */
+    fun switchChannel(offset: Int) {
+        val ids = channelIds
+        val position = ids.indexOf(playingChannelId)
+        if (position < 0) {
+            Timber.d("Playing channel $playingChannelId is not in the channel list")
+            return
+        }
+        val channelId = ids[((position + offset) % ids.size + ids.size) % ids.size]
+        Timber.d("Switching from channel $playingChannelId to channel $channelId")
+        val bundle = Bundle()
+        bundle.putInt("channelId", channelId)
+        loadMediaSource(bundle)
+    }
+
     private fun loadMediaSourceForRecording(recordingId: Int) {
         Timber.d("Loading media source for recording id $recordingId")
         if (recordingId > 0) {
@@ -169,14 +241,41 @@ class PlayerViewModel(application: Application) : AndroidViewModel(application),
             playbackInformation = PlaybackInformation(appRepository.recordingData.getItemById(recordingId))
 
             Timber.d("Creating data source")
-            htspFileInputStreamDataSourceFactory = HtspFileInputStreamDataSource.Factory(context, htspConnection)
-            dataSource = htspFileInputStreamDataSourceFactory?.currentDataSource
+            val upstreamFactory = HtspFileInputStreamDataSource.Factory(context, htspConnection)
+            htspFileInputStreamDataSourceFactory = upstreamFactory
 
-            Timber.d("Preparing player with media source")
-            player.prepare(ExtractorMediaSource.Factory(htspFileInputStreamDataSourceFactory)
+            val uri = Uri.parse("htsp://dvrfile/$recordingId")
+            val cacheKey = getRecordingCacheKey(appRepository.connectionData.activeItem.id, recordingId)
+            val cache = getRecordingCache(context, sharedPreferences)
+            val dataSourceFactory = if (cache != null) createCacheDataSourceFactory(cache, upstreamFactory) else upstreamFactory
+
+            Timber.d("Preparing player with media source, cache is enabled ${cache != null}")
+            player.prepare(ExtractorMediaSource.Factory(dataSourceFactory)
                     .setExtractorsFactory(TvheadendExtractorsFactory(context))
-                    .createMediaSource(Uri.parse("htsp://dvrfile/$recordingId")))
+                    .setCustomCacheKey(cacheKey)
+                    .createMediaSource(uri))
             player.playWhenReady = true
+
+            if (cache != null
+                    && sharedPreferences.getBoolean("recording_cache_prefetch_enabled", context.resources.getBoolean(R.bool.pref_default_recording_cache_prefetch_enabled))
+                    && isUnmeteredNetworkActive(context)) {
+                startPrefetch(cache, DataSpec(uri, 0, C.LENGTH_UNSET.toLong(), cacheKey))
+            }
+        }
+    }
+
+    /**
+     * Reads the whole recording into the cache in the background while it is played. The
+     * prefetch uses its own data source, the player reads the parts that were already
+     * prefetched from the cache and everything else directly from the server.
+     */
+    private fun startPrefetch(cache: Cache, dataSpec: DataSpec) {
+        val upstreamFactory = HtspFileInputStreamDataSource.Factory(context, htspConnection)
+        val canceled = AtomicBoolean(false)
+        prefetchCanceled = canceled
+        execService.execute {
+            prefetchRecording(createCacheDataSourceFactory(cache, upstreamFactory), dataSpec, canceled)
+            upstreamFactory.releaseCurrentDataSource()
         }
     }
 
@@ -186,6 +285,74 @@ class PlayerViewModel(application: Application) : AndroidViewModel(application),
         trackSelector.clearSelectionOverrides()
         htspSubscriptionDataSourceFactory?.releaseCurrentDataSource()
         htspFileInputStreamDataSourceFactory?.releaseCurrentDataSource()
+        htspSubscriptionDataSourceFactory = null
+        htspFileInputStreamDataSourceFactory = null
+        prefetchCanceled?.set(true)
+        prefetchCanceled = null
+        player.playbackParameters = PlaybackParameters.DEFAULT
+        liveLatencyController.reset()
+    }
+
+    /**
+     * Lets the server send and the player play the live stream
+     * at the speed that keeps the latency to live at its target
+     */
+    private fun updateLiveLatency(statistics: DataSourceStatistics) {
+        val timeshiftOffsetPts = dataSource?.timeshiftOffsetPts ?: Long.MIN_VALUE
+        val timeshiftOffsetMs = if (timeshiftOffsetPts != Long.MIN_VALUE) -timeshiftOffsetPts / 1000 else 0
+        val bufferedMs = Math.max(0, player.bufferedPosition - player.currentPosition)
+
+        val speed = liveLatencyController.speed
+        if (liveLatencyController.update(statistics, bufferedMs, timeshiftOffsetMs) != speed) {
+            applySpeed(liveLatencyController.speed)
+        }
+        liveLatencyStatistics.postValue(liveLatencyController.statistics)
+    }
+
+    /**
+     * Returns to the normal speed and keeps the current latency to live
+     */
+    private fun resetTargetLatency() {
+        if (liveLatencyController.speed != LiveLatencyController.NORMAL_SPEED) {
+            applySpeed(LiveLatencyController.NORMAL_SPEED)
+        }
+        liveLatencyController.resetTargetLatency()
+    }
+
+    private fun recordPlaybackStatistics(statistics: DataSourceStatistics?) {
+        val decoderCounters = player.videoDecoderCounters
+        decoderCounters?.ensureUpdated()
+        playbackStatistics.postValue(playbackStatisticsRecorder.record(
+                dataSource?.instrumentation, statistics,
+                Math.max(0, player.bufferedPosition - player.currentPosition),
+                decoderCounters?.droppedOutputBufferCount ?: 0))
+    }
+
+    fun togglePlaybackStatistics() {
+        isPlaybackStatisticsVisible.value = isPlaybackStatisticsVisible.value != true
+    }
+
+    /**
+     * Writes the recorded playback statistics to a file in the log folder, so
+     * that it can be shared like the log files. Returns null if it failed.
+     */
+    fun exportPlaybackStatistics(): File? {
+        val sdf = SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.US)
+        val file = File(context.cacheDir, "logs/playback_statistics_${sdf.format(Date())}.csv")
+        return try {
+            file.parentFile?.mkdirs()
+            playbackStatisticsRecorder.writeCsv(file)
+            Timber.d("Exported playback statistics to $file")
+            file
+        } catch (e: IOException) {
+            Timber.d(e, "Could not export playback statistics")
+            null
+        }
+    }
+
+    private fun applySpeed(speed: Int) {
+        dataSource?.setSpeed(speed)
+        player.playbackParameters = PlaybackParameters(speed / 100f, 1f)
     }
 
     fun setVideoAspectRatio(rational: Rational) {
@@ -232,7 +399,9 @@ class PlayerViewModel(application: Application) : AndroidViewModel(application),
         super.onCleared()
         Timber.d("Clearing view model")
         releaseMediaSource()
+        zappingSubscriptions?.release()
         player.release()
+        HtspSubscriptionDataSource.releaseLeaked(htspConnection)
 
         Timber.d("Closing connection")
         execService.shutdown()
@@ -309,11 +478,13 @@ class PlayerViewModel(application: Application) : AndroidViewModel(application),
     }
 
     fun pause() {
+        resetTargetLatency()
         player.playWhenReady = false
         dataSource?.pause()
     }
 
     fun play() {
+        resetTargetLatency()
         player.playWhenReady = true
         dataSource?.resume()
     }
@@ -321,30 +492,26 @@ class PlayerViewModel(application: Application) : AndroidViewModel(application),
     fun seekBackward() {
         val time = getSeekPosition(-5000)
         Timber.d("Seeking backward to $time")
+        resetTargetLatency()
         player.seekTo(time)
     }
 
     fun seekForward() {
         val time = getSeekPosition(5000)
         Timber.d("Seeking forward to $time")
+        resetTargetLatency()
         player.seekTo(time)
     }
 
+    /**
+     * The position of the player is the presentation time stamp of the stream in
+     * milliseconds. The seek map of the data source limits the position to the
+     * timeshift buffer, so the position only needs to be kept after its start.
+     */
     private fun getSeekPosition(offset: Int): Long {
-        val timeshiftStartTime = dataSource?.timeshiftStartTime ?: 0
-        val timeshiftStartPts = dataSource?.timeshiftStartPts ?: 0
-        val timeshiftOffsetPts = dataSource?.timeshiftOffsetPts ?: 0
-
-        val startTime = if (timeshiftStartTime != Long.MIN_VALUE)
-            (timeshiftStartTime / 1000) else 0
-        Timber.d("Timeshift start time is $startTime")
-
-        val currentTime = if (timeshiftOffsetPts != Long.MIN_VALUE)
-            System.currentTimeMillis() + timeshiftOffsetPts / 1000 else player.currentPosition
-        Timber.d("Timeshift current time is $currentTime")
-
-        val time = Math.max(currentTime + offset, startTime)
-        val seekPts = time * 1000 - timeshiftStartTime
-        return Math.max(seekPts, timeshiftStartPts) / 1000
+        val timeshiftStartPts = dataSource?.timeshiftStartPts ?: Long.MIN_VALUE
+        val startPosition = if (timeshiftStartPts != Long.MIN_VALUE) timeshiftStartPts / 1000 else 0
+        Timber.d("Timeshift start position is $startPosition, offset from live is ${dataSource?.timeshiftOffsetPts}")
+        return Math.max(player.currentPosition + offset, startPosition)
     }
 }
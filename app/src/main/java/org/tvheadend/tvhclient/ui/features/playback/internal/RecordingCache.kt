@@ -0,0 +1,99 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.net.ConnectivityManager
+import com.google.android.exoplayer2.C
+import com.google.android.exoplayer2.upstream.DataSource
+import com.google.android.exoplayer2.upstream.DataSpec
+import com.google.android.exoplayer2.upstream.cache.Cache
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource
+import com.google.android.exoplayer2.upstream.cache.CacheDataSourceFactory
+import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor
+import com.google.android.exoplayer2.upstream.cache.SimpleCache
+import org.tvheadend.tvhclient.R
+import timber.log.Timber
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicBoolean
+
+// Only one cache instance may use the cache folder at a time, so it is shared by
+// all players and only recreated when the size limit in the settings was changed
+private var recordingCache: SimpleCache? = null
+private var recordingCacheSize: Long = 0
+
+/**
+ * Returns the disk cache for the recordings that are played via HTSP
+ * or null if the cache was disabled in the settings. The least recently
+ * used parts of the recordings are removed when the size limit is reached.
+ */
+@Synchronized
+fun getRecordingCache(context: Context, sharedPreferences: SharedPreferences): Cache? {
+    val defaultCacheSize = context.resources.getString(R.string.pref_default_recording_cache_size)
+    val cacheSize = Integer.valueOf(sharedPreferences.getString("recording_cache_size", defaultCacheSize) ?: defaultCacheSize) * 1024L * 1024L
+
+    if (recordingCache != null && recordingCacheSize != cacheSize) {
+        Timber.d("Size of the recording cache was changed from $recordingCacheSize to $cacheSize bytes")
+        recordingCache?.release()
+        recordingCache = null
+    }
+    if (recordingCache == null && cacheSize > 0) {
+        recordingCache = SimpleCache(File(context.cacheDir, "recordings"), LeastRecentlyUsedCacheEvictor(cacheSize))
+        recordingCacheSize = cacheSize
+    }
+    return recordingCache
+}
+
+/**
+ * Returns a factory for data sources that read from the cache
+ * and only fetch the data via the upstream factory that is missing
+ */
+fun createCacheDataSourceFactory(cache: Cache, upstreamFactory: DataSource.Factory): DataSource.Factory {
+    return CacheDataSourceFactory(cache, upstreamFactory, CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR)
+}
+
+/**
+ * The cache key of a recording. The recording id alone is only unique
+ * for one server, so the id of the connection is part of the key.
+ */
+fun getRecordingCacheKey(connectionId: Int, recordingId: Int): String {
+    return "dvrfile-$connectionId-$recordingId"
+}
+
+fun isUnmeteredNetworkActive(context: Context): Boolean {
+    val connectivityManager = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager?
+    return connectivityManager != null && !connectivityManager.isActiveNetworkMetered
+}
+
+/**
+ * Reads the whole recording through a cache data source, so that all of it is
+ * stored in the cache. Blocks until the recording was read or the prefetch was
+ * canceled, so this must be called from a background thread.
+ */
+fun prefetchRecording(dataSourceFactory: DataSource.Factory, dataSpec: DataSpec, isCanceled: AtomicBoolean) {
+    Timber.d("Prefetching recording ${dataSpec.uri}")
+    val dataSource = dataSourceFactory.createDataSource()
+    val buffer = ByteArray(PREFETCH_BUFFER_SIZE)
+    var bytesRead = 0L
+    try {
+        dataSource.open(dataSpec)
+        while (!isCanceled.get()) {
+            val length = dataSource.read(buffer, 0, buffer.size)
+            if (length == C.RESULT_END_OF_INPUT) {
+                break
+            }
+            bytesRead += length
+        }
+        Timber.d("Prefetched $bytesRead bytes of recording ${dataSpec.uri}, canceled ${isCanceled.get()}")
+    } catch (e: IOException) {
+        Timber.d(e, "Prefetching recording ${dataSpec.uri} failed after $bytesRead bytes")
+    } finally {
+        try {
+            dataSource.close()
+        } catch (e: IOException) {
+            Timber.d(e, "Could not close prefetch data source")
+        }
+    }
+}
+
+private const val PREFETCH_BUFFER_SIZE = 64 * 1024
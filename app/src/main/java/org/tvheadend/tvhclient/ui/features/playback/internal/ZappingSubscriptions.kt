@@ -0,0 +1,101 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal
+
+import android.content.Context
+import android.util.SparseArray
+import org.tvheadend.tvhclient.data.service.htsp.HtspConnection
+import timber.log.Timber
+
+/**
+ * Keeps subscriptions to the channels before and after the playing channel. Each
+ * pre-subscribed data source buffers the packets from the latest keyframe on, so
+ * when one of these channels is played next, its data source is handed to the
+ * player and the video can be shown without waiting for a new subscription.
+ *
+ * The methods can be called from any thread.
+ */
+class ZappingSubscriptions(private val context: Context,
+                           private val htspConnection: HtspConnection,
+                           private val streamProfile: String?,
+                           private val channelCount: Int) {
+
+    // The pre-subscribed data sources with the channel id as the key
+    private val dataSources = SparseArray<HtspSubscriptionDataSource>()
+    private var isReleased = false
+
+    /**
+     * Returns the pre-subscribed data source of the channel or null if there is none.
+     * The caller is responsible for releasing the returned data source.
+     */
+    @Synchronized
+    fun take(channelId: Int): HtspSubscriptionDataSource? {
+        val dataSource = dataSources.get(channelId) ?: return null
+        dataSources.remove(channelId)
+        if (dataSource.isSubscriptionStopped) {
+            Timber.d("Pre-subscription of channel $channelId was stopped by the server")
+            dataSource.release()
+            return null
+        }
+        return dataSource
+    }
+
+    /**
+     * Subscribes to the [channelCount] previous and next channels of the playing
+     * channel and releases the subscriptions of all other channels.
+     *
+     * @param channelIds The ids of the channels in the order in which they are switched
+     */
+    @Synchronized
+    fun update(channelIds: List<Int>, playingChannelId: Int) {
+        if (isReleased) {
+            return
+        }
+        val neighbourIds = getNeighbourChannelIds(channelIds, playingChannelId, channelCount)
+
+        for (i in dataSources.size() - 1 downTo 0) {
+            val channelId = dataSources.keyAt(i)
+            if (!neighbourIds.contains(channelId) || dataSources.valueAt(i).isSubscriptionStopped) {
+                Timber.d("Releasing pre-subscription of channel $channelId")
+                dataSources.valueAt(i).release()
+                dataSources.removeAt(i)
+            }
+        }
+        for (channelId in neighbourIds) {
+            if (dataSources.get(channelId) == null) {
+                Timber.d("Pre-subscribing to channel $channelId")
+                dataSources.put(channelId, HtspSubscriptionDataSource.preSubscribe(context, htspConnection, streamProfile, channelId))
+            }
+        }
+    }
+
+    @Synchronized
+    fun release() {
+        isReleased = true
+        Timber.d("Releasing ${dataSources.size()} pre-subscriptions")
+        for (i in 0 until dataSources.size()) {
+            dataSources.valueAt(i).release()
+        }
+        dataSources.clear()
+    }
+
+    companion object {
+
+        /**
+         * Returns the ids of the given number of channels before and after the playing
+         * channel. The list wraps around, so the last channel precedes the first one.
+         */
+        fun getNeighbourChannelIds(channelIds: List<Int>, playingChannelId: Int, count: Int): Set<Int> {
+            val neighbourIds = LinkedHashSet<Int>()
+            val position = channelIds.indexOf(playingChannelId)
+            if (position < 0) {
+                return neighbourIds
+            }
+            val size = channelIds.size
+            for (offset in 1..count) {
+                neighbourIds.add(channelIds[(position + offset) % size])
+                neighbourIds.add(channelIds[((position - offset) % size + size) % size])
+            }
+            neighbourIds.remove(playingChannelId)
+            return neighbourIds
+        }
+    }
+}
@@ -42,6 +42,7 @@ class AacStreamReader implements StreamReader {
     private static final int ADTS_CRC_SIZE = 2;
 
     private TrackOutput mTrackOutput;
+    private final ParsableByteArray mSampleData = new ParsableByteArray();
 
     AacStreamReader(Context context) {
     }
@@ -54,11 +55,8 @@ class AacStreamReader implements StreamReader {
     }
 
     @Override
-    public void consume(@NonNull HtspMessage message) {
-        final long pts = message.getLong("pts");
-        final byte[] payload = message.getByteArray("payload");
-
-        final ParsableByteArray pba = new ParsableByteArray(payload);
+    public void consume(long pts, long dts, long duration, int frameType, @NonNull byte[] payload, int payloadLength) {
+        mSampleData.reset(payload, payloadLength);
 
         int skipLength;
 
@@ -70,13 +68,13 @@ class AacStreamReader implements StreamReader {
             skipLength = ADTS_HEADER_SIZE;
         }
 
-        pba.skipBytes(skipLength);
+        mSampleData.skipBytes(skipLength);
 
-        final int aacFrameLength = payload.length - skipLength;
+        final int aacFrameLength = payloadLength - skipLength;
 
         // TODO: Set Buffer Flag key frame based on frametype
         // frametype   u32   required   Type of frame as ASCII value: 'I', 'P', 'B'
-        mTrackOutput.sampleData(pba, aacFrameLength);
+        mTrackOutput.sampleData(mSampleData, aacFrameLength);
         mTrackOutput.sampleMetadata(pts, C.BUFFER_FLAG_KEY_FRAME, aacFrameLength, 0, null);
     }
 
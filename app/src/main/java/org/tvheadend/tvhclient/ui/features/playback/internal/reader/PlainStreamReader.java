@@ -37,6 +37,8 @@ abstract class PlainStreamReader implements StreamReader {
     private final Context mContext;
     private final int mTrackType;
     private TrackOutput mTrackOutput;
+    // Wraps the payload of each frame, so no object is allocated per frame
+    private final ParsableByteArray mSampleData = new ParsableByteArray();
 
     PlainStreamReader(Context context, int trackType) {
         mContext = context;
@@ -51,12 +53,8 @@ abstract class PlainStreamReader implements StreamReader {
     }
 
     @Override
-    public final void consume(@NonNull final HtspMessage message) {
-        final long pts = message.getLong("pts");
-        final int frameType = message.getInteger("frametype", -1);
-        final byte[] payload = message.getByteArray("payload");
-
-        final ParsableByteArray pba = new ParsableByteArray(payload);
+    public final void consume(long pts, long dts, long duration, int frameType, @NonNull byte[] payload, int payloadLength) {
+        mSampleData.reset(payload, payloadLength);
 
         int bufferFlags = 0;
 
@@ -75,8 +73,8 @@ abstract class PlainStreamReader implements StreamReader {
             bufferFlags |= C.BUFFER_FLAG_KEY_FRAME;
         }
 
-        mTrackOutput.sampleData(pba, payload.length);
-        mTrackOutput.sampleMetadata(pts, bufferFlags, payload.length, 0, null);
+        mTrackOutput.sampleData(mSampleData, payloadLength);
+        mTrackOutput.sampleMetadata(pts, bufferFlags, payloadLength, 0, null);
     }
 
     @Override
@@ -25,7 +25,19 @@ import androidx.annotation.NonNull;
 public interface StreamReader {
     void createTracks(HtspMessage stream, ExtractorOutput output);
 
-    void consume(@NonNull final HtspMessage message);
+    /**
+     * Passes the frame of a muxpkt message to the track output. The payload array
+     * is the one of the message and is not reused for following frames, but it is
+     * shared with the packet, so the reader must not modify it.
+     *
+     * @param pts           Presentation time stamp in µs
+     * @param dts           Decode time stamp in µs
+     * @param duration      Duration of the frame in µs
+     * @param frameType     Type of the frame as ASCII value 'I', 'P' or 'B' or -1 if unknown
+     * @param payload       The frame data
+     * @param payloadLength The number of bytes of the frame data in the payload array
+     */
+    void consume(long pts, long dts, long duration, int frameType, @NonNull byte[] payload, int payloadLength);
 
     void release();
 }
\ No newline at end of file
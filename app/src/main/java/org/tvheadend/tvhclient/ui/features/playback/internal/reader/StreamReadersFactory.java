@@ -25,6 +25,17 @@ public class StreamReadersFactory {
         mContext = context;
     }
 
+    public static boolean isVideoStreamType(String streamType) {
+        switch (streamType) {
+            case "H264":
+            case "HEVC":
+            case "MPEG2VIDEO":
+                return true;
+            default:
+                return false;
+        }
+    }
+
     public StreamReader createStreamReader(String streamType) {
         switch (streamType) {
             // Video Stream Types
@@ -25,14 +25,11 @@ import com.google.android.exoplayer2.extractor.ExtractorOutput;
 import com.google.android.exoplayer2.extractor.TrackOutput;
 import com.google.android.exoplayer2.util.MimeTypes;
 import com.google.android.exoplayer2.util.ParsableByteArray;
-import com.google.android.exoplayer2.util.Util;
 
 import org.tvheadend.tvhclient.MainApplication;
 import org.tvheadend.tvhclient.data.service.htsp.HtspMessage;
 
-import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.Locale;
 
 import androidx.annotation.NonNull;
 
@@ -64,11 +61,17 @@ class TextsubStreamReader implements StreamReader {
      */
     private static final int SUBRIP_TIMECODE_LENGTH = 12;
 
-    // UTF-8 is the default on Android
-    private static final Charset UTF_8 = Charset.defaultCharset();
+    /**
+     * The initial capacity for the text of a subtitle in the sample buffer
+     */
+    private static final int INITIAL_TEXT_CAPACITY = 256;
 
     private final Context mContext;
     private TrackOutput mTrackOutput;
+    // The prefix and the text of the current subtitle. The buffer is reused for all
+    // subtitles and only grows when a text doesn't fit, the prefix always stays in place.
+    private byte[] mSample = Arrays.copyOf(SUBRIP_PREFIX, SUBRIP_PREFIX.length + INITIAL_TEXT_CAPACITY);
+    private final ParsableByteArray mSampleData = new ParsableByteArray();
 
     TextsubStreamReader(Context context) {
         mContext = context;
@@ -82,21 +85,29 @@ class TextsubStreamReader implements StreamReader {
     }
 
     @Override
-    public void consume(@NonNull final HtspMessage message) {
-
-        final long pts = message.getLong("pts");
-        final long duration = message.getInteger("duration");
-        final byte[] payload = Util.getUtf8Bytes(
-                new String(message.getByteArray("payload"), UTF_8).trim());
-
-        final int lengthWithPrefix = SUBRIP_PREFIX.length + payload.length;
-        final byte[] subsipSample = Arrays.copyOf(SUBRIP_PREFIX, lengthWithPrefix);
+    public void consume(long pts, long dts, long duration, int frameType, @NonNull byte[] payload, int payloadLength) {
+        // Trim the text like String.trim() does. The characters up to the space
+        // are single bytes in UTF-8, so the text doesn't need to be decoded.
+        int start = 0;
+        int end = payloadLength;
+        while (start < end && (payload[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (payload[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
 
-        System.arraycopy(payload, 0, subsipSample, SUBRIP_PREFIX.length, payload.length);
+        final int textLength = end - start;
+        final int lengthWithPrefix = SUBRIP_PREFIX.length + textLength;
+        if (mSample.length < lengthWithPrefix) {
+            mSample = Arrays.copyOf(mSample, lengthWithPrefix);
+        }
+        System.arraycopy(payload, start, mSample, SUBRIP_PREFIX.length, textLength);
 
-        setSubripSampleEndTimecode(subsipSample, duration);
+        setSubripSampleEndTimecode(mSample, duration);
 
-        mTrackOutput.sampleData(new ParsableByteArray(subsipSample), lengthWithPrefix);
+        mSampleData.reset(mSample, lengthWithPrefix);
+        mTrackOutput.sampleData(mSampleData, lengthWithPrefix);
         mTrackOutput.sampleMetadata(pts, C.BUFFER_FLAG_KEY_FRAME, lengthWithPrefix, 0, null);
     }
 
@@ -118,22 +129,42 @@ class TextsubStreamReader implements StreamReader {
     }
 
     private static void setSubripSampleEndTimecode(byte[] subripSample, long timeUs) {
-        byte[] timeCodeData;
         if (timeUs == C.TIME_UNSET || timeUs == 0) {
-            timeCodeData = SUBRIP_TIMECODE_EMPTY;
-        } else {
-            int hours = (int) (timeUs / 3600000000L);
-            timeUs -= (hours * 3600000000L);
-            int minutes = (int) (timeUs / 60000000);
-            timeUs -= (minutes * 60000000);
-            int seconds = (int) (timeUs / 1000000);
-            timeUs -= (seconds * 1000000);
-            int milliseconds = (int) (timeUs / 1000);
-            timeCodeData = Util.getUtf8Bytes(String.format(Locale.US, "%02d:%02d:%02d,%03d", hours,
-                    minutes, seconds, milliseconds));
+            System.arraycopy(SUBRIP_TIMECODE_EMPTY, 0, subripSample, SUBRIP_PREFIX_END_TIMECODE_OFFSET,
+                    SUBRIP_TIMECODE_LENGTH);
+            return;
         }
 
-        System.arraycopy(timeCodeData, 0, subripSample, SUBRIP_PREFIX_END_TIMECODE_OFFSET,
-                SUBRIP_TIMECODE_LENGTH);
+        // Writes the digits of the "00:00:00,000" timecode directly into the sample
+        // instead of formatting a string. The hours are limited to two digits.
+        int hours = (int) Math.min(timeUs / 3600000000L, 99);
+        timeUs -= (hours * 3600000000L);
+        int minutes = (int) (timeUs / 60000000);
+        timeUs -= (minutes * 60000000);
+        int seconds = (int) (timeUs / 1000000);
+        timeUs -= (seconds * 1000000);
+        int milliseconds = (int) Math.min(timeUs / 1000, 999);
+
+        int offset = SUBRIP_PREFIX_END_TIMECODE_OFFSET;
+        offset = writeDigits(subripSample, offset, hours, 2);
+        subripSample[offset++] = ':';
+        offset = writeDigits(subripSample, offset, minutes, 2);
+        subripSample[offset++] = ':';
+        offset = writeDigits(subripSample, offset, seconds, 2);
+        subripSample[offset++] = ',';
+        writeDigits(subripSample, offset, milliseconds, 3);
+    }
+
+    /**
+     * Writes the value with the given number of digits and leading zeros
+     *
+     * @return The offset after the last digit
+     */
+    private static int writeDigits(byte[] data, int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            data[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
     }
 }
@@ -1,5 +0,0 @@
-package org.tvheadend.tvhclient.ui.features.programs
-
-internal interface LastProgramVisibleListener {
-    fun onLastProgramVisible(position: Int)
-}
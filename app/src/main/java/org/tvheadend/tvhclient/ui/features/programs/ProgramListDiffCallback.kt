@@ -3,21 +3,15 @@ package org.tvheadend.tvhclient.ui.features.programs
 import androidx.recyclerview.widget.DiffUtil
 import org.tvheadend.tvhclient.domain.entity.Program
 
-internal class ProgramListDiffCallback(private val oldList: List<Program>, private val newList: List<Program>) : DiffUtil.Callback() {
+internal object ProgramListDiffCallback : DiffUtil.ItemCallback<Program>() {
 
-    override fun getOldListSize(): Int {
-        return oldList.size
+    override fun areItemsTheSame(oldItem: Program, newItem: Program): Boolean {
+        return newItem.eventId == oldItem.eventId
     }
 
-    override fun getNewListSize(): Int {
-        return newList.size
-    }
-
-    override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
-        return newList[newItemPosition].eventId == oldList[oldItemPosition].eventId
-    }
-
-    override fun areContentsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
-        return newList[newItemPosition] == oldList[oldItemPosition]
+    override fun areContentsTheSame(oldItem: Program, newItem: Program): Boolean {
+        // The recording is only set by the adapter, the programs
+        // that were loaded from the database do not contain it
+        return oldItem.copy(recording = newItem.recording) == newItem
     }
 }
@@ -5,12 +5,13 @@ import android.content.Intent
 import android.os.Bundle
 import android.os.Handler
 import android.view.*
-import android.widget.Filter
 import androidx.appcompat.widget.PopupMenu
 import androidx.fragment.app.FragmentTransaction
 import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LiveData
 import androidx.lifecycle.Observer
 import androidx.lifecycle.ViewModelProviders
+import androidx.paging.PagedList
 import androidx.recyclerview.widget.DefaultItemAnimator
 import androidx.recyclerview.widget.DividerItemDecoration
 import androidx.recyclerview.widget.LinearLayoutManager
@@ -30,7 +31,7 @@ import org.tvheadend.tvhclient.ui.features.search.SearchRequestInterface
 import org.tvheadend.tvhclient.ui.features.search.StartSearchInterface
 import timber.log.Timber
 
-class ProgramListFragment : BaseFragment(), RecyclerViewClickCallback, LastProgramVisibleListener, SearchRequestInterface, Filter.FilterListener {
+class ProgramListFragment : BaseFragment(), RecyclerViewClickCallback, SearchRequestInterface {
 
     lateinit var recyclerViewAdapter: ProgramRecyclerViewAdapter
     lateinit var viewModel: ProgramViewModel
@@ -48,6 +49,9 @@ class ProgramListFragment : BaseFragment(), RecyclerViewClickCallback, LastProgr
     private var programIdToBeEditedWhenBeingRecorded = 0
     private var isSearchActive: Boolean = false
 
+    private var programs: LiveData<PagedList<Program>>? = null
+    private var programFilter = ""
+
     override fun onCreateView(inflater: LayoutInflater, container: ViewGroup?, savedInstanceState: Bundle?): View? {
         return inflater.inflate(R.layout.recyclerview_fragment, container, false)
     }
@@ -79,7 +83,7 @@ class ProgramListFragment : BaseFragment(), RecyclerViewClickCallback, LastProgr
         // Show the channel icons when a search is active and all channels shall be searched
         val showProgramChannelIcon = isSearchActive && shownChannelId == 0
 
-        recyclerViewAdapter = ProgramRecyclerViewAdapter(showProgramChannelIcon, this, this)
+        recyclerViewAdapter = ProgramRecyclerViewAdapter(showProgramChannelIcon, this)
         recycler_view.layoutManager = LinearLayoutManager(applicationContext)
         recycler_view.addItemDecoration(DividerItemDecoration(applicationContext, LinearLayoutManager.VERTICAL))
         recycler_view.itemAnimator = DefaultItemAnimator()
@@ -94,7 +98,7 @@ class ProgramListFragment : BaseFragment(), RecyclerViewClickCallback, LastProgr
             // A channel id and a channel name was given, load only the programs for the
             // specific channel and from the current time. Also load only those recordings
             // that belong to the given channel
-            viewModel.getProgramsByChannelFromTime(shownChannelId, selectedTime).observe(viewLifecycleOwner, Observer<List<Program>> { this.handleObservedPrograms(it) })
+            observePrograms()
             viewModel.getRecordingsByChannelId(shownChannelId).observe(viewLifecycleOwner, Observer<List<Recording>> { this.handleObservedRecordings(it) })
 
             loadingMoreProgramAllowed = true
@@ -102,19 +106,32 @@ class ProgramListFragment : BaseFragment(), RecyclerViewClickCallback, LastProgr
 
         } else {
             Timber.d("Search is active, loading programs from current time $selectedTime")
-            // No channel and channel name was given, load all programs
-            // from the current time and all recordings from all channels
-            viewModel.getProgramsFromTime(selectedTime).observe(viewLifecycleOwner, Observer<List<Program>> { this.handleObservedPrograms(it) })
+            // No channel and channel name was given, load all programs that match the
+            // query in the full text index from the current time and all recordings from all channels
+            programFilter = searchQuery
+            observePrograms()
             viewModel.recordings?.observe(viewLifecycleOwner, Observer<List<Recording>> { this.handleObservedRecordings(it) })
 
             loadingMoreProgramAllowed = false
         }
     }
 
-    private fun handleObservedPrograms(programs: List<Program>?) {
-        if (programs != null) {
-            recyclerViewAdapter.addItems(programs.toMutableList())
+    /**
+     * Loads the programs that match the current search query from the selected time.
+     * The previous list is not observed anymore because the query has changed.
+     */
+    private fun observePrograms() {
+        programs?.removeObservers(viewLifecycleOwner)
+        programs = if (!isSearchActive) {
+            viewModel.getProgramsByChannelFromTime(shownChannelId, selectedTime, programFilter, programBoundaryCallback)
+        } else {
+            viewModel.getProgramsFromTime(selectedTime, programFilter)
         }
+        programs?.observe(viewLifecycleOwner, Observer<PagedList<Program>> { this.handleObservedPrograms(it) })
+    }
+
+    private fun handleObservedPrograms(programs: PagedList<Program>?) {
+        recyclerViewAdapter.submitList(programs)
         if (isSearchActive) {
             if (activity is StartSearchInterface) {
                 (activity as StartSearchInterface).startSearch()
@@ -123,11 +140,14 @@ class ProgramListFragment : BaseFragment(), RecyclerViewClickCallback, LastProgr
         recycler_view?.visible()
         progress_bar?.gone()
 
+        // The paged list contains placeholders for the programs
+        // that are not loaded, so its size is the number of programs
+        val count = programs?.size ?: 0
         if (!isDualPane) {
             if (!isSearchActive) {
-                toolbarInterface.setSubtitle(resources.getQuantityString(R.plurals.items, recyclerViewAdapter.itemCount, recyclerViewAdapter.itemCount))
+                toolbarInterface.setSubtitle(resources.getQuantityString(R.plurals.items, count, count))
             } else {
-                toolbarInterface.setSubtitle(resources.getQuantityString(R.plurals.programs, recyclerViewAdapter.itemCount, recyclerViewAdapter.itemCount))
+                toolbarInterface.setSubtitle(resources.getQuantityString(R.plurals.programs, count, count))
             }
         }
         // Invalidate the menu so that the search menu item is shown in
@@ -279,13 +299,16 @@ class ProgramListFragment : BaseFragment(), RecyclerViewClickCallback, LastProgr
     }
 
     override fun onSearchRequested(query: String) {
-        recyclerViewAdapter.filter.filter(query, this)
+        if (query != programFilter) {
+            programFilter = query
+            observePrograms()
+        }
     }
 
     override fun onSearchResultsCleared(): Boolean {
         return if (searchQuery.isNotEmpty()) {
             searchQuery = ""
-            recyclerViewAdapter.filter.filter("", this)
+            onSearchRequested("")
             true
         } else {
             false
@@ -296,42 +319,37 @@ class ProgramListFragment : BaseFragment(), RecyclerViewClickCallback, LastProgr
         return getString(R.string.search_programs)
     }
 
-    override fun onLastProgramVisible(position: Int) {
+    /**
+     * Requests the programs that follow the last program in the database from the server.
+     * The paged list calls this when it has loaded the last program that is available.
+     */
+    private val programBoundaryCallback = object : PagedList.BoundaryCallback<Program>() {
+        override fun onItemAtEndLoaded(itemAtEnd: Program) {
+            loadMorePrograms(itemAtEnd)
+        }
+    }
+
+    private fun loadMorePrograms(lastProgram: Program) {
         // Do not load more programs when a search query was given or all programs were loaded.
-        if (isSearchActive || !loadingMoreProgramAllowed || !isNetworkAvailable) {
+        if (isSearchActive || programFilter.isNotEmpty() || !loadingMoreProgramAllowed || !isNetworkAvailable) {
             return
         }
 
         loadingMoreProgramAllowed = false
         loadingProgramAllowedHandler.postDelayed(loadingProgramsAllowedTask, 2000)
 
-        val lastProgram = recyclerViewAdapter.getItem(position)
-        lastProgram?.let {
-            Timber.d("Loading more programs after ${lastProgram.title}")
+        Timber.d("Loading more programs after ${lastProgram.title}")
 
-            val intent = Intent(activity, HtspService::class.java)
-            intent.action = "getEvents"
-            intent.putExtra("eventId", lastProgram.nextEventId)
-            intent.putExtra("channelId", lastProgram.channelId)
-            intent.putExtra("channelName", channelName)
-            intent.putExtra("numFollowing", 25)
-            intent.putExtra("showMessage", true)
+        val intent = Intent(activity, HtspService::class.java)
+        intent.action = "getEvents"
+        intent.putExtra("eventId", lastProgram.nextEventId)
+        intent.putExtra("channelId", lastProgram.channelId)
+        intent.putExtra("channelName", channelName)
+        intent.putExtra("numFollowing", 25)
+        intent.putExtra("showMessage", true)
 
-            if (MainApplication.isActivityVisible()) {
-                activity?.startService(intent)
-            }
-        }
-    }
-
-    override fun onFilterComplete(count: Int) {
-        if (!isDualPane) {
-            context?.let {
-                if (!isSearchActive) {
-                    toolbarInterface.setSubtitle(it.resources.getQuantityString(R.plurals.items, recyclerViewAdapter.itemCount, recyclerViewAdapter.itemCount))
-                } else {
-                    toolbarInterface.setSubtitle(it.resources.getQuantityString(R.plurals.programs, recyclerViewAdapter.itemCount, recyclerViewAdapter.itemCount))
-                }
-            }
+        if (MainApplication.isActivityVisible()) {
+            activity?.startService(intent)
         }
     }
 
@@ -346,7 +364,7 @@ class ProgramListFragment : BaseFragment(), RecyclerViewClickCallback, LastProgr
 
     fun updatePrograms(selectedTime: Long) {
         this.selectedTime = selectedTime
-        viewModel.getProgramsByChannelFromTime(shownChannelId, selectedTime).observe(viewLifecycleOwner, Observer<List<Program>> { this.handleObservedPrograms(it) })
+        observePrograms()
     }
 
     companion object {
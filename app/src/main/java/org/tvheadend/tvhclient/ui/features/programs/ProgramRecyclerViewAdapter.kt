@@ -3,9 +3,7 @@ package org.tvheadend.tvhclient.ui.features.programs
 import android.preference.PreferenceManager
 import android.view.LayoutInflater
 import android.view.ViewGroup
-import android.widget.Filter
-import android.widget.Filterable
-import androidx.recyclerview.widget.DiffUtil
+import androidx.paging.PagedListAdapter
 import androidx.recyclerview.widget.RecyclerView
 import org.tvheadend.tvhclient.R
 import org.tvheadend.tvhclient.databinding.ProgramListAdapterBinding
@@ -14,13 +12,16 @@ import org.tvheadend.tvhclient.domain.entity.Recording
 import org.tvheadend.tvhclient.ui.common.callbacks.RecyclerViewClickCallback
 import org.tvheadend.tvhclient.util.isEqualTo
 import java.util.*
-import java.util.concurrent.CopyOnWriteArrayList
 
-class ProgramRecyclerViewAdapter internal constructor(private val showProgramChannelIcon: Boolean, private val clickCallback: RecyclerViewClickCallback, private val onLastProgramVisibleListener: LastProgramVisibleListener) : RecyclerView.Adapter<ProgramRecyclerViewAdapter.ProgramViewHolder>(), Filterable {
+/**
+ * Shows the programs of a paged list. The pages are loaded when the list is scrolled
+ * and the differences between two lists are calculated on a background thread.
+ * Programs that are not loaded yet are shown as empty placeholders.
+ */
+class ProgramRecyclerViewAdapter internal constructor(private val showProgramChannelIcon: Boolean, private val clickCallback: RecyclerViewClickCallback) : PagedListAdapter<Program, ProgramRecyclerViewAdapter.ProgramViewHolder>(ProgramListDiffCallback) {
 
-    private val programList = ArrayList<Program>()
-    private var programListFiltered: MutableList<Program> = ArrayList()
-    private val recordingList = ArrayList<Recording>()
+    // The recordings with the event id of their program as the key
+    private var recordings: Map<Int, Recording> = HashMap()
 
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): ProgramViewHolder {
         val layoutInflater = LayoutInflater.from(parent.context)
@@ -34,127 +35,71 @@ class ProgramRecyclerViewAdapter internal constructor(private val showProgramCha
     }
 
     override fun onBindViewHolder(holder: ProgramViewHolder, position: Int) {
-        if (programListFiltered.size > position) {
-            val program = programListFiltered[position]
-            holder.bind(program, position, clickCallback)
-            if (position == programList.size - 1) {
-                onLastProgramVisibleListener.onLastProgramVisible(position)
-            }
+        val program = getItem(position)
+        if (program != null && program.eventId > 0) {
+            program.recording = recordings[program.eventId]
         }
+        holder.bind(program, position, clickCallback)
     }
 
     override fun onBindViewHolder(holder: ProgramViewHolder, position: Int, payloads: List<Any>) {
         onBindViewHolder(holder, position)
     }
 
-    internal fun addItems(newItems: MutableList<Program>) {
-        updateRecordingState(newItems, recordingList)
-
-        val oldItems = ArrayList(programListFiltered)
-        val diffResult = DiffUtil.calculateDiff(ProgramListDiffCallback(oldItems, newItems))
-
-        programList.clear()
-        programListFiltered.clear()
-        programList.addAll(newItems)
-        programListFiltered.addAll(newItems)
-        diffResult.dispatchUpdatesTo(this)
-    }
-
-    override fun getItemCount(): Int {
-        return programListFiltered.size
-    }
-
     override fun getItemViewType(position: Int): Int {
         return R.layout.program_list_adapter
     }
 
-    fun getItem(position: Int): Program? {
-        return if (programListFiltered.size > position && position >= 0) {
-            programListFiltered[position]
+    /**
+     * Returns the program at the given position or null if it is not loaded yet
+     */
+    public override fun getItem(position: Int): Program? {
+        return if (position >= 0 && position < itemCount) {
+            super.getItem(position)
         } else {
             null
         }
     }
 
-    override fun getFilter(): Filter {
-        return object : Filter() {
-            override fun performFiltering(charSequence: CharSequence): FilterResults {
-                val charString = charSequence.toString()
-                var filteredList: MutableList<Program> = ArrayList()
-                if (charString.isEmpty()) {
-                    filteredList = programList
-                } else {
-                    // Iterate over the available program. Use a copy on write
-                    // array in case the program list changes during filtering.
-                    for (program in CopyOnWriteArrayList(programList)) {
-                        // name match condition. this might differ depending on your requirement
-                        // here we are looking for a channel name match
-                        val title = program.title ?: ""
-                        if (title.toLowerCase().contains(charString.toLowerCase())) {
-                            filteredList.add(program)
-                        }
-                    }
-                }
-
-                val filterResults = FilterResults()
-                filterResults.values = filteredList
-                return filterResults
-            }
-
-            override fun publishResults(charSequence: CharSequence, filterResults: FilterResults) {
-                programListFiltered = filterResults.values as ArrayList<Program>
-                notifyDataSetChanged()
-            }
-        }
-    }
-
     /**
      * Whenever a recording changes in the database the list of available recordings are
-     * saved in this recycler view. The previous list is cleared to avoid showing outdated
-     * recording states. Each recording is checked if it belongs to the
-     * currently shown program. If yes then its state is updated.
+     * saved in this recycler view. The recording of a program is set when it is shown.
+     * Only the loaded programs whose recording state icon changes are updated.
      *
      * @param list List of recordings
      */
     internal fun addRecordings(list: List<Recording>) {
-        recordingList.clear()
-        recordingList.addAll(list)
-        updateRecordingState(programListFiltered, recordingList)
-    }
-
-    private fun updateRecordingState(programs: MutableList<Program>, recordings: List<Recording>) {
-        for (i in programs.indices) {
-            val program = programs[i]
-            var recordingExists = false
-
-            for (recording in recordings) {
-                if (program.eventId > 0 && program.eventId == recording.eventId) {
-                    val oldRecording = program.recording
-                    program.recording = recording
-
-                    // Do a full update only when a new recording was added or the recording
-                    // state has changed which results in a different recording state icon
-                    // Otherwise do not update the UI
-                    if (oldRecording == null
-                            || !oldRecording.error.isEqualTo(recording.error)
-                            || !oldRecording.state.isEqualTo(recording.state)) {
-                        notifyItemChanged(i)
-                    }
-                    recordingExists = true
-                    break
-                }
+        val oldRecordings = recordings
+        val newRecordings = HashMap<Int, Recording>()
+        for (recording in list) {
+            if (recording.eventId > 0) {
+                newRecordings[recording.eventId] = recording
             }
-            if (!recordingExists && program.recording != null) {
-                program.recording = null
-                notifyItemChanged(i)
+        }
+        recordings = newRecordings
+
+        // The snapshot contains only the loaded programs and does not load further pages
+        currentList?.snapshot()?.forEachIndexed { position, program ->
+            if (program != null && program.eventId > 0) {
+                val oldRecording = oldRecordings[program.eventId]
+                val recording = newRecordings[program.eventId]
+
+                // Do a full update only when a recording was added or removed or the recording
+                // state has changed which results in a different recording state icon
+                // Otherwise do not update the UI
+                if ((oldRecording == null) != (recording == null)
+                        || (oldRecording != null && recording != null
+                                && (!oldRecording.error.isEqualTo(recording.error)
+                                || !oldRecording.state.isEqualTo(recording.state)))) {
+                    notifyItemChanged(position)
+                }
             }
-            programs[i] = program
         }
     }
 
     class ProgramViewHolder(private val binding: ProgramListAdapterBinding, private val showProgramChannelIcon: Boolean, private val showGenreColors: Boolean, private val showProgramSubtitles: Boolean) : RecyclerView.ViewHolder(binding.root) {
 
-        fun bind(program: Program, position: Int, clickCallback: RecyclerViewClickCallback) {
+        fun bind(program: Program?, position: Int, clickCallback: RecyclerViewClickCallback) {
             binding.program = program
             binding.position = position
             binding.showProgramSubtitles = showProgramSubtitles
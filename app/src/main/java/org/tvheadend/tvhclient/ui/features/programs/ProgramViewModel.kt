@@ -3,6 +3,8 @@ package org.tvheadend.tvhclient.ui.features.programs
 import android.app.Application
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.LiveData
+import androidx.paging.LivePagedListBuilder
+import androidx.paging.PagedList
 import org.tvheadend.tvhclient.MainApplication
 import org.tvheadend.tvhclient.data.repository.AppRepository
 import org.tvheadend.tvhclient.domain.entity.Program
@@ -17,18 +19,32 @@ class ProgramViewModel(application: Application) : AndroidViewModel(application)
     val numberOfPrograms: LiveData<Int>
     val recordings: LiveData<List<Recording>>?
 
+    private val pagedListConfig = PagedList.Config.Builder()
+            .setPageSize(50)
+            .setInitialLoadSizeHint(100)
+            .setPrefetchDistance(50)
+            .setEnablePlaceholders(true)
+            .build()
+
     init {
         MainApplication.getComponent().inject(this)
         recordings = appRepository.recordingData.getLiveDataItems()
         numberOfPrograms = appRepository.programData.getLiveDataItemCount()
     }
 
-    fun getProgramsByChannelFromTime(channelId: Int, time: Long): LiveData<List<Program>> {
-        return appRepository.programData.getLiveDataItemByChannelIdAndTime(channelId, time)
+    /**
+     * Returns the programs of the given channel from the given time that match the
+     * query. The programs are loaded page by page when the list is scrolled. The boundary
+     * callback is notified when the last program that is available in the database was loaded.
+     */
+    fun getProgramsByChannelFromTime(channelId: Int, time: Long, query: String, boundaryCallback: PagedList.BoundaryCallback<Program>): LiveData<PagedList<Program>> {
+        return LivePagedListBuilder(appRepository.programData.getPagedItemsByChannelIdAndTime(channelId, time, query), pagedListConfig)
+                .setBoundaryCallback(boundaryCallback)
+                .build()
     }
 
-    fun getProgramsFromTime(time: Long): LiveData<List<Program>> {
-        return appRepository.programData.getLiveDataItemsFromTime(time)
+    fun getProgramsFromTime(time: Long, query: String): LiveData<PagedList<Program>> {
+        return LivePagedListBuilder(appRepository.programData.getPagedItemsFromTime(time, query), pagedListConfig).build()
     }
 
     fun getProgramByIdSync(eventId: Int): Program? {
@@ -1,6 +1,13 @@
 package org.tvheadend.tvhclient.ui.features.search
 
+import android.app.SearchManager
 import android.content.SearchRecentSuggestionsProvider
+import android.database.Cursor
+import android.database.MatrixCursor
+import android.database.MergeCursor
+import android.net.Uri
+import android.provider.BaseColumns
+import org.tvheadend.tvhclient.MainApplication
 
 class SuggestionProvider : SearchRecentSuggestionsProvider() {
 
@@ -8,8 +15,47 @@ class SuggestionProvider : SearchRecentSuggestionsProvider() {
         setupSuggestions(AUTHORITY, MODE)
     }
 
+    /**
+     * Adds the titles of the current and upcoming programs that match the entered text
+     * in the full text index to the recent queries. The search view calls this from a
+     * background thread, so the database can be read here.
+     */
+    override fun query(uri: Uri, projection: Array<String>?, selection: String?, selectionArgs: Array<String>?, sortOrder: String?): Cursor? {
+        val recentQueries = super.query(uri, projection, selection, selectionArgs, sortOrder)
+        val text = selectionArgs?.firstOrNull()
+        if (recentQueries == null || text.isNullOrBlank()) {
+            return recentQueries
+        }
+
+        val shownQueries = HashSet<String>()
+        val queryColumn = recentQueries.getColumnIndex(SearchManager.SUGGEST_COLUMN_QUERY)
+        if (queryColumn >= 0) {
+            while (recentQueries.moveToNext()) {
+                shownQueries.add(recentQueries.getString(queryColumn))
+            }
+            recentQueries.moveToPosition(-1)
+        }
+
+        val columns = recentQueries.columnNames
+        val programTitles = MatrixCursor(columns)
+        val titles = MainApplication.getComponent().appRepository().programData.getTitlesBySearchQuery(text, MAX_PROGRAM_TITLES)
+        titles.filter { !shownQueries.contains(it) }.forEachIndexed { i, title ->
+            programTitles.addRow(columns.map {
+                when (it) {
+                    // The ids of the recent queries are positive
+                    BaseColumns._ID -> -(i + 1)
+                    SearchManager.SUGGEST_COLUMN_FORMAT -> 0
+                    SearchManager.SUGGEST_COLUMN_TEXT_1, SearchManager.SUGGEST_COLUMN_QUERY -> title
+                    else -> null
+                }
+            }.toTypedArray())
+        }
+        return MergeCursor(arrayOf(recentQueries, programTitles))
+    }
+
     companion object {
         const val AUTHORITY = "org.tvheadend.tvhclient.ui.features.search.SuggestionProvider"
         const val MODE = DATABASE_MODE_QUERIES
+        private const val MAX_PROGRAM_TITLES = 10
     }
 }
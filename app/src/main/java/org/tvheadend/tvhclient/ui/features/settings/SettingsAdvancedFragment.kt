@@ -203,6 +203,20 @@ class SettingsAdvancedFragment : BasePreferenceFragment(), Preference.OnPreferen
                 } catch (ex: NumberFormatException) {
                     prefs.edit().putString(key, resources.getString(R.string.pref_default_connection_timeout)).apply()
                 }
+            "receive_buffer_limit" ->
+                try {
+                    val value = Integer.parseInt(prefs.getString(key, resources.getString(R.string.pref_default_receive_buffer_limit))!!)
+                    if (value < 1) {
+                        (findPreference<Preference>(key) as EditTextPreference).text = "1"
+                        prefs.edit().putString(key, "1").apply()
+                    }
+                    if (value > 64) {
+                        (findPreference<Preference>(key) as EditTextPreference).text = "64"
+                        prefs.edit().putString(key, "64").apply()
+                    }
+                } catch (ex: NumberFormatException) {
+                    prefs.edit().putString(key, resources.getString(R.string.pref_default_receive_buffer_limit)).apply()
+                }
         }
     }
 
@@ -0,0 +1,361 @@
+package org.tvheadend.tvhclient.data.db
+
+import android.app.Application
+import android.database.Cursor
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule
+import androidx.lifecycle.LiveData
+import androidx.lifecycle.Observer
+import androidx.paging.DataSource
+import androidx.room.Room
+import androidx.room.paging.LimitOffsetDataSource
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteOpenHelper
+import androidx.sqlite.db.SupportSQLiteQuery
+import androidx.sqlite.db.SupportSQLiteStatement
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
+import androidx.test.core.app.ApplicationProvider
+import org.junit.After
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.tvheadend.tvhclient.domain.entity.*
+
+/**
+ * Runs the queries of the daos against a seeded database and checks with EXPLAIN QUERY PLAN
+ * that none of them scans a table. The selects as well as the filtered updates and deletes
+ * are checked. Statements without a condition, like loading all connections or the deleteAll
+ * methods, visit every row by design and are not checked. The full text tables are searched
+ * via their own index, so the scans of these virtual tables are allowed.
+ *
+ * The database is created with the callback of the app, so the triggers and the full text
+ * tables exist and are updated while the data is inserted. Like the database that the app
+ * creates, it is not analyzed, so the planner only decides by the available indices.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(application = Application::class, sdk = [28])
+class QueryPlanTest {
+
+    @get:Rule
+    val instantTaskExecutorRule = InstantTaskExecutorRule()
+
+    private val recorder = QueryRecorder()
+    private lateinit var db: AppRoomDatabase
+
+    @Before
+    fun createDatabase() {
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppRoomDatabase::class.java)
+                .openHelperFactory(recorder)
+                .addCallback(AppRoomDatabase.CALLBACK)
+                .allowMainThreadQueries()
+                .build()
+        seedDatabase()
+    }
+
+    @After
+    fun closeDatabase() {
+        db.close()
+    }
+
+    @Test
+    fun programQueriesUseIndices() {
+        val dao = db.programDao
+        assertNoTableScans { dao.getItemCount(CONNECTION_ID).load() }
+        assertNoTableScans { dao.getItemCountSync(CONNECTION_ID) }
+        assertNoTableScans { dao.loadProgramsFromTime(CONNECTION_ID, NOW).load() }
+        assertNoTableScans { dao.loadProgramsFromChannelFromTime(CONNECTION_ID, 1, NOW).load() }
+        assertNoTableScans { dao.loadProgramsFromChannelBetweenTimeSync(CONNECTION_ID, 1, NOW, NOW + HOUR) }
+        assertNoTableScans { dao.loadProgramsFromChannelsBetweenTimeSync(CONNECTION_ID, listOf(1, 2, 3), NOW, NOW + HOUR) }
+        assertNoTableScans { dao.loadPrograms(CONNECTION_ID).load() }
+        assertNoTableScans { dao.loadProgramsSync(CONNECTION_ID) }
+        assertNoTableScans { dao.loadProgramById(CONNECTION_ID, 1).load() }
+        assertNoTableScans { dao.loadProgramByIdSync(CONNECTION_ID, 1) }
+        assertNoTableScans { dao.loadLastProgramFromChannelSync(CONNECTION_ID, 1) }
+        assertNoTableScans { dao.loadLastProgramOfEachChannelSync(CONNECTION_ID) }
+        assertNoTableScans { dao.loadProgramIdsFromChannelBetweenTimeSync(CONNECTION_ID, 1, NOW, NOW + HOUR) }
+        assertNoTableScans { dao.update(dao.loadProgramByIdSync(CONNECTION_ID, PROGRAMS_PER_CHANNEL)) }
+        assertNoTableScans { dao.deleteOverlappingPrograms(CONNECTION_ID, 1, 0, NOW, NOW + HOUR) }
+        assertNoTableScans { dao.deleteById(CONNECTION_ID, PROGRAMS_PER_CHANNEL + 1) }
+        assertNoTableScans { dao.deleteByIds(CONNECTION_ID, listOf(PROGRAMS_PER_CHANNEL + 2, PROGRAMS_PER_CHANNEL + 3)) }
+        assertNoTableScans { dao.deleteProgramsByTime(NOW - 12 * HOUR) }
+    }
+
+    @Test
+    fun channelQueriesUseIndices() {
+        val dao = db.channelDao
+        val tagIds = listOf(1, 2)
+        assertNoTableScans { dao.getItemCount(CONNECTION_ID).load() }
+        assertNoTableScans { dao.getItemCountSync(CONNECTION_ID) }
+        assertNoTableScans { dao.loadChannelByIdSync(CONNECTION_ID, 1) }
+        assertNoTableScans { dao.loadChannelByIdWithProgramsSync(CONNECTION_ID, 1, NOW) }
+        assertNoTableScans { dao.loadAllChannelsSync(CONNECTION_ID, 0) }
+        assertNoTableScans { dao.loadAllChannelIdsSync(CONNECTION_ID, 0) }
+        assertNoTableScans { dao.loadAllChannelIdsByTagSync(CONNECTION_ID, 0, tagIds) }
+        assertNoTableScans { dao.loadAllChannelsByTime(CONNECTION_ID, NOW, 0).load() }
+        assertNoTableScans { dao.loadAllChannelsByTimeAndTag(CONNECTION_ID, NOW, 0, tagIds).load() }
+        assertNoTableScans { dao.loadAllChannelsWithNowAndNext(CONNECTION_ID, 0).load() }
+        assertNoTableScans { dao.loadAllChannelsWithNowAndNextByTag(CONNECTION_ID, 0, tagIds).load() }
+        assertNoTableScans { dao.loadNextProgramChangeTimeSync(NOW) }
+        assertNoTableScans { dao.loadLastProgramChangeTimeSync(NOW) }
+        assertNoTableScans { dao.loadAllEpgChannels(CONNECTION_ID, 0).load() }
+        assertNoTableScans { dao.loadAllEpgChannelsByTag(CONNECTION_ID, 0, tagIds).load() }
+        assertNoTableScans { dao.updateEventSyncTimes(CONNECTION_ID) }
+        assertNoTableScans { dao.update(dao.loadChannelByIdSync(CONNECTION_ID, 1)) }
+        assertNoTableScans { dao.deleteById(CONNECTION_ID, CHANNEL_COUNT) }
+    }
+
+    @Test
+    fun recordingQueriesUseIndices() {
+        val dao = db.recordingDao
+        assertNoTableScans { dao.getCompletedRecordingCount(CONNECTION_ID).load() }
+        assertNoTableScans { dao.getScheduledRecordingCount(CONNECTION_ID).load() }
+        assertNoTableScans { dao.getFailedRecordingCount(CONNECTION_ID).load() }
+        assertNoTableScans { dao.getRemovedRecordingCount(CONNECTION_ID).load() }
+        assertNoTableScans { dao.getItemCountSync(CONNECTION_ID) }
+        assertNoTableScans { dao.loadAllRecordings(CONNECTION_ID).load() }
+        assertNoTableScans { dao.loadAllCompletedRecordings(CONNECTION_ID).load() }
+        assertNoTableScans { dao.loadAllScheduledRecordings(CONNECTION_ID).load() }
+        assertNoTableScans { dao.loadAllFailedRecordings(CONNECTION_ID).load() }
+        assertNoTableScans { dao.loadAllRemovedRecordings(CONNECTION_ID).load() }
+        assertNoTableScans { dao.loadRecordingById(CONNECTION_ID, 1).load() }
+        assertNoTableScans { dao.loadRecordingByIdSync(CONNECTION_ID, 1) }
+        assertNoTableScans { dao.loadAllRecordingsByChannelId(CONNECTION_ID, 1).load() }
+        assertNoTableScans { dao.loadRecordingByEventIdSync(CONNECTION_ID, 1) }
+        assertNoTableScans { dao.loadRecordingIdsSync(CONNECTION_ID) }
+        assertNoTableScans { dao.update(dao.loadRecordingByIdSync(CONNECTION_ID, 1)) }
+        assertNoTableScans { dao.deleteById(CONNECTION_ID, 2) }
+        assertNoTableScans { dao.deleteByIds(CONNECTION_ID, listOf(3, 4)) }
+        assertNoTableScans { dao.deleteAllExcept(CONNECTION_ID, (1..RECORDING_COUNT / 2).toSet()) }
+    }
+
+    @Test
+    fun seriesAndTimerRecordingQueriesUseIndices() {
+        val seriesDao = db.seriesRecordingDao
+        assertNoTableScans { seriesDao.getRecordingCount(CONNECTION_ID).load() }
+        assertNoTableScans { seriesDao.loadAllRecordings(CONNECTION_ID).load() }
+        assertNoTableScans { seriesDao.loadRecordingById(CONNECTION_ID, "1").load() }
+        assertNoTableScans { seriesDao.loadRecordingByIdSync(CONNECTION_ID, "1") }
+        assertNoTableScans { seriesDao.loadRecordingIdsSync(CONNECTION_ID) }
+        assertNoTableScans { seriesDao.update(seriesDao.loadRecordingByIdSync(CONNECTION_ID, "1")) }
+        assertNoTableScans { seriesDao.deleteById(CONNECTION_ID, "2") }
+        assertNoTableScans { seriesDao.deleteByIds(CONNECTION_ID, listOf("3", "4")) }
+
+        val timerDao = db.timerRecordingDao
+        assertNoTableScans { timerDao.getRecordingCount(CONNECTION_ID).load() }
+        assertNoTableScans { timerDao.loadAllRecordings(CONNECTION_ID).load() }
+        assertNoTableScans { timerDao.loadRecordingById(CONNECTION_ID, "1").load() }
+        assertNoTableScans { timerDao.loadRecordingByIdSync(CONNECTION_ID, "1") }
+        assertNoTableScans { timerDao.update(timerDao.loadRecordingByIdSync(CONNECTION_ID, "1")) }
+        assertNoTableScans { timerDao.deleteById(CONNECTION_ID, "2") }
+    }
+
+    @Test
+    fun channelTagQueriesUseIndices() {
+        val dao = db.channelTagDao
+        assertNoTableScans { dao.getItemCountSync(CONNECTION_ID) }
+        assertNoTableScans { dao.loadAllChannelTags(CONNECTION_ID).load() }
+        assertNoTableScans { dao.loadAllChannelTagsSync(CONNECTION_ID) }
+        assertNoTableScans { dao.loadChannelTagByIdSync(CONNECTION_ID, 1) }
+        assertNoTableScans { dao.loadAllSelectedItemIds(CONNECTION_ID).load() }
+        assertNoTableScans { dao.loadAllSelectedItemIdsSync(CONNECTION_ID) }
+        assertNoTableScans { dao.update(dao.loadChannelTagByIdSync(CONNECTION_ID, 1)) }
+        assertNoTableScans { dao.deleteById(CONNECTION_ID, TAG_COUNT) }
+
+        val tagAndChannelDao = db.tagAndChannelDao
+        assertNoTableScans { tagAndChannelDao.loadAllTagAndChannelsSync(CONNECTION_ID) }
+        assertNoTableScans { tagAndChannelDao.deleteByTagId(CONNECTION_ID, 1) }
+    }
+
+    @Test
+    fun serverQueriesUseIndices() {
+        val statusDao = db.serverStatusDao
+        assertNoTableScans { statusDao.loadAllServerStatus(CONNECTION_ID).load() }
+        assertNoTableScans { statusDao.loadActiveServerStatusSync(CONNECTION_ID) }
+        assertNoTableScans { statusDao.loadActiveServerStatus(CONNECTION_ID).load() }
+        assertNoTableScans { statusDao.loadServerStatusByIdSync(CONNECTION_ID) }
+        assertNoTableScans { statusDao.loadServerStatusById(CONNECTION_ID).load() }
+        assertNoTableScans { statusDao.getServerStatusCount(CONNECTION_ID).load() }
+        assertNoTableScans { statusDao.update(statusDao.loadServerStatusByIdSync(CONNECTION_ID)) }
+        assertNoTableScans { statusDao.deleteByConnectionId(CONNECTION_ID + 1) }
+
+        val profileDao = db.serverProfileDao
+        assertNoTableScans { profileDao.loadHtspPlaybackProfilesSync() }
+        assertNoTableScans { profileDao.loadHttpPlaybackProfilesSync() }
+        assertNoTableScans { profileDao.loadAllRecordingProfilesSync() }
+        assertNoTableScans { profileDao.loadProfileByIdSync(1) }
+        assertNoTableScans { profileDao.loadProfileByUuidSync("uuid-$CONNECTION_ID-recording") }
+        assertNoTableScans { profileDao.update(profileDao.loadProfileByIdSync(1)) }
+
+        val connectionDao = db.connectionDao
+        assertNoTableScans { connectionDao.loadActiveConnectionSync() }
+        assertNoTableScans { connectionDao.loadConnectionByIdSync(CONNECTION_ID) }
+        assertNoTableScans { connectionDao.loadConnectionById(CONNECTION_ID).load() }
+        assertNoTableScans { connectionDao.update(connectionDao.loadConnectionByIdSync(CONNECTION_ID)) }
+        assertNoTableScans { connectionDao.disableActiveConnection() }
+    }
+
+    @Test
+    fun searchQueriesUseIndices() {
+        val dao = db.searchDao
+        assertNoTableScans { dao.loadPrograms(SearchIndexHelper.programQuery(CONNECTION_ID, 0, NOW, "Program", false)).load() }
+        assertNoTableScans { dao.loadPrograms(SearchIndexHelper.programQuery(CONNECTION_ID, 1, NOW, "Program", true)).load() }
+        assertNoTableScans { dao.loadProgramTitlesSync(SearchIndexHelper.programTitleQuery(CONNECTION_ID, NOW, "Program", 10)) }
+        assertNoTableScans { dao.loadRecordingIdsSync(SearchIndexHelper.recordingIdQuery(CONNECTION_ID, "Recording")) }
+        assertNoTableScans { dao.loadSeriesRecordingIdsSync(SearchIndexHelper.seriesRecordingIdQuery(CONNECTION_ID, "Series")) }
+    }
+
+    /**
+     * Adds the data of two connections, so that the connection id alone does not select all rows
+     */
+    private fun seedDatabase() {
+        for (connectionId in listOf(CONNECTION_ID, CONNECTION_ID + 1)) {
+            val channels = (1..CHANNEL_COUNT).map {
+                Channel(id = it, name = "Channel $it", connectionId = connectionId)
+            }
+            val programs = channels.flatMap { channel ->
+                (0 until PROGRAMS_PER_CHANNEL).map {
+                    val start = NOW + (it - PROGRAMS_PER_CHANNEL / 2) * HOUR
+                    Program(eventId = channel.id * PROGRAMS_PER_CHANNEL + it, channelId = channel.id,
+                            start = start, stop = start + HOUR, title = "Program $it",
+                            connectionId = connectionId)
+                }
+            }
+            val recordings = (1..RECORDING_COUNT).map {
+                Recording(id = it, channelId = it % CHANNEL_COUNT + 1, eventId = it,
+                        start = NOW + it * HOUR, stop = NOW + (it + 1) * HOUR,
+                        title = "Recording $it", connectionId = connectionId)
+            }
+            val channelTags = (1..TAG_COUNT).map {
+                ChannelTag(tagId = it, tagName = "Tag $it", isSelected = it % 2 == 0, connectionId = connectionId)
+            }
+            val tagAndChannels = channels.map {
+                TagAndChannel(tagId = it.id % TAG_COUNT + 1, channelId = it.id, connectionId = connectionId)
+            }
+            db.connectionDao.insert(Connection(id = connectionId, name = "Connection $connectionId", isActive = connectionId == CONNECTION_ID))
+            db.channelDao.insert(channels)
+            db.programDao.insert(programs)
+            db.recordingDao.insert(recordings)
+            db.channelTagDao.insert(channelTags)
+            db.tagAndChannelDao.insert(tagAndChannels)
+
+            for (i in 1..RECORDING_COUNT) {
+                val channelId = i % CHANNEL_COUNT + 1
+                db.seriesRecordingDao.insert(SeriesRecording(id = "$i", title = "Series $i", channelId = channelId, connectionId = connectionId))
+                db.timerRecordingDao.insert(TimerRecording(id = "$i", title = "Timer $i", channelId = channelId, connectionId = connectionId))
+            }
+            for (type in listOf("htsp_playback", "http_playback", "recording")) {
+                db.serverProfileDao.insert(ServerProfile(connectionId = connectionId, name = type, uuid = "uuid-$connectionId-$type", type = type))
+            }
+            db.serverStatusDao.insert(ServerStatus(connectionId = connectionId, serverName = "Server $connectionId"))
+        }
+        ChannelNowNextHelper.update(db.openHelper.writableDatabase, NOW)
+    }
+
+    /**
+     * Runs the block and fails if the plan of one of its statements contains a table scan
+     */
+    private fun assertNoTableScans(block: () -> Unit) {
+        recorder.statements.clear()
+        block()
+        assertTrue("The dao did not run a statement", recorder.statements.isNotEmpty())
+
+        for (sql in recorder.statements) {
+            for (detail in explainQueryPlan(sql)) {
+                // Older versions of SQLite show the table and its alias
+                // ("SCAN TABLE programs AS p"), newer ones only the alias ("SCAN p")
+                val scan = tableScan.find(detail) ?: continue
+                if (detail.contains("VIRTUAL TABLE") || scan.groupValues[1] in nonTableScans) {
+                    continue
+                }
+                assertTrue("Statement scans a table: $detail\n$sql", false)
+            }
+        }
+    }
+
+    private fun explainQueryPlan(sql: String): List<String> {
+        val details = ArrayList<String>()
+        // The arguments are not bound and are therefore null, they do not change the plan
+        recorder.database.query("EXPLAIN QUERY PLAN $sql").use { cursor ->
+            val column = cursor.getColumnIndex("detail")
+            while (cursor.moveToNext()) {
+                details.add(cursor.getString(column))
+            }
+        }
+        return details
+    }
+
+    private fun <T> LiveData<T>.load() {
+        // The query of the live data runs when it becomes active
+        val observer = Observer<T> { }
+        observeForever(observer)
+        removeObserver(observer)
+    }
+
+    private fun <T> DataSource.Factory<Int, T>.load() {
+        (create() as LimitOffsetDataSource<T>).loadRange(0, PAGE_SIZE)
+    }
+
+    /**
+     * Creates the default open helper and records the statements of the daos
+     * that read, update or delete rows. The statements that Room runs on its
+     * own tables and those that insert rows are not recorded.
+     */
+    private class QueryRecorder : SupportSQLiteOpenHelper.Factory {
+
+        val statements = ArrayList<String>()
+        lateinit var database: SupportSQLiteDatabase
+
+        override fun create(configuration: SupportSQLiteOpenHelper.Configuration): SupportSQLiteOpenHelper {
+            val helper = FrameworkSQLiteOpenHelperFactory().create(configuration)
+            return object : SupportSQLiteOpenHelper by helper {
+                override fun getWritableDatabase(): SupportSQLiteDatabase {
+                    database = helper.writableDatabase
+                    return RecordingDatabase(database)
+                }
+
+                override fun getReadableDatabase(): SupportSQLiteDatabase {
+                    return writableDatabase
+                }
+            }
+        }
+
+        private fun record(sql: String) {
+            val statement = sql.trim()
+            if (recordedStatement.containsMatchIn(statement) && !statement.contains("room_")) {
+                statements.add(statement)
+            }
+        }
+
+        private inner class RecordingDatabase(private val delegate: SupportSQLiteDatabase) : SupportSQLiteDatabase by delegate {
+            override fun query(query: SupportSQLiteQuery): Cursor {
+                record(query.sql)
+                return delegate.query(query)
+            }
+
+            override fun compileStatement(sql: String): SupportSQLiteStatement {
+                record(sql)
+                return delegate.compileStatement(sql)
+            }
+        }
+    }
+
+    companion object {
+        private const val CONNECTION_ID = 1
+        private const val CHANNEL_COUNT = 100
+        private const val PROGRAMS_PER_CHANNEL = 48
+        private const val RECORDING_COUNT = 200
+        private const val TAG_COUNT = 10
+        private const val PAGE_SIZE = 20
+        private const val HOUR = 3_600_000L
+
+        // The triggers of the channel_now_next table use the current time
+        private val NOW = System.currentTimeMillis() / HOUR * HOUR
+
+        private val recordedStatement = Regex("^(SELECT|UPDATE|DELETE)\\b", RegexOption.IGNORE_CASE)
+        private val tableScan = Regex("^SCAN (?:TABLE )?(\\w+)")
+        private val nonTableScans = setOf("CONSTANT", "SUBQUERY")
+    }
+}